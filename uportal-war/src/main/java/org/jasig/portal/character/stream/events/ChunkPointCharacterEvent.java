@@ -0,0 +1,90 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.character.stream.events;
+
+/**
+ * Empty character data that marks a chunk-point in the character stream. Consumers that
+ * only care about the data treat it like any other empty {@link CharacterDataEvent}, the
+ * top level renderer uses it as a point where buffered output may be flushed to the client.
+ * 
+ * @version $Revision$
+ * @see ChunkPointPlaceholderEventSource
+ */
+public final class ChunkPointCharacterEvent implements CharacterDataEvent {
+    private static final long serialVersionUID = 1L;
+    
+    public static final ChunkPointCharacterEvent INSTANCE = new ChunkPointCharacterEvent();
+    
+    private ChunkPointCharacterEvent() {
+    }
+    
+    /**
+     * @return true if the event is a chunk-point marker
+     */
+    public static boolean isChunkPoint(CharacterEvent event) {
+        return event instanceof ChunkPointCharacterEvent;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.portal.character.stream.events.CharacterDataEvent#getData()
+     */
+    @Override
+    public String getData() {
+        return "";
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.portal.character.stream.events.CharacterEvent#getEventType()
+     */
+    @Override
+    public CharacterEventTypes getEventType() {
+        return CharacterEventTypes.CHARACTER;
+    }
+    
+    /**
+     * Keep the marker a singleton when cached events are deserialized
+     */
+    private Object readResolve() {
+        return INSTANCE;
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkPointCharacterEvent";
+    }
+
+    @Override
+    public int hashCode() {
+        return CharacterDataEventImpl.EMPTY_CHARACTER_DATA.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (!(obj instanceof CharacterDataEvent))
+            return false;
+        
+        final CharacterDataEvent other = (CharacterDataEvent) obj;
+        return other.getData() != null && other.getData().length() == 0 && CharacterEventTypes.CHARACTER == other.getEventType();
+    }
+}
@@ -28,11 +28,12 @@ import org.jasig.portal.rendering.StAXSerializingComponent;
 import org.jasig.portal.xml.stream.ChunkingEventReader;
 
 /**
- * Returns an empty string event. The chunk-point element and this source are used to break up the character
+ * Returns an empty string {@link ChunkPointCharacterEvent}. The chunk-point element and this source are used to break up the character
  * stream created by the {@link StAXSerializingComponent} and {@link ChunkingEventReader}. The <chunk-point/>
  * element should be placed before and after sections of markup that are very user or page specific (username, 
  * page title, session key, etc..). This allows the string de-duplication logic of the {@link CharacterDataEventImpl}
  * to be more effective as more users will have common character event strings in their rendering pipeline.
+ * The top level renderer also uses chunk-points as flush points when buffering output.
  * 
  * @author Eric Dalquist
  * @version $Revision$
@@ -46,6 +47,6 @@ public class ChunkPointPlaceholderEventSource extends BasePlaceholderEventSource
     @Override
     protected void generateCharacterEvents(HttpServletRequest servletRequest, StartElement event,
             Collection<CharacterEvent> eventBuffer) {
-        eventBuffer.add(CharacterDataEventImpl.EMPTY_CHARACTER_DATA);
+        eventBuffer.add(ChunkPointCharacterEvent.INSTANCE);
     }
 }
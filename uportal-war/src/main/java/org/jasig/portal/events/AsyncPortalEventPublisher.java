@@ -0,0 +1,347 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.events;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
+import org.springframework.stereotype.Service;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Publishes {@link PortalEvent}s to the application context from a dedicated dispatcher thread. Events are
+ * placed in a bounded buffer by the request thread and dispatched in batches so request processing does not
+ * wait on event listeners. Event types listed in {@link #setSynchronousEventTypes(Class[])} are always
+ * published on the calling thread, by default login and logout events since listeners use them to clear
+ * caches before the user's next request.
+ * 
+ * @version $Revision$
+ */
+@Service("asyncPortalEventPublisher")
+public class AsyncPortalEventPublisher implements ApplicationEventPublisherAware, InitializingBean, DisposableBean {
+    /**
+     * What to do with an event when the buffer is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discard the event
+         */
+        DROP,
+        /**
+         * Publish the event on the calling thread, slowing down producers until the dispatcher catches up
+         */
+        CALLER_RUNS;
+    }
+    
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+    
+    private final AtomicLong eventsQueued = new AtomicLong();
+    private final AtomicLong eventsDispatched = new AtomicLong();
+    private final AtomicLong eventsDropped = new AtomicLong();
+    private final AtomicLong eventsPublishedByCaller = new AtomicLong();
+    private final AtomicLong dispatchFailures = new AtomicLong();
+    private final AtomicLong batchesDispatched = new AtomicLong();
+    
+    private ApplicationEventPublisher applicationEventPublisher;
+    private boolean enabled = true;
+    private int bufferSize = 10000;
+    private int batchSize = 100;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.CALLER_RUNS;
+    private Set<Class<?>> synchronousEventTypes = ImmutableSet.<Class<?>>of(LoginEvent.class, LogoutEvent.class);
+    
+    private volatile BlockingQueue<PortalEvent> eventBuffer;
+    private volatile Thread dispatcherThread;
+
+    @Override
+    public void setApplicationEventPublisher(ApplicationEventPublisher applicationEventPublisher) {
+        this.applicationEventPublisher = applicationEventPublisher;
+    }
+
+    /**
+     * If false all events are published on the calling thread, defaults to true
+     */
+    @Value("${org.jasig.portal.events.AsyncPortalEventPublisher.enabled:true}")
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Maximum number of events waiting to be dispatched, defaults to 10000
+     */
+    @Value("${org.jasig.portal.events.AsyncPortalEventPublisher.bufferSize:10000}")
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be at least 1. Is: " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Maximum number of events removed from the buffer per dispatch, defaults to 100
+     */
+    @Value("${org.jasig.portal.events.AsyncPortalEventPublisher.batchSize:100}")
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1. Is: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * What to do when the buffer is full, defaults to {@link OverflowPolicy#CALLER_RUNS}
+     */
+    @Value("${org.jasig.portal.events.AsyncPortalEventPublisher.overflowPolicy:CALLER_RUNS}")
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Event types that are always published on the calling thread, sub-classes of the listed types are
+     * included as well. Defaults to {@link LoginEvent} and {@link LogoutEvent}
+     */
+    @Value("${org.jasig.portal.events.AsyncPortalEventPublisher.synchronousEventTypes:org.jasig.portal.events.LoginEvent,org.jasig.portal.events.LogoutEvent}")
+    public void setSynchronousEventTypes(Class<?>[] synchronousEventTypes) {
+        if (synchronousEventTypes == null) {
+            this.synchronousEventTypes = ImmutableSet.of();
+        }
+        else {
+            this.synchronousEventTypes = ImmutableSet.copyOf(synchronousEventTypes);
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!this.enabled) {
+            this.logger.info("Asynchronous PortalEvent publishing is disabled, all events will be published on the calling thread");
+            return;
+        }
+        
+        this.eventBuffer = new ArrayBlockingQueue<PortalEvent>(this.bufferSize);
+        
+        final Thread thread = new Thread(new Dispatcher(), "uPortal-PortalEventDispatcher");
+        thread.setDaemon(true);
+        this.dispatcherThread = thread;
+        thread.start();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        final Thread thread = this.dispatcherThread;
+        if (thread == null) {
+            return;
+        }
+        
+        this.dispatcherThread = null;
+        thread.interrupt();
+        thread.join(TimeUnit.SECONDS.toMillis(10));
+        
+        //Publish anything left in the buffer on the shutdown thread
+        this.dispatchBatch(Integer.MAX_VALUE);
+        this.eventBuffer = null;
+    }
+    
+    /**
+     * Publish the event. Returns as soon as the event is in the dispatch buffer unless asynchronous publishing is
+     * disabled, the event type must be published synchronously or the buffer is full and the overflow policy
+     * is {@link OverflowPolicy#CALLER_RUNS}.
+     */
+    public void publishEvent(PortalEvent event) {
+        final BlockingQueue<PortalEvent> eventBuffer = this.eventBuffer;
+        if (eventBuffer == null || this.isSynchronousEvent(event)) {
+            this.applicationEventPublisher.publishEvent(event);
+            return;
+        }
+        
+        if (eventBuffer.offer(event)) {
+            this.eventsQueued.incrementAndGet();
+            return;
+        }
+        
+        switch (this.overflowPolicy) {
+            case DROP: {
+                final long dropped = this.eventsDropped.incrementAndGet();
+                //Only log occasionally, a full buffer means a lot of events are being published
+                if (dropped == 1 || dropped % 1000 == 0) {
+                    this.logger.warn("PortalEvent dispatch buffer is full, {} events have been dropped. Dropped: {}", dropped, event);
+                }
+                break;
+            }
+            default: {
+                this.eventsPublishedByCaller.incrementAndGet();
+                this.applicationEventPublisher.publishEvent(event);
+                break;
+            }
+        }
+    }
+    
+    protected boolean isSynchronousEvent(PortalEvent event) {
+        for (final Class<?> synchronousEventType : this.synchronousEventTypes) {
+            if (synchronousEventType.isInstance(event)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Remove up to maxEvents events from the buffer and publish them
+     * 
+     * @return number of events removed from the buffer
+     */
+    protected int dispatchBatch(int maxEvents) {
+        final BlockingQueue<PortalEvent> eventBuffer = this.eventBuffer;
+        if (eventBuffer == null) {
+            return 0;
+        }
+        
+        final List<PortalEvent> batch = new ArrayList<PortalEvent>(Math.min(maxEvents, this.batchSize));
+        eventBuffer.drainTo(batch, maxEvents);
+        this.dispatch(batch);
+        return batch.size();
+    }
+    
+    private void dispatch(List<PortalEvent> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        
+        for (final PortalEvent event : batch) {
+            try {
+                this.applicationEventPublisher.publishEvent(event);
+            }
+            catch (RuntimeException e) {
+                this.dispatchFailures.incrementAndGet();
+                this.logger.error("Failed to publish PortalEvent: " + event, e);
+            }
+        }
+        
+        this.eventsDispatched.addAndGet(batch.size());
+        this.batchesDispatched.incrementAndGet();
+    }
+    
+    /**
+     * @return Total number of events placed in the dispatch buffer
+     */
+    public long getEventsQueued() {
+        return this.eventsQueued.get();
+    }
+
+    /**
+     * @return Total number of events published by the dispatcher
+     */
+    public long getEventsDispatched() {
+        return this.eventsDispatched.get();
+    }
+
+    /**
+     * @return Total number of events dropped because the dispatch buffer was full
+     */
+    public long getEventsDropped() {
+        return this.eventsDropped.get();
+    }
+
+    /**
+     * @return Total number of events published on the calling thread because the dispatch buffer was full
+     */
+    public long getEventsPublishedByCaller() {
+        return this.eventsPublishedByCaller.get();
+    }
+
+    /**
+     * @return Total number of events for which a listener threw an exception during dispatch
+     */
+    public long getDispatchFailures() {
+        return this.dispatchFailures.get();
+    }
+
+    /**
+     * @return Average number of events per dispatched batch
+     */
+    public double getAverageBatchSize() {
+        final long batches = this.batchesDispatched.get();
+        if (batches == 0) {
+            return 0;
+        }
+        return this.eventsDispatched.get() / (double) batches;
+    }
+
+    /**
+     * @return Number of events waiting to be dispatched
+     */
+    public int getBufferedEvents() {
+        final BlockingQueue<PortalEvent> eventBuffer = this.eventBuffer;
+        return eventBuffer == null ? 0 : eventBuffer.size();
+    }
+
+    /**
+     * @return Maximum number of events that can wait to be dispatched
+     */
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return this.overflowPolicy;
+    }
+    
+    private final class Dispatcher implements Runnable {
+        @Override
+        public void run() {
+            final List<PortalEvent> batch = new ArrayList<PortalEvent>(batchSize);
+            
+            while (dispatcherThread == Thread.currentThread()) {
+                final BlockingQueue<PortalEvent> eventBuffer = AsyncPortalEventPublisher.this.eventBuffer;
+                try {
+                    //Wait for an event then grab whatever else is waiting, up to the batch size
+                    batch.add(eventBuffer.take());
+                    eventBuffer.drainTo(batch, batchSize - 1);
+                }
+                catch (InterruptedException e) {
+                    //Interrupted by destroy, any remaining events are dispatched there
+                    break;
+                }
+                
+                try {
+                    dispatch(batch);
+                }
+                catch (Throwable t) {
+                    logger.error("Unexpected error while dispatching " + batch.size() + " PortalEvents", t);
+                }
+                finally {
+                    batch.clear();
+                }
+            }
+            
+            logger.info("PortalEvent dispatcher stopped");
+        }
+    }
+}
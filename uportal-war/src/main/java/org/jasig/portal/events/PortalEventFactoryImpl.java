@@ -92,6 +92,7 @@ public class PortalEventFactoryImpl implements IPortalEventFactory, ApplicationE
     private IPortalRequestUtils portalRequestUtils;
     private IPersonManager personManager;
     private ApplicationEventPublisher applicationEventPublisher;
+    private AsyncPortalEventPublisher asyncPortalEventPublisher;
     
     /**
      * Maximum number of parameters to allow in an event, also used
@@ -158,6 +159,15 @@ public class PortalEventFactoryImpl implements IPortalEventFactory, ApplicationE
         this.applicationEventPublisher = applicationEventPublisher;
     }
 
+    /**
+     * If set events are published through the {@link AsyncPortalEventPublisher} instead of directly to the
+     * application context
+     */
+    @Autowired(required=false)
+    public void setAsyncPortalEventPublisher(AsyncPortalEventPublisher asyncPortalEventPublisher) {
+        this.asyncPortalEventPublisher = asyncPortalEventPublisher;
+    }
+
     @Autowired
     public void setPersonAttributeDao(@Qualifier("personAttributeDao") IPersonAttributeDao personAttributeDao) {
         this.personAttributeDao = personAttributeDao;
@@ -184,7 +194,7 @@ public class PortalEventFactoryImpl implements IPortalEventFactory, ApplicationE
         final Map<String, List<String>> attributes = this.getAttributesForUser(person);
         
         final LoginEvent loginEvent = new LoginEvent(portalEventBuilder, groups, attributes);
-        this.applicationEventPublisher.publishEvent(loginEvent);
+        this.publishEvent(loginEvent);
     }
     
     /* (non-Javadoc)
@@ -195,7 +205,7 @@ public class PortalEventFactoryImpl implements IPortalEventFactory, ApplicationE
         final PortalEventBuilder portalEventBuilder = this.createPortalEventBuilder(source, person, request);
         
         final LogoutEvent logoutEvent = new LogoutEvent(portalEventBuilder);
-        this.applicationEventPublisher.publishEvent(logoutEvent);
+        this.publishEvent(logoutEvent);
     }
     
     /* (non-Javadoc)
@@ -207,7 +217,7 @@ public class PortalEventFactoryImpl implements IPortalEventFactory, ApplicationE
         final PortalEventBuilder portalEventBuilder = this.createPortalEventBuilder(source, request);
         
         final PortletAddedToLayoutPortalEvent portletAddedToLayoutPortalEvent = new PortletAddedToLayoutPortalEvent(portalEventBuilder, layoutOwner, layoutId, parentFolderId, fname);
-        this.applicationEventPublisher.publishEvent(portletAddedToLayoutPortalEvent);
+        this.publishEvent(portletAddedToLayoutPortalEvent);
     }
 
     /* (non-Javadoc)
@@ -228,7 +238,7 @@ public class PortalEventFactoryImpl implements IPortalEventFactory, ApplicationE
         final PortalEventBuilder portalEventBuilder = this.createPortalEventBuilder(source, request);
         
         final PortletMovedInLayoutPortalEvent portletMovedInLayoutPortalEvent = new PortletMovedInLayoutPortalEvent(portalEventBuilder, layoutOwner, layoutId, oldParentFolderId, newParentFolderId, fname);
-        this.applicationEventPublisher.publishEvent(portletMovedInLayoutPortalEvent);
+        this.publishEvent(portletMovedInLayoutPortalEvent);
     }
 
     /* (non-Javadoc)
@@ -249,7 +259,7 @@ public class PortalEventFactoryImpl implements IPortalEventFactory, ApplicationE
         final PortalEventBuilder portalEventBuilder = this.createPortalEventBuilder(source, request);
         
         final PortletDeletedFromLayoutPortalEvent portletDeletedFromLayoutPortalEvent = new PortletDeletedFromLayoutPortalEvent(portalEventBuilder, layoutOwner, layoutId, oldParentFolderId, fname);
-        this.applicationEventPublisher.publishEvent(portletDeletedFromLayoutPortalEvent);
+        this.publishEvent(portletDeletedFromLayoutPortalEvent);
     }
 
     /* (non-Javadoc)
@@ -270,7 +280,7 @@ public class PortalEventFactoryImpl implements IPortalEventFactory, ApplicationE
         final PortalEventBuilder portalEventBuilder = this.createPortalEventBuilder(source, request);
         
         final FolderAddedToLayoutPortalEvent folderAddedToLayoutPortalEvent = new FolderAddedToLayoutPortalEvent(portalEventBuilder, layoutOwner, layoutId, newFolderId);
-        this.applicationEventPublisher.publishEvent(folderAddedToLayoutPortalEvent);
+        this.publishEvent(folderAddedToLayoutPortalEvent);
     }
 
     /* (non-Javadoc)
@@ -290,7 +300,7 @@ public class PortalEventFactoryImpl implements IPortalEventFactory, ApplicationE
         final PortalEventBuilder portalEventBuilder = this.createPortalEventBuilder(source, request);
         
         final FolderMovedInLayoutPortalEvent folderMovedInLayoutPortalEvent = new FolderMovedInLayoutPortalEvent(portalEventBuilder, layoutOwner, layoutId, oldParentFolderId, movedFolderId);
-        this.applicationEventPublisher.publishEvent(folderMovedInLayoutPortalEvent);
+        this.publishEvent(folderMovedInLayoutPortalEvent);
     }
 
     /* (non-Javadoc)
@@ -311,7 +321,7 @@ public class PortalEventFactoryImpl implements IPortalEventFactory, ApplicationE
         final PortalEventBuilder portalEventBuilder = this.createPortalEventBuilder(source, request);
         
         final FolderDeletedFromLayoutPortalEvent folderDeletedFromLayoutPortalEvent = new FolderDeletedFromLayoutPortalEvent(portalEventBuilder, layoutOwner, layoutId, oldParentFolderId, deletedFolderId, deletedFolderName);
-        this.applicationEventPublisher.publishEvent(folderDeletedFromLayoutPortalEvent);
+        this.publishEvent(folderDeletedFromLayoutPortalEvent);
     }
 
     /* (non-Javadoc)
@@ -334,7 +344,7 @@ public class PortalEventFactoryImpl implements IPortalEventFactory, ApplicationE
         parameters = pruneParameters(parameters);
         final PortalEventBuilder eventBuilder = this.createPortalEventBuilder(source, request);
         final PortletActionExecutionEvent portletActionExecutionEvent = new PortletActionExecutionEvent(eventBuilder, fname, executionTime, parameters);
-        this.applicationEventPublisher.publishEvent(portletActionExecutionEvent);
+        this.publishEvent(portletActionExecutionEvent);
     }
 
     /* (non-Javadoc)
@@ -347,7 +357,7 @@ public class PortalEventFactoryImpl implements IPortalEventFactory, ApplicationE
         parameters = pruneParameters(parameters);
         final PortalEventBuilder eventBuilder = this.createPortalEventBuilder(source, request);
         final PortletEventExecutionEvent portletEventExecutionEvent = new PortletEventExecutionEvent(eventBuilder, fname, executionTime, parameters, eventName);
-        this.applicationEventPublisher.publishEvent(portletEventExecutionEvent);
+        this.publishEvent(portletEventExecutionEvent);
     }
     
     
@@ -357,7 +367,7 @@ public class PortalEventFactoryImpl implements IPortalEventFactory, ApplicationE
         parameters = pruneParameters(parameters);
         final PortalEventBuilder eventBuilder = this.createPortalEventBuilder(source, request);
         final PortletRenderHeaderExecutionEvent portletRenderHeaderExecutionEvent = new PortletRenderHeaderExecutionEvent(eventBuilder, fname, executionTime, parameters, targeted, cached);
-        this.applicationEventPublisher.publishEvent(portletRenderHeaderExecutionEvent);
+        this.publishEvent(portletRenderHeaderExecutionEvent);
     }
 
     @Override
@@ -367,7 +377,7 @@ public class PortalEventFactoryImpl implements IPortalEventFactory, ApplicationE
         parameters = pruneParameters(parameters);
         final PortalEventBuilder eventBuilder = this.createPortalEventBuilder(source, request);
         final PortletRenderExecutionEvent portletRenderExecutionEvent = new PortletRenderExecutionEvent(eventBuilder, fname, executionTime, parameters, targeted, cached);
-        this.applicationEventPublisher.publishEvent(portletRenderExecutionEvent);
+        this.publishEvent(portletRenderExecutionEvent);
     }
 
     @Override
@@ -378,7 +388,7 @@ public class PortalEventFactoryImpl implements IPortalEventFactory, ApplicationE
         final PortalEventBuilder eventBuilder = this.createPortalEventBuilder(source, request);
         final PortletResourceExecutionEvent portletResourceExecutionEvent = new PortletResourceExecutionEvent(
                 eventBuilder, fname, executionTime, parameters, resourceId, usedBrowserCache, usedPortalCache);
-        this.applicationEventPublisher.publishEvent(portletResourceExecutionEvent);
+        this.publishEvent(portletResourceExecutionEvent);
     }
     
     @Override
@@ -391,7 +401,16 @@ public class PortalEventFactoryImpl implements IPortalEventFactory, ApplicationE
                 portalRequestInfo.getUrlState(), portalRequestInfo.getUrlType(), portalParameters,
                 portalRequestInfo.getTargetedLayoutNodeId());
         
-        this.applicationEventPublisher.publishEvent(portalRenderEvent);
+        this.publishEvent(portalRenderEvent);
+    }
+    
+    protected void publishEvent(PortalEvent event) {
+        if (this.asyncPortalEventPublisher != null) {
+            this.asyncPortalEventPublisher.publishEvent(event);
+        }
+        else {
+            this.applicationEventPublisher.publishEvent(event);
+        }
     }
     
     protected PortalEventBuilder createPortalEventBuilder(Object source, HttpServletRequest request) {
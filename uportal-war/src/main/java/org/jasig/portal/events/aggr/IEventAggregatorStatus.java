@@ -39,7 +39,11 @@ public interface IEventAggregatorStatus {
         /**
          * Event purging processing
          */
-        PURGING;
+        PURGING,
+        /**
+         * Event session purging processing
+         */
+        SESSION_PURGING;
     }
     
     /**
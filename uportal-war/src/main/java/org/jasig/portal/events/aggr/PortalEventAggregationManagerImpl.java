@@ -19,12 +19,20 @@
 
 package org.jasig.portal.events.aggr;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -57,6 +65,7 @@ import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionOperations;
 import org.springframework.transaction.support.TransactionTemplate;
 
@@ -65,13 +74,18 @@ import com.google.common.base.Predicate;
 import com.google.common.collect.Maps;
 
 /**
+ * Aggregates raw portal events in time ordered partitions. Partitions are loaded and deserialized in parallel
+ * using the aggregation executor while the aggregators are run, in order, by the thread holding the aggregation
+ * lock. Aggregation progress is tracked as a high-water mark, the last event date of the aggregation status is
+ * the inclusive end of the last partition that was completely aggregated.
+ * 
  * @author Eric Dalquist
  * @version $Revision$
  */
 @Service("portalEventAggregationManager")
 public class PortalEventAggregationManagerImpl implements IPortalEventAggregationManager {
     private static final String DIMENSION_LOCK_NAME = PortalEventAggregationManagerImpl.class.getName() + ".DIMENSION_LOCK";
-    private static final String AGGREGATION_LOCK_NAME = PortalEventAggregationManagerImpl.class.getName() + ".AGGREGATION_LOCK";
+    public static final String AGGREGATION_LOCK_NAME = PortalEventAggregationManagerImpl.class.getName() + ".AGGREGATION_LOCK";
     private static final String PURGE_RAW_EVENTS_LOCK_NAME = PortalEventAggregationManagerImpl.class.getName() + ".PURGE_RAW_EVENTS_LOCK";
     private static final String PURGE_EVENT_SESSION_LOCK_NAME = PortalEventAggregationManagerImpl.class.getName() + ".PURGE_EVENT_SESSION_LOCK_NAME";
     
@@ -88,11 +102,16 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
     private EventSessionDao eventSessionDao;
     private Set<IPortalEventAggregator<PortalEvent>> portalEventAggregators;
     private TransactionOperations aggrEventsTransactionOperations;
+    private ExecutorService aggregationExecutor;
     
     private int eventAggregationBatchSize = 5000;
     private ReadablePeriod aggregationDelay = Period.seconds(30);
     private ReadablePeriod purgeDelay = Period.days(1);
     private ReadablePeriod dimensionBuffer = Period.days(30);
+    private ReadablePeriod aggregationPartitionSize = Period.minutes(1);
+    private int purgeBatchSize = 10000;
+    private ReadablePeriod purgeBatchDelay = Period.seconds(1);
+    private int aggregationPartitionReadAhead = 4;
     
     @Autowired
     public void setAggrEventsPlatformTransactionManager(@Qualifier("aggrEvents") PlatformTransactionManager transactionManager) {
@@ -103,6 +122,15 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
     
     
 
+    /**
+     * Executor used to load partitions of raw events in parallel, if not set partitions are loaded by the
+     * aggregating thread.
+     */
+    @Autowired(required=false)
+    public void setAggregationExecutor(@Qualifier("uPortalEventAggregationExecutor") ExecutorService aggregationExecutor) {
+        this.aggregationExecutor = aggregationExecutor;
+    }
+
     @Autowired
     public void setEventSessionDao(EventSessionDao eventSessionDao) {
         this.eventSessionDao = eventSessionDao;
@@ -163,6 +191,49 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
         this.eventAggregationBatchSize = eventAggregationBatchSize;
     }
 
+    /**
+     * Length of time covered by each partition of raw events loaded for aggregation
+     */
+    @Value("${org.jasig.portal.event.aggr.PortalEventAggregationManager.aggregationPartitionSize:PT1M}")
+    public void setAggregationPartitionSize(ReadablePeriod aggregationPartitionSize) {
+        if (new Period(aggregationPartitionSize).toStandardSeconds().getSeconds() < 1) {
+            throw new IllegalArgumentException("aggregationPartitionSize must be at least 1 second. Is: " + aggregationPartitionSize);
+        }
+        this.aggregationPartitionSize = aggregationPartitionSize;
+    }
+
+    /**
+     * Maximum number of partitions being loaded or waiting to be aggregated at once
+     */
+    @Value("${org.jasig.portal.event.aggr.PortalEventAggregationManager.aggregationPartitionReadAhead:4}")
+    public void setAggregationPartitionReadAhead(int aggregationPartitionReadAhead) {
+        if (aggregationPartitionReadAhead < 1) {
+            throw new IllegalArgumentException("aggregationPartitionReadAhead must be at least 1. Is: " + aggregationPartitionReadAhead);
+        }
+        this.aggregationPartitionReadAhead = aggregationPartitionReadAhead;
+    }
+
+    /**
+     * Maximum number of raw events or event sessions deleted in a single transaction. Raw events are deleted
+     * in timestamp order rather than by dropping partitions: UP_RAW_EVENTS is created by Hibernate's schema
+     * export which has no portable way to declare range partitions on its TIMESTAMP column.
+     */
+    @Value("${org.jasig.portal.event.aggr.PortalEventAggregationManager.purgeBatchSize:10000}")
+    public void setPurgeBatchSize(int purgeBatchSize) {
+        if (purgeBatchSize < 1) {
+            throw new IllegalArgumentException("purgeBatchSize must be at least 1. Is: " + purgeBatchSize);
+        }
+        this.purgeBatchSize = purgeBatchSize;
+    }
+
+    /**
+     * Pause between purge batches, gives other database work a chance to run during large purges
+     */
+    @Value("${org.jasig.portal.event.aggr.PortalEventAggregationManager.purgeBatchDelay:PT1S}")
+    public void setPurgeBatchDelay(ReadablePeriod purgeBatchDelay) {
+        this.purgeBatchDelay = purgeBatchDelay;
+    }
+
     @Value("${org.jasig.portal.event.aggr.PortalEventAggregationManager.dimensionBuffer:P30D}")
     public void setDimensionBuffer(ReadablePeriod dimensionBuffer) {
         if (new Period(dimensionBuffer).toStandardDays().getDays() < 1) {
@@ -224,8 +295,10 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
         return result != null && result.isExecuted();
     }
     
+    /*
+     * Purging is not done in a single transaction, each batch is committed and progress recorded as it completes
+     */
     @Override
-    @Transactional(value="aggrEventsTransactionManager")
     public boolean purgeRawEvents() {
         try {
             final TryLockFunctionResult<Object> result = this.clusterLockService.doInTryLock(PURGE_RAW_EVENTS_LOCK_NAME, new FunctionWithoutResult<String>() {
@@ -245,13 +318,12 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
     }
     
     @Override
-    @Transactional(value="aggrEventsTransactionManager")
     public boolean purgeEventSessions() {
         try {
             final TryLockFunctionResult<Object> result = this.clusterLockService.doInTryLock(PURGE_EVENT_SESSION_LOCK_NAME, new FunctionWithoutResult<String>() {
                 @Override
                 protected void applyWithoutResult(String input) {
-                    eventSessionDao.purgeExpiredEventSessions();
+                    doPurgeEventSessions();
                 }
             });
             
@@ -418,47 +490,151 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
         final String serverName = this.portalInfoProvider.getServerName();
         eventAggregatorStatus.setServerName(serverName);
         
-        //Calculate date range for aggregation
-        DateTime lastAggregated = eventAggregatorStatus.getLastEventDate();
-        if (lastAggregated == null) {
-            lastAggregated = new DateTime(0);
+        //Calculate date range for aggregation, the last event date is the inclusive high-water mark of the previous run
+        final DateTime lastAggregated = eventAggregatorStatus.getLastEventDate();
+        final DateTime aggregationStart;
+        if (lastAggregated != null) {
+            aggregationStart = lastAggregated.plusMillis(1);
+        }
+        else {
+            aggregationStart = this.portalEventDao.getOldestPortalEventTimestamp();
         }
         
-        DateTime newestEventTime = DateTime.now().minus(this.aggregationDelay).secondOfMinute().roundFloorCopy();
+        final DateTime newestEventTime = this.getNow().minus(this.aggregationDelay).secondOfMinute().roundFloorCopy();
+        
+        eventAggregatorStatus.setLastStart(DateTime.now());
+        if (aggregationStart == null || !aggregationStart.isBefore(newestEventTime)) {
+            logger.debug("No events to aggregate before {}", newestEventTime);
+            
+            eventAggregatorStatus.setLastEnd(new DateTime());
+            eventAggregationManagementDao.updateEventAggregatorStatus(eventAggregatorStatus);
+            return true;
+        }
         
-        logger.debug("Starting aggregation of events between {} (inc) and {} (exc)", lastAggregated, newestEventTime);
+        logger.debug("Starting aggregation of events between {} (inc) and {} (exc)", aggregationStart, newestEventTime);
         final MutableInt events = new MutableInt();
         
         //Do aggregation, capturing the start and end dates
-        eventAggregatorStatus.setLastStart(DateTime.now());
         final long start = System.nanoTime();
-        portalEventDao.aggregatePortalEvents(lastAggregated, newestEventTime, this.eventAggregationBatchSize, new AggregateEventsHandler(events, eventAggregatorStatus));
+        final AggregateEventsHandler aggregateEventsHandler = new AggregateEventsHandler(events, eventAggregatorStatus);
+        final boolean complete = this.aggregatePartitions(aggregationStart, newestEventTime, aggregateEventsHandler, events);
         eventAggregatorStatus.setLastEnd(new DateTime());
         
-        logger.debug("Aggregated {} events between {} and {} in {}ms", new Object[] { events, lastAggregated, newestEventTime, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) });
+        logger.debug("Aggregated {} events between {} and {} in {}ms", new Object[] { events, aggregationStart, eventAggregatorStatus.getLastEventDate(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) });
 
         //Store the results of the aggregation
         eventAggregationManagementDao.updateEventAggregatorStatus(eventAggregatorStatus);
         
-        return this.eventAggregationBatchSize <= 0 || events.intValue() < this.eventAggregationBatchSize;
+        return complete;
+    }
+    
+    /**
+     * Splits the time range into partitions of {@link #aggregationPartitionSize}, loads up to
+     * {@link #aggregationPartitionReadAhead} of them in parallel and passes the events of each partition, in order,
+     * to the handler. Partitions are always aggregated completely so the high-water mark never splits events that
+     * share a timestamp.
+     * 
+     * @return true if all partitions were aggregated, false if the batch size was reached first
+     */
+    private boolean aggregatePartitions(DateTime start, DateTime end, AggregateEventsHandler aggregateEventsHandler, MutableInt events) {
+        final Queue<Future<PortalEventPartition>> partitions = new LinkedList<Future<PortalEventPartition>>();
+        
+        DateTime nextPartitionStart = start;
+        try {
+            while (true) {
+                //Keep the read ahead queue full
+                while (nextPartitionStart.isBefore(end) && partitions.size() < this.aggregationPartitionReadAhead) {
+                    DateTime partitionEnd = nextPartitionStart.plus(this.aggregationPartitionSize);
+                    if (partitionEnd.isAfter(end)) {
+                        partitionEnd = end;
+                    }
+                    
+                    partitions.add(this.loadPartition(nextPartitionStart, partitionEnd));
+                    nextPartitionStart = partitionEnd;
+                }
+                
+                final Future<PortalEventPartition> partitionFuture = partitions.poll();
+                if (partitionFuture == null) {
+                    return true;
+                }
+                
+                final PortalEventPartition partition = this.getPartition(partitionFuture);
+                for (final PortalEvent event : partition.events) {
+                    aggregateEventsHandler.apply(event);
+                }
+                aggregateEventsHandler.completePartition(partition.end);
+                
+                if (this.eventAggregationBatchSize > 0 && events.intValue() >= this.eventAggregationBatchSize) {
+                    return partitions.isEmpty() && !nextPartitionStart.isBefore(end);
+                }
+            }
+        }
+        finally {
+            //Partitions that were loaded but not aggregated are simply discarded, they will be loaded again by the next run
+            for (final Future<PortalEventPartition> partitionFuture : partitions) {
+                partitionFuture.cancel(false);
+            }
+        }
+    }
+    
+    /**
+     * Load the events between start (inclusive) and end (exclusive) using the aggregation executor
+     */
+    private Future<PortalEventPartition> loadPartition(final DateTime start, final DateTime end) {
+        final Callable<PortalEventPartition> partitionLoader = new Callable<PortalEventPartition>() {
+            @Override
+            public PortalEventPartition call() throws Exception {
+                final List<PortalEvent> events = new ArrayList<PortalEvent>();
+                portalEventDao.getPortalEvents(start, end, new FunctionWithoutResult<PortalEvent>() {
+                    @Override
+                    protected void applyWithoutResult(PortalEvent input) {
+                        events.add(input);
+                    }
+                });
+                
+                logger.trace("Loaded {} events between {} and {}", new Object[] { events.size(), start, end });
+                return new PortalEventPartition(end, events);
+            }
+        };
+        
+        final ExecutorService executor = this.aggregationExecutor;
+        if (executor == null) {
+            final FutureTask<PortalEventPartition> partitionTask = new FutureTask<PortalEventPartition>(partitionLoader);
+            partitionTask.run();
+            return partitionTask;
+        }
+        
+        return executor.submit(partitionLoader);
+    }
+    
+    private PortalEventPartition getPartition(Future<PortalEventPartition> partitionFuture) {
+        try {
+            return partitionFuture.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for portal events to be loaded for aggregation", e);
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RuntimeException("Failed to load portal events for aggregation", cause);
+        }
     }
 
     void doPurgeRawEvents() {
-        final IEventAggregatorStatus eventPurgerStatus = eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.PURGING, true);
-        
-        //Update status with current server name
-        final String serverName = this.portalInfoProvider.getServerName();
-        eventPurgerStatus.setServerName(serverName);
-        eventPurgerStatus.setLastStart(new DateTime());
+        final DateTime purgeStart = new DateTime();
         
         //Determine date of most recently aggregated data
         final IEventAggregatorStatus eventAggregatorStatus = eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, false);
         if (eventAggregatorStatus == null || eventAggregatorStatus.getLastEventDate() == null) {
             //Nothing has been aggregated, skip purging
-            
-            eventPurgerStatus.setLastEnd(new DateTime());
-            eventAggregationManagementDao.updateEventAggregatorStatus(eventPurgerStatus);
-            
+            this.updatePurgeStatus(ProcessingType.PURGING, purgeStart, null);
             return;
         }
         
@@ -466,16 +642,80 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
         final DateTime lastAggregated = eventAggregatorStatus.getLastEventDate();
         final DateTime purgeEnd = lastAggregated.minus(this.purgeDelay);
         
-        //Purge events
+        //Purge events in batches of the oldest events, each batch is deleted in its own transaction
         logger.debug("Starting purge of events before {}", purgeEnd);
         final long start = System.nanoTime();
-        final int events = portalEventDao.deletePortalEventsBefore(purgeEnd);
-        logger.debug("Purged {} events before {} in {}ms", new Object[] {events, purgeEnd, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) });
+        int events = 0;
+        DateTime batchEnd;
+        do {
+            batchEnd = portalEventDao.getPortalEventBatchEnd(purgeEnd, this.purgeBatchSize);
+            events += portalEventDao.deletePortalEventsBefore(batchEnd);
+            
+            //Record progress after each batch, an interrupted purge simply continues from the oldest remaining event
+            this.updatePurgeStatus(ProcessingType.PURGING, purgeStart, batchEnd);
+        } while (batchEnd.isBefore(purgeEnd) && this.pauseBetweenPurgeBatches());
+        
+        logger.debug("Purged {} events before {} in {}ms", new Object[] {events, batchEnd, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) });
+    }
+    
+    void doPurgeEventSessions() {
+        final DateTime purgeStart = new DateTime();
+        
+        final long start = System.nanoTime();
+        int sessions = 0;
+        int purged;
+        do {
+            purged = eventSessionDao.purgeExpiredEventSessions(this.purgeBatchSize);
+            sessions += purged;
+            
+            this.updatePurgeStatus(ProcessingType.SESSION_PURGING, purgeStart, null);
+        } while (purged >= this.purgeBatchSize && this.pauseBetweenPurgeBatches());
+        
+        logger.debug("Purged {} event sessions in {}ms", sessions, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+    
+    /**
+     * Update the purge status in its own transaction so progress is visible while purging continues
+     * 
+     * @param purgedBefore Exclusive date that data has been purged up to, null if it should not be updated
+     */
+    private void updatePurgeStatus(final ProcessingType processingType, final DateTime purgeStart, final DateTime purgedBefore) {
+        this.aggrEventsTransactionOperations.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                final IEventAggregatorStatus purgeStatus = eventAggregationManagementDao.getEventAggregatorStatus(processingType, true);
+                
+                //Update status with current server name
+                purgeStatus.setServerName(portalInfoProvider.getServerName());
+                purgeStatus.setLastStart(purgeStart);
+                purgeStatus.setLastEnd(new DateTime());
+                if (purgedBefore != null) {
+                    purgeStatus.setLastEventDate(purgedBefore.minusMillis(1)); //decrement by 1ms since deletePortalEventsBefore uses lessThan and not lessThanEqualTo
+                }
+                
+                eventAggregationManagementDao.updateEventAggregatorStatus(purgeStatus);
+            }
+        });
+    }
+    
+    /**
+     * @return false if interrupted while pausing, purging should stop
+     */
+    private boolean pauseBetweenPurgeBatches() {
+        final long pause = new Period(this.purgeBatchDelay).toStandardDuration().getMillis();
+        if (pause <= 0) {
+            return true;
+        }
         
-        //Update the status object and store it
-        eventPurgerStatus.setLastEventDate(purgeEnd.minusMillis(1)); //decrement by 1ms since deletePortalEventsBefore uses lessThan and not lessThanEqualTo 
-        eventPurgerStatus.setLastEnd(new DateTime());
-        eventAggregationManagementDao.updateEventAggregatorStatus(eventPurgerStatus);
+        try {
+            Thread.sleep(pause);
+            return true;
+        }
+        catch (InterruptedException e) {
+            logger.warn("Interrupted while pausing between purge batches, purge will continue on the next run", e);
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
     
     private final class AggregateEventsHandler extends FunctionWithoutResult<PortalEvent> {
@@ -504,17 +744,36 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
         protected void applyWithoutResult(PortalEvent event) {
             final DateTime eventDate = event.getTimestampAsDate();
             
+            //Handle any interval boundaries crossed since the last event
+            this.checkIntervalBoundaries(eventDate);
+            
+            //Aggregate the event
+            this.doAggregateEvent(event);
+        }
+        
+        /**
+         * Called once all events before the partition end have been aggregated, handles any interval
+         * boundaries crossed since the last event and moves the high-water mark to the end of the partition
+         */
+        public void completePartition(DateTime partitionEnd) {
+            this.checkIntervalBoundaries(partitionEnd);
+            
+            //Update the status object with the inclusive end of the partition
+            eventAggregatorStatus.setLastEventDate(partitionEnd.minusMillis(1));
+        }
+        
+        private void checkIntervalBoundaries(DateTime date) {
             //If no interval data yet populate it.
             if (this.currentIntervalInfo.isEmpty()) {
                 final DateTime intervalDate;
                 final DateTime lastEventDate = eventAggregatorStatus.getLastEventDate();
                 if (lastEventDate != null) {
-                    //If there was a previously aggregated event use that date to make sure an interval is not missed
-                    intervalDate = lastEventDate;
+                    //If there was a previous aggregation start from its high-water mark to make sure an interval is not missed
+                    intervalDate = lastEventDate.plusMillis(1);
                 }
                 else {
-                    //Otherwise just use the current event date
-                    intervalDate = eventDate;
+                    //Otherwise just use the current date
+                    intervalDate = date;
                 }
                 
                 for (final AggregationInterval interval : AggregationInterval.values()) {
@@ -531,20 +790,14 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
             //Check each interval to see if an interval boundary has been crossed
             for (final AggregationInterval interval : AggregationInterval.values()) {
                 AggregationIntervalInfo intervalInfo = this.currentIntervalInfo.get(interval);
-                if (intervalInfo != null && !intervalInfo.getEnd().isAfter(eventDate)) { //if there is no IntervalInfo that interval must not be supported in the current environment 
-                    logger.debug("Crossing {} Interval, triggerd by {}", interval, event);
+                if (intervalInfo != null && !intervalInfo.getEnd().isAfter(date)) { //if there is no IntervalInfo that interval must not be supported in the current environment 
+                    logger.debug("Crossing {} Interval, triggerd by {}", interval, date);
                     this.doHandleIntervalBoundary(interval, this.currentIntervalInfo);
                     
-                    intervalInfo = intervalHelper.getIntervalInfo(interval, eventDate); 
+                    intervalInfo = intervalHelper.getIntervalInfo(interval, date); 
                     this.currentIntervalInfo.put(interval, intervalInfo);
                 }
             }
-            
-            //Aggregate the event
-            this.doAggregateEvent(event);
-            
-            //Update the status object with the event date
-            eventAggregatorStatus.setLastEventDate(eventDate);
         }
         
 
@@ -643,4 +896,17 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
             return config;
         }
     }
+    
+    /**
+     * Events loaded for a partition of the aggregation time range
+     */
+    private static final class PortalEventPartition {
+        private final DateTime end;
+        private final List<PortalEvent> events;
+        
+        public PortalEventPartition(DateTime end, List<PortalEvent> events) {
+            this.end = end;
+            this.events = events;
+        }
+    }
 }
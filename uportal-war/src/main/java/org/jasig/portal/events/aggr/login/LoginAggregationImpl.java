@@ -190,8 +190,36 @@ public class LoginAggregationImpl implements LoginAggregation, Serializable {
         this.loginCount++;
     }
     
+    /**
+     * Count a number of logins by the user, used to merge pre-aggregated login counts
+     */
+    void countUser(String userName, int logins) {
+        checkState();
+        
+        if (this.uniqueUserNames.add(userName)) {
+            this.uniqueLoginCount++;
+        }
+        this.loginCount += logins;
+    }
+    
+    /**
+     * Count logins by the user after {@link #intervalComplete(int)} has been called. The user names of the
+     * completed interval are no longer available so the user is always counted as unique.
+     */
+    void countLateUser(String userName, int logins) {
+        this.uniqueLoginCount++;
+        this.loginCount += logins;
+    }
+    
+    /**
+     * @return true if {@link #intervalComplete(int)} has been called
+     */
+    boolean isComplete() {
+        return this.loginCount > 0 && this.uniqueUserNames.isEmpty();
+    }
+    
     private void checkState() {
-        if (this.loginCount > 0 && this.uniqueUserNames.isEmpty()) {
+        if (this.isComplete()) {
             throw new IllegalStateException("intervalComplete has been called, countUser can no longer be called");
         }
     }
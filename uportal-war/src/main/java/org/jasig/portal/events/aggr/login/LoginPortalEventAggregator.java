@@ -45,12 +45,23 @@ import org.springframework.transaction.annotation.Transactional;
 @Service
 public class LoginPortalEventAggregator implements IPortalEventAggregator<LoginEvent> {
     private LoginAggregationPrivateDao loginAggregationDao;
+    private LoginPreAggregator loginPreAggregator;
 
     @Override
     public boolean supports(Class<? extends PortalEvent> type) {
+        //Logins are counted by the pre-aggregator when it is enabled
+        if (this.loginPreAggregator != null && this.loginPreAggregator.isEnabled()) {
+            return false;
+        }
+        
         return LoginEvent.class.isAssignableFrom(type);
     }
 
+    @Autowired(required=false)
+    public void setLoginPreAggregator(LoginPreAggregator loginPreAggregator) {
+        this.loginPreAggregator = loginPreAggregator;
+    }
+
     @Autowired
     public void setLoginAggregationDao(LoginAggregationPrivateDao loginAggregationDao) {
         this.loginAggregationDao = loginAggregationDao;
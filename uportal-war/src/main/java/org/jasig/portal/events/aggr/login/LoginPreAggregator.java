@@ -0,0 +1,368 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.events.aggr.login;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.jasig.portal.concurrency.FunctionWithoutResult;
+import org.jasig.portal.concurrency.locking.IClusterLockService;
+import org.jasig.portal.concurrency.locking.IClusterLockService.TryLockFunctionResult;
+import org.jasig.portal.events.LoginEvent;
+import org.jasig.portal.events.aggr.AggregatedGroupConfig;
+import org.jasig.portal.events.aggr.AggregatedIntervalConfig;
+import org.jasig.portal.events.aggr.AggregationInterval;
+import org.jasig.portal.events.aggr.AggregationIntervalHelper;
+import org.jasig.portal.events.aggr.AggregationIntervalInfo;
+import org.jasig.portal.events.aggr.IEventAggregatorStatus;
+import org.jasig.portal.events.aggr.IEventAggregatorStatus.ProcessingType;
+import org.jasig.portal.events.aggr.PortalEventAggregationManagerImpl;
+import org.jasig.portal.events.aggr.dao.IEventAggregationManagementDao;
+import org.jasig.portal.events.aggr.groups.AggregatedGroupLookupDao;
+import org.jasig.portal.events.aggr.groups.AggregatedGroupMapping;
+import org.jasig.portal.spring.context.FilteringApplicationListener;
+import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionOperations;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Multiset;
+
+/**
+ * Counts {@link LoginEvent}s in memory as they are published, per minute, per group and per user. The counts
+ * for each completed minute are merged into the {@link LoginAggregation}s of every interval that contains the
+ * minute when {@link #flush()} is called, only the deltas are written to the database.
+ * <br/>
+ * When enabled the {@link LoginPortalEventAggregator} ignores raw login events so they are not counted twice.
+ * Raw persistence of login events can then be disabled using the ignoredEventTypes property of
+ * {@link org.jasig.portal.events.handlers.db.PortalEventDaoQueuingEventHandler}, note that event sessions are
+ * created from raw login events so this should only be done if no other aggregators need session group data.
+ * <br/>
+ * Merging is done while holding the raw event aggregation lock so deltas are never written concurrently with
+ * raw aggregation. If the flush fails or the lock is unavailable the counts are kept and retried on the next flush.
+ * 
+ * @version $Revision$
+ */
+@Service("loginPreAggregator")
+public class LoginPreAggregator extends FilteringApplicationListener<LoginEvent> {
+    private final ReadWriteLock bucketLock = new ReentrantReadWriteLock();
+    private final ConcurrentMap<DateTime, LoginCounts> minuteBuckets = new ConcurrentHashMap<DateTime, LoginCounts>();
+    
+    private IClusterLockService clusterLockService;
+    private IEventAggregationManagementDao eventAggregationManagementDao;
+    private AggregationIntervalHelper intervalHelper;
+    private AggregatedGroupLookupDao aggregatedGroupLookupDao;
+    private LoginAggregationPrivateDao loginAggregationDao;
+    private TransactionOperations aggrEventsTransactionOperations;
+    private boolean enabled = false;
+
+    @Autowired
+    public void setAggrEventsPlatformTransactionManager(@Qualifier("aggrEvents") PlatformTransactionManager transactionManager) {
+        final TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.afterPropertiesSet();
+        this.aggrEventsTransactionOperations = transactionTemplate;
+    }
+
+    @Autowired
+    public void setClusterLockService(IClusterLockService clusterLockService) {
+        this.clusterLockService = clusterLockService;
+    }
+
+    @Autowired
+    public void setEventAggregationManagementDao(IEventAggregationManagementDao eventAggregationManagementDao) {
+        this.eventAggregationManagementDao = eventAggregationManagementDao;
+    }
+
+    @Autowired
+    public void setIntervalHelper(AggregationIntervalHelper intervalHelper) {
+        this.intervalHelper = intervalHelper;
+    }
+
+    @Autowired
+    public void setAggregatedGroupLookupDao(AggregatedGroupLookupDao aggregatedGroupLookupDao) {
+        this.aggregatedGroupLookupDao = aggregatedGroupLookupDao;
+    }
+
+    @Autowired
+    public void setLoginAggregationDao(LoginAggregationPrivateDao loginAggregationDao) {
+        this.loginAggregationDao = loginAggregationDao;
+    }
+
+    /**
+     * Enables in-memory pre-aggregation of login events, defaults to false
+     */
+    @Value("${org.jasig.portal.events.aggr.login.LoginPreAggregator.enabled:false}")
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    @Override
+    protected void onFilteredApplicationEvent(LoginEvent event) {
+        if (!this.enabled) {
+            return;
+        }
+        
+        final DateTime minute = event.getTimestampAsDate().minuteOfHour().roundFloorCopy();
+        final String userName = event.getUserName();
+        
+        //Read lock is shared by all counting threads, it only keeps a flush from removing the bucket mid-count
+        this.bucketLock.readLock().lock();
+        try {
+            LoginCounts loginCounts = this.minuteBuckets.get(minute);
+            if (loginCounts == null) {
+                loginCounts = new LoginCounts();
+                final LoginCounts existing = this.minuteBuckets.putIfAbsent(minute, loginCounts);
+                if (existing != null) {
+                    loginCounts = existing;
+                }
+            }
+            
+            for (final String groupKey : event.getGroups()) {
+                loginCounts.getUserLogins(groupKey).add(userName);
+            }
+        }
+        finally {
+            this.bucketLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Merges the login counts of every completed minute into the login aggregations
+     */
+    public void flush() {
+        if (!this.enabled || this.minuteBuckets.isEmpty()) {
+            return;
+        }
+        
+        final Map<DateTime, LoginCounts> completedBuckets = this.removeCompletedBuckets(this.getNow());
+        if (completedBuckets.isEmpty()) {
+            return;
+        }
+        
+        boolean flushed = false;
+        try {
+            flushed = this.aggrEventsTransactionOperations.execute(new TransactionCallback<Boolean>() {
+                @Override
+                public Boolean doInTransaction(TransactionStatus status) {
+                    try {
+                        final TryLockFunctionResult<Object> result = clusterLockService.doInTryLock(PortalEventAggregationManagerImpl.AGGREGATION_LOCK_NAME, new FunctionWithoutResult<String>() {
+                            @Override
+                            protected void applyWithoutResult(String input) {
+                                doFlush(completedBuckets);
+                            }
+                        });
+                        
+                        return result.isExecuted();
+                    }
+                    catch (InterruptedException e) {
+                        logger.warn("Interrupted while flushing pre-aggregated logins", e);
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            });
+        }
+        finally {
+            if (!flushed) {
+                logger.debug("Pre-aggregated logins for {} minutes were not flushed, they will be retried", completedBuckets.size());
+                this.restoreBuckets(completedBuckets);
+            }
+        }
+    }
+    
+    /**
+     * Exists to make this class testable
+     */
+    DateTime getNow() {
+        return DateTime.now();
+    }
+    
+    /**
+     * Remove and return the buckets for all minutes that ended at or before now, sorted by minute
+     */
+    Map<DateTime, LoginCounts> removeCompletedBuckets(DateTime now) {
+        final Map<DateTime, LoginCounts> completedBuckets = new TreeMap<DateTime, LoginCounts>();
+        
+        this.bucketLock.writeLock().lock();
+        try {
+            for (final DateTime minute : this.minuteBuckets.keySet()) {
+                if (!minute.plusMinutes(1).isAfter(now)) {
+                    completedBuckets.put(minute, this.minuteBuckets.remove(minute));
+                }
+            }
+        }
+        finally {
+            this.bucketLock.writeLock().unlock();
+        }
+        
+        return completedBuckets;
+    }
+    
+    /**
+     * Merge buckets that failed to flush back into the current counts
+     */
+    void restoreBuckets(Map<DateTime, LoginCounts> buckets) {
+        this.bucketLock.writeLock().lock();
+        try {
+            for (final Map.Entry<DateTime, LoginCounts> bucketEntry : buckets.entrySet()) {
+                final LoginCounts existing = this.minuteBuckets.putIfAbsent(bucketEntry.getKey(), bucketEntry.getValue());
+                if (existing != null) {
+                    existing.addAll(bucketEntry.getValue());
+                }
+            }
+        }
+        finally {
+            this.bucketLock.writeLock().unlock();
+        }
+    }
+    
+    void doFlush(Map<DateTime, LoginCounts> completedBuckets) {
+        AggregatedGroupConfig groupConfig = this.eventAggregationManagementDao.getAggregatedGroupConfig(LoginPortalEventAggregator.class);
+        if (groupConfig == null) {
+            groupConfig = this.eventAggregationManagementDao.getDefaultAggregatedGroupConfig();
+        }
+        AggregatedIntervalConfig intervalConfig = this.eventAggregationManagementDao.getAggregatedIntervalConfig(LoginPortalEventAggregator.class);
+        if (intervalConfig == null) {
+            intervalConfig = this.eventAggregationManagementDao.getDefaultAggregatedIntervalConfig();
+        }
+        
+        //Intervals that end before the raw aggregation high-water mark have already been completed
+        final IEventAggregatorStatus eventAggregatorStatus = this.eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, false);
+        final DateTime aggregatedBefore;
+        if (eventAggregatorStatus != null && eventAggregatorStatus.getLastEventDate() != null) {
+            aggregatedBefore = eventAggregatorStatus.getLastEventDate().plusMillis(1);
+        }
+        else {
+            aggregatedBefore = null;
+        }
+        
+        final Map<String, AggregatedGroupMapping> groupMappings = new HashMap<String, AggregatedGroupMapping>();
+        for (final Map.Entry<DateTime, LoginCounts> bucketEntry : completedBuckets.entrySet()) {
+            final DateTime minute = bucketEntry.getKey();
+            final LoginCounts loginCounts = bucketEntry.getValue();
+            
+            for (final AggregationInterval interval : AggregationInterval.values()) {
+                if (!intervalConfig.isIncluded(interval)) {
+                    continue;
+                }
+                
+                final AggregationIntervalInfo intervalInfo = this.intervalHelper.getIntervalInfo(interval, minute);
+                if (intervalInfo == null) {
+                    //interval not supported in the current environment
+                    continue;
+                }
+                final boolean intervalEnded = aggregatedBefore != null && !intervalInfo.getEnd().isAfter(aggregatedBefore);
+                
+                for (final Map.Entry<String, ConcurrentHashMultiset<String>> groupEntry : loginCounts.getGroupLogins()) {
+                    final String groupKey = groupEntry.getKey();
+                    AggregatedGroupMapping groupMapping = groupMappings.get(groupKey);
+                    if (groupMapping == null) {
+                        groupMapping = this.aggregatedGroupLookupDao.getGroupMapping(groupKey);
+                        groupMappings.put(groupKey, groupMapping);
+                    }
+                    if (!groupConfig.isIncluded(groupMapping)) {
+                        continue;
+                    }
+                    
+                    this.mergeLogins(intervalInfo, intervalEnded, groupMapping, minute, groupEntry.getValue());
+                }
+            }
+        }
+        
+        logger.debug("Flushed pre-aggregated logins for {} minutes", completedBuckets.size());
+    }
+
+    private void mergeLogins(AggregationIntervalInfo intervalInfo, boolean intervalEnded, 
+            AggregatedGroupMapping groupMapping, DateTime minute, Multiset<String> userLogins) {
+        
+        LoginAggregationImpl loginAggregation = this.loginAggregationDao.getLoginAggregation(intervalInfo.getDateDimension(), intervalInfo.getTimeDimension(), intervalInfo.getAggregationInterval(), groupMapping);
+        if (loginAggregation == null) {
+            loginAggregation = this.loginAggregationDao.createLoginAggregation(intervalInfo.getDateDimension(), intervalInfo.getTimeDimension(), intervalInfo.getAggregationInterval(), groupMapping);
+        }
+        
+        if (loginAggregation.isComplete()) {
+            //Interval was completed by raw aggregation before the counts were flushed
+            for (final Multiset.Entry<String> userEntry : userLogins.entrySet()) {
+                loginAggregation.countLateUser(userEntry.getElement(), userEntry.getCount());
+            }
+        }
+        else {
+            for (final Multiset.Entry<String> userEntry : userLogins.entrySet()) {
+                loginAggregation.countUser(userEntry.getElement(), userEntry.getCount());
+            }
+            
+            final int duration = intervalInfo.getDurationTo(minute);
+            if (duration > loginAggregation.getDuration()) {
+                loginAggregation.setDuration(duration);
+            }
+            
+            if (intervalEnded) {
+                loginAggregation.intervalComplete(intervalInfo.getTotalDuration());
+            }
+        }
+        
+        this.loginAggregationDao.updateLoginAggregation(loginAggregation);
+    }
+    
+    /**
+     * Logins in a single minute, user login counts per group key
+     */
+    static final class LoginCounts {
+        private final ConcurrentMap<String, ConcurrentHashMultiset<String>> groupLogins = new ConcurrentHashMap<String, ConcurrentHashMultiset<String>>();
+        
+        ConcurrentHashMultiset<String> getUserLogins(String groupKey) {
+            ConcurrentHashMultiset<String> userLogins = this.groupLogins.get(groupKey);
+            if (userLogins == null) {
+                userLogins = ConcurrentHashMultiset.create();
+                final ConcurrentHashMultiset<String> existing = this.groupLogins.putIfAbsent(groupKey, userLogins);
+                if (existing != null) {
+                    userLogins = existing;
+                }
+            }
+            return userLogins;
+        }
+        
+        Iterable<Map.Entry<String, ConcurrentHashMultiset<String>>> getGroupLogins() {
+            return this.groupLogins.entrySet();
+        }
+        
+        void addAll(LoginCounts loginCounts) {
+            for (final Map.Entry<String, ConcurrentHashMultiset<String>> groupEntry : loginCounts.getGroupLogins()) {
+                this.getUserLogins(groupEntry.getKey()).addAll(groupEntry.getValue());
+            }
+        }
+    }
+}
@@ -53,6 +53,9 @@ public interface EventSessionDao {
     
     /**
      * Purge expired events, expired is defined by the implementation
+     * 
+     * @param maxPurge Maximum number of sessions to purge
+     * @return Number of sessions purged, if equal to maxPurge more expired sessions may remain
      */
-    void purgeExpiredEventSessions();
+    int purgeExpiredEventSessions(int maxPurge);
 }
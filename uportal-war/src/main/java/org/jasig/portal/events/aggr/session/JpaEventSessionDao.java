@@ -176,11 +176,16 @@ public class JpaEventSessionDao extends BaseJpaDao implements EventSessionDao {
 
     @Transactional("aggrEvents")
     @Override
-    public void purgeExpiredEventSessions() {
+    public int purgeExpiredEventSessions(int maxPurge) {
         final TypedQuery<EventSessionImpl> query = this.createQuery(this.findExpiredEventSessionsQuery);
         query.setParameter(this.dateTimeParameter, DateTime.now().minus(eventSessionDuration));
-        for (final EventSessionImpl eventSession : query.getResultList()) {
+        query.setMaxResults(maxPurge);
+        
+        final List<EventSessionImpl> expiredEventSessions = query.getResultList();
+        for (final EventSessionImpl eventSession : expiredEventSessions) {
             this.entityManager.remove(eventSession);
         }
+        
+        return expiredEventSessions.size();
     }
 }
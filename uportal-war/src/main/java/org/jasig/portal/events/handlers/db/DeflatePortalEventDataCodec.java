@@ -0,0 +1,146 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.events.handlers.db;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.codec.binary.Base64;
+import org.springframework.stereotype.Service;
+
+/**
+ * Compresses event JSON with DEFLATE using a preset dictionary of the field names and event types
+ * common to all events, the compressed bytes are stored Base64 encoded. Events are small so
+ * the dictionary is what makes compressing each event individually worthwhile.
+ * <br/>
+ * The dictionary is part of the format, any change to it requires a new format tag with the old
+ * dictionary kept available for reading existing events.
+ * 
+ * @version $Revision$
+ */
+@Service
+public class DeflatePortalEventDataCodec implements IPortalEventDataCodec {
+    public static final String FORMAT_TAG = "d1";
+    
+    /*
+     * Most frequently used strings last, DEFLATE uses shorter distances for the end of the dictionary.
+     * PortalEvent is serialized with its minimal class name as the "@c" type property.
+     */
+    static final byte[] DICTIONARY = toBytes(
+            "{\"@c\":\".LoginEvent\",\"groups\":[\"local.0\",\"pags.\"],\"attributes\":{" +
+            "{\"@c\":\".LogoutEvent\"," +
+            "{\"@c\":\".FolderAddedToLayoutPortalEvent\",\"newFolderId\":\"" +
+            "{\"@c\":\".FolderMovedInLayoutPortalEvent\",\"movedFolderId\":\"" +
+            "{\"@c\":\".FolderDeletedFromLayoutPortalEvent\",\"deletedFolderId\":\"\",\"deletedFolderName\":\"" +
+            "{\"@c\":\".PortletAddedToLayoutPortalEvent\",\"parentFolderId\":\"" +
+            "{\"@c\":\".PortletMovedInLayoutPortalEvent\",\"newParentFolderId\":\"" +
+            "{\"@c\":\".PortletDeletedFromLayoutPortalEvent\"," +
+            "\"layoutId\":1,\"layoutOwner\":\"\",\"oldParentFolderId\":\"" +
+            "{\"@c\":\".PortletEventExecutionEvent\",\"eventName\":\"{" +
+            "{\"@c\":\".PortletResourceExecutionEvent\",\"resourceId\":\"\",\"usedBrowserCache\":false," +
+            "{\"@c\":\".PortletActionExecutionEvent\"," +
+            "{\"@c\":\".PortalRenderEvent\",\"requestPathInfo\":\"/f/\",\"urlState\":\"NORMAL\",\"urlType\":\"RENDER\",\"targetedLayoutNodeId\":\"" +
+            "{\"@c\":\".PortletRenderHeaderExecutionEvent\",\"cached\":false,\"cached\":true}" +
+            "\"targeted\":false,\"targeted\":true,\"usedPortalCache\":false,\"usedPortalCache\":true}" +
+            "\"parameters\":{},\"fname\":\"\",\"executionTimeNano\":" +
+            "{\"@c\":\".PortletRenderExecutionEvent\",\"timestamp\":17,\"serverId\":\"\",\"eventSessionId\":\"\",\"userName\":\"");
+    
+    @Override
+    public String getFormatTag() {
+        return FORMAT_TAG;
+    }
+
+    @Override
+    public String encode(String eventJson) {
+        final byte[] data = toBytes(eventJson);
+        
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(data);
+            deflater.finish();
+            
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length);
+            final byte[] buffer = new byte[512];
+            while (!deflater.finished()) {
+                final int length = deflater.deflate(buffer);
+                compressed.write(buffer, 0, length);
+            }
+            
+            return Base64.encodeBase64String(compressed.toByteArray());
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public String decode(String eventData) {
+        final byte[] compressed = Base64.decodeBase64(eventData);
+        
+        //Raw inflate needs an extra byte of input to signal the end of the stream
+        final byte[] input = new byte[compressed.length + 1];
+        System.arraycopy(compressed, 0, input, 0, compressed.length);
+        
+        final Inflater inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(input);
+            
+            final ByteArrayOutputStream data = new ByteArrayOutputStream(compressed.length * 3);
+            final byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                final int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated or corrupt " + FORMAT_TAG + " event data: " + eventData);
+                }
+                data.write(buffer, 0, length);
+            }
+            
+            //Zero padding can complete a truncated final block, a complete stream never needs the extra byte
+            if (inflater.getBytesRead() > compressed.length) {
+                throw new IllegalArgumentException("Truncated or corrupt " + FORMAT_TAG + " event data: " + eventData);
+            }
+            
+            return data.toString("UTF-8");
+        }
+        catch (DataFormatException e) {
+            throw new IllegalArgumentException("Invalid " + FORMAT_TAG + " event data: " + eventData, e);
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 encoding is not supported", e);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+    
+    private static byte[] toBytes(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 encoding is not supported", e);
+        }
+    }
+}
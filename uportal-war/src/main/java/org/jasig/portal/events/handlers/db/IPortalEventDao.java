@@ -49,18 +49,6 @@ public interface IPortalEventDao {
      */
     void getPortalEvents(DateTime startTime, DateTime endTime, FunctionWithoutResult<PortalEvent> handler);
     
-    /**
-     * Gets all un-aggregated persisted events in the time range. After the handler is called on each event
-     * it is marked as aggregated. To deal with memory and data access issues the results are not
-     * returned but passed in order to the provided {@link FunctionWithoutResult} handler.
-     * 
-     * @param startTime The inclusive start time to get events for
-     * @param endTime The exclusive end time to get events for
-     * @param maxEvents The maximum number events to retrieve. -1 means no limit
-     * @param handler Function which will be called for each event.
-     */
-    void aggregatePortalEvents(DateTime startTime, DateTime endTime, int maxEvents, FunctionWithoutResult<PortalEvent> handler);
-    
     /**
      * @return The timestamp of the oldest event in the persitent store
      */
@@ -71,6 +59,16 @@ public interface IPortalEventDao {
      */
     DateTime getNewestPortalEventTimestamp();
     
+    /**
+     * Determine the end of a bounded batch of the oldest events before the specified date. Used to
+     * break large deletes up into a series of smaller ones.
+     * 
+     * @param endTime Exclusive end of the range of events to consider
+     * @param maxEvents Maximum number of events that should fall before the returned date
+     * @return The exclusive end date of the batch, never after endTime
+     */
+    DateTime getPortalEventBatchEnd(DateTime endTime, int maxEvents);
+    
     /**
      * Delete events with timestamps from before the specified date (exclusive)
      */
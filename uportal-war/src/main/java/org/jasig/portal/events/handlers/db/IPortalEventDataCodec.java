@@ -0,0 +1,50 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.events.handlers.db;
+
+/**
+ * Encodes the JSON representation of a portal event into the form stored in the raw events table.
+ * Encoded data is stored prefixed by the codec's format tag so events written with any registered
+ * codec can be read back, un-prefixed data is plain JSON.
+ * 
+ * @version $Revision$
+ */
+public interface IPortalEventDataCodec {
+    /**
+     * Separates the format tag from the encoded data
+     */
+    public static final char FORMAT_TAG_SEPARATOR = ':';
+    
+    /**
+     * @return Unique tag for the codec and the version of its format, must be alpha-numeric. If the
+     * format of the encoded data changes a new tag must be used.
+     */
+    public String getFormatTag();
+    
+    /**
+     * Encode the event JSON, the returned data must not contain the format tag
+     */
+    public String encode(String eventJson);
+    
+    /**
+     * Decode data returned by {@link #encode(String)} back into the event JSON
+     */
+    public String decode(String eventData);
+}
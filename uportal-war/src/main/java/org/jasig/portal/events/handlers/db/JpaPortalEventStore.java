@@ -20,7 +20,13 @@
 package org.jasig.portal.events.handlers.db;
 
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
@@ -46,29 +52,48 @@ import org.jasig.portal.jpa.BaseJpaDao;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.support.DataAccessUtils;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableMap;
 
 /**
  * Stores portal events using JPA/Hibenate no internal batch segmentation is done to the passed list
  * of {@link PortalEvent}s. If a {@link PortalEvent} is not mapped as a persistent entity a message is logged
  * at the WARN level and the event is ignored.
+ * <br/>
+ * Batches of events are flushed every {@link #setStoreFlushPeriod(int)} events so Hibernate writes them
+ * using JDBC batch inserts, the persistence context is cleared after each flush to keep its size bounded.
+ * <br/>
+ * Event data is stored as JSON unless {@link #setEventDataFormat(String)} selects one of the registered
+ * {@link IPortalEventDataCodec}s. Encoded data is prefixed with the codec's format tag so events stored in
+ * any registered format can always be read.
  * 
  * @author Eric Dalquist
  * @version $Revision$
  */
 @Repository
 public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
+    /**
+     * Format name for un-encoded JSON event data
+     */
+    public static final String JSON_FORMAT = "json";
+    
     protected final Logger logger = LoggerFactory.getLogger(this.getClass());
 
     private final ObjectMapper mapper;
     private String deleteQuery;
     private String selectQuery;
-    private String selectUnaggregatedQuery;
-    private int flushPeriod = 1000;
+    private String selectTimestampsQuery;
+    private int storeFlushPeriod = 100;
+    private PortalEventStoreStatistics storeStatistics = new PortalEventStoreStatistics();
+    private Map<String, IPortalEventDataCodec> eventDataCodecs = Collections.emptyMap();
+    private String eventDataFormat = JSON_FORMAT;
+    private IPortalEventDataCodec eventDataCodec = null;
     private CriteriaQuery<DateTime> findNewestPersistentPortalEventTimestampQuery;
     private CriteriaQuery<DateTime> findOldestPersistentPortalEventTimestampQuery;
     private ParameterExpression<DateTime> startTimeParameter;
@@ -84,12 +109,39 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
     }
     
     /**
-     * Frequency that updated events should be flushed during a call to {@link #aggregatePortalEvents(DateTime, DateTime, int, FunctionWithoutResult)}, defaults to 1000.
+     * Number of stored events to flush to the database at once, should match the hibernate.jdbc.batch_size
+     * of the raw events persistence unit, defaults to 100.
+     */
+    @Value("${org.jasig.portal.events.handlers.db.JpaPortalEventStore.storeFlushPeriod:100}")
+    public void setStoreFlushPeriod(int storeFlushPeriod) {
+        this.storeFlushPeriod = storeFlushPeriod;
+    }
+    
+    /**
+     * Codecs available for reading and writing event data
      */
-    public void setAggregationFlushPeriod(int flushPeriod) {
-        this.flushPeriod = flushPeriod;
+    @Autowired(required=false)
+    public void setEventDataCodecs(Collection<IPortalEventDataCodec> eventDataCodecs) {
+        final ImmutableMap.Builder<String, IPortalEventDataCodec> builder = ImmutableMap.builder();
+        for (final IPortalEventDataCodec codec : eventDataCodecs) {
+            builder.put(codec.getFormatTag(), codec);
+        }
+        this.eventDataCodecs = builder.build();
     }
 
+    /**
+     * Format used when storing event data, either {@link #JSON_FORMAT} or the format tag of one of the
+     * registered {@link IPortalEventDataCodec}s, defaults to {@link #JSON_FORMAT}.
+     */
+    @Value("${org.jasig.portal.events.handlers.db.JpaPortalEventStore.eventDataFormat:json}")
+    public void setEventDataFormat(String eventDataFormat) {
+        this.eventDataFormat = eventDataFormat;
+    }
+    
+    @Autowired(required=false)
+    public void setStoreStatistics(PortalEventStoreStatistics storeStatistics) {
+        this.storeStatistics = storeStatistics;
+    }
 
     /**
      * @param entityManager the entityManager to set
@@ -109,6 +161,16 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
     
     @Override
     public void afterPropertiesSet() throws Exception {
+        if (JSON_FORMAT.equals(this.eventDataFormat)) {
+            this.eventDataCodec = null;
+        }
+        else {
+            this.eventDataCodec = this.eventDataCodecs.get(this.eventDataFormat);
+            if (this.eventDataCodec == null) {
+                throw new IllegalStateException("No IPortalEventDataCodec registered for eventDataFormat '" + this.eventDataFormat + "', available formats are: " + this.eventDataCodecs.keySet());
+            }
+        }
+        
         this.startTimeParameter = this.createParameterExpression(DateTime.class, "startTime");
         this.endTimeParameter = this.createParameterExpression(DateTime.class, "endTime");
         
@@ -119,12 +181,10 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
                      "AND e." + PersistentPortalEvent_.timestamp.getName() + " < :" + this.endTimeParameter.getName() + " " + 
         		"ORDER BY e." + PersistentPortalEvent_.timestamp.getName() + " ASC";
         
-        this.selectUnaggregatedQuery = 
-                "SELECT e " +
+        this.selectTimestampsQuery = 
+                "SELECT e." + PersistentPortalEvent_.timestamp.getName() + " " +
                 "FROM " + PersistentPortalEvent.class.getName() + " e " +
-                "WHERE e." + PersistentPortalEvent_.timestamp.getName() + " >= :" + this.startTimeParameter.getName() + " " +
-                     "AND e." + PersistentPortalEvent_.timestamp.getName() + " < :" + this.endTimeParameter.getName() + " " +
-                     "AND (e." + PersistentPortalEvent_.aggregated.getName() + " is null OR e." + PersistentPortalEvent_.aggregated.getName() + " = false) " +
+                "WHERE e." + PersistentPortalEvent_.timestamp.getName() + " < :" + this.endTimeParameter.getName() + " " +
                 "ORDER BY e." + PersistentPortalEvent_.timestamp.getName() + " ASC";
         
         this.deleteQuery = 
@@ -178,14 +238,7 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
     @Override
     @Transactional(value="rawEvents")
     public void storePortalEvents(PortalEvent... portalEvents) {
-        for (final PortalEvent portalEvent : portalEvents) {
-            try {
-                storePortalEvent(portalEvent);
-            }
-            catch (IllegalArgumentException iae) {
-                this.logger.warn(portalEvent.getClass().getName() + " is not mapped as a persistent entity and will not be stored. " + portalEvent + " Exception=" + iae.getMessage());
-            }
-        }
+        this.storePortalEventBatch(Arrays.asList(portalEvents));
     }
 
     /* (non-Javadoc)
@@ -194,14 +247,46 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
     @Override
     @Transactional(value="rawEvents")
     public void storePortalEvents(Iterable<PortalEvent> portalEvents) {
+        this.storePortalEventBatch(portalEvents);
+    }
+    
+    /**
+     * Persists the events flushing every {@link #storeFlushPeriod} events so the inserts are sent to the
+     * database as JDBC batches. Event data is serialized using a single reused buffer for the batch.
+     */
+    protected void storePortalEventBatch(Iterable<? extends PortalEvent> portalEvents) {
+        final long start = System.nanoTime();
+        final StringWriter eventDataWriter = new StringWriter();
+        
+        int storedCount = 0;
         for (final PortalEvent portalEvent : portalEvents) {
             try {
-                storePortalEvent(portalEvent);
+                eventDataWriter.getBuffer().setLength(0);
+                this.writeEventData(eventDataWriter, portalEvent);
+                final String eventData = this.encodeEventData(eventDataWriter.toString());
+                final PersistentPortalEvent persistentPortalEvent = new PersistentPortalEvent(portalEvent, eventData);
+                this.entityManager.persist(persistentPortalEvent);
             }
             catch (IllegalArgumentException iae) {
                 this.logger.warn(portalEvent.getClass().getName() + " is not mapped as a persistent entity and will not be stored. " + portalEvent + " Exception=" + iae.getMessage());
+                continue;
             }
+            
+            //periodic flush and clear of the persistence context, each flush is a single JDBC batch
+            if (++storedCount % this.storeFlushPeriod == 0) {
+                this.entityManager.flush();
+                this.entityManager.clear();
+            }
+        }
+        
+        if (storedCount % this.storeFlushPeriod != 0) {
+            this.entityManager.flush();
+            this.entityManager.clear();
         }
+        
+        final long storeTime = System.nanoTime() - start;
+        this.storeStatistics.recordBatch(storedCount, storeTime);
+        this.logger.debug("Stored {} events in {}ns", storedCount, storeTime);
     }
     
     @Override
@@ -212,46 +297,54 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
     }
     
     @Override
-    public DateTime getNewestPortalEventTimestamp() {
-        final TypedQuery<DateTime> query = this.createQuery(this.findNewestPersistentPortalEventTimestampQuery);
-        final List<DateTime> results = query.getResultList();
-        return DataAccessUtils.uniqueResult(results);
-    }
-
-    @Override
-    @Transactional(value="rawEvents")
-    public void aggregatePortalEvents(DateTime startTime, DateTime endTime, int maxEvents, FunctionWithoutResult<PortalEvent> handler) {
+    @Transactional(value="rawEvents", readOnly=true)
+    public DateTime getPortalEventBatchEnd(DateTime endTime, int maxEvents) {
+        //Walk the timestamp index forward from the oldest event keeping only the last timestamp read, the
+        //rows before the batch were deleted by the previous batch so there is nothing to skip over
         final Session session = this.getEntityManager().unwrap(Session.class);
-        final org.hibernate.Query query = session.createQuery(this.selectUnaggregatedQuery);
-        query.setParameter(this.startTimeParameter.getName(), startTime);
+        final org.hibernate.Query query = session.createQuery(this.selectTimestampsQuery);
         query.setParameter(this.endTimeParameter.getName(), endTime);
-        if (maxEvents > 0) {
-            query.setMaxResults(maxEvents);
-        }
-
-        int resultCount = 0;
-        for (final ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY); results.next(); ) {
-            final PersistentPortalEvent persistentPortalEvent = (PersistentPortalEvent)results.get(0);
-            final PortalEvent portalEvent = this.toPortalEvent(persistentPortalEvent.getEventData(), persistentPortalEvent.getEventType());
-            handler.apply(portalEvent);
-            persistentPortalEvent.setAggregated(true);
-            session.persist(persistentPortalEvent);
-            
-            //periodic flush and clear of session to manage memory demands
-            if (++resultCount % this.flushPeriod == 0) {
-                this.logger.debug("Aggregated {} events, flush and clear session.", resultCount);
-                session.flush();
-                session.clear();
+        query.setMaxResults(maxEvents);
+        query.setFetchSize(Math.min(maxEvents, 1000));
+        
+        DateTime lastEventInBatch = null;
+        int eventCount = 0;
+        final ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+        try {
+            while (results.next()) {
+                lastEventInBatch = (DateTime)results.get(0);
+                eventCount++;
             }
         }
+        finally {
+            results.close();
+        }
+        
+        if (eventCount < maxEvents) {
+            //Fewer than maxEvents before endTime
+            return endTime;
+        }
+        
+        //Batch end is exclusive, include all events at the last timestamp in the batch
+        final DateTime batchEnd = lastEventInBatch.plusMillis(1);
+        return batchEnd.isBefore(endTime) ? batchEnd : endTime;
     }
     
     @Override
+    public DateTime getNewestPortalEventTimestamp() {
+        final TypedQuery<DateTime> query = this.createQuery(this.findNewestPersistentPortalEventTimestampQuery);
+        final List<DateTime> results = query.getResultList();
+        return DataAccessUtils.uniqueResult(results);
+    }
+
+    @Override
+    @Transactional(value="rawEvents", readOnly=true)
     public void getPortalEvents(DateTime startTime, DateTime endTime, FunctionWithoutResult<PortalEvent> handler) {
         this.getPortalEvents(startTime, endTime, -1, handler);
     }
     
     @Override
+    @Transactional(value="rawEvents", readOnly=true)
     public void getPortalEvents(DateTime startTime, DateTime endTime, int maxEvents, FunctionWithoutResult<PortalEvent> handler) {
         final Session session = this.getEntityManager().unwrap(Session.class);
         final org.hibernate.Query query = session.createQuery(this.selectQuery);
@@ -265,7 +358,6 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
             final PersistentPortalEvent persistentPortalEvent = (PersistentPortalEvent)results.get(0);
             final PortalEvent portalEvent = this.toPortalEvent(persistentPortalEvent.getEventData(), persistentPortalEvent.getEventType());
             handler.apply(portalEvent);
-            persistentPortalEvent.setAggregated(true);
             session.evict(persistentPortalEvent);
         }
     }
@@ -282,13 +374,47 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
     }
     
     protected PersistentPortalEvent wrapPortalEvent(PortalEvent event) {
-        final String portalEventData = this.toString(event);
+        final String portalEventData = this.encodeEventData(this.toString(event));
         return new PersistentPortalEvent(event, portalEventData);
     }
 
+    /**
+     * Encode the event JSON using the configured codec, JSON is returned as-is if no codec is configured
+     */
+    protected String encodeEventData(String eventJson) {
+        final IPortalEventDataCodec codec = this.eventDataCodec;
+        if (codec == null) {
+            return eventJson;
+        }
+        
+        return codec.getFormatTag() + IPortalEventDataCodec.FORMAT_TAG_SEPARATOR + codec.encode(eventJson);
+    }
+    
+    /**
+     * Decode stored event data back to JSON, data that isn't prefixed with a format tag is JSON
+     */
+    protected String decodeEventData(String eventData) {
+        if (eventData.length() == 0 || eventData.charAt(0) == '{') {
+            return eventData;
+        }
+        
+        final int separatorIndex = eventData.indexOf(IPortalEventDataCodec.FORMAT_TAG_SEPARATOR);
+        if (separatorIndex <= 0) {
+            throw new IllegalArgumentException("Stored PortalEvent data is neither JSON nor prefixed with a format tag: " + eventData);
+        }
+        
+        final String formatTag = eventData.substring(0, separatorIndex);
+        final IPortalEventDataCodec codec = this.eventDataCodecs.get(formatTag);
+        if (codec == null) {
+            throw new IllegalArgumentException("No IPortalEventDataCodec registered for format '" + formatTag + "', available formats are: " + this.eventDataCodecs.keySet());
+        }
+        
+        return codec.decode(eventData.substring(separatorIndex + 1));
+    }
+
     protected <E extends PortalEvent> E toPortalEvent(final String eventData, Class<E> eventType) {
         try {
-            return mapper.readValue(eventData, eventType);
+            return mapper.readValue(this.decodeEventData(eventData), eventType);
         }
         catch (JsonParseException e) {
             throw new RuntimeException("Failed to deserialize PortalEvent data", e);
@@ -301,6 +427,21 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
         }
     }
     
+    protected void writeEventData(Writer writer, PortalEvent event) {
+        try {
+            mapper.writeValue(writer, event);
+        }
+        catch (JsonParseException e) {
+            throw new RuntimeException("Failed to serialize PortalEvent data", e);
+        }
+        catch (JsonMappingException e) {
+            throw new RuntimeException("Failed to serialize PortalEvent data", e);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Failed to serialize PortalEvent data", e);
+        }
+    }
+    
     protected String toString(PortalEvent event) {
         try {
             return mapper.writeValueAsString(event);
@@ -91,6 +91,9 @@ public class PersistentPortalEvent implements Serializable {
     @Lob
     private final String eventData; 
     
+    /**
+     * No longer updated, aggregation progress is tracked as a high-water mark by the aggregation status
+     */
     @Column(name = "AGGREGATED") 
     private Boolean aggregated = false;
     
@@ -139,10 +142,6 @@ public class PersistentPortalEvent implements Serializable {
         return a;
     }
 
-    void setAggregated(boolean aggregated) {
-        this.aggregated = aggregated;
-    }
-
     /* (non-Javadoc)
      * @see java.lang.Object#toString()
      */
@@ -19,11 +19,19 @@
 
 package org.jasig.portal.events.handlers.db;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
 import org.jasig.portal.events.PortalEvent;
 import org.jasig.portal.events.handlers.QueueingEventHandler;
+import org.jasig.portal.spring.context.ApplicationEventFilter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import com.google.common.collect.ImmutableSet;
+
 /**
  * Hands off queued portal events for storage by the IPortalEventDao
  * 
@@ -42,6 +50,41 @@ public class PortalEventDaoQueuingEventHandler extends QueueingEventHandler<Port
         this.portalEventDao = portalEventDao;
     }
 
+    /**
+     * Each batch is stored in a single transaction, defaults to 100.
+     */
+    @Value("${org.jasig.portal.events.handlers.db.PortalEventDaoQueuingEventHandler.batchSize:100}")
+    @Override
+    public void setBatchSize(int batchSize) {
+        super.setBatchSize(batchSize);
+    }
+
+    /**
+     * Event types that are never stored as raw events, for example events that are pre-aggregated in memory.
+     * Sub-classes of the listed types are ignored as well, defaults to none.
+     */
+    @Value("${org.jasig.portal.events.handlers.db.PortalEventDaoQueuingEventHandler.ignoredEventTypes:}")
+    public void setIgnoredEventTypes(Class<?>[] ignoredEventTypes) {
+        if (ignoredEventTypes == null || ignoredEventTypes.length == 0) {
+            this.setApplicationEventFilters(Collections.<ApplicationEventFilter<PortalEvent>>emptyList());
+            return;
+        }
+        
+        final Set<Class<?>> ignoredTypes = ImmutableSet.copyOf(ignoredEventTypes);
+        final List<ApplicationEventFilter<PortalEvent>> filters = Collections.<ApplicationEventFilter<PortalEvent>>singletonList(new ApplicationEventFilter<PortalEvent>() {
+            @Override
+            public boolean supports(PortalEvent event) {
+                for (final Class<?> ignoredType : ignoredTypes) {
+                    if (ignoredType.isInstance(event)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+        this.setApplicationEventFilters(filters);
+    }
+
     /* (non-Javadoc)
      * @see org.jasig.portal.events.handlers.QueueingEventHandler#onApplicationEvents(java.lang.Iterable)
      */
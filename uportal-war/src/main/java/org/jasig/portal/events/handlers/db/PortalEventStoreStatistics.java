@@ -0,0 +1,113 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.events.handlers.db;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.stereotype.Service;
+
+/**
+ * Throughput statistics for batches of events written by the {@link IPortalEventDao}
+ * 
+ * @version $Revision$
+ */
+@Service("portalEventStoreStatistics")
+public class PortalEventStoreStatistics {
+    private final AtomicLong eventsStored = new AtomicLong();
+    private final AtomicLong batchesStored = new AtomicLong();
+    private final AtomicLong totalStoreTime = new AtomicLong();
+    private volatile long lastBatchSize;
+    private volatile long lastBatchStoreTime;
+    
+    /**
+     * Record a stored batch of events
+     * 
+     * @param events Number of events in the batch
+     * @param storeTime Time in nanoseconds it took to store the batch
+     */
+    public void recordBatch(int events, long storeTime) {
+        this.eventsStored.addAndGet(events);
+        this.batchesStored.incrementAndGet();
+        this.totalStoreTime.addAndGet(storeTime);
+        this.lastBatchSize = events;
+        this.lastBatchStoreTime = storeTime;
+    }
+
+    /**
+     * @return Total number of events stored
+     */
+    public long getEventsStored() {
+        return this.eventsStored.get();
+    }
+    
+    /**
+     * @return Total number of batches stored
+     */
+    public long getBatchesStored() {
+        return this.batchesStored.get();
+    }
+    
+    /**
+     * @return Total time in ms spent storing events
+     */
+    public long getTotalStoreTime() {
+        return TimeUnit.NANOSECONDS.toMillis(this.totalStoreTime.get());
+    }
+    
+    /**
+     * @return Average number of events per batch
+     */
+    public double getAverageBatchSize() {
+        final long batches = this.batchesStored.get();
+        if (batches == 0) {
+            return 0;
+        }
+        return this.eventsStored.get() / (double) batches;
+    }
+    
+    /**
+     * @return Average number of events stored per second of store time
+     */
+    public double getAverageEventsPerSecond() {
+        return getEventsPerSecond(this.eventsStored.get(), this.totalStoreTime.get());
+    }
+    
+    /**
+     * @return Number of events in the last batch stored
+     */
+    public long getLastBatchSize() {
+        return this.lastBatchSize;
+    }
+    
+    /**
+     * @return Events per second for the last batch stored
+     */
+    public double getLastBatchEventsPerSecond() {
+        return getEventsPerSecond(this.lastBatchSize, this.lastBatchStoreTime);
+    }
+    
+    private static double getEventsPerSecond(long events, long storeTime) {
+        if (storeTime <= 0) {
+            return 0;
+        }
+        return events / (storeTime / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+}
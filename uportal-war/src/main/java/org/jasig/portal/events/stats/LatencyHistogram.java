@@ -0,0 +1,159 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.events.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size, thread safe histogram of latencies in microseconds. Buckets are log-linear, each power of two
+ * range is split into {@link #SUB_BUCKETS} linear buckets, giving a relative error of at most 12.5% for
+ * values from 1&#181;s to about 70 minutes while using a constant amount of memory. Larger values are
+ * counted in the last bucket.
+ * 
+ * @version $Revision$
+ */
+public final class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int MAX_EXPONENT = 32;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalValue = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+    
+    /**
+     * Record a latency
+     * 
+     * @param micros latency in microseconds, negative values are recorded as 0
+     */
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        
+        this.counts.incrementAndGet(getBucket(micros));
+        this.totalCount.incrementAndGet();
+        this.totalValue.addAndGet(micros);
+        
+        long max = this.maxValue.get();
+        while (micros > max && !this.maxValue.compareAndSet(max, micros)) {
+            max = this.maxValue.get();
+        }
+    }
+    
+    /**
+     * Clear all recorded values
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.counts.set(i, 0);
+        }
+        this.totalCount.set(0);
+        this.totalValue.set(0);
+        this.maxValue.set(0);
+    }
+    
+    /**
+     * Add the recorded values of this histogram into the specified accumulator
+     */
+    void addTo(Accumulator accumulator) {
+        for (int i = 0; i < BUCKETS; i++) {
+            accumulator.counts[i] += this.counts.get(i);
+        }
+        accumulator.totalCount += this.totalCount.get();
+        accumulator.totalValue += this.totalValue.get();
+        accumulator.maxValue = Math.max(accumulator.maxValue, this.maxValue.get());
+    }
+    
+    static int getBucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        
+        final int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (micros >>> shift) - SUB_BUCKETS;
+    }
+    
+    /**
+     * @return The largest value that is counted in the bucket
+     */
+    static long getBucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowerBound + (1l << shift) - 1;
+    }
+    
+    /**
+     * Non thread safe sum of one or more histograms used to compute a {@link LatencySnapshot}
+     */
+    static final class Accumulator {
+        private final long[] counts = new long[BUCKETS];
+        private long totalCount;
+        private long totalValue;
+        private long maxValue;
+        
+        long getTotalCount() {
+            return this.totalCount;
+        }
+        
+        long getMaxValue() {
+            return this.maxValue;
+        }
+        
+        double getMean() {
+            if (this.totalCount == 0) {
+                return 0;
+            }
+            return this.totalValue / (double) this.totalCount;
+        }
+        
+        /**
+         * @param percentile between 0 and 100
+         * @return Upper bound of the bucket containing the percentile, never more than the max recorded value
+         */
+        long getValueAtPercentile(double percentile) {
+            if (this.totalCount == 0) {
+                return 0;
+            }
+            
+            final long target = Math.max(1, (long) Math.ceil(this.totalCount * percentile / 100));
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += this.counts[i];
+                if (count >= target) {
+                    return Math.min(getBucketUpperBound(i), this.maxValue);
+                }
+            }
+            
+            return this.maxValue;
+        }
+    }
+}
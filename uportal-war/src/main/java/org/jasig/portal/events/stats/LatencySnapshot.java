@@ -0,0 +1,103 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.events.stats;
+
+import java.io.Serializable;
+
+/**
+ * Immutable summary of the latencies recorded over a time window. All latencies are in milliseconds.
+ * 
+ * @version $Revision$
+ */
+public final class LatencySnapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    private final long count;
+    private final long totalCount;
+    private final double rate;
+    private final double mean;
+    private final double median;
+    private final double percentile90;
+    private final double percentile99;
+    private final double max;
+    
+    LatencySnapshot(LatencyHistogram.Accumulator accumulator, long totalCount, long windowMillis) {
+        this.count = accumulator.getTotalCount();
+        this.totalCount = totalCount;
+        this.rate = windowMillis > 0 ? this.count / (windowMillis / 1000d) : 0;
+        this.mean = toMillis(accumulator.getMean());
+        this.median = toMillis(accumulator.getValueAtPercentile(50));
+        this.percentile90 = toMillis(accumulator.getValueAtPercentile(90));
+        this.percentile99 = toMillis(accumulator.getValueAtPercentile(99));
+        this.max = toMillis(accumulator.getMaxValue());
+    }
+    
+    private static double toMillis(double micros) {
+        return micros / 1000;
+    }
+
+    /**
+     * @return Number of samples in the window
+     */
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * @return Number of samples since the statistics were created
+     */
+    public long getTotalCount() {
+        return this.totalCount;
+    }
+
+    /**
+     * @return Samples per second over the window
+     */
+    public double getRate() {
+        return this.rate;
+    }
+
+    public double getMean() {
+        return this.mean;
+    }
+
+    public double getMedian() {
+        return this.median;
+    }
+
+    public double getPercentile90() {
+        return this.percentile90;
+    }
+
+    public double getPercentile99() {
+        return this.percentile99;
+    }
+
+    public double getMax() {
+        return this.max;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + this.count + ", rate=" + String.format("%.2f/s", this.rate) + 
+                ", mean=" + String.format("%.1fms", this.mean) + ", median=" + String.format("%.1fms", this.median) + 
+                ", 90%=" + String.format("%.1fms", this.percentile90) + ", 99%=" + String.format("%.1fms", this.percentile99) + 
+                ", max=" + String.format("%.1fms", this.max);
+    }
+}
@@ -0,0 +1,252 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.events.stats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.jasig.portal.events.PortalEvent;
+import org.jasig.portal.events.PortalRenderEvent;
+import org.jasig.portal.events.PortletActionExecutionEvent;
+import org.jasig.portal.events.PortletEventExecutionEvent;
+import org.jasig.portal.events.PortletExecutionEvent;
+import org.jasig.portal.events.PortletRenderExecutionEvent;
+import org.jasig.portal.events.PortletRenderHeaderExecutionEvent;
+import org.jasig.portal.events.PortletResourceExecutionEvent;
+import org.jasig.portal.spring.context.FilteringApplicationListener;
+import org.joda.time.Period;
+import org.joda.time.ReadablePeriod;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Live latency statistics for page renders and portlet executions computed directly from published
+ * {@link PortalEvent}s. Unlike the event aggregations these only cover a short rolling window and are
+ * not persisted, they exist to see what the portal is doing right now.
+ * 
+ * @version $Revision$
+ */
+@Service("portalEventStatistics")
+public class PortalEventStatisticsService extends FilteringApplicationListener<PortalEvent> implements InitializingBean {
+    /**
+     * Type of portlet execution statistics are tracked for
+     */
+    public enum PortletExecutionType {
+        RENDER_HEADER,
+        RENDER,
+        ACTION,
+        EVENT,
+        RESOURCE;
+        
+        static PortletExecutionType forEvent(PortletExecutionEvent event) {
+            if (event instanceof PortletRenderExecutionEvent) {
+                return RENDER;
+            }
+            if (event instanceof PortletRenderHeaderExecutionEvent) {
+                return RENDER_HEADER;
+            }
+            if (event instanceof PortletActionExecutionEvent) {
+                return ACTION;
+            }
+            if (event instanceof PortletEventExecutionEvent) {
+                return EVENT;
+            }
+            if (event instanceof PortletResourceExecutionEvent) {
+                return RESOURCE;
+            }
+            return null;
+        }
+    }
+    
+    private final ConcurrentMap<String, AtomicReferenceArray<RollingLatencyStatistics>> portletStatistics = 
+            new ConcurrentHashMap<String, AtomicReferenceArray<RollingLatencyStatistics>>();
+    
+    private int windowSlices = 6;
+    private ReadablePeriod sliceDuration = Period.seconds(10);
+    private long sliceMillis;
+    private RollingLatencyStatistics pageRenderStatistics;
+
+    /**
+     * Number of slices the rolling window is divided into, defaults to 6
+     */
+    @Value("${org.jasig.portal.events.stats.PortalEventStatisticsService.windowSlices:6}")
+    public void setWindowSlices(int windowSlices) {
+        this.windowSlices = windowSlices;
+    }
+
+    /**
+     * Length of each slice of the rolling window, defaults to 10 seconds
+     */
+    @Value("${org.jasig.portal.events.stats.PortalEventStatisticsService.sliceDuration:PT10S}")
+    public void setSliceDuration(ReadablePeriod sliceDuration) {
+        this.sliceDuration = sliceDuration;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        this.sliceMillis = new Period(this.sliceDuration).toStandardDuration().getMillis();
+        this.pageRenderStatistics = this.createStatistics();
+    }
+
+    @Override
+    protected void onFilteredApplicationEvent(PortalEvent event) {
+        if (event instanceof PortalRenderEvent) {
+            this.pageRenderStatistics.record(((PortalRenderEvent) event).getExecutionTimeNano());
+        }
+        else if (event instanceof PortletExecutionEvent) {
+            final PortletExecutionEvent portletExecutionEvent = (PortletExecutionEvent) event;
+            final PortletExecutionType executionType = PortletExecutionType.forEvent(portletExecutionEvent);
+            if (executionType != null) {
+                final RollingLatencyStatistics statistics = this.getPortletStatistics(portletExecutionEvent.getFname(), executionType);
+                statistics.record(portletExecutionEvent.getExecutionTimeNano());
+            }
+        }
+    }
+    
+    /**
+     * @return Page render latency over the current window
+     */
+    public LatencySnapshot getPageRenderStatistics() {
+        return this.pageRenderStatistics.getSnapshot();
+    }
+    
+    /**
+     * @return Latency over the current window for each portlet fname and execution type that has been seen, sorted by fname
+     */
+    public SortedMap<String, Map<PortletExecutionType, LatencySnapshot>> getPortletStatistics() {
+        final SortedMap<String, Map<PortletExecutionType, LatencySnapshot>> result = new TreeMap<String, Map<PortletExecutionType, LatencySnapshot>>();
+        
+        for (final Map.Entry<String, AtomicReferenceArray<RollingLatencyStatistics>> statisticsEntry : this.portletStatistics.entrySet()) {
+            final AtomicReferenceArray<RollingLatencyStatistics> typeStatistics = statisticsEntry.getValue();
+            
+            final Map<PortletExecutionType, LatencySnapshot> snapshots = new EnumMap<PortletExecutionType, LatencySnapshot>(PortletExecutionType.class);
+            for (final PortletExecutionType executionType : PortletExecutionType.values()) {
+                final RollingLatencyStatistics statistics = typeStatistics.get(executionType.ordinal());
+                if (statistics != null) {
+                    snapshots.put(executionType, statistics.getSnapshot());
+                }
+            }
+            
+            result.put(statisticsEntry.getKey(), snapshots);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * @return One line per portlet fname and execution type, slowest 99th percentile first
+     */
+    public String[] getPortletStatisticsSummary() {
+        final List<NamedSnapshot> snapshots = new ArrayList<NamedSnapshot>();
+        for (final Map.Entry<String, Map<PortletExecutionType, LatencySnapshot>> portletEntry : this.getPortletStatistics().entrySet()) {
+            for (final Map.Entry<PortletExecutionType, LatencySnapshot> typeEntry : portletEntry.getValue().entrySet()) {
+                snapshots.add(new NamedSnapshot(portletEntry.getKey() + " " + typeEntry.getKey(), typeEntry.getValue()));
+            }
+        }
+        
+        Collections.sort(snapshots, new Comparator<NamedSnapshot>() {
+            @Override
+            public int compare(NamedSnapshot o1, NamedSnapshot o2) {
+                return Double.compare(o2.snapshot.getPercentile99(), o1.snapshot.getPercentile99());
+            }
+        });
+        
+        final String[] summary = new String[snapshots.size()];
+        int i = 0;
+        for (final NamedSnapshot namedSnapshot : snapshots) {
+            summary[i++] = namedSnapshot.name + ": " + namedSnapshot.snapshot;
+        }
+        return summary;
+    }
+    
+    public long getPageRenderCount() {
+        return this.getPageRenderStatistics().getCount();
+    }
+    
+    public double getPageRenderRate() {
+        return this.getPageRenderStatistics().getRate();
+    }
+    
+    public double getPageRenderMean() {
+        return this.getPageRenderStatistics().getMean();
+    }
+    
+    public double getPageRenderMedian() {
+        return this.getPageRenderStatistics().getMedian();
+    }
+    
+    public double getPageRenderPercentile90() {
+        return this.getPageRenderStatistics().getPercentile90();
+    }
+    
+    public double getPageRenderPercentile99() {
+        return this.getPageRenderStatistics().getPercentile99();
+    }
+    
+    public double getPageRenderMax() {
+        return this.getPageRenderStatistics().getMax();
+    }
+    
+    protected RollingLatencyStatistics getPortletStatistics(String fname, PortletExecutionType executionType) {
+        AtomicReferenceArray<RollingLatencyStatistics> typeStatistics = this.portletStatistics.get(fname);
+        if (typeStatistics == null) {
+            typeStatistics = new AtomicReferenceArray<RollingLatencyStatistics>(PortletExecutionType.values().length);
+            final AtomicReferenceArray<RollingLatencyStatistics> existing = this.portletStatistics.putIfAbsent(fname, typeStatistics);
+            if (existing != null) {
+                typeStatistics = existing;
+            }
+        }
+        
+        //Statistics are only created for execution types the portlet actually uses
+        final int index = executionType.ordinal();
+        RollingLatencyStatistics statistics = typeStatistics.get(index);
+        if (statistics == null) {
+            statistics = this.createStatistics();
+            if (!typeStatistics.compareAndSet(index, null, statistics)) {
+                statistics = typeStatistics.get(index);
+            }
+        }
+        
+        return statistics;
+    }
+    
+    protected RollingLatencyStatistics createStatistics() {
+        return new RollingLatencyStatistics(this.windowSlices, this.sliceMillis);
+    }
+    
+    private static final class NamedSnapshot {
+        private final String name;
+        private final LatencySnapshot snapshot;
+        
+        public NamedSnapshot(String name, LatencySnapshot snapshot) {
+            this.name = name;
+            this.snapshot = snapshot;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.events.stats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency statistics over a rolling time window. The window is split into a fixed number of slices, each
+ * with its own {@link LatencyHistogram}. The oldest slice is cleared and re-used as time moves forward so
+ * memory use is constant and recording never allocates.
+ * 
+ * @version $Revision$
+ */
+public final class RollingLatencyStatistics {
+    private final AtomicLong totalCount = new AtomicLong();
+    private final Slice[] slices;
+    private final long sliceMillis;
+    
+    /**
+     * @param slices Number of slices in the window
+     * @param sliceMillis Length of each slice
+     */
+    public RollingLatencyStatistics(int slices, long sliceMillis) {
+        if (slices < 1) {
+            throw new IllegalArgumentException("slices must be at least 1. Is: " + slices);
+        }
+        if (sliceMillis < 1) {
+            throw new IllegalArgumentException("sliceMillis must be at least 1. Is: " + sliceMillis);
+        }
+        
+        this.sliceMillis = sliceMillis;
+        this.slices = new Slice[slices];
+        for (int i = 0; i < slices; i++) {
+            this.slices[i] = new Slice();
+        }
+    }
+    
+    /**
+     * Record a latency
+     * 
+     * @param durationNanos latency in nanoseconds
+     */
+    public void record(long durationNanos) {
+        this.record(durationNanos, System.currentTimeMillis());
+    }
+    
+    /**
+     * @return A snapshot of the latencies recorded in the current window
+     */
+    public LatencySnapshot getSnapshot() {
+        return this.getSnapshot(System.currentTimeMillis());
+    }
+    
+    void record(long durationNanos, long now) {
+        final long sliceStart = now - (now % this.sliceMillis);
+        final Slice slice = this.slices[(int) ((sliceStart / this.sliceMillis) % this.slices.length)];
+        
+        //Slice is from a previous window, clear it before use
+        if (slice.start != sliceStart) {
+            synchronized (slice) {
+                if (slice.start != sliceStart) {
+                    slice.histogram.reset();
+                    slice.start = sliceStart;
+                }
+            }
+        }
+        
+        slice.histogram.record(TimeUnit.NANOSECONDS.toMicros(durationNanos));
+        this.totalCount.incrementAndGet();
+    }
+    
+    LatencySnapshot getSnapshot(long now) {
+        final long currentSliceStart = now - (now % this.sliceMillis);
+        final long windowStart = currentSliceStart - (this.slices.length - 1) * this.sliceMillis;
+        
+        final LatencyHistogram.Accumulator accumulator = new LatencyHistogram.Accumulator();
+        for (final Slice slice : this.slices) {
+            final long start = slice.start;
+            if (start >= windowStart && start <= currentSliceStart) {
+                slice.histogram.addTo(accumulator);
+            }
+        }
+        
+        return new LatencySnapshot(accumulator, this.totalCount.get(), now - windowStart);
+    }
+    
+    private static final class Slice {
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private volatile long start = Long.MIN_VALUE;
+    }
+}
@@ -0,0 +1,591 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.groups;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListenerAdapter;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.portal.EntityIdentifier;
+import org.jasig.portal.portlet.om.IPortletDefinition;
+import org.jasig.portal.security.IPerson;
+import org.jasig.portal.services.GroupService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Ehcache backed {@link IGroupAncestorIndex}. The ancestor sets of all groups are built in bulk by
+ * walking the group graph from the root groups once and are stored, along with the direct parents
+ * of each group, as a single cache entry. Entities are not indexed, their direct containing groups
+ * come from the group services (and their caches) on every lookup and the rest of their ancestors
+ * from the group index. Memberships that are computed rather than stored, such as person attribute
+ * groups, are therefore never pinned by the index.
+ * <p/>
+ * When the group memberships of a group are updated or a group is deleted the index is copied and
+ * only the ancestor sets of the changed member groups and the groups below them are recomputed.
+ * The entry is then removed, which with the cache replicated by invalidation reaches every other
+ * server, and the updated copy is stored with {@link Ehcache#putQuiet(Element)} so it stays local.
+ * A server that finds the entry missing keeps answering from the index it used last while a single
+ * rebuild runs in the background, lookups only wait for a build before the first index exists.
+ * 
+ * @version $Revision$
+ */
+@Service("groupAncestorIndex")
+public class GroupAncestorIndexImpl implements IGroupAncestorIndex {
+    static final String GROUP_ANCESTORS_KEY = "GROUP_ANCESTORS";
+    
+    protected final Log logger = LogFactory.getLog(getClass());
+    
+    private final Object buildLock = new Object();
+    private final AtomicBoolean rebuildQueued = new AtomicBoolean();
+    //Incremented whenever the cached index is removed, locally or by replication, a build that overlaps a removal is discarded
+    private final AtomicLong removalCount = new AtomicLong();
+    private final AtomicLong buildCount = new AtomicLong();
+    private final AtomicLong totalBuildTime = new AtomicLong();
+    private final AtomicLong maxBuildTime = new AtomicLong();
+    private final AtomicLong updateCount = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+    private final AtomicLong staleLookups = new AtomicLong();
+    private final AtomicLong unindexedGroupLookups = new AtomicLong();
+    
+    private Ehcache ancestorCache;
+    private ExecutorService rebuildExecutor;
+    
+    //The index last read or stored on this server, answers lookups while the cached index is rebuilt
+    private volatile GroupAncestors lastGroupAncestors;
+
+    @Autowired
+    public void setAncestorCache(@Qualifier("org.jasig.portal.groups.GroupAncestorIndex") Ehcache ancestorCache) {
+        this.ancestorCache = ancestorCache;
+        this.ancestorCache.getCacheEventNotificationService().registerListener(new CacheEventListenerAdapter() {
+            @Override
+            public void notifyElementRemoved(Ehcache cache, Element element) {
+                removalCount.incrementAndGet();
+            }
+            
+            @Override
+            public void notifyElementExpired(Ehcache cache, Element element) {
+                removalCount.incrementAndGet();
+            }
+            
+            @Override
+            public void notifyRemoveAll(Ehcache cache) {
+                removalCount.incrementAndGet();
+            }
+        });
+    }
+    
+    @Autowired
+    public void setRebuildExecutor(@Qualifier("uPortalTaskExecutor") ExecutorService rebuildExecutor) {
+        this.rebuildExecutor = rebuildExecutor;
+    }
+
+    @Override
+    public Set<String> getAncestorGroupKeys(IGroupMember member) throws GroupsException {
+        final Map<String, Set<String>> groupAncestors = this.getGroupAncestors();
+        
+        if (member.isGroup()) {
+            final Set<String> ancestorGroupKeys = groupAncestors.get(member.getKey());
+            if (ancestorGroupKeys != null) {
+                return ancestorGroupKeys;
+            }
+            
+            //Group isn't connected to any of the root groups
+            this.unindexedGroupLookups.incrementAndGet();
+        }
+        
+        final Set<String> ancestorGroupKeys = new HashSet<String>();
+        this.addAncestorGroupKeys(member, groupAncestors, ancestorGroupKeys, new HashSet<EntityIdentifier>());
+        return ImmutableSet.copyOf(ancestorGroupKeys);
+    }
+    
+    @Override
+    public void invalidateGroupMembers(IEntityGroup group, Collection<? extends IGroupMember> changedMembers) {
+        //Entities aren't indexed, only changes to the memberships of groups affect the index 
+        final List<IEntityGroup> changedGroups = new ArrayList<IEntityGroup>();
+        for (final IGroupMember member : changedMembers) {
+            if (member.isGroup()) {
+                changedGroups.add((IEntityGroup) member);
+            }
+        }
+        if (changedGroups.isEmpty()) {
+            return;
+        }
+        
+        synchronized (this.buildLock) {
+            final Element element = this.ancestorCache.getQuiet(GROUP_ANCESTORS_KEY);
+            
+            //Invalidates the index on the other servers
+            this.ancestorCache.remove(GROUP_ANCESTORS_KEY);
+            this.invalidationCount.incrementAndGet();
+            
+            final GroupAncestors current = element != null ? (GroupAncestors) element.getObjectValue() : this.lastGroupAncestors;
+            if (current == null) {
+                //Nothing built on this server yet, the next lookup builds from the updated groups
+                return;
+            }
+            
+            final GroupAncestors updated;
+            try {
+                updated = this.updateGroupAncestors(current, group, changedGroups);
+            }
+            catch (GroupsException e) {
+                this.logger.warn("Failed to update the group ancestor index for the changes to " + group + ", it will be rebuilt", e);
+                this.queueRebuild();
+                return;
+            }
+            this.updateCount.incrementAndGet();
+            this.lastGroupAncestors = updated;
+            
+            if (element != null) {
+                this.ancestorCache.putQuiet(new Element(GROUP_ANCESTORS_KEY, updated));
+            }
+            else {
+                //The index was already stale, serve the updated copy until the rebuild replaces it
+                this.queueRebuild();
+            }
+        }
+    }
+    
+    @Override
+    public void invalidateGroupAncestors() {
+        if (this.ancestorCache.remove(GROUP_ANCESTORS_KEY)) {
+            this.invalidationCount.incrementAndGet();
+            this.logger.debug("Invalidated the group ancestor index");
+        }
+        
+        if (this.lastGroupAncestors != null) {
+            this.queueRebuild();
+        }
+    }
+    
+    /**
+     * @return Number of times the group index has been built since startup
+     */
+    public long getBuildCount() {
+        return this.buildCount.get();
+    }
+
+    /**
+     * @return Average time in milliseconds to build the group index
+     */
+    public double getAverageBuildTime() {
+        final long builds = this.buildCount.get();
+        if (builds == 0) {
+            return 0;
+        }
+        return (double) this.totalBuildTime.get() / builds / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return Maximum time in milliseconds to build the group index
+     */
+    public double getMaxBuildTime() {
+        return (double) this.maxBuildTime.get() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+    
+    /**
+     * @return Number of times the group index has been updated in place of a rebuild by group membership changes on this server
+     */
+    public long getUpdateCount() {
+        return this.updateCount.get();
+    }
+
+    /**
+     * @return Number of times the group index has been invalidated by group membership changes on this server
+     */
+    public long getInvalidationCount() {
+        return this.invalidationCount.get();
+    }
+    
+    /**
+     * @return Number of lookups answered from the previous index while the index was being rebuilt
+     */
+    public long getStaleLookups() {
+        return this.staleLookups.get();
+    }
+    
+    /**
+     * @return Number of lookups for groups that are not connected to any root group and so are not in the index
+     */
+    public long getUnindexedGroupLookups() {
+        return this.unindexedGroupLookups.get();
+    }
+
+    /**
+     * @return Number of groups in the index, 0 if the index is not currently built
+     */
+    public int getIndexedGroups() {
+        return this.getCachedGroupAncestors().size();
+    }
+
+    /**
+     * @return Total number of ancestor keys across all indexed groups
+     */
+    public long getIndexedAncestorKeys() {
+        long ancestorKeys = 0;
+        for (final Set<String> ancestorGroupKeys : this.getCachedGroupAncestors().values()) {
+            ancestorKeys += ancestorGroupKeys.size();
+        }
+        return ancestorKeys;
+    }
+
+    /**
+     * @return Approximate size of the index in bytes, expensive to calculate for large indexes
+     */
+    public long getIndexMemorySize() {
+        return this.ancestorCache.calculateInMemorySize();
+    }
+    
+    /**
+     * @return The root groups the group index is built from, the index contains every group connected to them
+     */
+    protected List<IEntityGroup> getRootGroups() throws GroupsException {
+        final List<IEntityGroup> rootGroups = new ArrayList<IEntityGroup>(2);
+        for (final Class<?> type : new Class<?>[] { IPerson.class, IPortletDefinition.class }) {
+            final IEntityGroup rootGroup = GroupService.getRootGroup(type);
+            if (rootGroup != null) {
+                rootGroups.add(rootGroup);
+            }
+        }
+        return rootGroups;
+    }
+    
+    /**
+     * Returns the ancestor keys of every indexed group. If the index isn't cached the previous index
+     * is returned and a rebuild is queued, the index is only built by the calling thread when there
+     * is no previous index.
+     */
+    protected Map<String, Set<String>> getGroupAncestors() throws GroupsException {
+        Element element = this.ancestorCache.get(GROUP_ANCESTORS_KEY);
+        if (element != null) {
+            final GroupAncestors groupAncestors = (GroupAncestors) element.getObjectValue();
+            this.lastGroupAncestors = groupAncestors;
+            return groupAncestors.ancestors;
+        }
+        
+        final GroupAncestors lastGroupAncestors = this.lastGroupAncestors;
+        if (lastGroupAncestors != null) {
+            this.staleLookups.incrementAndGet();
+            this.queueRebuild();
+            return lastGroupAncestors.ancestors;
+        }
+        
+        synchronized (this.buildLock) {
+            element = this.ancestorCache.get(GROUP_ANCESTORS_KEY);
+            if (element != null) {
+                return ((GroupAncestors) element.getObjectValue()).ancestors;
+            }
+            
+            final GroupAncestors groupAncestors = this.buildGroupAncestors();
+            this.storeGroupAncestors(groupAncestors);
+            return groupAncestors.ancestors;
+        }
+    }
+    
+    private Map<String, Set<String>> getCachedGroupAncestors() {
+        final Element element = this.ancestorCache.getQuiet(GROUP_ANCESTORS_KEY);
+        if (element == null) {
+            return Collections.emptyMap();
+        }
+        
+        return ((GroupAncestors) element.getObjectValue()).ancestors;
+    }
+    
+    /**
+     * Queues a rebuild of the index unless one is already queued or running
+     */
+    private void queueRebuild() {
+        if (!this.rebuildQueued.compareAndSet(false, true)) {
+            return;
+        }
+        
+        try {
+            this.rebuildExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        rebuildGroupAncestors();
+                    }
+                    catch (Throwable t) {
+                        logger.error("Failed to rebuild the group ancestor index, the previous index will be used until the next lookup", t);
+                    }
+                    finally {
+                        rebuildQueued.set(false);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            this.rebuildQueued.set(false);
+            this.logger.debug("No thread available to rebuild the group ancestor index, the next lookup will try again", e);
+        }
+    }
+    
+    private void rebuildGroupAncestors() throws GroupsException {
+        final long removals = this.removalCount.get();
+        final GroupAncestors groupAncestors = this.buildGroupAncestors();
+        
+        synchronized (this.buildLock) {
+            if (removals != this.removalCount.get()) {
+                //Memberships changed while building, the next lookup queues another rebuild
+                this.logger.debug("Discarding group ancestor index that was invalidated while it was built");
+                return;
+            }
+            
+            this.storeGroupAncestors(groupAncestors);
+        }
+    }
+    
+    private void storeGroupAncestors(GroupAncestors groupAncestors) {
+        //Quiet put, a rebuild must not invalidate the index on other servers
+        this.ancestorCache.putQuiet(new Element(GROUP_ANCESTORS_KEY, groupAncestors));
+        this.lastGroupAncestors = groupAncestors;
+    }
+    
+    /**
+     * Walks the group graph from the root groups collecting the direct parents of every group, then
+     * computes the ancestor set of each group from the parents. Member groups are followed to find
+     * the groups below the roots and containing groups are followed so groups that also belong to
+     * groups outside of the roots still get complete ancestor sets.
+     */
+    private GroupAncestors buildGroupAncestors() throws GroupsException {
+        final long start = System.nanoTime();
+        
+        //group key -> keys of the groups that directly contain it
+        final Map<String, Set<String>> groupParents = new HashMap<String, Set<String>>();
+        final Set<String> queuedGroupKeys = new HashSet<String>();
+        final LinkedList<IEntityGroup> queue = new LinkedList<IEntityGroup>();
+        for (final IEntityGroup rootGroup : this.getRootGroups()) {
+            if (queuedGroupKeys.add(rootGroup.getKey())) {
+                queue.add(rootGroup);
+            }
+        }
+        
+        while (!queue.isEmpty()) {
+            final IEntityGroup group = queue.removeFirst();
+            
+            groupParents.put(group.getKey(), this.getParentKeys(group, queuedGroupKeys, queue));
+            
+            for (final Iterator<?> memberItr = this.getMemberGroups(group); memberItr.hasNext();) {
+                final IGroupMember member = (IGroupMember) memberItr.next();
+                if (member != null && member.isGroup() && queuedGroupKeys.add(member.getKey())) {
+                    queue.add((IEntityGroup) member);
+                }
+            }
+        }
+        
+        final Map<String, Set<String>> groupAncestors = new HashMap<String, Set<String>>(groupParents.size() * 2);
+        computeGroupAncestors(groupParents, groupAncestors);
+        final GroupAncestors index = new GroupAncestors(groupParents, groupAncestors);
+        
+        final long buildTime = System.nanoTime() - start;
+        this.buildCount.incrementAndGet();
+        this.totalBuildTime.addAndGet(buildTime);
+        for (long max = this.maxBuildTime.get(); buildTime > max && !this.maxBuildTime.compareAndSet(max, buildTime); max = this.maxBuildTime.get());
+        
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Built group ancestor index of " + groupParents.size() + " groups in " + 
+                    TimeUnit.NANOSECONDS.toMillis(buildTime) + "ms");
+        }
+        
+        return index;
+    }
+    
+    /**
+     * Copies the index with the parents of the changed groups re-read and the ancestor sets of the
+     * changed groups and of every group below them recomputed. The ancestor sets of all other groups
+     * can't have changed and are shared with the current index.
+     */
+    private GroupAncestors updateGroupAncestors(GroupAncestors current, IEntityGroup group, List<IEntityGroup> changedGroups) throws GroupsException {
+        final Map<String, Set<String>> groupParents = new HashMap<String, Set<String>>(current.parents);
+        
+        final Set<String> changedGroupKeys = new HashSet<String>();
+        final Set<String> queuedGroupKeys = new HashSet<String>(groupParents.keySet());
+        final LinkedList<IEntityGroup> queue = new LinkedList<IEntityGroup>();
+        for (final IEntityGroup changedGroup : changedGroups) {
+            final String changedGroupKey = changedGroup.getKey();
+            changedGroupKeys.add(changedGroupKey);
+            
+            //A deleted group is passed as one of its own changed members
+            if (changedGroupKey.equals(group.getKey())) {
+                groupParents.remove(changedGroupKey);
+            }
+            else {
+                queue.add(changedGroup);
+            }
+        }
+        
+        //Parents that weren't indexed yet are indexed along with their own parents
+        while (!queue.isEmpty()) {
+            final IEntityGroup changedGroup = queue.removeFirst();
+            groupParents.put(changedGroup.getKey(), this.getParentKeys(changedGroup, queuedGroupKeys, queue));
+        }
+        
+        final Map<String, Set<String>> groupAncestors = new HashMap<String, Set<String>>(groupParents.size() * 2);
+        for (final Map.Entry<String, Set<String>> ancestorsEntry : current.ancestors.entrySet()) {
+            final String groupKey = ancestorsEntry.getKey();
+            if (groupParents.containsKey(groupKey) && !changedGroupKeys.contains(groupKey) 
+                    && Collections.disjoint(ancestorsEntry.getValue(), changedGroupKeys)) {
+                groupAncestors.put(groupKey, ancestorsEntry.getValue());
+            }
+        }
+        final int unchangedGroups = groupAncestors.size();
+        computeGroupAncestors(groupParents, groupAncestors);
+        
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Updated the group ancestor index for changes to " + group + ", recomputed " + 
+                    (groupAncestors.size() - unchangedGroups) + " of " + groupAncestors.size() + " groups");
+        }
+        
+        return new GroupAncestors(groupParents, groupAncestors);
+    }
+    
+    /**
+     * Keys of the groups directly containing the group, containing groups that haven't been queued
+     * yet are added to the queue
+     */
+    private Set<String> getParentKeys(IEntityGroup group, Set<String> queuedGroupKeys, List<IEntityGroup> queue) throws GroupsException {
+        final Set<String> parents = new HashSet<String>();
+        for (final Iterator<?> parentItr = group.getContainingGroups(); parentItr.hasNext();) {
+            final IEntityGroup parent = (IEntityGroup) parentItr.next();
+            if (parent == null) {
+                continue;
+            }
+            
+            parents.add(parent.getKey());
+            if (queuedGroupKeys.add(parent.getKey())) {
+                queue.add(parent);
+            }
+        }
+        return ImmutableSet.copyOf(parents);
+    }
+    
+    /**
+     * Computes the ancestor set of each group in the parents map that doesn't have one yet with a
+     * breadth first search up from the group, reusing the ancestor sets already computed. The sets
+     * are complete when stored so cycles in the group graph need no special handling.
+     */
+    private static void computeGroupAncestors(Map<String, Set<String>> groupParents, Map<String, Set<String>> groupAncestors) {
+        for (final Map.Entry<String, Set<String>> parentsEntry : groupParents.entrySet()) {
+            final String groupKey = parentsEntry.getKey();
+            if (groupAncestors.containsKey(groupKey)) {
+                continue;
+            }
+            
+            final Set<String> ancestorGroupKeys = new HashSet<String>();
+            final LinkedList<String> toVisit = new LinkedList<String>(parentsEntry.getValue());
+            while (!toVisit.isEmpty()) {
+                final String parentKey = toVisit.removeFirst();
+                if (!ancestorGroupKeys.add(parentKey)) {
+                    continue;
+                }
+                
+                final Set<String> parentAncestors = groupAncestors.get(parentKey);
+                if (parentAncestors != null) {
+                    ancestorGroupKeys.addAll(parentAncestors);
+                }
+                else {
+                    final Set<String> grandparentKeys = groupParents.get(parentKey);
+                    if (grandparentKeys != null) {
+                        toVisit.addAll(grandparentKeys);
+                    }
+                }
+            }
+            groupAncestors.put(groupKey, ImmutableSet.copyOf(ancestorGroupKeys));
+        }
+    }
+    
+    /**
+     * Member groups of the group, avoids loading the member entities when possible
+     */
+    private Iterator<?> getMemberGroups(IEntityGroup group) throws GroupsException {
+        if (group instanceof EntityGroupImpl) {
+            return ((EntityGroupImpl) group).getMemberGroups();
+        }
+        return group.getMembers();
+    }
+    
+    /**
+     * Adds the direct containing groups of the member and their ancestors, taken from the group
+     * index where possible and otherwise resolved recursively through the group services. 
+     */
+    private void addAncestorGroupKeys(IGroupMember member, Map<String, Set<String>> groupAncestors, 
+            Set<String> ancestorGroupKeys, Set<EntityIdentifier> path) throws GroupsException {
+        
+        if (!path.add(member.getEntityIdentifier())) {
+            //Cycle, the member's ancestors are already being collected further up the call stack
+            return;
+        }
+        
+        for (final Iterator<?> groupItr = member.getContainingGroups(); groupItr.hasNext();) {
+            final IEntityGroup group = (IEntityGroup) groupItr.next();
+            if (group == null || !ancestorGroupKeys.add(group.getKey())) {
+                continue;
+            }
+            
+            final Set<String> parentAncestors = groupAncestors.get(group.getKey());
+            if (parentAncestors != null) {
+                ancestorGroupKeys.addAll(parentAncestors);
+            }
+            else {
+                this.addAncestorGroupKeys(group, groupAncestors, ancestorGroupKeys, path);
+            }
+        }
+    }
+    
+    /**
+     * The direct parents and the ancestors of every indexed group, never modified once created
+     */
+    static final class GroupAncestors implements Serializable {
+        private static final long serialVersionUID = 1L;
+        
+        final Map<String, Set<String>> parents;
+        final Map<String, Set<String>> ancestors;
+        
+        GroupAncestors(Map<String, Set<String>> parents, Map<String, Set<String>> ancestors) {
+            this.parents = ImmutableMap.copyOf(parents);
+            this.ancestors = ImmutableMap.copyOf(ancestors);
+        }
+    }
+}
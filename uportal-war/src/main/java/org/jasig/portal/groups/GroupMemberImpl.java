@@ -27,6 +27,7 @@ import java.util.Set;
 
 import org.jasig.portal.EntityIdentifier;
 import org.jasig.portal.services.GroupService;
+import org.jasig.portal.spring.locator.GroupAncestorIndexLocator;
 
 /**
  * GroupMemberImpl summary first sentence goes here.
@@ -131,12 +132,22 @@ public boolean deepContains(IGroupMember gm) throws GroupsException
 /**
  * Returns an <code>Iterator</code> over the <code>Set</code> of this
  * <code>IGroupMember's</code> recursively-retrieved parent groups.
+ * The keys of the parent groups come from the group ancestor index.
  *
  * @return java.util.Iterator
  */
 public java.util.Iterator getAllContainingGroups() throws GroupsException
 {
-    return primGetAllContainingGroups(this, new HashSet()).iterator();
+    Set ancestorGroupKeys = getGroupAncestorIndex().getAncestorGroupKeys(this);
+    Collection groupsColl = new ArrayList(ancestorGroupKeys.size());
+    for (Iterator itr = ancestorGroupKeys.iterator(); itr.hasNext(); )
+    {
+        String groupKey = (String) itr.next();
+        IEntityGroup group = getCompositeGroupService().findGroup(groupKey);
+        if ( group != null )
+            { groupsColl.add(group); }
+    }
+    return groupsColl.iterator();
 }
 
 /**
@@ -187,6 +198,13 @@ public java.util.Iterator getContainingGroups() throws GroupsException
 
     return groupsColl.iterator();
 }
+/**
+ * Returns the index of transitive group memberships.
+ */
+protected IGroupAncestorIndex getGroupAncestorIndex()
+{
+    return GroupAncestorIndexLocator.getGroupAncestorIndex();
+}
 /**
  * @return java.lang.Class
  */
@@ -289,6 +307,8 @@ private void initializeContainingGroupKeys() throws GroupsException
 
 /**
  * Answers if this <code>IGroupMember</code> is, recursively, a member of <code>IGroupMember</code> gm.
+ * Checks the direct memberships and then the group ancestor index rather than
+ * searching the members of gm.
  * @return boolean
  * @param gm org.jasig.portal.groups.IGroupMember
  */
@@ -296,7 +316,9 @@ public boolean isDeepMemberOf(IGroupMember gm) throws GroupsException {
 
     if ( this.isMemberOf(gm) )
         { return true; }
-    return gm.deepContains( this );
+    if ( gm==this || gm.isEntity() )
+        { return false; }
+    return getGroupAncestorIndex().getAncestorGroupKeys(this).contains(gm.getKey());
 }
 /**
  * @return boolean
@@ -0,0 +1,55 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.groups;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Index of the transitive closure of containing groups for group members. Deep membership checks
+ * become a single set lookup instead of a walk of the group graph through the component group
+ * services.
+ * 
+ * @version $Revision$
+ */
+public interface IGroupAncestorIndex {
+    /**
+     * Get the keys of all groups that directly or recursively contain the member, same result as
+     * the keys of the groups returned by {@link IGroupMember#getAllContainingGroups()}
+     * 
+     * @return Immutable set of ancestor group keys, never null
+     */
+    public Set<String> getAncestorGroupKeys(IGroupMember member) throws GroupsException;
+    
+    /**
+     * Update the index entries affected by a change to the memberships of the group. Must be called
+     * after the memberships of a group are updated or a group is deleted.
+     * 
+     * @param group The group that was updated or deleted
+     * @param changedMembers Members that were added to or removed from the group
+     */
+    public void invalidateGroupMembers(IEntityGroup group, Collection<? extends IGroupMember> changedMembers);
+    
+    /**
+     * Remove the ancestor sets of all groups from the index, for use by group stores that find out
+     * about changes to group memberships outside of the group services. Lookups may be answered
+     * from the previous ancestor sets until the index has been rebuilt.
+     */
+    public void invalidateGroupAncestors();
+}
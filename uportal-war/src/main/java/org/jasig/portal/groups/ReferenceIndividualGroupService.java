@@ -35,6 +35,7 @@ import org.jasig.portal.concurrency.LockingException;
 import org.jasig.portal.services.EntityCachingService;
 import org.jasig.portal.services.EntityLockService;
 import org.jasig.portal.services.GroupService;
+import org.jasig.portal.spring.locator.GroupAncestorIndexLocator;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -803,6 +804,7 @@ protected void synchronizeGroupMembersOnDelete(IEntityGroup group)
 throws GroupsException
 {
     GroupMemberImpl gmi = null;
+    List members = new ArrayList();
 
     for (Iterator it=group.getMembers(); it.hasNext();)
     {
@@ -810,7 +812,11 @@ throws GroupsException
         gmi.removeGroup(group);
         if ( cacheInUse() )
            { cacheUpdate(gmi); }
+        members.add(gmi);
     }
+
+    members.add(group);
+    GroupAncestorIndexLocator.getGroupAncestorIndex().invalidateGroupMembers(group, members);
 }
 
 /**
@@ -840,6 +846,13 @@ throws GroupsException
         if ( cacheInUse() )
            { cacheUpdate(gmi); }
     }
+
+    if ( egi.hasAdds() || egi.hasDeletes() )
+    {
+        List changedMembers = new ArrayList(egi.getAddedMembers().values());
+        changedMembers.addAll(egi.getRemovedMembers().values());
+        GroupAncestorIndexLocator.getGroupAncestorIndex().invalidateGroupMembers(egi, changedMembers);
+    }
 }
 
 /**
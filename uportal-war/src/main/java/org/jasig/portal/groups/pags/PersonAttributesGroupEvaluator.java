@@ -0,0 +1,328 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.groups.pags;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.portal.groups.pags.PersonAttributesGroupStore.GroupDefinition;
+import org.jasig.portal.groups.pags.PersonAttributesGroupStore.TestGroup;
+import org.jasig.portal.groups.pags.testers.BaseAttributeTester;
+import org.jasig.portal.security.IPerson;
+
+/**
+ * Evaluation plan compiled from the PAGS group definitions. Testers and test groups that appear in
+ * more than one group definition are shared so they are evaluated at most once per person, and the
+ * memberships of a person in every group are determined in a single pass.
+ * <p/>
+ * Group membership has the same semantics as {@link PersonAttributesGroupStore#contains(org.jasig.portal.groups.IEntityGroup, org.jasig.portal.groups.IGroupMember)},
+ * a person is a member of a group if one of the group's test groups passes and each ancestor group either
+ * has no test groups or has a test group that passes.
+ * 
+ * @version $Revision$
+ */
+class PersonAttributesGroupEvaluator {
+    private static final byte UNKNOWN = 0;
+    private static final byte PASSED = 1;
+    private static final byte FAILED = 2;
+    
+    private static final Log log = LogFactory.getLog(PersonAttributesGroupEvaluator.class);
+    
+    private final Map<String, Integer> groupIndexes;
+    private final String[] groupKeys;
+    private final IPersonTester[] testers;
+    private final int[][] testGroups;
+    private final int[][] groupTestGroups;
+    private final int[][] groupAncestors;
+    private final Set<String> attributeNames;
+    
+    /**
+     * Compile the group definitions into an evaluation plan
+     * 
+     * @param groupDefinitions Map of group key to {@link GroupDefinition}
+     */
+    public PersonAttributesGroupEvaluator(Map<String, GroupDefinition> groupDefinitions) {
+        final int groupCount = groupDefinitions.size();
+        
+        this.groupIndexes = new HashMap<String, Integer>(groupCount * 2);
+        this.groupKeys = new String[groupCount];
+        int groupIndex = 0;
+        for (final String groupKey : groupDefinitions.keySet()) {
+            this.groupIndexes.put(groupKey, groupIndex);
+            this.groupKeys[groupIndex] = groupKey;
+            groupIndex++;
+        }
+        
+        //Share equivalent testers and test groups across all group definitions 
+        final Map<Object, Integer> testerIndexes = new LinkedHashMap<Object, Integer>();
+        final List<IPersonTester> testerList = new ArrayList<IPersonTester>();
+        final Map<List<Integer>, Integer> testGroupIndexes = new LinkedHashMap<List<Integer>, Integer>();
+        final Set<String> attributeNames = new HashSet<String>();
+        boolean attributeTestersOnly = true;
+        
+        this.groupTestGroups = new int[groupCount][];
+        final List<Set<Integer>> parents = new ArrayList<Set<Integer>>(groupCount);
+        for (int i = 0; i < groupCount; i++) {
+            parents.add(new HashSet<Integer>());
+        }
+        
+        for (int i = 0; i < groupCount; i++) {
+            final GroupDefinition groupDefinition = groupDefinitions.get(this.groupKeys[i]);
+            
+            final List<TestGroup> definitionTestGroups = groupDefinition.getTestGroups();
+            final int[] compiledTestGroups = new int[definitionTestGroups.size()];
+            int testGroupIdx = 0;
+            for (final TestGroup testGroup : definitionTestGroups) {
+                final List<Integer> testGroupTesters = new ArrayList<Integer>();
+                for (final IPersonTester tester : testGroup.getTests()) {
+                    if (tester == null) {
+                        //Tester that failed to initialize, fails the test group just like a direct evaluation would
+                        testGroupTesters.add(-1);
+                        continue;
+                    }
+                    
+                    final Object testerKey = getTesterKey(tester);
+                    Integer testerIndex = testerIndexes.get(testerKey);
+                    if (testerIndex == null) {
+                        testerIndex = testerList.size();
+                        testerIndexes.put(testerKey, testerIndex);
+                        testerList.add(tester);
+                    }
+                    testGroupTesters.add(testerIndex);
+                    
+                    if (tester instanceof BaseAttributeTester) {
+                        attributeNames.add(((BaseAttributeTester) tester).getAttributeName());
+                    }
+                    else {
+                        attributeTestersOnly = false;
+                    }
+                }
+                
+                Integer testGroupIndex = testGroupIndexes.get(testGroupTesters);
+                if (testGroupIndex == null) {
+                    testGroupIndex = testGroupIndexes.size();
+                    testGroupIndexes.put(testGroupTesters, testGroupIndex);
+                }
+                compiledTestGroups[testGroupIdx++] = testGroupIndex;
+            }
+            this.groupTestGroups[i] = compiledTestGroups;
+            
+            for (final String memberKey : groupDefinition.getMembers()) {
+                final Integer memberIndex = this.groupIndexes.get(memberKey);
+                if (memberIndex != null) {
+                    parents.get(memberIndex).add(i);
+                }
+            }
+        }
+        
+        this.testers = testerList.toArray(new IPersonTester[testerList.size()]);
+        
+        this.testGroups = new int[testGroupIndexes.size()][];
+        for (final Map.Entry<List<Integer>, Integer> testGroupEntry : testGroupIndexes.entrySet()) {
+            this.testGroups[testGroupEntry.getValue()] = toArray(testGroupEntry.getKey());
+        }
+        
+        this.groupAncestors = new int[groupCount][];
+        for (int i = 0; i < groupCount; i++) {
+            final Set<Integer> ancestors = new HashSet<Integer>();
+            collectAncestors(i, parents, ancestors);
+            this.groupAncestors[i] = toArray(ancestors);
+        }
+        
+        this.attributeNames = attributeTestersOnly ? Collections.unmodifiableSet(attributeNames) : null;
+        
+        if (log.isInfoEnabled()) {
+            log.info("Compiled " + groupCount + " PAGS group definitions to " + this.testGroups.length + " test groups using " + this.testers.length + " testers");
+        }
+    }
+    
+    /**
+     * @return Number of distinct testers in the plan
+     */
+    public int getTesterCount() {
+        return this.testers.length;
+    }
+    
+    /**
+     * @return Number of distinct test groups in the plan
+     */
+    public int getTestGroupCount() {
+        return this.testGroups.length;
+    }
+    
+    /**
+     * Evaluate membership of the person in every group
+     * 
+     * @return Memberships of the person, use {@link #isMember(BitSet, String)} to check a specific group
+     */
+    public BitSet evaluate(IPerson person) {
+        final byte[] testerResults = new byte[this.testers.length];
+        final byte[] testGroupResults = new byte[this.testGroups.length];
+        
+        //Result of GroupDefinition.test for each group
+        final BitSet passed = new BitSet(this.groupKeys.length);
+        for (int i = 0; i < this.groupKeys.length; i++) {
+            if (this.testGroupsPass(i, person, testerResults, testGroupResults)) {
+                passed.set(i);
+            }
+        }
+        
+        final BitSet memberships = new BitSet(this.groupKeys.length);
+        for (int i = 0; i < this.groupKeys.length; i++) {
+            //GroupDefinition.contains requires test groups
+            if (this.groupTestGroups[i].length == 0 || !passed.get(i)) {
+                continue;
+            }
+            
+            int failedAncestor = -1;
+            for (final int ancestor : this.groupAncestors[i]) {
+                if (!passed.get(ancestor)) {
+                    failedAncestor = ancestor;
+                    break;
+                }
+            }
+            
+            if (failedAncestor < 0) {
+                memberships.set(i);
+            }
+            else if (log.isWarnEnabled()) {
+                log.warn("PAGS group=" + this.groupKeys[i] + " contained person=" + person.getUserName()
+                        + ", but the person failed to be contained in ancesters of this group (parentGroup="
+                        + this.groupKeys[failedAncestor] + "). This may indicate a misconfigured PAGS group store. Please check PAGSGroupStoreConfig.xml.");
+            }
+        }
+        
+        return memberships;
+    }
+    
+    /**
+     * @param memberships Result of {@link #evaluate(IPerson)}
+     * @param groupKey Key of the group to check
+     * @return true if the memberships include the group
+     */
+    public boolean isMember(BitSet memberships, String groupKey) {
+        final Integer groupIndex = this.groupIndexes.get(groupKey);
+        return groupIndex != null && memberships.get(groupIndex);
+    }
+    
+    /**
+     * Get the part of the person's attributes that group evaluation depends on. Two persons with equal
+     * attribute versions are members of the same groups. If a tester that isn't based on a single
+     * attribute is used all attributes are included.
+     * 
+     * @param attributes The person's attributes, may be null
+     */
+    public Map<String, List<Object>> getAttributesVersion(Map<String, List<Object>> attributes) {
+        if (attributes == null || attributes.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        
+        final Map<String, List<Object>> version = new HashMap<String, List<Object>>();
+        for (final Map.Entry<String, List<Object>> attributeEntry : attributes.entrySet()) {
+            final String attributeName = attributeEntry.getKey();
+            if (this.attributeNames == null || this.attributeNames.contains(attributeName)) {
+                final List<Object> values = attributeEntry.getValue();
+                version.put(attributeName, values != null ? new ArrayList<Object>(values) : null);
+            }
+        }
+        return version;
+    }
+    
+    private boolean testGroupsPass(int groupIndex, IPerson person, byte[] testerResults, byte[] testGroupResults) {
+        final int[] groupTestGroups = this.groupTestGroups[groupIndex];
+        if (groupTestGroups.length == 0) {
+            return true;
+        }
+        
+        for (final int testGroupIndex : groupTestGroups) {
+            byte testGroupResult = testGroupResults[testGroupIndex];
+            if (testGroupResult == UNKNOWN) {
+                testGroupResult = this.testersPass(testGroupIndex, person, testerResults) ? PASSED : FAILED;
+                testGroupResults[testGroupIndex] = testGroupResult;
+            }
+            
+            if (testGroupResult == PASSED) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    private boolean testersPass(int testGroupIndex, IPerson person, byte[] testerResults) {
+        for (final int testerIndex : this.testGroups[testGroupIndex]) {
+            if (testerIndex < 0) {
+                return false;
+            }
+            
+            byte testerResult = testerResults[testerIndex];
+            if (testerResult == UNKNOWN) {
+                testerResult = this.testers[testerIndex].test(person) ? PASSED : FAILED;
+                testerResults[testerIndex] = testerResult;
+            }
+            
+            if (testerResult == FAILED) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Testers configured with the same class, attribute and test value are equivalent, all other
+     * testers are only equivalent to themselves.
+     */
+    private static Object getTesterKey(IPersonTester tester) {
+        if (tester instanceof BaseAttributeTester) {
+            final BaseAttributeTester attributeTester = (BaseAttributeTester) tester;
+            return Collections.unmodifiableList(Arrays.asList(tester.getClass(), attributeTester.getAttributeName(), attributeTester.getTestValue()));
+        }
+        
+        return tester;
+    }
+    
+    private static void collectAncestors(int groupIndex, List<Set<Integer>> parents, Set<Integer> ancestors) {
+        for (final Integer parent : parents.get(groupIndex)) {
+            if (ancestors.add(parent)) {
+                collectAncestors(parent, parents, ancestors);
+            }
+        }
+    }
+    
+    private static int[] toArray(Collection<Integer> values) {
+        final int[] array = new int[values.size()];
+        int i = 0;
+        for (final Integer value : values) {
+            array[i++] = value;
+        }
+        return array;
+    }
+}
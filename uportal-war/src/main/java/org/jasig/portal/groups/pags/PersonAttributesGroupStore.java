@@ -21,16 +21,16 @@ package org.jasig.portal.groups.pags;
 
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -53,6 +53,9 @@ import org.jasig.portal.spring.locator.PersonAttributeDaoLocator;
 import org.jasig.services.persondir.IPersonAttributeDao;
 import org.jasig.services.persondir.IPersonAttributes;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 /**
  * The Person Attributes Group Store uses attributes stored in the IPerson object to determine
  * group membership.  It can use attributes from any data source supported by the PersonDirectory
@@ -70,6 +73,8 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
    private Map groupDefinitions;
    private Map<String, IEntityGroup> groups;
    private Map<String, List> containingGroups;
+   private PersonAttributesGroupEvaluator groupEvaluator;
+   private Cache<String, PersonMemberships> membershipCache;
       
    public PersonAttributesGroupStore() {
       groups = new HashMap<String, IEntityGroup>();
@@ -80,6 +85,7 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
          IPersonAttributesConfiguration config = getConfig(props.getProperty("org.jasig.portal.groups.pags.PersonAttributesGroupStore.configurationClass"));
          groupDefinitions = config.getConfig();
          initGroups(); 
+         initGroupEvaluator();
       } catch ( Exception e ) {
          throw new RuntimeException("Problem initializing groups", e);
       }
@@ -110,6 +116,20 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
        cacheContainingGroupsForGroups();
    }
    
+   /**
+    * Compiles the group definitions and creates the per-person membership cache.
+    */
+   private void initGroupEvaluator() {
+       groupEvaluator = new PersonAttributesGroupEvaluator(groupDefinitions);
+       
+       int cacheSize = Integer.parseInt(props.getProperty("org.jasig.portal.groups.pags.PersonAttributesGroupStore.membershipCacheSize", "10000"));
+       int cacheSeconds = Integer.parseInt(props.getProperty("org.jasig.portal.groups.pags.PersonAttributesGroupStore.membershipCacheTimeToLive", "300"));
+       membershipCache = CacheBuilder.newBuilder()
+           .maximumSize(cacheSize)
+           .expireAfterWrite(cacheSeconds, TimeUnit.SECONDS)
+           .build();
+   }
+   
 
    
    private IPersonTester initializeTester(String tester, String attribute, String value) {
@@ -144,25 +164,42 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
       {
          if (member.getEntityType() != IPERSON_CLASS) 
              { return false; }
-         IPerson person = null;
-         try {
-             IPersonAttributeDao pa = PersonAttributeDaoLocator.getPersonAttributeDao();
-             final IPersonAttributes personAttributes = pa.getPerson(member.getKey());
-
-             RestrictedPerson rp = PersonFactory.createRestrictedPerson();
-             if (personAttributes != null) {
-                 rp.setAttributes(personAttributes.getAttributes());
-             }
-             
-             person = rp;
-         }
-         catch (Exception ex) { 
-             log.error("Exception acquiring attributes for member " + member + " while checking if group " + group + " contains this member.", ex);
-             return false; 
-         }
-         return testRecursively(groupDef, person, member);
+         BitSet memberships = getMemberships(member);
+         return (memberships != null) && groupEvaluator.isMember(memberships, group.getLocalKey());
       }
    }
+   
+   /**
+    * Returns the memberships of the person in all PAGS groups, evaluating the groups
+    * only if there is no cached result for the person's current attributes.
+    * @return BitSet of memberships, null if the person's attributes could not be retrieved
+    */
+   private BitSet getMemberships(IGroupMember member) {
+       final Map<String, List<Object>> attributes;
+       try {
+           IPersonAttributeDao pa = PersonAttributeDaoLocator.getPersonAttributeDao();
+           final IPersonAttributes personAttributes = pa.getPerson(member.getKey());
+           attributes = (personAttributes != null) ? personAttributes.getAttributes() : null;
+       }
+       catch (Exception ex) { 
+           log.error("Exception acquiring attributes for member " + member + " while checking PAGS group memberships.", ex);
+           return null; 
+       }
+       
+       final Map<String, List<Object>> attributesVersion = groupEvaluator.getAttributesVersion(attributes);
+       final PersonMemberships cached = membershipCache.getIfPresent(member.getKey());
+       if (cached != null && cached.attributesVersion.equals(attributesVersion))
+           { return cached.memberships; }
+       
+       RestrictedPerson rp = PersonFactory.createRestrictedPerson();
+       if (attributes != null) {
+           rp.setAttributes(attributes);
+       }
+       
+       final BitSet memberships = groupEvaluator.evaluate(rp);
+       membershipCache.put(member.getKey(), new PersonMemberships(attributesVersion, memberships));
+       return memberships;
+   }
 
    public void delete(IEntityGroup group) throws GroupsException {
       throw new UnsupportedOperationException("PersonAttributesGroupStore: Method delete() not supported.");
@@ -199,53 +236,6 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
        }
    }
 
-   private boolean testRecursively(GroupDefinition groupDef, IPerson person,
-       IGroupMember member)
-   throws GroupsException {
-       if ( ! groupDef.contains(person) )
-           { return false;}
-       else
-       {
-           IEntityGroup group = cacheGet(groupDef.getKey());
-           IEntityGroup parentGroup = null;
-           Set<IEntityGroup> allParents = primGetAllContainingGroups(group, new HashSet<IEntityGroup>());
-           boolean testPassed = true;
-           for (Iterator<IEntityGroup> i=allParents.iterator(); i.hasNext() && testPassed;)
-           {
-               parentGroup = i.next();
-               GroupDefinition parentGroupDef = 
-                 (GroupDefinition) groupDefinitions.get(parentGroup.getLocalKey());
-               testPassed = parentGroupDef.test(person);               
-           }
-           
-           if (!testPassed && log.isWarnEnabled()) {
-               StringBuffer sb = new StringBuffer();
-               sb.append("PAGS group=").append(group.getKey());
-               sb.append(" contained person=").append(member.getKey());
-               sb.append(", but the person failed to be contained in ");
-               sb.append("ancesters of this group");
-               sb.append((parentGroup != null ? " (parentGroup="+parentGroup.getKey()+")" : ""));
-               sb.append(". This may indicate a ");
-               sb.append("misconfigured PAGS group ");
-               sb.append("store. Please check PAGSGroupStoreConfig.xml.");
-               log.warn(sb.toString());
-           }
-           return testPassed;
-       }
-   }
-   private java.util.Set<IEntityGroup> primGetAllContainingGroups(IEntityGroup group, Set<IEntityGroup> s)
-   throws GroupsException
-   {
-       Iterator i = findContainingGroups(group);
-       while ( i.hasNext() )
-       {
-           IEntityGroup parentGroup = (IEntityGroup) i.next();
-           s.add(parentGroup);
-           primGetAllContainingGroups(parentGroup, s);
-       }
-       return s;
-   }
-
    public Iterator findContainingGroups(IGroupMember member) 
    throws GroupsException 
    {
@@ -264,9 +254,16 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
    private Iterator<IEntityGroup> findContainingGroupsForEntity(IEntity member)
    throws GroupsException {
        List<IEntityGroup> results = new ArrayList<IEntityGroup>();
+       if (member.getEntityType() != IPERSON_CLASS) 
+           { return results.iterator(); }
+       
+       // Evaluate all of the groups for the person in one pass
+       BitSet memberships = getMemberships(member);
+       if (memberships == null) 
+           { return results.iterator(); }
        for (Iterator<IEntityGroup> i = groups.values().iterator(); i.hasNext(); ) {
           IEntityGroup group = i.next();
-          if ( contains(group, member)) 
+          if ( groupEvaluator.isMember(memberships, group.getLocalKey()) ) 
               { results.add(group); }
        }
        return results.iterator();
@@ -395,9 +392,15 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
       public boolean hasMember(String key) {
          return members.contains(key);
       }
+      public List<String> getMembers() {
+         return Collections.unmodifiableList(members);
+      }
       public void addTestGroup(TestGroup testGroup) {
          testGroups.add(testGroup);
       }
+      public List<TestGroup> getTestGroups() {
+         return Collections.unmodifiableList(testGroups);
+      }
       public boolean contains(IPerson person) {
          return ( testGroups.isEmpty() ) ? false : test(person);
       }
@@ -428,6 +431,10 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
          tests.add(test);
       }
       
+      public List<IPersonTester> getTests() {
+         return Collections.unmodifiableList(tests);
+      }
+      
       public boolean test(IPerson person) {
          for (Iterator<IPersonTester> i = tests.iterator(); i.hasNext(); ) {
             IPersonTester tester = i.next();
@@ -439,6 +446,19 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
       }
    }
 
+   /**
+    * Cached group memberships of a person and the attributes they were evaluated with.
+    */
+   private static class PersonMemberships {
+      private final Map<String, List<Object>> attributesVersion;
+      private final BitSet memberships;
+      
+      public PersonMemberships(Map<String, List<Object>> attributesVersion, BitSet memberships) {
+         this.attributesVersion = attributesVersion;
+         this.memberships = memberships;
+      }
+   }
+
    public IEntity newInstance(String key, Class type) throws GroupsException {
       if (EntityTypes.getEntityTypeID(type) == null) {
          throw new GroupsException("Invalid entity type: "+type.getName());
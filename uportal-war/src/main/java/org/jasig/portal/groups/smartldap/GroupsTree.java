@@ -0,0 +1,272 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.groups.smartldap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jasig.portal.groups.IEntityGroup;
+
+/**
+ * Single-object abstraction that contains all knowledge of SmartLdap groups:
+ * <ul>
+ *   <li>Map of all groups keyed by 'key' (DN).  Includes the root group.</li>
+ *   <li>Map of all parent relationships keyed by the 'key' (DN) of the child;  
+ *       the values are lists of the 'keys' (DNs) of its parents.  
+ *       Includes the root group.</li>
+ *   <li>Map of all child relationships keyed by the 'key' (DN) of the parent;  
+ *       the values are lists of the 'keys' (DNs) of its children.  
+ *       Includes the root group.</li>
+ *   <li>Map of all 'keys' (DNs) of SmartLdap managed groups indexed by group 
+ *       name in upper case.  Includes the root group.</li>
+ * </ul>
+ * 
+ * A tree is immutable once built.  Refreshing creates a new tree, either from 
+ * a complete set of records or by applying changed records to the previous 
+ * tree with {@link #applyChanges(Collection, Set, long)}, so a reader holding 
+ * a reference always sees a consistent set of groups.
+ * 
+ * @version $Revision$
+ */
+final class GroupsTree {
+    
+    // Instance Members.
+    private final IEntityGroup rootGroup;
+    private final Map<String,LdapRecord> records;
+    private final Map<String,IEntityGroup> groups;
+    private final Map<String,List<String>> parents;
+    private final Map<String,List<String>> children;
+    private final Map<String,List<String>> keysByUpperCaseName;
+    private final long fullRefreshTime;
+    private final long refreshTime;
+    
+    /*
+     * Public API.
+     */
+    
+    /**
+     * @param rootGroup Group that becomes the parent of every group that has no other parent
+     * @param records All SmartLdap groups read from LDAP
+     * @param refreshTime Time (milliseconds) the LDAP searches for the records began
+     */
+    public GroupsTree(IEntityGroup rootGroup, Collection<LdapRecord> records, long refreshTime) {
+        this(rootGroup, indexRecords(records), refreshTime, refreshTime);
+    }
+    
+    private GroupsTree(IEntityGroup rootGroup, Map<String,LdapRecord> records, 
+                                long fullRefreshTime, long refreshTime) {
+        
+        // Assertions.
+        if (rootGroup == null) {
+            String msg = "Argument 'rootGroup' cannot be null.";
+            throw new IllegalArgumentException(msg);
+        }
+        
+        // Prepare the new local indeces...
+        Map<String,IEntityGroup> new_groups = new HashMap<String,IEntityGroup>();
+        Map<String,List<String>> new_parents = new HashMap<String,List<String>>();
+        Map<String,List<String>> new_children = new HashMap<String,List<String>>();
+        Map<String,List<String>> new_keysByUpperCaseName = new HashMap<String,List<String>>();
+
+        // Do a first loop to build the main catalog (new_groups)...
+        for (LdapRecord r : records.values()) {
+            
+            // new_groups (me)...
+            IEntityGroup g = r.getGroup();
+            new_groups.put(g.getLocalKey(), g);
+
+        }
+        
+        // Do a second loop to build local indeces...
+        for (LdapRecord r : records.values()) {
+
+            IEntityGroup g = r.getGroup();
+
+            // new_parents (I am a parent for all my children)...
+            for (String childKey : r.getKeysOfChildren()) {
+                
+                // NB:  We're only interested in relationships between 
+                // objects in the main catalog (i.e. new_groups);  
+                // discard everything else...
+                if (!new_groups.containsKey(childKey)) {
+                    continue;
+                }
+
+                List<String> parentsList = new_parents.get(childKey);
+                if (parentsList == null) {
+                    // first parent for this child...
+                    parentsList = new ArrayList<String>();
+                    new_parents.put(childKey, parentsList);
+                }
+                parentsList.add(g.getLocalKey());
+
+            }
+            
+            // new_children...
+            List<String> childrenList = new ArrayList<String>();
+            for (String childKey : r.getKeysOfChildren()) {
+                // NB:  We're only interested in relationships between 
+                // objects in the main catalog (i.e. new_groups);  
+                // discard everything else...
+                if (new_groups.containsKey(childKey)) {
+                    childrenList.add(childKey);
+                }
+            }
+            new_children.put(g.getLocalKey(), Collections.unmodifiableList(childrenList));
+            
+            // new_keysByUpperCaseName...
+            addKeyByUpperCaseName(new_keysByUpperCaseName, g);
+            
+        }       
+        
+        /*
+         * Now load the root group into the collections...
+         */
+
+        // new_groups (me)...
+        new_groups.put(rootGroup.getLocalKey(), rootGroup);
+
+        // new_parents (I am a parent for all groups that have no other parent)...
+        List<String> childrenOfRoot = new ArrayList<String>();   // for later...
+        for (String possibleChildKey : new_groups.keySet()) {
+            if (!possibleChildKey.equals(rootGroup.getLocalKey()) && !new_parents.containsKey(possibleChildKey)) {
+                new_parents.put(possibleChildKey, Collections.singletonList(rootGroup.getLocalKey()));
+                childrenOfRoot.add(possibleChildKey);   // for later...
+            }
+        }
+        
+        // new_children...
+        new_children.put(rootGroup.getLocalKey(), Collections.unmodifiableList(childrenOfRoot));
+        
+        // new_keysByUpperCaseName...
+        addKeyByUpperCaseName(new_keysByUpperCaseName, rootGroup);
+        
+        // Parent lists were still being appended to above, lock them down now
+        for (Map.Entry<String,List<String>> y : new_parents.entrySet()) {
+            y.setValue(Collections.unmodifiableList(y.getValue()));
+        }
+        for (Map.Entry<String,List<String>> y : new_keysByUpperCaseName.entrySet()) {
+            y.setValue(Collections.unmodifiableList(y.getValue()));
+        }
+
+        // Instance Members.
+        this.rootGroup = rootGroup;
+        this.records = Collections.unmodifiableMap(records);
+        this.groups = Collections.unmodifiableMap(new_groups);
+        this.parents = Collections.unmodifiableMap(new_parents);
+        this.children = Collections.unmodifiableMap(new_children);
+        this.keysByUpperCaseName = Collections.unmodifiableMap(new_keysByUpperCaseName);
+        this.fullRefreshTime = fullRefreshTime;
+        this.refreshTime = refreshTime;
+
+    }
+    
+    /**
+     * Creates a new tree from this one.  Groups in <code>changedRecords</code> 
+     * are added or replace the existing record with the same key, all other 
+     * groups keep the {@link IEntityGroup} instance they have in this tree.
+     * 
+     * @param changedRecords Records for groups that were added or modified since this tree was built
+     * @param currentKeys Keys of all groups that currently exist in LDAP, groups not in this set are removed
+     * @param refreshTime Time (milliseconds) the LDAP searches for the changes began
+     */
+    public GroupsTree applyChanges(Collection<LdapRecord> changedRecords, Set<String> currentKeys, long refreshTime) {
+        
+        Map<String,LdapRecord> new_records = new LinkedHashMap<String,LdapRecord>(records);
+        for (Iterator<String> it = new_records.keySet().iterator(); it.hasNext();) {
+            if (!currentKeys.contains(it.next())) {
+                it.remove();
+            }
+        }
+        for (LdapRecord r : changedRecords) {
+            new_records.put(r.getGroup().getLocalKey(), r);
+        }
+        
+        return new GroupsTree(rootGroup, new_records, fullRefreshTime, refreshTime);
+        
+    }
+    
+    /**
+     * @return The LDAP records this tree was built from, keyed by group 'key' (DN).  Does not include the root group.
+     */
+    public Map<String,LdapRecord> getRecords() {
+        return records;
+    }
+
+    public Map<String,IEntityGroup> getGroups() {
+        return groups;
+    }
+
+    public Map<String,List<String>> getParents() {
+        return parents;
+    }
+
+    public Map<String,List<String>> getChildren() {
+        return children;
+    }
+
+    public Map<String,List<String>> getKeysByUpperCaseName() {
+        return keysByUpperCaseName;
+    }
+
+    /**
+     * @return Time (milliseconds) the last full load of records that contributed to this tree began
+     */
+    public long getFullRefreshTime() {
+        return fullRefreshTime;
+    }
+
+    /**
+     * @return Time (milliseconds) the LDAP searches that produced this tree began
+     */
+    public long getRefreshTime() {
+        return refreshTime;
+    }
+    
+    /*
+     * Implementation.
+     */
+    
+    private static Map<String,LdapRecord> indexRecords(Collection<LdapRecord> records) {
+        Map<String,LdapRecord> rslt = new LinkedHashMap<String,LdapRecord>();
+        for (LdapRecord r : records) {
+            rslt.put(r.getGroup().getLocalKey(), r);
+        }
+        return rslt;
+    }
+    
+    private static void addKeyByUpperCaseName(Map<String,List<String>> keysByUpperCaseName, IEntityGroup g) {
+        List<String> groupsWithMyName = keysByUpperCaseName.get(g.getName().toUpperCase());
+        if (groupsWithMyName == null) {
+            // I am the first group with my name (pretty likely)...
+            groupsWithMyName = new ArrayList<String>(1);
+            keysByUpperCaseName.put(g.getName().toUpperCase(), groupsWithMyName);
+        }
+        groupsWithMyName.add(g.getLocalKey());
+    }
+
+}
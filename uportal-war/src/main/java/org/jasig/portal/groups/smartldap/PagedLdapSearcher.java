@@ -0,0 +1,219 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.groups.smartldap;
+
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TimeZone;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.ldap.UncategorizedLdapException;
+import org.springframework.ldap.core.AttributesMapper;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.support.LdapUtils;
+
+/**
+ * Runs subtree searches for SmartLdap groups using the simple paged results 
+ * control (RFC 2696) so that directories with a server side size limit (Active 
+ * Directory returns at most 1000 entries per search by default) can still be 
+ * read completely.  All pages of a search are read over a single connection 
+ * obtained from the {@link ContextSource}.
+ * 
+ * @version $Revision$
+ */
+final class PagedLdapSearcher {
+    
+    // Instance Members.
+    private final ContextSource contextSource;
+    private final String baseDn;
+    private final int pageSize;
+    private final Log log = LogFactory.getLog(getClass());
+    
+    /*
+     * Public API.
+     */
+    
+    /**
+     * @param contextSource Source of the read-only context to search with
+     * @param baseDn BaseDn passed to the search (not to the context)
+     * @param pageSize Number of entries to request per page, a value of zero or less (negative) searches without paging
+     */
+    public PagedLdapSearcher(ContextSource contextSource, String baseDn, int pageSize) {
+        
+        // Assertions.
+        if (contextSource == null) {
+            String msg = "Argument 'contextSource' cannot be null.";
+            throw new IllegalArgumentException(msg);
+        }
+        if (baseDn == null) {
+            String msg = "Argument 'baseDn' cannot be null.";
+            throw new IllegalArgumentException(msg);
+        }
+        
+        // Instance Members.
+        this.contextSource = contextSource;
+        this.baseDn = baseDn;
+        this.pageSize = pageSize;
+        
+    }
+    
+    /**
+     * @return Records for all groups matching the filter, as created by the <code>attributesMapper</code>
+     */
+    public Set<LdapRecord> searchGroups(String filter, final AttributesMapper attributesMapper) {
+        
+        final Set<LdapRecord> rslt = new HashSet<LdapRecord>();
+        search(filter, null, new SearchResultHandler() {
+            public void handleResult(Attributes attributes) throws NamingException {
+                rslt.add((LdapRecord) attributesMapper.mapFromAttributes(attributes));
+            }
+        });
+        
+        return rslt;
+        
+    }
+    
+    /**
+     * @param modifyTimestampAttributeName Operational attribute that records when an entry was last modified
+     * @param since Timestamp (milliseconds), groups modified at or after this time are returned
+     * @return Records for the groups matching the filter that were modified since the specified time
+     */
+    public Set<LdapRecord> searchGroupsModifiedSince(String filter, String modifyTimestampAttributeName, long since, AttributesMapper attributesMapper) {
+        
+        DateFormat generalizedTime = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
+        generalizedTime.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String modifiedSinceFilter = "(&" + filter + "(" + modifyTimestampAttributeName + ">=" + generalizedTime.format(new Date(since)) + "))";
+        
+        return searchGroups(modifiedSinceFilter, attributesMapper);
+        
+    }
+    
+    /**
+     * Reads only the key attribute of each group, which is far cheaper than 
+     * reading whole groups when membership lists are large.
+     * 
+     * @return Keys of all groups matching the filter
+     */
+    public Set<String> searchGroupKeys(String filter, final String keyAttributeName) {
+        
+        final Set<String> rslt = new HashSet<String>();
+        search(filter, new String[] { keyAttributeName }, new SearchResultHandler() {
+            public void handleResult(Attributes attributes) throws NamingException {
+                Attribute key = attributes.get(keyAttributeName);
+                if (key != null) {
+                    rslt.add((String) key.get());
+                }
+            }
+        });
+        
+        return rslt;
+        
+    }
+    
+    /*
+     * Implementation.
+     */
+    
+    private void search(String filter, String[] returningAttributes, SearchResultHandler handler) {
+        
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningAttributes(returningAttributes);
+
+        DirContext ctx = contextSource.getReadOnlyContext();
+        try {
+            if (pageSize <= 0) {
+                handleResults(ctx.search(baseDn, filter, controls), handler);
+                return;
+            }
+            
+            if (!(ctx instanceof LdapContext)) {
+                String msg = "Paged searches require an LdapContext but the ContextSource returned:  " + ctx.getClass().getName();
+                throw new IllegalStateException(msg);
+            }
+            LdapContext ldapCtx = (LdapContext) ctx;
+            
+            int pages = 0;
+            byte[] cookie = null;
+            do {
+                ldapCtx.setRequestControls(new Control[] { new PagedResultsControl(pageSize, cookie, Control.CRITICAL) });
+                handleResults(ldapCtx.search(baseDn, filter, controls), handler);
+                pages++;
+                
+                cookie = null;
+                Control[] responseControls = ldapCtx.getResponseControls();
+                if (responseControls != null) {
+                    for (Control c : responseControls) {
+                        if (c instanceof PagedResultsResponseControl) {
+                            cookie = ((PagedResultsResponseControl) c).getCookie();
+                        }
+                    }
+                }
+            } while (cookie != null && cookie.length > 0);
+            
+            if (log.isDebugEnabled()) {
+                log.debug("Read " + pages + " page(s) for search '" + filter + "' under '" + baseDn + "'");
+            }
+        } catch (NamingException ne) {
+            throw LdapUtils.convertLdapException(ne);
+        } catch (IOException ioe) {
+            throw new UncategorizedLdapException("Failed to create the paged results control for search '" + filter + "'", ioe);
+        } finally {
+            LdapUtils.closeContext(ctx);
+        }
+        
+    }
+    
+    private void handleResults(NamingEnumeration<SearchResult> results, SearchResultHandler handler) throws NamingException {
+        try {
+            while (results.hasMore()) {
+                handler.handleResult(results.next().getAttributes());
+            }
+        } finally {
+            results.close();
+        }
+    }
+    
+    /*
+     * Nested Types.
+     */
+    
+    private interface SearchResultHandler {
+        void handleResult(Attributes attributes) throws NamingException;
+    }
+
+}
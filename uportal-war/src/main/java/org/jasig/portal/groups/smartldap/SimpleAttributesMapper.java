@@ -128,6 +128,10 @@ public final class SimpleAttributesMapper implements AttributesMapper {
 		
 	}
 	
+	public String getKeyAttributeName() {
+		return keyAttributeName;
+	}
+
 	public void setKeyAttributeName(String keyAttributeName) {
 		this.keyAttributeName = keyAttributeName;
 	}
@@ -22,6 +22,7 @@ package org.jasig.portal.groups.smartldap;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -29,6 +30,9 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -48,9 +52,15 @@ import org.jasig.portal.groups.IGroupMember;
 import org.jasig.portal.groups.ILockableEntityGroup;
 import org.jasig.portal.security.IPerson;
 import org.jasig.portal.security.PersonFactory;
+import org.jasig.portal.spring.locator.GroupAncestorIndexLocator;
 import org.jasig.portal.spring.locator.PersonAttributeDaoLocator;
+import org.jasig.portal.spring.locator.SmartLdapGroupStoreStatisticsLocator;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.support.FileSystemXmlApplicationContext;
+import org.springframework.ldap.core.AttributesMapper;
+import org.springframework.ldap.core.ContextSource;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public final class SmartLdapGroupStore implements IEntityGroupStore {
 		
@@ -64,6 +74,34 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
      */
     private long groupsTreeRefreshIntervalSeconds = 900;  // default
 
+    /**
+     * Period after which a refresh reloads every group instead of fetching 
+     * only the groups modified since the previous refresh.  May be overridden 
+     * in SmartLdapGroupStoreConfix.xml.  A value of zero or less (negative) 
+     * makes every refresh a full reload.
+     */
+    private long groupsTreeFullRefreshIntervalSeconds = 86400;  // default
+
+    /**
+     * Number of entries requested per page of an LDAP search.  May be 
+     * overridden in SmartLdapGroupStoreConfix.xml.  A value of zero or less 
+     * (negative) disables paging.
+     */
+    private int pageSize = 1000;  // default
+
+    /**
+     * Name of the operational attribute that records when an LDAP entry was 
+     * last modified.  May be overridden in SmartLdapGroupStoreConfix.xml.
+     */
+    private String modifyTimestampAttributeName = "modifyTimestamp";  // default
+
+    /**
+     * Incremental refreshes look for groups modified this long before the 
+     * previous refresh began, to allow for clock skew between the portal and 
+     * the LDAP server.
+     */
+    private static final long MODIFY_TIMESTAMP_OVERLAP_MILLIS = 5 * 60 * 1000L;
+
     /**
      * Timestamp (milliseconds) of the last tree refresh.
      */
@@ -71,27 +109,28 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
 
     private final ScriptRunner runner;
     private final Task initTask;
+    private final PagedLdapSearcher searcher;
     private final Log log = LogFactory.getLog(getClass());
     
+    /**
+     * Set while a refresh is queued or running so that only one refresh is 
+     * in flight at a time.
+     */
+    private final AtomicBoolean refreshInProgress = new AtomicBoolean(false);
+    
+    private final ExecutorService refreshExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("SmartLdap Refresh Worker").setDaemon(true).build());
+    
     /*
      * Indexed Collections.
      */
     
     /**
-     * Single-object abstraction that contains all knowledge of SmartLdap groups:
-     * <ul>
-     *   <li>Map of all groups keyed by 'key' (DN).  Includes ROOT_GROUP.</li>
-     *   <li>Map of all parent relationships keyed by the 'key' (DN) of the child;  
-     *       the values are lists of the 'keys' (DNs) of its parents.  
-     *       Includes ROOT_GROUP.</li>
-     *   <li>Map of all child relationships keyed by the 'key' (DN) of the parent;  
-     *       the values are lists of the 'keys' (DNs) of its children.  
-     *       Includes ROOT_GROUP.</li>
-     *   <li>Map of all 'keys' (DNs) of SmartLdap managed groups indexed by group 
-     *       name in upper case.  Includes ROOT_GROUP.</li>
-     * </ul>
+     * Current immutable snapshot of all SmartLdap groups.  Refreshes build a 
+     * new {@link GroupsTree} and replace this reference, readers keep using 
+     * the previous tree until the new one is complete.
      */
-    private GroupsTree groupsTree;
+    private volatile GroupsTree groupsTree;
 
     /*
      * Public API.
@@ -123,9 +162,7 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
      */
     public IEntityGroup find(String key) throws GroupsException {
     	
-    	if (isTreeRefreshRequired()) {
-    		refreshTree();
-    	}
+    	final GroupsTree tree = getGroupsTree();
 
     	if (log.isDebugEnabled()) {
     		log.debug("Invoking find() for key:  " + key);
@@ -133,7 +170,7 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
     	
     	// All of our groups (incl. ROOT_GROUP) 
     	// are indexed in the 'groups' map by key...
-    	return groupsTree.getGroups().get(key);
+    	return tree.getGroups().get(key);
     
     }
 
@@ -145,19 +182,17 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
      */
     public Iterator findContainingGroups(IGroupMember gm) throws GroupsException {
     	
-    	if (isTreeRefreshRequired()) {
-    		refreshTree();
-    	}
+    	final GroupsTree tree = getGroupsTree();
 
     	List<IEntityGroup> rslt = new LinkedList<IEntityGroup>();
     	if (gm.isGroup()) {		
     	    // Check the local indeces...
     		IEntityGroup group = (IEntityGroup) gm;
-    		List<String> list = groupsTree.getParents().get(group.getLocalKey());
+    		List<String> list = tree.getParents().get(group.getLocalKey());
     		if (list != null) {
     			// should only reach this code if its a SmartLdap managed group...
         		for (String s : list) {
-        			rslt.add(groupsTree.getGroups().get(s));
+        			rslt.add(tree.getGroups().get(s));
         		}
     		}
     	} else if (gm.isEntity() && gm.getEntityType().equals(ROOT_GROUP.getEntityType())) {	
@@ -196,8 +231,8 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
                     }
 
                     for (String s : list) {
-                        if (groupsTree.getGroups().containsKey(s)) {
-                            rslt.add(groupsTree.getGroups().get(s));
+                        if (tree.getGroups().containsKey(s)) {
+                            rslt.add(tree.getGroups().get(s));
                         }
                     }
                 }
@@ -217,10 +252,6 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
      */
     public Iterator findEntitiesForGroup(IEntityGroup group) throws GroupsException {
 
-    	if (isTreeRefreshRequired()) {
-    		refreshTree();
-    	}
-
     	if (log.isDebugEnabled()) {
     		log.debug("Invoking findEntitiesForGroup() for group:  " + group.getLocalKey());
     	}
@@ -248,10 +279,6 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
      */
     public String[] findMemberGroupKeys(IEntityGroup group) throws GroupsException {
 
-    	if (isTreeRefreshRequired()) {
-    		refreshTree();
-    	}
-
     	if (log.isDebugEnabled()) {
     		log.debug("Invoking findMemberGroupKeys() for group:  " + group.getLocalKey());
     	}
@@ -275,9 +302,7 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
      */
     public Iterator findMemberGroups(IEntityGroup group) throws GroupsException {
 
-    	if (isTreeRefreshRequired()) {
-    		refreshTree();
-    	}
+    	final GroupsTree tree = getGroupsTree();
 
     	if (log.isDebugEnabled()) {
     		log.debug("Invoking findMemberGroups() for group:  " + group.getLocalKey());
@@ -285,11 +310,11 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
 
     	List<IEntityGroup> rslt = new LinkedList<IEntityGroup>();
     	
-    	List<String> list = groupsTree.getChildren().get(group.getLocalKey());
+    	List<String> list = tree.getChildren().get(group.getLocalKey());
     	if (list != null) {
 			// should only reach this code if its a SmartLdap managed group...
     		for (String s : list) {
-    			rslt.add(groupsTree.getGroups().get(s));
+    			rslt.add(tree.getGroups().get(s));
     		}
     	}
     	
@@ -304,9 +329,7 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
 
     public EntityIdentifier[] searchForGroups(String query, int method, Class leaftype) throws GroupsException {
 
-    	if (isTreeRefreshRequired()) {
-    		refreshTree();
-    	}
+    	final GroupsTree tree = getGroupsTree();
 
     	if (log.isDebugEnabled()) {
     		log.debug("Invoking searchForGroups():  query=" + query + ", method=" 
@@ -361,7 +384,7 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
     	}
     	
     	List<EntityIdentifier> rslt = new LinkedList<EntityIdentifier>(); 
-    	for (Map.Entry<String,List<String>> y : groupsTree.getKeysByUpperCaseName().entrySet()) {
+    	for (Map.Entry<String,List<String>> y : tree.getKeysByUpperCaseName().entrySet()) {
     		if (y.getKey().matches(regex)) {
     			List<String> keys = y.getValue();
     			for (String k : keys) {
@@ -468,19 +491,80 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
 		    groupsTreeRefreshIntervalSeconds = (Long) spring_context.getBean("groupsTreeRefreshIntervalSeconds");
 		}
 
+		// Interval between full tree reloads
+		if (spring_context.containsBean("groupsTreeFullRefreshIntervalSeconds")) {
+		    groupsTreeFullRefreshIntervalSeconds = (Long) spring_context.getBean("groupsTreeFullRefreshIntervalSeconds");
+		}
+
+		// Paging & change detection
+		if (spring_context.containsBean("pageSize")) {
+		    pageSize = (Integer) spring_context.getBean("pageSize");
+		}
+		if (spring_context.containsBean("modifyTimestampAttributeName")) {
+		    modifyTimestampAttributeName = (String) spring_context.getBean("modifyTimestampAttributeName");
+		}
+		searcher = new PagedLdapSearcher((ContextSource) spring_context.getBean("ldapContext"), 
+		                                (String) spring_context.getBean("baseDn"), pageSize);
+
 		// Cernunnos tech...
 		runner = new ScriptRunner();
         initTask = runner.compileTask(getClass().getResource("init.crn").toExternalForm());
 
     }
     
-    private boolean isTreeRefreshRequired() {
+    /**
+     * Returns the current groups tree.  Only the very first request waits for 
+     * the tree to be loaded;  after that, if the tree is due for a refresh, 
+     * the refresh is handed to the SmartLdap Refresh Worker and the current 
+     * request proceeds with the existing groupsTree.
+     */
+    private GroupsTree getGroupsTree() throws GroupsException {
+        
+        final GroupsTree rslt = groupsTree;
+        if (rslt == null) {
+            return loadInitialGroupsTree();
+        }
+        
+        // Only the thread that flips refreshInProgress schedules a refresh, 
+        // everyone else returns straight away.
+        if (isTreeRefreshRequired() && refreshInProgress.compareAndSet(false, true)) {
+            log.info("Refreshing groups tree for SmartLdap");
+            refreshExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        refreshTree();
+                    } finally {
+                        refreshInProgress.set(false);
+                    }
+                }
+            });
+        }
+        
+        return rslt;
+
+    }
+    
+    private synchronized GroupsTree loadInitialGroupsTree() throws GroupsException {
         
         if (groupsTree == null) {
-            // Of course we need it
-            return true;
+            // The groupsTree may have been loaded while 
+            // we were waiting to enter this method.
+            log.info("Loading groups tree for SmartLdap");
+            refreshTree();
         }
         
+        final GroupsTree rslt = groupsTree;
+        if (rslt == null) {
+            String msg = "SmartLdapGroupStore failed to load the groups tree";
+            throw new GroupsException(msg);
+        }
+        
+        return rslt;
+
+    }
+    
+    private boolean isTreeRefreshRequired() {
+        
         if (groupsTreeRefreshIntervalSeconds <= 0) {
             // SmartLdap refresh feature may be disabled by setting 
             // groupsTreeRefreshIntervalSeconds to zero or negative.
@@ -494,64 +578,105 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
         return System.currentTimeMillis() > treeExpiresTimestamp;
 
     }
+    
+    private boolean isFullRefreshRequired(GroupsTree previous, long timestamp) {
+        
+        if (previous == null) {
+            // Nothing to apply changes to
+            return true;
+        }
+        
+        if (groupsTreeFullRefreshIntervalSeconds <= 0) {
+            // Incremental refreshes may be disabled by setting 
+            // groupsTreeFullRefreshIntervalSeconds to zero or negative.
+            return true;
+        }
+        
+        if (isResolveMemberGroups() || getKeyAttributeName() == null) {
+            // Member groups outside the baseDn are only found by walking the 
+            // whole tree, and deleted groups are only found by listing the keys 
+            // of all groups, which requires knowing the key attribute.
+            return true;
+        }
+        
+        // Changes that don't touch the modifyTimestamp of a group (e.g. a 
+        // member group being renamed) are picked up by the periodic full reload.
+        final long fullRefreshExpiresTimestamp = previous.getFullRefreshTime() + (groupsTreeFullRefreshIntervalSeconds * 1000L);
+        return timestamp > fullRefreshExpiresTimestamp;
+
+    }
 
     /**
-     * Verifies that the collection of groups needs rebuilding and, if so, 
-     * spawns a new worker <code>Thread</code> for that purpose.
+     * Builds a new groups tree and replaces the current one.  A full refresh 
+     * reads every group from LDAP;  an incremental refresh reads only the groups 
+     * modified since the previous refresh plus the keys of all groups (to find 
+     * deletions) and applies them to a copy of the previous tree.
      */
-    private synchronized void refreshTree() {
+    private void refreshTree() {
         
-        if (!isTreeRefreshRequired()) {
-            // The groupsTree was already re-built while 
-            // we were waiting to enter this method.
-            return;
-        }
+        final long timestamp = System.currentTimeMillis();
+        final GroupsTree previous = groupsTree;
+        final boolean full = isFullRefreshRequired(previous, timestamp);
         
-        log.info("Refreshing groups tree for SmartLdap");
-        
-        // We must join the builder thread if
-        // we don't have an existing groupsTree.
-        final boolean doJoin = groupsTree == null;
-        
-        // In most cases, re-build the tree in a separate thread;  the current 
-        // request can proceed with the newly-expired groupsTree.
-        Thread refresh = new Thread("SmartLdap Refresh Worker") {
-            public void run() {
-                // Replace the old with the new...
-                try {
-                    groupsTree = buildGroupsTree();
-                } catch (Throwable t) {
-                    log.error("SmartLdapGroupStore failed to build the groups tree", t);
+        GroupsTree tree = null;
+        int changedGroups = 0;
+        try {
+            
+            if (full) {
+                Set<LdapRecord> records = loadAllGroups();
+                changedGroups = records.size();
+                tree = new GroupsTree(ROOT_GROUP, records, timestamp);
+            } else {
+                String filter = (String) spring_context.getBean("filter");
+                long since = previous.getRefreshTime() - MODIFY_TIMESTAMP_OVERLAP_MILLIS;
+                
+                Set<LdapRecord> records = searcher.searchGroupsModifiedSince(filter, modifyTimestampAttributeName, since, getAttributesMapper());
+                Set<String> currentKeys = searcher.searchGroupKeys(filter, getKeyAttributeName());
+                changedGroups = records.size();
+                if (log.isInfoEnabled()) {
+                    log.info("Incremental refresh found " + records.size() + " groups modified since " 
+                                    + new Date(since) + " out of " + currentKeys.size() + " groups.");
                 }
+                tree = previous.applyChanges(records, currentKeys, timestamp);
             }
-        };
-        refresh.setDaemon(true);
-        refresh.start();
-        if (doJoin) {
-            try {
-                log.info("Joining the SmartLdap Refresh Worker Thread");
-                refresh.join();
-            } catch (InterruptedException ie) {
-                throw new RuntimeException(ie);
+            
+            // Replace the old with the new...
+            groupsTree = tree;
+            
+            // Group memberships may have changed without going through the 
+            // group services, rebuild the ancestor sets built from the old tree
+            if (previous != null && (full || changedGroups > 0 
+                    || tree.getRecords().size() != previous.getRecords().size())) {
+                GroupAncestorIndexLocator.getGroupAncestorIndex().invalidateGroupAncestors();
             }
+            
+        } catch (Throwable t) {
+            log.error("SmartLdapGroupStore failed to build the groups tree", t);
+            tree = null;
+        } finally {
+            // Even if the refresh failed, don't try 
+            // again for another groupsTreeRefreshIntervalSeconds.
+            lastTreeRefreshTime = System.currentTimeMillis();
         }
         
-        // Even if the refresh thread failed, don't try 
-        // again for another groupsTreeRefreshIntervalSeconds.
-        lastTreeRefreshTime = System.currentTimeMillis();
+        final SmartLdapGroupStoreStatistics statistics = SmartLdapGroupStoreStatisticsLocator.getSmartLdapGroupStoreStatistics();
+        if (tree == null) {
+            statistics.recordFailedRefresh();
+            return;
+        }
+
+        final long benchmark = System.currentTimeMillis() - timestamp;
+        statistics.recordRefresh(full, benchmark, changedGroups, tree.getRecords().size());
+        logGroupsTree(tree, full, benchmark);
 
     }
 
-    private GroupsTree buildGroupsTree() {
+    private Set<LdapRecord> loadAllGroups() {
         
-        long timestamp = System.currentTimeMillis();
+        if (!isResolveMemberGroups()) {
+            return searcher.searchGroups((String) spring_context.getBean("filter"), getAttributesMapper());
+        }
         
-        // Prepare the new local indeces...
-        Map<String,IEntityGroup> new_groups = Collections.synchronizedMap(new HashMap<String,IEntityGroup>());
-        Map<String,List<String>> new_parents = Collections.synchronizedMap(new HashMap<String,List<String>>());
-        Map<String,List<String>> new_children = Collections.synchronizedMap(new HashMap<String,List<String>>());
-        Map<String,List<String>> new_keysByUpperCaseName = Collections.synchronizedMap(new HashMap<String,List<String>>());
-
         // Gather IEntityGroup objects from LDAP...
         RuntimeRequestResponse req = new RuntimeRequestResponse();
         Set<LdapRecord> set = new HashSet<LdapRecord>();
@@ -568,104 +693,43 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
         if (log.isInfoEnabled()) {
             String msg = "init() found " + set.size() + " records.";
             log.info(msg);
+            log.info("Total number of LDAP queries:  " + (queryCounter.getCount() + 1));
         }
         
-        // Do a first loop to build the main catalog (new_groups)...
-        for (LdapRecord r : set) {
-            
-            // new_groups (me)...
-            IEntityGroup g = r.getGroup();
-            new_groups.put(g.getLocalKey(), g);
+        return set;
 
+    }
+    
+    private boolean isResolveMemberGroups() {
+        return spring_context.containsBean("resolveMemberGroups") 
+                        && Boolean.TRUE.equals(spring_context.getBean("resolveMemberGroups"));
+    }
+    
+    private AttributesMapper getAttributesMapper() {
+        return (AttributesMapper) spring_context.getBean("attributesMapper");
+    }
+    
+    /**
+     * @return The attribute the groups are keyed on, or <code>null</code> if 
+     * it isn't known for the configured AttributesMapper
+     */
+    private String getKeyAttributeName() {
+        final AttributesMapper attributesMapper = getAttributesMapper();
+        if (attributesMapper instanceof SimpleAttributesMapper) {
+            return ((SimpleAttributesMapper) attributesMapper).getKeyAttributeName();
         }
-        
-        // Do a second loop to build local indeces...
-        for (LdapRecord r : set) {
-
-            IEntityGroup g = r.getGroup();
-
-            // new_parents (I am a parent for all my children)...
-            for (String childKey : r.getKeysOfChildren()) {
-                
-                // NB:  We're only interested in relationships between 
-                // objects in the main catalog (i.e. new_groups);  
-                // discard everything else...
-                if (!new_groups.containsKey(childKey)) {
-                    break;
-                }
-
-                List<String> parentsList = new_parents.get(childKey);
-                if (parentsList == null) {
-                    // first parent for this child...
-                    parentsList = Collections.synchronizedList(new LinkedList<String>());
-                    new_parents.put(childKey, parentsList);
-                }
-                parentsList.add(g.getLocalKey());
-
-            }
-            
-            // new_children...
-            List<String> childrenList = Collections.synchronizedList(new LinkedList<String>());
-            for (String childKey : r.getKeysOfChildren()) {
-                // NB:  We're only interested in relationships between 
-                // objects in the main catalog (i.e. new_groups);  
-                // discard everything else...
-                if (new_groups.containsKey(childKey)) {
-                    childrenList.add(childKey);
-                }
-            }
-            new_children.put(g.getLocalKey(), childrenList);
-            
-            // new_keysByUpperCaseName...
-            List<String> groupsWithMyName = new_keysByUpperCaseName.get(g.getName().toUpperCase());
-            if (groupsWithMyName == null) {
-                // I am the first group with my name (pretty likely)...
-                groupsWithMyName = Collections.synchronizedList(new LinkedList<String>());
-                new_keysByUpperCaseName.put(g.getName().toUpperCase(), groupsWithMyName);
-            }
-            groupsWithMyName.add(g.getLocalKey());
-            
-        }       
-        
-        /*
-         * Now load the ROOT_GROUP into the collections...
-         */
+        return null;
+    }
 
-        // new_groups (me)...
-        new_groups.put(ROOT_GROUP.getLocalKey(), ROOT_GROUP);
-
-        // new_parents (I am a parent for all groups that have no other parent)...
-        List<String> childrenOfRoot = Collections.synchronizedList(new LinkedList<String>());   // for later...
-        for (String possibleChildKey : new_groups.keySet()) {
-            if (!possibleChildKey.equals(ROOT_GROUP.getLocalKey()) && !new_parents.containsKey(possibleChildKey)) {
-                List<String> p = Collections.synchronizedList(new LinkedList<String>());
-                p.add(ROOT_GROUP.getLocalKey());
-                new_parents.put(possibleChildKey, p);
-                childrenOfRoot.add(possibleChildKey);   // for later...
-            }
-        }
-        
-        // new_children...
-        new_children.put(ROOT_GROUP.getLocalKey(), childrenOfRoot);
+    private void logGroupsTree(GroupsTree tree, boolean full, long benchmark) {
         
-        // new_keysByUpperCaseName...
-        List<String> groupsWithMyName = new_keysByUpperCaseName.get(ROOT_GROUP.getName().toUpperCase());
-        if (groupsWithMyName == null) {
-            // I am the first group with my name (pretty likely)...
-            groupsWithMyName = Collections.synchronizedList(new LinkedList<String>());
-            new_keysByUpperCaseName.put(ROOT_GROUP.getName().toUpperCase(), groupsWithMyName);
-        }
-        groupsWithMyName.add(ROOT_GROUP.getLocalKey());
-
         if (log.isInfoEnabled()) {
-            long benchmark = System.currentTimeMillis() - timestamp;
-            log.info("Refresh of groups tree completed in " + benchmark + " milliseconds");
-            log.info("Total number of LDAP queries:  " + (queryCounter.getCount() + 1));
+            log.info((full ? "Full" : "Incremental") + " refresh of groups tree completed in " + benchmark + " milliseconds");
             String msg = "init() :: final size of each collection is as follows..."
-                            + "\n\tgroups=" + new_groups.size()
-                            + "\n\tparents=" + new_parents.size()
-                            + "\n\tchildren=" + new_children.size()
-                            + "\n\tkeysByUpperCaseName=" + new_keysByUpperCaseName.size();
+                            + "\n\tgroups=" + tree.getGroups().size()
+                            + "\n\tparents=" + tree.getParents().size()
+                            + "\n\tchildren=" + tree.getChildren().size()
+                            + "\n\tkeysByUpperCaseName=" + tree.getKeysByUpperCaseName().size();
             log.info(msg);
         }
         
@@ -676,7 +740,7 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
             // new_groups...
             msg.setLength(0);
             msg.append("Here are the keys of the new_groups collection:");
-            for (String s : new_groups.keySet()) {
+            for (String s : tree.getGroups().keySet()) {
                 msg.append("\n\t").append(s);
             }
             log.trace(msg.toString());
@@ -684,7 +748,7 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
             // new_parents...
             msg.setLength(0);
             msg.append("Here are the parents of each child in the new_parents collection:");
-            for (Map.Entry<String,List<String>> y : new_parents.entrySet()) {
+            for (Map.Entry<String,List<String>> y : tree.getParents().entrySet()) {
                 msg.append("\n\tchild=").append(y.getKey());
                 for (String s : y.getValue()) {
                     msg.append("\n\t\tparent=").append(s);
@@ -695,7 +759,7 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
             // new_children...
             msg.setLength(0);
             msg.append("Here are the children of each parent in the new_children collection:");
-            for (Map.Entry<String,List<String>> y : new_children.entrySet()) {
+            for (Map.Entry<String,List<String>> y : tree.getChildren().entrySet()) {
                 msg.append("\n\tparent=").append(y.getKey());
                 for (String s : y.getValue()) {
                     msg.append("\n\t\tchild=").append(s);
@@ -705,7 +769,7 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
             
             // new_keysByUpperCaseName...
             msg.append("Here are the groups that have each name in the new_keysByUpperCaseName collection:");
-            for (Map.Entry<String,List<String>> y : new_keysByUpperCaseName.entrySet()) {
+            for (Map.Entry<String,List<String>> y : tree.getKeysByUpperCaseName().entrySet()) {
                 msg.append("\n\tname=").append(y.getKey());
                 for (String s : y.getValue()) {
                     msg.append("\n\t\tgroup=").append(s);
@@ -715,8 +779,6 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
             
         }
 
-        return new GroupsTree(new_groups, new_parents, new_children, new_keysByUpperCaseName);
-
     }
 
     /*
@@ -741,66 +803,6 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
     
     }
     
-    private static final class GroupsTree {
-        
-        // Instance Members.
-        private final Map<String,IEntityGroup> groups;
-        private final Map<String,List<String>> parents;
-        private final Map<String,List<String>> children;
-        private final Map<String,List<String>> keysByUpperCaseName;
-        
-        /*
-         * Public API.
-         */
-        
-        public GroupsTree(Map<String,IEntityGroup> groups, Map<String,List<String>> parents, 
-                                Map<String,List<String>> children, 
-                                Map<String,List<String>> keysByUpperCaseName) {
-            
-            // Assertions.
-            if (groups == null) {
-                String msg = "Argument 'groups' cannot be null.";
-                throw new IllegalArgumentException(msg);
-            }
-            if (parents == null) {
-                String msg = "Argument 'parents' cannot be null.";
-                throw new IllegalArgumentException(msg);
-            }
-            if (children == null) {
-                String msg = "Argument 'children' cannot be null.";
-                throw new IllegalArgumentException(msg);
-            }
-            if (keysByUpperCaseName == null) {
-                String msg = "Argument 'keysByUpperCaseName' cannot be null.";
-                throw new IllegalArgumentException(msg);
-            }
-            
-            // Instance Members.
-            this.groups = groups;
-            this.parents = parents;
-            this.children = children;
-            this.keysByUpperCaseName = keysByUpperCaseName;
-
-        }
-        
-        public Map<String,IEntityGroup> getGroups() {
-            return groups;
-        }
-
-        public Map<String,List<String>> getParents() {
-            return parents;
-        }
-
-        public Map<String,List<String>> getChildren() {
-            return children;
-        }
-
-        public Map<String,List<String>> getKeysByUpperCaseName() {
-            return keysByUpperCaseName;
-        }
-
-    }
-    
     private static final class SubQueryCounter {
         
         private int count = 0;
@@ -0,0 +1,126 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.groups.smartldap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.stereotype.Service;
+
+/**
+ * Groups tree refresh statistics for the {@link SmartLdapGroupStore}
+ * 
+ * @version $Revision$
+ */
+@Service("smartLdapGroupStoreStatistics")
+public class SmartLdapGroupStoreStatistics {
+    private final AtomicLong fullRefreshes = new AtomicLong();
+    private final AtomicLong incrementalRefreshes = new AtomicLong();
+    private final AtomicLong failedRefreshes = new AtomicLong();
+    private volatile boolean lastRefreshFull;
+    private volatile long lastRefreshTime;
+    private volatile long lastRefreshDuration;
+    private volatile long lastRefreshChangedGroups;
+    private volatile long groupCount;
+    
+    /**
+     * Record a completed refresh of the groups tree
+     * 
+     * @param full If the whole tree was reloaded, false if only changed groups were fetched
+     * @param duration Time in ms the refresh took
+     * @param changedGroups Number of groups fetched from LDAP
+     * @param groupCount Number of groups in the refreshed tree
+     */
+    public void recordRefresh(boolean full, long duration, int changedGroups, int groupCount) {
+        if (full) {
+            this.fullRefreshes.incrementAndGet();
+        }
+        else {
+            this.incrementalRefreshes.incrementAndGet();
+        }
+        this.lastRefreshFull = full;
+        this.lastRefreshTime = System.currentTimeMillis();
+        this.lastRefreshDuration = duration;
+        this.lastRefreshChangedGroups = changedGroups;
+        this.groupCount = groupCount;
+    }
+    
+    /**
+     * Record a refresh of the groups tree that failed, the previous tree remains in use
+     */
+    public void recordFailedRefresh() {
+        this.failedRefreshes.incrementAndGet();
+    }
+
+    /**
+     * @return Number of full reloads of the groups tree
+     */
+    public long getFullRefreshes() {
+        return this.fullRefreshes.get();
+    }
+
+    /**
+     * @return Number of incremental refreshes of the groups tree
+     */
+    public long getIncrementalRefreshes() {
+        return this.incrementalRefreshes.get();
+    }
+
+    /**
+     * @return Number of refreshes that failed
+     */
+    public long getFailedRefreshes() {
+        return this.failedRefreshes.get();
+    }
+
+    /**
+     * @return If the last successful refresh was a full reload
+     */
+    public boolean isLastRefreshFull() {
+        return this.lastRefreshFull;
+    }
+
+    /**
+     * @return Time in ms since the epoch the last successful refresh completed at
+     */
+    public long getLastRefreshTime() {
+        return this.lastRefreshTime;
+    }
+
+    /**
+     * @return Time in ms the last successful refresh took
+     */
+    public long getLastRefreshDuration() {
+        return this.lastRefreshDuration;
+    }
+
+    /**
+     * @return Number of groups fetched from LDAP by the last successful refresh
+     */
+    public long getLastRefreshChangedGroups() {
+        return this.lastRefreshChangedGroups;
+    }
+
+    /**
+     * @return Number of groups in the current groups tree
+     */
+    public long getGroupCount() {
+        return this.groupCount;
+    }
+}
@@ -38,4 +38,13 @@ public interface INodeIdResolver {
      * @return The ID of the resolved node, null if there is no match
      */
     public String traverseDocument(Document document);
+    
+    /**
+     * Find the required node identifier using the indexed layout snapshot, must return the same result as
+     * {@link #traverseDocument(Document)} for the document the snapshot was built from.
+     * 
+     * @param layoutNodeTree Snapshot of the user layout.
+     * @return The ID of the resolved node, null if there is no match
+     */
+    public String traverseLayoutNodeTree(LayoutNodeTree layoutNodeTree);
 }
\ No newline at end of file
@@ -0,0 +1,762 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.layout;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.EndElement;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.apache.commons.lang.StringUtils;
+import org.jasig.portal.xml.stream.XMLEventBufferReader;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+
+/**
+ * Immutable tree of the elements of a layout document with indexes of the folders and channels by node ID
+ * and of the channels by fname. The tree is what the layout is rendered from and what node lookups are
+ * answered from: every element holds its start and end {@link XMLEvent}s so {@link #getEventReader()}
+ * streams the layout without serializing the DOM, and lookups avoid XPath evaluation and DOM traversals.
+ * <p/>
+ * Modifications never change a tree. {@link #update(Element)} and {@link #remove(String)} apply a
+ * modification of the layout document to a copy of the path from the document element to the modified
+ * node, every other subtree is shared with the original tree. The tree is tied to the version of the
+ * layout document it was built from, modifications that are not applied through these methods change
+ * the version and a new tree is built from the document.
+ * 
+ * @version $Revision$
+ */
+public final class LayoutNodeTree {
+    private static final String FOLDER = "folder";
+    private static final String CHANNEL = "channel";
+    private static final String ID = "ID";
+    private static final String FNAME = "fname";
+    private static final QName ID_NAME = new QName(ID);
+    private static final QName FNAME_NAME = new QName(FNAME);
+    
+    private static final XMLEventFactory EVENT_FACTORY = XMLEventFactory.newFactory();
+    private static final Location LOCATION = new LayoutLocation();
+    private static final XMLEvent START_DOCUMENT;
+    private static final XMLEvent END_DOCUMENT;
+    static {
+        synchronized (EVENT_FACTORY) {
+            EVENT_FACTORY.setLocation(LOCATION);
+            START_DOCUMENT = EVENT_FACTORY.createStartDocument();
+            END_DOCUMENT = EVENT_FACTORY.createEndDocument();
+            EVENT_FACTORY.setLocation(null);
+        }
+    }
+    
+    private final long layoutVersion;
+    private final LayoutNode documentElement;
+    private final Map<String, IndexedNode> nodesById;
+    private final Map<String, List<IndexedNode>> channelsByFname;
+    private volatile List<XMLEvent> events;
+    
+    /**
+     * Build the tree of the layout document
+     * 
+     * @param layout The layout document, the children of the document element are the top level folders
+     * @param layoutVersion The version of the layout document when the tree was built
+     */
+    public static LayoutNodeTree build(Document layout, long layoutVersion) {
+        final Element layoutElement = layout.getDocumentElement();
+        final LayoutNode documentElement = layoutElement != null ? createNode(layoutElement) : null;
+        return new LayoutNodeTree(layoutVersion, documentElement);
+    }
+    
+    private LayoutNodeTree(long layoutVersion, LayoutNode documentElement) {
+        this.layoutVersion = layoutVersion;
+        this.documentElement = documentElement;
+        
+        final Map<String, IndexedNode> nodesById = new HashMap<String, IndexedNode>();
+        final Map<String, List<IndexedNode>> channelsByFname = new HashMap<String, List<IndexedNode>>();
+        if (documentElement != null) {
+            index(documentElement, null, nodesById, channelsByFname);
+        }
+        this.nodesById = Collections.unmodifiableMap(nodesById);
+        this.channelsByFname = Collections.unmodifiableMap(channelsByFname);
+    }
+    
+    /**
+     * Index the folders and channels that are children of the element, descending into folders
+     */
+    private static void index(LayoutNode element, IndexedNode parent, Map<String, IndexedNode> nodesById, Map<String, List<IndexedNode>> channelsByFname) {
+        for (final LayoutNode child : element.children) {
+            if (!child.isElement()) {
+                continue;
+            }
+            
+            final String nodeName = child.getName().getLocalPart();
+            final boolean folder = FOLDER.equals(nodeName);
+            if (!folder && !CHANNEL.equals(nodeName)) {
+                continue;
+            }
+            
+            final String fname = folder ? null : StringUtils.trimToNull(child.getAttributeValue(FNAME_NAME));
+            final IndexedNode node = new IndexedNode(child, fname, parent);
+            
+            if (node.id != null && !nodesById.containsKey(node.id)) {
+                nodesById.put(node.id, node);
+            }
+            
+            if (folder) {
+                index(child, node, nodesById, channelsByFname);
+            }
+            else if (node.fname != null) {
+                List<IndexedNode> channels = channelsByFname.get(node.fname);
+                if (channels == null) {
+                    channels = new ArrayList<IndexedNode>(1);
+                    channelsByFname.put(node.fname, channels);
+                }
+                channels.add(node);
+            }
+        }
+    }
+
+    /**
+     * @return The version of the layout document this tree was built from
+     */
+    public long getLayoutVersion() {
+        return this.layoutVersion;
+    }
+    
+    /**
+     * @return The layout as StAX events, the returned reader is not thread safe but the events are shared by every reader of the tree.
+     */
+    public XMLEventReader getEventReader() {
+        return new XMLEventBufferReader(this.getEvents().listIterator());
+    }
+    
+    /**
+     * @return The layout as an immutable list of StAX events, built on first use and reused for the life of the tree
+     */
+    public List<XMLEvent> getEvents() {
+        List<XMLEvent> events = this.events;
+        if (events == null) {
+            events = new ArrayList<XMLEvent>();
+            events.add(START_DOCUMENT);
+            if (this.documentElement != null) {
+                this.documentElement.addEvents(events);
+            }
+            events.add(END_DOCUMENT);
+            events = Collections.unmodifiableList(events);
+            this.events = events;
+        }
+        return events;
+    }
+    
+    /**
+     * @return true if the layout contains a folder or channel with the ID
+     */
+    public boolean containsNode(String nodeId) {
+        return this.nodesById.containsKey(nodeId);
+    }
+    
+    /**
+     * @return The ID of the parent folder of the node, null if the node does not exist or is a top level folder
+     */
+    public String getParentId(String nodeId) {
+        final IndexedNode node = this.nodesById.get(nodeId);
+        if (node == null || node.parent == null) {
+            return null;
+        }
+        return node.parent.id;
+    }
+    
+    /**
+     * @return The IDs of the child elements of the node in document order, an empty string for a child without an ID. Empty if the node does not exist
+     */
+    public List<String> getChildIds(String nodeId) {
+        return this.getChildIds(nodeId, null, null);
+    }
+    
+    /**
+     * @return The IDs of the child elements of the node that have the attribute with the value in document order, an empty string for a child without an ID. Empty if the node does not exist
+     */
+    public List<String> getChildIds(String nodeId, QName attributeName, String attributeValue) {
+        final IndexedNode node = this.nodesById.get(nodeId);
+        if (node == null) {
+            return Collections.emptyList();
+        }
+        
+        final List<String> childIds = new ArrayList<String>();
+        for (final LayoutNode child : node.node.children) {
+            if (child.isElement() && (attributeName == null || attributeValue.equals(child.getAttributeValue(attributeName)))) {
+                childIds.add(StringUtils.defaultString(child.getAttributeValue(ID_NAME)));
+            }
+        }
+        return childIds;
+    }
+    
+    /**
+     * @return The value of the attribute of the folder or channel, null if the node does not exist or does not have the attribute
+     */
+    public String getAttribute(String nodeId, QName attributeName) {
+        final IndexedNode node = this.nodesById.get(nodeId);
+        if (node == null) {
+            return null;
+        }
+        return node.node.getAttributeValue(attributeName);
+    }
+    
+    /**
+     * @return The IDs of the top level folders, in document order
+     */
+    public List<String> getTopLevelFolderIds() {
+        if (this.documentElement == null) {
+            return Collections.emptyList();
+        }
+        
+        final List<String> folderIds = new ArrayList<String>();
+        for (final LayoutNode child : this.documentElement.children) {
+            if (child.isElement() && FOLDER.equals(child.getName().getLocalPart())) {
+                final String folderId = StringUtils.trimToNull(child.getAttributeValue(ID_NAME));
+                if (folderId != null) {
+                    folderIds.add(folderId);
+                }
+            }
+        }
+        return folderIds;
+    }
+    
+    /**
+     * @return Map of the ID of every channel element in the layout to its fname in document order, missing attributes are empty strings
+     */
+    public Map<String, String> getChannels() {
+        final Map<String, String> channels = new LinkedHashMap<String, String>();
+        if (this.documentElement != null) {
+            addChannels(this.documentElement, channels);
+        }
+        return channels;
+    }
+    
+    private static void addChannels(LayoutNode element, Map<String, String> channels) {
+        for (final LayoutNode child : element.children) {
+            if (child.isElement()) {
+                if (CHANNEL.equals(child.getName().getLocalPart())) {
+                    channels.put(StringUtils.defaultString(child.getAttributeValue(ID_NAME)), StringUtils.defaultString(child.getAttributeValue(FNAME_NAME)));
+                }
+                addChannels(child, channels);
+            }
+        }
+    }
+    
+    /**
+     * Same result as {@link PortletSubscribeIdResolver}
+     * 
+     * @return The ID of the first channel in the layout with the fname, null if there is none
+     */
+    public String getSubscribeId(String fname) {
+        final List<IndexedNode> channels = this.channelsByFname.get(fname);
+        if (channels == null) {
+            return null;
+        }
+        
+        return channels.get(0).id;
+    }
+    
+    /**
+     * Same result as the XPath expression <code>//folder[@ID=$parentFolderId]/descendant::channel[@fname=$fname]/@ID</code>
+     * 
+     * @return The ID of the first channel with the fname under the folder, null if there is none
+     */
+    public String getSubscribeId(String parentFolderId, String fname) {
+        final List<IndexedNode> channels = this.channelsByFname.get(fname);
+        if (channels == null) {
+            return null;
+        }
+        
+        for (final IndexedNode channel : channels) {
+            for (IndexedNode ancestor = channel.parent; ancestor != null; ancestor = ancestor.parent) {
+                if (parentFolderId.equals(ancestor.id)) {
+                    return channel.id;
+                }
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Same result as {@link PortletTabIdResolver}
+     * 
+     * @return The ID of the tab, a child of a top level folder, that is or contains the node. null if the node does not exist or is not in a tab
+     */
+    public String getTabId(String nodeId) {
+        IndexedNode node = this.nodesById.get(nodeId);
+        if (node == null) {
+            return null;
+        }
+        
+        for (; node.parent != null; node = node.parent) {
+            if (node.parent.parent == null) {
+                return node.id;
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Apply the addition, move or modification of a folder or channel in the layout document. The subtree of
+     * the element replaces the node with the same ID, which is removed from its old parent if it was moved. The
+     * children of the new parent are copied from the document, siblings are matched by ID and their subtrees are
+     * shared with this tree. The parent must be the document element or a folder in the tree.
+     * 
+     * @param element The added, moved or modified element, must be in the layout document
+     * @return The modified tree, null if the modification can't be applied and the tree must be rebuilt from the layout document
+     */
+    public LayoutNodeTree update(final Element element) {
+        final String nodeId = StringUtils.trimToNull(element.getAttribute(ID));
+        final Node parentElement = element.getParentNode();
+        if (nodeId == null || this.documentElement == null || parentElement == null || parentElement.getNodeType() != Node.ELEMENT_NODE) {
+            return null;
+        }
+        
+        final boolean topLevel = parentElement.getParentNode() != null && parentElement.getParentNode().getNodeType() == Node.DOCUMENT_NODE;
+        final String parentId = topLevel ? null : StringUtils.trimToNull(((Element) parentElement).getAttribute(ID));
+        if (!topLevel && (parentId == null || !this.nodesById.containsKey(parentId))) {
+            return null;
+        }
+        
+        //Remove a moved node from its old parent, the children of the new parent are copied from the document
+        LayoutNodeTree tree = this;
+        final IndexedNode existingNode = this.nodesById.get(nodeId);
+        if (existingNode != null) {
+            final String existingParentId = existingNode.parent != null ? existingNode.parent.id : null;
+            if (existingParentId == null ? !topLevel : !existingParentId.equals(parentId)) {
+                tree = this.remove(nodeId);
+                if (tree == null) {
+                    return null;
+                }
+            }
+        }
+        
+        final LayoutNode documentElement;
+        if (topLevel) {
+            documentElement = copyChildren(tree.documentElement, (Element) parentElement, element);
+        }
+        else {
+            documentElement = tree.replaceNode(tree.documentElement, parentId, new NodeModification() {
+                @Override
+                public LayoutNode modify(LayoutNode parent) {
+                    return copyChildren(parent, (Element) parentElement, element);
+                }
+            });
+            if (documentElement == null) {
+                return null;
+            }
+        }
+        
+        return new LayoutNodeTree(this.layoutVersion, documentElement);
+    }
+    
+    /**
+     * Apply the removal of a folder or channel from the layout document
+     * 
+     * @return The modified tree, null if the node is not in the tree
+     */
+    public LayoutNodeTree remove(String nodeId) {
+        if (this.documentElement == null || !this.nodesById.containsKey(nodeId)) {
+            return null;
+        }
+        
+        final LayoutNode documentElement = this.replaceNode(this.documentElement, nodeId, null);
+        if (documentElement == null) {
+            return null;
+        }
+        return new LayoutNodeTree(this.layoutVersion, documentElement);
+    }
+    
+    /**
+     * Copy the path from the document element to the indexed node, replacing the node with the result of the modification
+     * 
+     * @param modification Creates the replacement node, null to remove the node
+     * @return The copied document element, null if the path to the node does not match the index
+     */
+    private LayoutNode replaceNode(LayoutNode documentElement, String nodeId, NodeModification modification) {
+        final LinkedList<IndexedNode> path = new LinkedList<IndexedNode>();
+        for (IndexedNode node = this.nodesById.get(nodeId); node != null; node = node.parent) {
+            path.addFirst(node);
+        }
+        
+        return replaceNode(documentElement, path.iterator(), modification);
+    }
+    
+    private static LayoutNode replaceNode(LayoutNode parent, Iterator<IndexedNode> path, NodeModification modification) {
+        final LayoutNode node = path.next().node;
+        final int childIndex = parent.indexOf(node);
+        if (childIndex < 0) {
+            return null;
+        }
+        
+        final LayoutNode replacement;
+        if (path.hasNext()) {
+            replacement = replaceNode(node, path, modification);
+            if (replacement == null) {
+                return null;
+            }
+        }
+        else if (modification != null) {
+            replacement = modification.modify(node);
+        }
+        else {
+            replacement = null;
+        }
+        
+        return parent.withChildReplaced(childIndex, replacement);
+    }
+    
+    /**
+     * Create the subtree for the DOM node
+     */
+    private static LayoutNode createNode(Node node) {
+        synchronized (EVENT_FACTORY) {
+            EVENT_FACTORY.setLocation(LOCATION);
+            try {
+                return createNode(node, Collections.<String, String>emptyMap());
+            }
+            finally {
+                EVENT_FACTORY.setLocation(null);
+            }
+        }
+    }
+    
+    /**
+     * Copy the node with the children of the parent element, element children with the ID of an existing child
+     * element keep the existing subtree, the updated element and all other children are created from the document.
+     */
+    private static LayoutNode copyChildren(LayoutNode node, Element parentElement, Element updatedElement) {
+        final Map<String, LayoutNode> childrenById = new HashMap<String, LayoutNode>();
+        for (final LayoutNode child : node.children) {
+            if (child.isElement()) {
+                final String childId = StringUtils.trimToNull(child.getAttributeValue(ID_NAME));
+                if (childId != null && !childrenById.containsKey(childId)) {
+                    childrenById.put(childId, child);
+                }
+            }
+        }
+        
+        synchronized (EVENT_FACTORY) {
+            EVENT_FACTORY.setLocation(LOCATION);
+            try {
+                final Map<String, String> namespaces = getNamespaces(parentElement);
+                
+                final List<LayoutNode> children = new ArrayList<LayoutNode>();
+                for (Node child = parentElement.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    LayoutNode childNode = null;
+                    if (child.getNodeType() == Node.ELEMENT_NODE && child != updatedElement) {
+                        final String childId = StringUtils.trimToNull(((Element) child).getAttribute(ID));
+                        if (childId != null) {
+                            childNode = childrenById.remove(childId);
+                        }
+                    }
+                    if (childNode == null) {
+                        childNode = createNode(child, namespaces);
+                    }
+                    if (childNode != null) {
+                        children.add(childNode);
+                    }
+                }
+                
+                return new LayoutNode(node.event, node.endElement, children.toArray(new LayoutNode[children.size()]));
+            }
+            finally {
+                EVENT_FACTORY.setLocation(null);
+            }
+        }
+    }
+    
+    /**
+     * @return Namespace URIs by prefix in scope of the children of the element, as tracked by {@link #createNode(Node, Map)}
+     */
+    private static Map<String, String> getNamespaces(Element element) {
+        final LinkedList<Element> ancestors = new LinkedList<Element>();
+        for (Node ancestor = element; ancestor != null && ancestor.getNodeType() == Node.ELEMENT_NODE; ancestor = ancestor.getParentNode()) {
+            ancestors.addFirst((Element) ancestor);
+        }
+        
+        Map<String, String> namespaces = Collections.emptyMap();
+        for (final Element ancestor : ancestors) {
+            namespaces = declareNamespaces(ancestor, namespaces, new ArrayList<Namespace>(0));
+        }
+        return namespaces;
+    }
+    
+    /**
+     * @param namespaces Namespace URIs by prefix in scope of the node
+     */
+    private static LayoutNode createNode(Node node, Map<String, String> namespaces) {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE: {
+                return createElementNode((Element) node, namespaces);
+            }
+            case Node.TEXT_NODE: {
+                return new LayoutNode(EVENT_FACTORY.createCharacters(node.getNodeValue()), null, LayoutNode.NO_CHILDREN);
+            }
+            case Node.CDATA_SECTION_NODE: {
+                return new LayoutNode(EVENT_FACTORY.createCData(node.getNodeValue()), null, LayoutNode.NO_CHILDREN);
+            }
+            case Node.COMMENT_NODE: {
+                return new LayoutNode(EVENT_FACTORY.createComment(node.getNodeValue()), null, LayoutNode.NO_CHILDREN);
+            }
+            case Node.PROCESSING_INSTRUCTION_NODE: {
+                final ProcessingInstruction processingInstruction = (ProcessingInstruction) node;
+                return new LayoutNode(EVENT_FACTORY.createProcessingInstruction(processingInstruction.getTarget(), processingInstruction.getData()), null, LayoutNode.NO_CHILDREN);
+            }
+            default: {
+                return null;
+            }
+        }
+    }
+    
+    private static LayoutNode createElementNode(Element element, Map<String, String> parentNamespaces) {
+        final List<Namespace> namespaceEvents = new ArrayList<Namespace>(0);
+        final Map<String, String> namespaces = declareNamespaces(element, parentNamespaces, namespaceEvents);
+        
+        final List<Attribute> attributeEvents = new ArrayList<Attribute>();
+        final NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            final Node attribute = attributes.item(i);
+            if (!isNamespaceDeclaration(attribute)) {
+                attributeEvents.add(EVENT_FACTORY.createAttribute(getName(attribute), attribute.getNodeValue()));
+            }
+        }
+        
+        final QName name = getName(element);
+        final List<LayoutNode> children = new ArrayList<LayoutNode>();
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            final LayoutNode childNode = createNode(child, namespaces);
+            if (childNode != null) {
+                children.add(childNode);
+            }
+        }
+        
+        final StartElement startElement = EVENT_FACTORY.createStartElement(name, attributeEvents.iterator(), namespaceEvents.iterator());
+        final EndElement endElement = EVENT_FACTORY.createEndElement(name, namespaceEvents.iterator());
+        return new LayoutNode(startElement, endElement, children.toArray(new LayoutNode[children.size()]));
+    }
+    
+    /**
+     * Adds the namespace declarations of the element, its name and its attributes
+     * 
+     * @return Namespace URIs by prefix in scope of the children of the element
+     */
+    private static Map<String, String> declareNamespaces(Element element, Map<String, String> parentNamespaces, List<Namespace> namespaceEvents) {
+        Map<String, String> namespaces = parentNamespaces;
+        
+        final NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            final Node attribute = attributes.item(i);
+            if (isNamespaceDeclaration(attribute)) {
+                final String prefix = attribute.getNodeName().equals(XMLConstants.XMLNS_ATTRIBUTE) ? XMLConstants.DEFAULT_NS_PREFIX : attribute.getNodeName().substring(XMLConstants.XMLNS_ATTRIBUTE.length() + 1);
+                namespaces = declareNamespace(namespaces, parentNamespaces, namespaceEvents, prefix, attribute.getNodeValue());
+            }
+        }
+        
+        final QName name = getName(element);
+        namespaces = declareNamespace(namespaces, parentNamespaces, namespaceEvents, name.getPrefix(), name.getNamespaceURI());
+        
+        for (int i = 0; i < attributes.getLength(); i++) {
+            final Node attribute = attributes.item(i);
+            if (!isNamespaceDeclaration(attribute)) {
+                final QName attributeName = getName(attribute);
+                if (attributeName.getPrefix().length() > 0) {
+                    namespaces = declareNamespace(namespaces, parentNamespaces, namespaceEvents, attributeName.getPrefix(), attributeName.getNamespaceURI());
+                }
+            }
+        }
+        
+        return namespaces;
+    }
+    
+    private static boolean isNamespaceDeclaration(Node attribute) {
+        final String attributeName = attribute.getNodeName();
+        return XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI()) || attributeName.equals(XMLConstants.XMLNS_ATTRIBUTE) || attributeName.startsWith(XMLConstants.XMLNS_ATTRIBUTE + ":");
+    }
+    
+    /**
+     * Adds a namespace declaration if the prefix is not already bound to the URI, namespaces of the parent are copied before they are modified
+     */
+    private static Map<String, String> declareNamespace(Map<String, String> namespaces, Map<String, String> parentNamespaces, List<Namespace> namespaceEvents, String prefix, String namespaceURI) {
+        final String uri = namespaceURI != null ? namespaceURI : XMLConstants.NULL_NS_URI;
+        final String boundURI = namespaces.get(prefix);
+        if (uri.equals(boundURI) || (boundURI == null && prefix.length() == 0 && uri.length() == 0)) {
+            return namespaces;
+        }
+        
+        final Map<String, String> declaredNamespaces = namespaces == parentNamespaces ? new HashMap<String, String>(parentNamespaces) : namespaces;
+        declaredNamespaces.put(prefix, uri);
+        if (prefix.length() == 0) {
+            namespaceEvents.add(EVENT_FACTORY.createNamespace(uri));
+        }
+        else {
+            namespaceEvents.add(EVENT_FACTORY.createNamespace(prefix, uri));
+        }
+        return declaredNamespaces;
+    }
+    
+    private static QName getName(Node node) {
+        final String namespaceURI = node.getNamespaceURI();
+        final String localName = node.getLocalName();
+        if (localName == null) {
+            //DOM level 1 node
+            return new QName(node.getNodeName());
+        }
+        
+        final String prefix = node.getPrefix();
+        return new QName(namespaceURI != null ? namespaceURI : XMLConstants.NULL_NS_URI, localName, prefix != null ? prefix : XMLConstants.DEFAULT_NS_PREFIX);
+    }
+    
+    private interface NodeModification {
+        LayoutNode modify(LayoutNode node);
+    }
+    
+    /**
+     * An element with its children or a text, comment or processing instruction node. Never modified once created.
+     */
+    private static final class LayoutNode {
+        private static final LayoutNode[] NO_CHILDREN = new LayoutNode[0];
+        
+        private final XMLEvent event;
+        private final EndElement endElement;
+        private final LayoutNode[] children;
+        
+        public LayoutNode(XMLEvent event, EndElement endElement, LayoutNode[] children) {
+            this.event = event;
+            this.endElement = endElement;
+            this.children = children;
+        }
+        
+        public boolean isElement() {
+            return this.endElement != null;
+        }
+        
+        public QName getName() {
+            return this.event.asStartElement().getName();
+        }
+        
+        public String getAttributeValue(QName name) {
+            final Attribute attribute = this.event.asStartElement().getAttributeByName(name);
+            return attribute != null ? attribute.getValue() : null;
+        }
+        
+        public int indexOf(LayoutNode child) {
+            for (int i = 0; i < this.children.length; i++) {
+                if (this.children[i] == child) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        
+        /**
+         * @param replacement The new child, null to remove the child
+         */
+        public LayoutNode withChildReplaced(int childIndex, LayoutNode replacement) {
+            final LayoutNode[] children;
+            if (replacement != null) {
+                children = this.children.clone();
+                children[childIndex] = replacement;
+            }
+            else {
+                children = new LayoutNode[this.children.length - 1];
+                System.arraycopy(this.children, 0, children, 0, childIndex);
+                System.arraycopy(this.children, childIndex + 1, children, childIndex, children.length - childIndex);
+            }
+            return new LayoutNode(this.event, this.endElement, children);
+        }
+        
+        public void addEvents(List<XMLEvent> events) {
+            events.add(this.event);
+            for (final LayoutNode child : this.children) {
+                child.addEvents(events);
+            }
+            if (this.endElement != null) {
+                events.add(this.endElement);
+            }
+        }
+    }
+    
+    /**
+     * A folder or channel in the index of a tree, parent is the folder containing the node
+     */
+    private static final class IndexedNode {
+        private final LayoutNode node;
+        private final String id;
+        private final String fname;
+        private final IndexedNode parent;
+        
+        public IndexedNode(LayoutNode node, String fname, IndexedNode parent) {
+            this.node = node;
+            this.id = StringUtils.trimToNull(node.getAttributeValue(ID_NAME));
+            this.fname = fname;
+            this.parent = parent;
+        }
+    }
+    
+    /**
+     * Location of the events of the tree, they have no position in a source document
+     */
+    private static final class LayoutLocation implements Location {
+        @Override
+        public int getLineNumber() {
+            return -1;
+        }
+
+        @Override
+        public int getColumnNumber() {
+            return -1;
+        }
+
+        @Override
+        public int getCharacterOffset() {
+            return -1;
+        }
+
+        @Override
+        public String getPublicId() {
+            return null;
+        }
+
+        @Override
+        public String getSystemId() {
+            return null;
+        }
+    }
+}
@@ -49,4 +49,9 @@ public class PortletSubscribeIdResolver implements INodeIdResolver {
 		}
 		return null;
 	}
+
+	@Override
+	public String traverseLayoutNodeTree(LayoutNodeTree layoutNodeTree) {
+		return layoutNodeTree.getSubscribeId(fname);
+	}
 }
\ No newline at end of file
@@ -55,6 +55,11 @@ public class PortletTabIdResolver implements INodeIdResolver {
         return null;
     }
 
+    @Override
+    public String traverseLayoutNodeTree(LayoutNodeTree layoutNodeTree) {
+        return layoutNodeTree.getTabId(layoutNodeId);
+    }
+
     /**
      * Recursevly find out whether node contains a folder or channel with given identifier.
      * 
@@ -31,14 +31,13 @@ import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import javax.xml.namespace.QName;
 import javax.xml.stream.XMLEventReader;
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.xpath.XPathConstants;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -50,7 +49,7 @@ import org.jasig.portal.layout.IFolderLocalNameResolver;
 import org.jasig.portal.layout.IUserLayout;
 import org.jasig.portal.layout.IUserLayoutManager;
 import org.jasig.portal.layout.IUserLayoutStore;
-import org.jasig.portal.layout.PortletSubscribeIdResolver;
+import org.jasig.portal.layout.LayoutNodeTree;
 import org.jasig.portal.layout.node.IUserLayoutChannelDescription;
 import org.jasig.portal.layout.node.IUserLayoutFolderDescription;
 import org.jasig.portal.layout.node.IUserLayoutNodeDescription;
@@ -68,6 +67,7 @@ import org.jasig.portal.security.PersonFactory;
 import org.jasig.portal.security.provider.AuthorizationImpl;
 import org.jasig.portal.spring.locator.PortletDefinitionRegistryLocator;
 import org.jasig.portal.spring.locator.UserIdentityStoreLocator;
+import org.jasig.portal.utils.Tuple;
 import org.jasig.portal.xml.XmlUtilities;
 import org.jasig.portal.xml.xpath.XPathOperations;
 import org.springframework.beans.factory.InitializingBean;
@@ -89,6 +89,8 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
 {
     public static final String RCS_ID = "@(#) $Header$";
     private static final Log LOG = LogFactory.getLog(DistributedLayoutManager.class);
+    private static final QName HIDDEN_ATTRIBUTE_NAME = new QName(Constants.ATT_HIDDEN);
+    private static final QName TYPE_ATTRIBUTE_NAME = new QName(Constants.ATT_TYPE);
 
     private XmlUtilities xmlUtilities;
     private ILayoutCachingService layoutCachingService;
@@ -108,6 +110,7 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
     
     protected final static Random rnd=new Random();
     protected String cacheKey="initialKey";
+    private volatile SubscribeIdCache subscribeIdCache;
     protected String rootNodeId = null;
 
     private boolean channelsAdded = false;
@@ -216,8 +219,17 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
     public Document getUserLayoutDOM()
     {
         final DistributedUserLayout userLayout = getDistributedUserLayout();
+        //The caller may modify the document directly, rebuild the layout node tree on the next read
+        userLayout.layoutModified();
         return userLayout.getLayout();
     }
+    
+    /**
+     * @return The layout document, which the layout manager modifies and keeps in step with the layout node tree
+     */
+    private Document getLayoutDocument() {
+        return this.getDistributedUserLayout().getLayout();
+    }
 
     protected DistributedUserLayout getDistributedUserLayout() {
         DistributedUserLayout userLayout = this.layoutCachingService.getCachedLayout(owner, profile);
@@ -249,25 +261,49 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
         					  	+ owner.getUserName() 
         					  	+ "' for non-authorized channels.");
           		  }
-          		  NodeList channels = fd.getElementsByTagName("channel");
-          		  for (int j=0; j < channels.getLength(); j++) {
-          			  Element ch = (Element) channels.item(j);
-          			  try {
-          				  String chanId = ch.getAttribute("chanID");
-          				  if (!principal.canRender(chanId)) {
-          					  fd.removeChild(ch);
-          					  if (LOG.isDebugEnabled()) {
-          						  LOG.debug("RDBMUserLayoutStore removing channel '" 
-            							  	+ ch.getAttribute("fname") 
-            							  	+ "' from the header or footer of user '" 
-            							  	+ owner.getUserName() 
-            							  	+ "' because he/she isn't authorized to render it.");
-          					  }
+          		  // Copy the channels out of the live NodeList and answer the
+          		  // render checks for the whole folder in one pass
+          		  NodeList channelNodes = fd.getElementsByTagName("channel");
+          		  List<Element> channels = new ArrayList<Element>(channelNodes.getLength());
+          		  List<String> chanIds = new ArrayList<String>(channelNodes.getLength());
+          		  for (int j=0; j < channelNodes.getLength(); j++) {
+          			  Element ch = (Element) channelNodes.item(j);
+          			  channels.add(ch);
+          			  chanIds.add(ch.getAttribute("chanID"));
+          		  }
+          		  Set<String> renderable = null;
+          		  try {
+          			  renderable = principal.getRenderableChannels(chanIds);
+          		  } catch (Throwable t) {
+          			  // Log this and fall back to checking the channels one at a time
+          			  LOG.warn("RDBMUserLayoutStore was unable to analyze channel elements with Ids=" 
+          					  									+chanIds + ", checking each channel individually", t);
+          		  }
+          		  for (Element ch : channels) {
+          			  String chanId = ch.getAttribute("chanID");
+          			  boolean canRender;
+          			  if (renderable != null) {
+          				  canRender = renderable.contains(chanId);
+          			  }
+          			  else {
+          				  try {
+          					  canRender = principal.canRender(chanId);
+          				  } catch (Throwable t) {
+          					  // Log this...
+          					  LOG.warn("RDBMUserLayoutStore was unable to analyze channel element with Id=" 
+          							  									+chanId, t);
+          					  continue;
+          				  }
+          			  }
+          			  if (!canRender) {
+          				  ch.getParentNode().removeChild(ch);
+          				  if (LOG.isDebugEnabled()) {
+          					  LOG.debug("RDBMUserLayoutStore removing channel '" 
+            						  	+ ch.getAttribute("fname") 
+            						  	+ "' from the header or footer of user '" 
+            						  	+ owner.getUserName() 
+            						  	+ "' because he/she isn't authorized to render it.");
           				  }
-          			  } catch (Throwable t) {
-          				  // Log this...
-          				  LOG.warn("RDBMUserLayoutStore was unable to analyze channel element with Id=" 
-          						  									+ch.getAttribute("chanID"), t);
           			  }
           		  }
           	  }
@@ -280,20 +316,13 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
     
     @Override
     public XMLEventReader getUserLayoutReader() {
-        Document ul = this.getUserLayoutDOM();
-        if (ul == null) {
+        final DistributedUserLayout userLayout = this.getDistributedUserLayout();
+        if (userLayout.getLayout() == null) {
             throw new PortalException("User layout has not been initialized for " + owner.getAttribute(IPerson.USERNAME));
         }
         
-        final XMLInputFactory xmlInputFactory = this.xmlUtilities.getXmlInputFactory();
-        
-        final DOMSource layoutSoure = new DOMSource(ul);
-        try {
-            return xmlInputFactory.createXMLEventReader(layoutSoure);
-        }
-        catch (XMLStreamException e) {
-            throw new RuntimeException("Failed to create Layout XMLStreamReader for user: " + owner.getAttribute(IPerson.USERNAME), e);
-        }
+        //Stream the events held by the layout node tree rather than serializing the DOM
+        return userLayout.getLayoutNodeTree().getEventReader();
     }
 
     /**
@@ -328,7 +357,7 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
                 this.layoutCachingService.removeCachedLayout(owner, profile);
             }
             
-            uli=getUserLayoutDOM();
+            uli=this.getLayoutDocument();
         } catch (Exception e) {
             throw new PortalException("Exception encountered while " +
                     "reading a layout for userId=" + this.owner.getID() +
@@ -343,7 +372,7 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
     }
 
     public synchronized void saveUserLayout() throws PortalException{
-        Document uld=this.getUserLayoutDOM();
+        Document uld=this.getLayoutDocument();
         
         if(uld==null) {
             throw new PortalException("UserLayout has not been initialized for " 
@@ -363,22 +392,14 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
 
     @Override
     public Set<String> getAllSubscribedChannels() {
-        final Document uld = this.getUserLayoutDOM();
+        final DistributedUserLayout userLayout = this.getDistributedUserLayout();
 
-        if (uld == null) {
+        if (userLayout.getLayout() == null) {
             throw new PortalException("UserLayout has not been initialized for " + owner.getAttribute(IPerson.USERNAME));
         }
         
-        final NodeList channelElements = uld.getElementsByTagName(CHANNEL);
-        
-        final Set<String> allSubscribedChannels = new LinkedHashSet<String>(channelElements.getLength());
-        for (int nodeIndex = 0; nodeIndex < channelElements.getLength(); nodeIndex++) {
-            final Element channelElement = (Element)channelElements.item(nodeIndex);
-            final String subscribeId = channelElement.getAttribute("ID");
-            allSubscribedChannels.add(subscribeId);
-        }
-        
-        return allSubscribedChannels;
+        final Map<String, String> channels = userLayout.getLayoutNodeTree().getChannels();
+        return new LinkedHashSet<String>(channels.keySet());
     }
 
     public IUserLayoutNodeDescription getNode( String nodeId )
@@ -387,7 +408,7 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
         if (nodeId == null)
             return null;
         
-        Document uld=this.getUserLayoutDOM();
+        Document uld=this.getLayoutDocument();
 
         if( uld==null )
             throw new PortalException("UserLayout has not been initialized for " 
@@ -435,7 +456,7 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
                         + owner.getAttribute(IPerson.USERNAME), e);
             }
 
-            Document uld=getUserLayoutDOM();
+            Document uld=this.getLayoutDocument();
             Element childElement=node.getXML(uld);
             Element parentElement= uld.getElementById(parentId);
             if(nextSiblingId==null) {
@@ -447,11 +468,11 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
             // register element id
             childElement.setIdAttribute(Constants.ATT_ID, true);
             childElement.setAttribute(Constants.ATT_ID, node.getId());
-            this.updateCacheKey();
 
             // push into the user's real layout that gets persisted.
             HandlerUtils.createPlfNodeAndPath( childElement,
                                                isChannel, owner );
+            this.layoutModified(childElement);
 
             // fire event
             final int layoutId = this.getLayoutId();
@@ -479,7 +500,7 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
         String oldParentNodeId=getParentId(nodeId);
         if(canMoveNode(node,parent,nextSiblingId)) {
             // must be a folder
-            Document uld=this.getUserLayoutDOM();
+            Document uld=this.getLayoutDocument();
             Element childElement = uld.getElementById(nodeId);
             Element parentElement = uld.getElementById(parentId);
             if(nextSiblingId==null) {
@@ -488,13 +509,12 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
                 Node nextSibling=uld.getElementById(nextSiblingId);
                 parentElement.insertBefore(childElement,nextSibling);
             }
-            this.updateCacheKey();
-
             // propagate the change into the PLF
             Element oldParent = uld.getElementById(oldParentNodeId);
             TabColumnPrefsHandler.moveElement( childElement,
                                                oldParent,
                                                owner );
+            this.layoutModified(childElement);
             // fire event
             final int layoutId = this.getLayoutId();
             if (node instanceof IUserLayoutChannelDescription) {
@@ -516,7 +536,7 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
             IUserLayoutNodeDescription nodeDescription=this.getNode(nodeId);
             String parentNodeId=this.getParentId(nodeId);
 
-            Document uld=this.getUserLayoutDOM();
+            Document uld=this.getLayoutDocument();
             Element ilfNode = uld.getElementById(nodeId);
             Node parent=ilfNode.getParentNode();
             if(parent!=null) {
@@ -526,11 +546,10 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
                         "\" has a NULL parent for layout of " 
                     + owner.getAttribute(IPerson.USERNAME) + ".");
             }
-            this.updateCacheKey();
-
             // now push into the PLF
             TabColumnPrefsHandler.deleteNode( ilfNode, (Element) parent,
                                               owner );
+            this.layoutModified(nodeId);
             // inform the listeners
             final int layoutId = this.getLayoutId();
             if (nodeDescription instanceof IUserLayoutChannelDescription) {
@@ -588,7 +607,7 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
                     updateFolderNode(nodeId, newFolderDesc, oldFolderDesc);
                 }
             }
-            this.updateCacheKey();
+            this.layoutModified(this.getLayoutDocument().getElementById(nodeId));
             return true;
         }
         return false;
@@ -612,7 +631,7 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
             IUserLayoutFolderDescription oldFolderDesc)
     throws PortalException
     {
-        Element ilfNode = (Element) getUserLayoutDOM().getElementById(nodeId);
+        Element ilfNode = (Element) this.getLayoutDocument().getElementById(nodeId);
         List<ILayoutProcessingAction> pendingActions 
             = new ArrayList<ILayoutProcessingAction>();
 
@@ -759,7 +778,7 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
             IUserLayoutChannelDescription oldChanDesc)
     throws PortalException
     {
-        Element ilfNode = (Element) getUserLayoutDOM().getElementById(nodeId);
+        Element ilfNode = (Element) this.getLayoutDocument().getElementById(nodeId);
         List<ILayoutProcessingAction> pendingActions 
             = new ArrayList<ILayoutProcessingAction>();
         boolean isIncorporated = 
@@ -1039,7 +1058,7 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
                 canAddNode( node, parent, nextSiblingId );
 
         // same parent. which direction are we moving?
-        Document uld = this.getUserLayoutDOM();
+        Document uld = this.getLayoutDocument();
         Element parentE = uld.getElementById( parent.getId() );
         Element child = (Element) parentE.getFirstChild();
         int idx = 0;
@@ -1174,7 +1193,12 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
 
 
     public String getParentId(String nodeId) throws PortalException {
-        Document uld=this.getUserLayoutDOM();
+        final String parentFolderId = this.getDistributedUserLayout().getLayoutNodeTree().getParentId(nodeId);
+        if (parentFolderId != null) {
+            return parentFolderId;
+        }
+        
+        Document uld=this.getLayoutDocument();
         Element nelement = uld.getElementById(nodeId);
         if(nelement!=null) {
             Node parent=nelement.getParentNode();
@@ -1193,7 +1217,7 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
     }
 
     public String getNextSiblingId(String nodeId) throws PortalException {
-        Document uld=this.getUserLayoutDOM();
+        Document uld=this.getLayoutDocument();
         Element nelement = uld.getElementById(nodeId);
         if(nelement!=null) {
             Node nsibling=nelement.getNextSibling();
@@ -1214,7 +1238,7 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
     }
 
     public String getPreviousSiblingId(String nodeId) throws PortalException {
-        Document uld=this.getUserLayoutDOM();
+        Document uld=this.getLayoutDocument();
         Element nelement = uld.getElementById(nodeId);
         if(nelement!=null) {
             Node nsibling=nelement.getPreviousSibling();
@@ -1250,21 +1274,12 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
         Vector<String> v=new Vector<String>();
         IUserLayoutNodeDescription node=getNode(nodeId);
         if(node instanceof IUserLayoutFolderDescription) {
-            Document uld=this.getUserLayoutDOM();
-            Element felement = uld.getElementById(nodeId);
-            for(Node n=felement.getFirstChild(); n!=null;n=n.getNextSibling()) {
-                if( n.getNodeType()==Node.ELEMENT_NODE &&
-                    ( visibleOnly == false ||
-                      ( visibleOnly == true &&
-                        ((Element) n).getAttribute( Constants.ATT_HIDDEN )
-                        .equals("false") ) ) )
-                {
-                    Element e=(Element)n;
-                    if(e.getAttribute("ID")!=null)
-                    {
-                        v.add(e.getAttribute("ID"));
-                    }
-                }
+            final LayoutNodeTree layoutNodeTree = this.getDistributedUserLayout().getLayoutNodeTree();
+            if (visibleOnly) {
+                v.addAll(layoutNodeTree.getChildIds(nodeId, HIDDEN_ATTRIBUTE_NAME, "false"));
+            }
+            else {
+                v.addAll(layoutNodeTree.getChildIds(nodeId));
             }
         }
         return v.elements();
@@ -1286,6 +1301,24 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
         this.cacheKey=Long.toString(rnd.nextLong());
     }
 
+    /**
+     * Called after a folder or channel is added, moved or modified in the layout document, invalidates this
+     * manager's cache key and applies the modification to the layout node tree shared with the owner's other
+     * sessions.
+     */
+    private void layoutModified(Element element) {
+        this.updateCacheKey();
+        this.getDistributedUserLayout().nodeUpdated(element);
+    }
+
+    /**
+     * Called after a folder or channel is removed from the layout document
+     */
+    private void layoutModified(String removedNodeId) {
+        this.updateCacheKey();
+        this.getDistributedUserLayout().nodeRemoved(removedNodeId);
+    }
+
     public int getLayoutId() {
         return profile.getLayoutId();
     }
@@ -1296,24 +1329,77 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
      */
     @Override
     public String getSubscribeId(String fname) {
-    	final Document userLayout = this.getUserLayoutDOM();
-        return new PortletSubscribeIdResolver(fname).traverseDocument(userLayout);
+        final LayoutNodeTree layoutNodeTree = this.getDistributedUserLayout().getLayoutNodeTree();
+        
+        final SubscribeIdCache subscribeIdCache = this.getSubscribeIdCache(layoutNodeTree);
+        final Tuple<String, String> key = new Tuple<String, String>(null, fname);
+        final String cachedSubscribeId = subscribeIdCache.get(key);
+        if (cachedSubscribeId != null) {
+            return SubscribeIdCache.fromCached(cachedSubscribeId);
+        }
+        
+        final String subscribeId = layoutNodeTree.getSubscribeId(fname);
+        subscribeIdCache.put(key, subscribeId);
+        return subscribeId;
     }
     
     public String getSubscribeId(String parentFolderId, String fname) {
-    	final Map<String, String> variables = new HashMap<String, String>();
-    	variables.put("parentFolderId", parentFolderId);
-    	variables.put("fname", fname);
-    	
-    	final Document userLayout = this.getUserLayoutDOM();
-    	final Element fnameNode = this.xpathOperations.evaluate("//folder[@ID=$parentFolderId]/descendant::channel[@fname=$fname]", variables, userLayout, XPathConstants.NODE);
-		if (fnameNode != null) {
-			return fnameNode.getAttribute("ID");
-		}
-    	
-    	return null;
+        final LayoutNodeTree layoutNodeTree = this.getDistributedUserLayout().getLayoutNodeTree();
+        
+        final SubscribeIdCache subscribeIdCache = this.getSubscribeIdCache(layoutNodeTree);
+        final Tuple<String, String> key = new Tuple<String, String>(parentFolderId, fname);
+        final String cachedSubscribeId = subscribeIdCache.get(key);
+        if (cachedSubscribeId != null) {
+            return SubscribeIdCache.fromCached(cachedSubscribeId);
+        }
+        
+        final String subscribeId = layoutNodeTree.getSubscribeId(parentFolderId, fname);
+        subscribeIdCache.put(key, subscribeId);
+        return subscribeId;
+    }
+    
+    /**
+     * Get the subscribe id lookup cache for the layout, a new cache is created whenever the layout
+     * node tree is replaced by a layout modification.
+     */
+    private SubscribeIdCache getSubscribeIdCache(LayoutNodeTree layoutNodeTree) {
+        SubscribeIdCache subscribeIdCache = this.subscribeIdCache;
+        if (subscribeIdCache == null || !subscribeIdCache.isValid(layoutNodeTree)) {
+            subscribeIdCache = new SubscribeIdCache(layoutNodeTree);
+            this.subscribeIdCache = subscribeIdCache;
+        }
+        return subscribeIdCache;
     }
     
+    /**
+     * Caches fname to subscribe id lookups, the key is (parentFolderId, fname), null results are cached as well
+     */
+    private static final class SubscribeIdCache {
+        private static final String NOT_FOUND = "";
+        
+        private final ConcurrentMap<Tuple<String, String>, String> subscribeIds = new ConcurrentHashMap<Tuple<String, String>, String>();
+        private final LayoutNodeTree layoutNodeTree;
+        
+        public SubscribeIdCache(LayoutNodeTree layoutNodeTree) {
+            this.layoutNodeTree = layoutNodeTree;
+        }
+        
+        public boolean isValid(LayoutNodeTree layoutNodeTree) {
+            return this.layoutNodeTree == layoutNodeTree;
+        }
+        
+        public String get(Tuple<String, String> key) {
+            return this.subscribeIds.get(key);
+        }
+        
+        public void put(Tuple<String, String> key, String subscribeId) {
+            this.subscribeIds.put(key, subscribeId != null ? subscribeId : NOT_FOUND);
+        }
+        
+        public static String fromCached(String cachedSubscribeId) {
+            return NOT_FOUND.equals(cachedSubscribeId) ? null : cachedSubscribeId;
+        }
+    }
 
     /* (non-Javadoc)
      * @see org.jasig.portal.layout.IUserLayoutManager#getUserLayout()
@@ -1334,23 +1420,38 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
     public String getRootFolderId()
     {
         if (rootNodeId == null) {
-            Document layout = getUserLayoutDOM();
-            
-            Element rootNode = this.xpathOperations.evaluate("//layout/folder", layout, XPathConstants.NODE);
-            if (rootNode == null || !rootNode.getAttribute(Constants.ATT_TYPE).equals(Constants.ROOT_FOLDER_ID)) {
+            String rootFolderId = this.findRootFolderId();
+            if (rootFolderId == null) {
                 LOG.error("Unable to locate root node in layout of " + owner.getAttribute(IPerson.USERNAME) + ". Resetting corrupted layout.");
                 resetLayout((String) null);
                 
-                rootNode = this.xpathOperations.evaluate("//layout/folder", layout, XPathConstants.NODE);
-                if (rootNode == null || !rootNode.getAttribute(Constants.ATT_TYPE).equals(Constants.ROOT_FOLDER_ID)) {
+                rootFolderId = this.findRootFolderId();
+                if (rootFolderId == null) {
                     throw new PortalException("Corrupted layout detected for " + owner.getAttribute(IPerson.USERNAME)
                             + " and resetting layout failed.");
                 }
             }
-            rootNodeId = rootNode.getAttribute("ID");
+            rootNodeId = rootFolderId;
         }
         return rootNodeId;
     }
+    
+    /**
+     * @return The ID of the first top level folder if it is the root folder, null otherwise
+     */
+    private String findRootFolderId() {
+        final LayoutNodeTree layoutNodeTree = this.getDistributedUserLayout().getLayoutNodeTree();
+        final List<String> folderIds = layoutNodeTree.getTopLevelFolderIds();
+        if (folderIds.isEmpty()) {
+            return null;
+        }
+        
+        final String folderId = folderIds.get(0);
+        if (!Constants.ROOT_FOLDER_ID.equals(layoutNodeTree.getAttribute(folderId, TYPE_ATTRIBUTE_NAME))) {
+            return null;
+        }
+        return folderId;
+    }
 
     /*
      * (non-Javadoc)
@@ -1480,7 +1581,7 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
             {
                 this.layoutCachingService.removeCachedLayout(person, profile);
                 updateCacheKey();
-                getUserLayoutDOM();
+                this.getLayoutDocument();
             }
             //if (isFragmentOwner)
             //{
@@ -1520,25 +1621,13 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
      */
     public Map getChannelFunctionalNameMap() throws PortalException
     {
-        Document layout = getUserLayoutDOM();
-        
-        /*
-         * NodeLists are known not to be thread safe but the layout is 
-         * hierarchical and this is the simples way to obtain all of the nested
-         * channels. Furthermore, since this method is only called by jndi
-         * initialization once in a user's session and hence should be just
-         * fine. Furthermore, this NodeList is not that of the children of
-         * a node in the layout so it is unlikely that it will change.
-         */
-        NodeList channelNodes = layout.getElementsByTagName("channel");
+        final Map<String, String> channels = this.getDistributedUserLayout().getLayoutNodeTree().getChannels();
         Map<String, String> map = new HashMap<String, String>();
         
-        // Parse through the channels and populate the set
-        for (int i = 0; i < channelNodes.getLength(); i++) {
-            // Attempt to get the fname and instance ID from the channel
-            Element chan = (Element) channelNodes.item(i);
-            String id = chan.getAttribute("ID");
-            String fname = chan.getAttribute("fname");
+        // Keep the channels that have both an ID and an fname
+        for (final Map.Entry<String, String> channel : channels.entrySet()) {
+            String id = channel.getKey();
+            String fname = channel.getValue();
             if (!id.equals("") && !fname.equals(""))
             {
                 map.put(id, fname);
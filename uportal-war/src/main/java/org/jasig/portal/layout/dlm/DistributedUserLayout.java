@@ -22,9 +22,12 @@ package org.jasig.portal.layout.dlm;
 import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.jasig.portal.layout.LayoutNodeTree;
 import org.jasig.portal.layout.om.IStylesheetUserPreferences;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 
 /**
  * A user's layout and meta-data about that layout
@@ -37,6 +40,8 @@ public class DistributedUserLayout {
     private final Set<String> fragmentNames;
     private final IStylesheetUserPreferences distributedStructureStylesheetUserPreferences;
     private final IStylesheetUserPreferences distributedThemeStylesheetUserPreferences;
+    private final AtomicLong layoutVersion = new AtomicLong();
+    private volatile LayoutNodeTree layoutNodeTree;
 
     /**
      * This constructor seems to be used with fragment owners.
@@ -71,6 +76,62 @@ public class DistributedUserLayout {
         return this.layout;
     }
 
+    /**
+     * Must be called after a modification of the layout document that is not applied with
+     * {@link #nodeUpdated(Element)} or {@link #nodeRemoved(String)}, the layout node tree is rebuilt from the
+     * document on the next read. The layout is shared by all of the owner's sessions so the version lives
+     * here, with the document, rather than in any one layout manager.
+     */
+    public void layoutModified() {
+        this.layoutVersion.incrementAndGet();
+    }
+
+    /**
+     * Apply the addition, move or modification of a folder or channel in the layout document to the layout
+     * node tree, only the path to the node is copied.
+     */
+    public synchronized void nodeUpdated(Element element) {
+        final LayoutNodeTree layoutNodeTree = this.getLayoutNodeTree().update(element);
+        this.setLayoutNodeTree(layoutNodeTree);
+    }
+
+    /**
+     * Apply the removal of a folder or channel from the layout document to the layout node tree
+     */
+    public synchronized void nodeRemoved(String nodeId) {
+        final LayoutNodeTree layoutNodeTree = this.getLayoutNodeTree().remove(nodeId);
+        this.setLayoutNodeTree(layoutNodeTree);
+    }
+    
+    private void setLayoutNodeTree(LayoutNodeTree layoutNodeTree) {
+        if (layoutNodeTree != null && layoutNodeTree.getLayoutVersion() == this.layoutVersion.get()) {
+            this.layoutNodeTree = layoutNodeTree;
+        }
+        else {
+            //The modification could not be applied to the tree, rebuild it from the document
+            this.layoutModified();
+        }
+    }
+
+    /**
+     * Get the immutable tree of the layout the layout is rendered from. The tree is rebuilt from the layout
+     * document when the document has been modified without updating the current tree.
+     */
+    public LayoutNodeTree getLayoutNodeTree() {
+        LayoutNodeTree layoutNodeTree = this.layoutNodeTree;
+        if (layoutNodeTree == null || layoutNodeTree.getLayoutVersion() != this.layoutVersion.get()) {
+            synchronized (this) {
+                final long version = this.layoutVersion.get();
+                layoutNodeTree = this.layoutNodeTree;
+                if (layoutNodeTree == null || layoutNodeTree.getLayoutVersion() != version) {
+                    layoutNodeTree = LayoutNodeTree.build(this.layout, version);
+                    this.layoutNodeTree = layoutNodeTree;
+                }
+            }
+        }
+        return layoutNodeTree;
+    }
+
     /**
      * @return The names of all of the fragments incorperated into the layout
      */
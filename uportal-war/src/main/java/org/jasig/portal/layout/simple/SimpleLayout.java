@@ -197,7 +197,7 @@ public class SimpleLayout implements IUserLayout {
     
     @Override
     public String findNodeId(INodeIdResolver finder) {
-        return finder.traverseDocument(this.layout);
+        return finder.traverseLayoutNodeTree(this.userLayout.getLayoutNodeTree());
     }
 
     @Override
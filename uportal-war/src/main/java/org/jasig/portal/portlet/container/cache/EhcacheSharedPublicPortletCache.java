@@ -0,0 +1,126 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.portlet.container.cache;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListenerAdapter;
+
+import org.jasig.portal.portlet.om.IPortletDefinitionId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+
+/**
+ * {@link ISharedPublicPortletCache} backed by an {@link Ehcache}. With a plain local cache this acts as an
+ * in-process stand-in that can be shared by several {@link PortletCacheControlServiceImpl} instances. When
+ * the backing cache is configured for replication in ehcache.xml removals made on other nodes arrive as
+ * cache events and are passed on to the local listeners.
+ * 
+ * @version $Revision$
+ */
+@Service("sharedPublicPortletCache")
+public class EhcacheSharedPublicPortletCache implements ISharedPublicPortletCache {
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+    
+    private final PublicPortletCacheKeyTracker cacheKeyTracker = new PublicPortletCacheKeyTracker();
+    private final List<SharedPublicPortletCacheListener> listeners = new CopyOnWriteArrayList<SharedPublicPortletCacheListener>();
+    
+    private Ehcache sharedPublicScopePortletOutputCache;
+    
+    @Autowired
+    @Qualifier("org.jasig.portal.portlet.container.cache.EhcacheSharedPublicPortletCache.sharedPublicScopePortletOutputCache")
+    public void setSharedPublicScopePortletOutputCache(Ehcache sharedPublicScopePortletOutputCache) {
+        this.sharedPublicScopePortletOutputCache = sharedPublicScopePortletOutputCache;
+        this.sharedPublicScopePortletOutputCache.getCacheEventNotificationService().registerListener(this.cacheKeyTracker);
+        this.sharedPublicScopePortletOutputCache.getCacheEventNotificationService().registerListener(new InvalidationNotifier());
+    }
+
+    @Override
+    public void addListener(SharedPublicPortletCacheListener listener) {
+        this.listeners.add(listener);
+    }
+
+    @Override
+    public CachedPortletResultHolder<?> get(PublicPortletCacheKey cacheKey) {
+        final Element element = this.sharedPublicScopePortletOutputCache.get(cacheKey);
+        if (element == null) {
+            logger.debug("No shared output for key {}", cacheKey);
+            return null;
+        }
+        
+        return (CachedPortletResultHolder<?>) element.getObjectValue();
+    }
+
+    @Override
+    public void put(PublicPortletCacheKey cacheKey, CachedPortletResultHolder<?> data, int timeToLive) {
+        final Element element = new Element(cacheKey, data);
+        if (timeToLive > 0) {
+            element.setTimeToLive(timeToLive);
+        }
+        this.sharedPublicScopePortletOutputCache.put(element);
+        logger.debug("Stored shared output under key {}", cacheKey);
+    }
+
+    @Override
+    public boolean purge(IPortletDefinitionId portletDefinitionId) {
+        final Set<PublicPortletCacheKey> keys = this.cacheKeyTracker.getCacheKeys(portletDefinitionId);
+        final boolean removed = !keys.isEmpty();
+        this.sharedPublicScopePortletOutputCache.removeAll(keys);
+        
+        return removed;
+    }
+    
+    /**
+     * Passes removals and updates of shared data on to the registered listeners. Puts, expirations and
+     * evictions are ignored as they don't mean the data held by other nodes is stale.
+     */
+    private final class InvalidationNotifier extends CacheEventListenerAdapter {
+        @Override
+        public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+            this.keyInvalidated(element);
+        }
+
+        @Override
+        public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+            this.keyInvalidated(element);
+        }
+
+        @Override
+        public void notifyRemoveAll(Ehcache cache) {
+            for (final SharedPublicPortletCacheListener listener : listeners) {
+                listener.allInvalidated();
+            }
+        }
+        
+        private void keyInvalidated(Element element) {
+            final PublicPortletCacheKey cacheKey = (PublicPortletCacheKey) element.getObjectKey();
+            for (final SharedPublicPortletCacheListener listener : listeners) {
+                listener.keyInvalidated(cacheKey);
+            }
+        }
+    }
+}
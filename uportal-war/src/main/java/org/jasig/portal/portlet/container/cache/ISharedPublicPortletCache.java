@@ -0,0 +1,73 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.portlet.container.cache;
+
+import org.jasig.portal.portlet.om.IPortletDefinitionId;
+
+/**
+ * Optional second tier for publicly scoped portlet output that is shared by all portal nodes. Local public
+ * caches are consulted first, a local miss falls through to this tier and data found here is copied back
+ * into the local cache. Removing data from the shared tier notifies every registered
+ * {@link SharedPublicPortletCacheListener} so each node can drop its local copy.
+ * 
+ * @version $Revision$
+ */
+public interface ISharedPublicPortletCache {
+    /**
+     * @return The shared data for the key, null if there is none
+     */
+    CachedPortletResultHolder<?> get(PublicPortletCacheKey cacheKey);
+    
+    /**
+     * Store data in the shared tier
+     * 
+     * @param cacheKey The key to store the data under
+     * @param data The data to store
+     * @param timeToLive Seconds the data should live for, 0 to use the default for the shared tier
+     */
+    void put(PublicPortletCacheKey cacheKey, CachedPortletResultHolder<?> data, int timeToLive);
+    
+    /**
+     * Remove all shared data for the portlet definition, listeners on all nodes are notified of each
+     * key that is removed.
+     * 
+     * @return true if any data was removed
+     */
+    boolean purge(IPortletDefinitionId portletDefinitionId);
+    
+    /**
+     * Register a listener to be notified when shared data is invalidated
+     */
+    void addListener(SharedPublicPortletCacheListener listener);
+    
+    /**
+     * Notified when data in the shared tier is invalidated, either locally or by another node
+     */
+    public interface SharedPublicPortletCacheListener {
+        /**
+         * Data for the key was removed or replaced in the shared tier
+         */
+        void keyInvalidated(PublicPortletCacheKey cacheKey);
+        
+        /**
+         * All data in the shared tier was removed
+         */
+        void allInvalidated();
+    }
+}
@@ -96,6 +96,9 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
     private Ehcache privateScopePortletResourceOutputCache;
     private Ehcache publicScopePortletResourceOutputCache;
     
+    private ISharedPublicPortletCache sharedPublicPortletCache;
+    private boolean sharedPublicCacheEnabled = false;
+    
     // default to 100 KB
     private int cacheSizeThreshold = 102400;
     
@@ -149,6 +152,23 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
                 .registerListener(publicPortletResourceCacheKeyTracker);
     }
     
+    /**
+     * Optional tier shared by all portal nodes, consulted when the local public caches miss
+     */
+    @Autowired(required=false)
+    public void setSharedPublicPortletCache(ISharedPublicPortletCache sharedPublicPortletCache) {
+        this.sharedPublicPortletCache = sharedPublicPortletCache;
+        this.sharedPublicPortletCache.addListener(new LocalPublicCacheInvalidator());
+    }
+
+    /**
+     * @param sharedPublicCacheEnabled If the shared public tier should be used, defaults to false
+     */
+    @Value("${org.jasig.portal.portlet.container.cache.PortletCacheControlServiceImpl.sharedPublicCacheEnabled:false}")
+    public void setSharedPublicCacheEnabled(boolean sharedPublicCacheEnabled) {
+        this.sharedPublicCacheEnabled = sharedPublicCacheEnabled;
+    }
+    
 	/**
 	 * @param cacheSizeThreshold the cacheSizeThreshold to set in bytes
 	 */
@@ -364,6 +384,13 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
             return cacheState;
         }
         
+        //Check for publicly cached data from another node
+        cachedPortletData = (D)this.getSharedCachedPortletData(publicCacheKey, publicOutputCache, portletWindow);
+        if (cachedPortletData != null) {
+            cacheState.setCachedPortletData(cachedPortletData);
+            return cacheState;
+        }
+        
         //Generate private cache key
         final HttpSession session = request.getSession();
         final String sessionId = session.getId();
@@ -411,6 +438,53 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
         logger.debug("Returning cached output with key {} for {}", cacheKey, portletWindow);
         return (CachedPortletResultHolder<T>) publicCacheElement.getValue();
     }    
+    
+    /**
+     * Get the cached portlet data for the key from the shared public tier. Data that is found is copied
+     * into the local public cache so later requests on this node don't need to go to the shared tier.
+     * 
+     * @param cacheKey The public cache key
+     * @param publicOutputCache The local public cache to copy shared data into
+     * @param portletWindow The portlet window the lookup is for
+     * @return The shared cache data for the portlet window, null if the shared tier is disabled or has no data
+     */
+    @SuppressWarnings("unchecked")
+    protected <T extends Serializable> CachedPortletResultHolder<T> getSharedCachedPortletData(PublicPortletCacheKey cacheKey, Ehcache publicOutputCache,
+            IPortletWindow portletWindow) {
+        
+        if (!this.isSharedPublicCacheEnabled()) {
+            return null;
+        }
+        
+        final CachedPortletResultHolder<T> cachedPortletData = (CachedPortletResultHolder<T>) this.sharedPublicPortletCache.get(cacheKey);
+        if (cachedPortletData == null) {
+            return null;
+        }
+        
+        final long expirationTime = cachedPortletData.getExpirationTime();
+        final long now = System.currentTimeMillis();
+        if (expirationTime != -1 && expirationTime <= now && cachedPortletData.getEtag() == null) {
+            logger.debug("Shared output for key {} is expired", cacheKey);
+            return null;
+        }
+        
+        final Element element = new Element(cacheKey, cachedPortletData);
+        if (expirationTime > now) {
+            final int timeToLive = (int) Math.max(1, (expirationTime - now) / 1000);
+            final long cacheTTL = publicOutputCache.getCacheConfiguration().getTimeToLiveSeconds();
+            if (cacheTTL == 0 || timeToLive < cacheTTL) {
+                element.setTimeToLive(timeToLive);
+            }
+        }
+        publicOutputCache.put(element);
+        
+        logger.debug("Returning shared output with key {} for {}", cacheKey, portletWindow);
+        return cachedPortletData;
+    }
+    
+    protected boolean isSharedPublicCacheEnabled() {
+        return this.sharedPublicCacheEnabled && this.sharedPublicPortletCache != null;
+    }
 	
     /**
      * Get the resourceId for the portlet request
@@ -479,6 +553,13 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
         
         if (cacheControl.isPublicScope()) {
             final PublicPortletCacheKey publicCacheKey = cacheState.getPublicPortletCacheKey();
+            
+            //Write to the shared tier first, replacing shared data invalidates the local copies on all nodes
+            if (this.isSharedPublicCacheEnabled()) {
+                final int timeToLive = cacheControl.getETag() != null ? 0 : Math.max(0, cacheControl.getExpirationTime());
+                this.sharedPublicPortletCache.put(publicCacheKey, cachedPortletData, timeToLive);
+            }
+            
             this.cacheElement(publicOutputCache, publicCacheKey, cachedPortletData, cacheControl);
             logger.debug("Cached public data under key {} for {}", publicCacheKey, portletWindow);
         }
@@ -554,6 +635,11 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
         removed = this.purgePublicCache(this.publicPortletResourceCacheKeyTracker,
                         this.publicScopePortletResourceOutputCache,
                         definitionId) || removed;
+        
+        //Remove all shared data for the portlet, other nodes drop their local copies as the keys are invalidated
+        if (this.isSharedPublicCacheEnabled()) {
+            removed = this.sharedPublicPortletCache.purge(definitionId) || removed;
+        }
 
         final HttpSession session = httpRequest.getSession();
 
@@ -595,4 +681,40 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
         
         return removed;
     }
+    
+    /**
+     * Removes local copies of public data when it is invalidated in the shared tier
+     */
+    private final class LocalPublicCacheInvalidator implements ISharedPublicPortletCache.SharedPublicPortletCacheListener {
+        @Override
+        public void keyInvalidated(PublicPortletCacheKey cacheKey) {
+            final Ehcache publicOutputCache;
+            if (cacheKey.getResourceId() != null) {
+                publicOutputCache = publicScopePortletResourceOutputCache;
+            }
+            else if (cacheKey.isRenderHeader()) {
+                publicOutputCache = publicScopePortletRenderHeaderOutputCache;
+            }
+            else {
+                publicOutputCache = publicScopePortletRenderOutputCache;
+            }
+            
+            if (publicOutputCache != null && publicOutputCache.remove(cacheKey)) {
+                logger.debug("Removed local public data for shared key {}", cacheKey);
+            }
+        }
+
+        @Override
+        public void allInvalidated() {
+            for (final Ehcache publicOutputCache : new Ehcache[] { 
+                    publicScopePortletRenderHeaderOutputCache, 
+                    publicScopePortletRenderOutputCache,
+                    publicScopePortletResourceOutputCache }) {
+                
+                if (publicOutputCache != null) {
+                    publicOutputCache.removeAll();
+                }
+            }
+        }
+    }
 }
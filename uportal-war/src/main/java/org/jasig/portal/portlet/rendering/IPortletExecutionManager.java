@@ -108,6 +108,18 @@ public interface IPortletExecutionManager {
      * @return true if the specified portlet been requested to render it's output for the BODY during this request.
      */
     public boolean isPortletRenderRequested(IPortletWindowId portletWindowId, HttpServletRequest request, HttpServletResponse response);
+    
+    /**
+     * @return true if the HEAD output for the specified portlet is available without blocking, either because the header
+     * render has completed or because the portlet does not produce header output.
+     */
+    public boolean isPortletRenderHeaderComplete(IPortletWindowId portletWindowId, HttpServletRequest request, HttpServletResponse response);
+    
+    /**
+     * @return true if the BODY render for the specified portlet has been started and has completed, if true the output
+     * is available without blocking.
+     */
+    public boolean isPortletRenderComplete(IPortletWindowId portletWindowId, HttpServletRequest request, HttpServletResponse response);
 
     /**
      * @see #getPortletHeadOutput(IPortletWindowId, HttpServletRequest, HttpServletResponse)
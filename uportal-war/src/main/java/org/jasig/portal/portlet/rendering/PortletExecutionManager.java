@@ -41,6 +41,9 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.pluto.container.om.portlet.ContainerRuntimeOption;
 import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.jasig.portal.portlet.container.cache.CacheState;
+import org.jasig.portal.portlet.container.cache.CachedPortletData;
+import org.jasig.portal.portlet.container.cache.IPortletCacheControlService;
 import org.jasig.portal.portlet.om.IPortletDefinition;
 import org.jasig.portal.portlet.om.IPortletDefinitionParameter;
 import org.jasig.portal.portlet.om.IPortletDescriptorKey;
@@ -56,6 +59,7 @@ import org.jasig.portal.portlet.rendering.worker.IPortletExecutionWorker;
 import org.jasig.portal.portlet.rendering.worker.IPortletFailureExecutionWorker;
 import org.jasig.portal.portlet.rendering.worker.IPortletRenderExecutionWorker;
 import org.jasig.portal.portlet.rendering.worker.IPortletWorkerFactory;
+import org.jasig.portal.portlet.rendering.worker.PortletCircuitBreakerManager;
 import org.jasig.portal.utils.web.PortalWebUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -116,6 +120,8 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
     private IPortletEventCoordinationService eventCoordinationService;
     private IPortletWorkerFactory portletWorkerFactory;
     private HungWorkerAnalyzer hungWorkerAnalyzer;
+    private PortletCircuitBreakerManager portletCircuitBreakerManager;
+    private IPortletCacheControlService portletCacheControlService;
     
     /**
      * @param maxEventIterations The maximum number of iterations to spend dispatching events. Defaults to 100
@@ -155,6 +161,16 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
         this.hungWorkerAnalyzer = hungWorkerAnalyzer;
     }
     
+    @Autowired
+    public void setPortletCircuitBreakerManager(PortletCircuitBreakerManager portletCircuitBreakerManager) {
+        this.portletCircuitBreakerManager = portletCircuitBreakerManager;
+    }
+    
+    @Autowired
+    public void setPortletCacheControlService(IPortletCacheControlService portletCacheControlService) {
+        this.portletCacheControlService = portletCacheControlService;
+    }
+    
     
         /* (non-Javadoc)
      * @see org.springframework.web.servlet.handler.HandlerInterceptorAdapter#afterCompletion(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse, java.lang.Object, java.lang.Exception)
@@ -206,6 +222,8 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
 
         portletExecutionWorker.cancel();
         hungWorkers.offer(portletExecutionWorker);
+        
+        this.portletCircuitBreakerManager.recordTimeout(portletExecutionWorker);
     }
     
     @Scheduled(fixedRate=200)
@@ -258,6 +276,8 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
         
         final AtomicInteger counter = this.executionCount.getUnchecked(portletDescriptorKey);
         counter.incrementAndGet();
+        
+        this.portletCircuitBreakerManager.recordExecution(context, e);
     }
 
     /* (non-Javadoc)
@@ -564,6 +584,32 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
         return tracker != null;
     }
     
+    /* (non-Javadoc)
+     * @see org.jasig.portal.portlet.rendering.IPortletExecutionManager#isPortletRenderHeaderComplete(org.jasig.portal.portlet.om.IPortletWindowId, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+     */
+    @Override
+    public boolean isPortletRenderHeaderComplete(IPortletWindowId portletWindowId, HttpServletRequest request, HttpServletResponse response) {
+        if (!doesPortletNeedHeaderWorker(portletWindowId, request)) {
+            return true;
+        }
+        
+        final Map<IPortletWindowId, IPortletRenderExecutionWorker> portletHeaderRenderingMap = this.getPortletHeaderRenderingMap(request);
+        final IPortletRenderExecutionWorker tracker = portletHeaderRenderingMap.get(portletWindowId);
+        
+        return tracker != null && tracker.isComplete();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.portal.portlet.rendering.IPortletExecutionManager#isPortletRenderComplete(org.jasig.portal.portlet.om.IPortletWindowId, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+     */
+    @Override
+    public boolean isPortletRenderComplete(IPortletWindowId portletWindowId, HttpServletRequest request, HttpServletResponse response) {
+        final Map<IPortletWindowId, IPortletRenderExecutionWorker> portletRenderingMap = this.getPortletRenderingMap(request);
+        final IPortletRenderExecutionWorker tracker = portletRenderingMap.get(portletWindowId);
+        
+        return tracker != null && tracker.isComplete();
+    }
+    
     /* (non-Javadoc)
 	 * @see org.jasig.portal.portlet.rendering.IPortletExecutionManager#getPortletHeadOutput(org.jasig.portal.portlet.om.IPortletWindowId, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
 	 */
@@ -803,11 +849,15 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
         
         final IPortletDefinition portletDefinition = getPortletDefinition(portletWindowId, request);
         final Integer renderTimeout = portletDefinition.getRenderTimeout();
+        final long timeout;
         if (renderTimeout != null) {
-            return getModifiedTimeout(portletDefinition, request, renderTimeout);
+            timeout = getModifiedTimeout(portletDefinition, request, renderTimeout);
+        }
+        else {
+            timeout = getModifiedTimeout(portletDefinition, request, portletDefinition.getTimeout());
         }
         
-        return getModifiedTimeout(portletDefinition, request, portletDefinition.getTimeout());
+        return this.portletCircuitBreakerManager.getRenderTimeout(portletDefinition.getFName(), timeout);
     }
     
     protected long getPortletResourceTimeout(IPortletWindowId portletWindowId, HttpServletRequest request) {
@@ -878,6 +928,9 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
     	if (null != cause) {
     		// previous action failed, dispatch to errorPortlet immediately
     		portletRenderExecutionWorker = this.portletWorkerFactory.createFailureWorker(request, response, portletWindowId, cause);
+    	} else if (!this.portletCircuitBreakerManager.allowExecution(getPortletDefinition(portletWindowId, request).getFName())) {
+    	    // portlet has been failing or timing out, don't tie up a worker on it
+    	    portletRenderExecutionWorker = this.createCircuitOpenWorker(portletWindowId, request, response);
     	} else {
     		portletRenderExecutionWorker = this.portletWorkerFactory.createRenderWorker(request, response, portletWindowId);
     	}
@@ -890,6 +943,22 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
         return portletRenderExecutionWorker;
     }
 
+    /**
+     * Create the worker used in place of a render worker when the portlet's circuit breaker is open. Replays the
+     * last cached output for the portlet if there is any, even if it has expired, otherwise renders the error portlet.
+     */
+    protected IPortletRenderExecutionWorker createCircuitOpenWorker(IPortletWindowId portletWindowId, HttpServletRequest request, HttpServletResponse response) {
+        final CacheState<CachedPortletData<PortletRenderResult>, PortletRenderResult> cacheState = this.portletCacheControlService.getPortletRenderState(request, portletWindowId);
+        final CachedPortletData<PortletRenderResult> cachedPortletData = cacheState.getCachedPortletData();
+        if (cachedPortletData != null) {
+            return this.portletWorkerFactory.createCachedRenderWorker(request, response, portletWindowId, cachedPortletData);
+        }
+        
+        final String fname = getPortletDefinition(portletWindowId, request).getFName();
+        final Exception cause = new RuntimeException("Portlet '" + fname + "' was not executed because it has repeatedly failed or timed out, it will be tried again shortly.");
+        return this.portletWorkerFactory.createFailureWorker(request, response, portletWindowId, cause);
+    }
+
     /**
      * Returns a request attribute scoped Map of portlets that are rendering for the current request.
      */
@@ -0,0 +1,168 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.portlet.rendering.worker;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jasig.portal.portlet.container.cache.CachedPortletData;
+import org.jasig.portal.portlet.om.IPortletWindowId;
+import org.jasig.portal.portlet.rendering.PortletRenderResult;
+
+/**
+ * Worker that returns previously cached render output for a portlet without executing it. Used when the portlet's
+ * {@link PortletCircuitBreaker} is open. Does not use any thread-pool code and does not run the execution
+ * interceptors since the portlet is never executed.
+ * 
+ * @version $Revision$
+ */
+final class CachedPortletRenderExecutionWorker implements IPortletRenderExecutionWorker {
+    private final Map<String, Object> executionAttributes = new ConcurrentHashMap<String, Object>();
+    
+    private final IPortletWindowId portletWindowId;
+    private final String portletFname;
+    private final CachedPortletData<PortletRenderResult> cachedPortletData;
+    
+    private volatile boolean retrieved = false;
+    private volatile long submitted = 0;
+    
+    public CachedPortletRenderExecutionWorker(IPortletWindowId portletWindowId, String portletFname,
+            CachedPortletData<PortletRenderResult> cachedPortletData) {
+        
+        this.portletWindowId = portletWindowId;
+        this.portletFname = portletFname;
+        this.cachedPortletData = cachedPortletData;
+    }
+
+    @Override
+    public ExecutionType getExecutionType() {
+        return ExecutionType.RENDER;
+    }
+
+    @Override
+    public void submit() {
+        if (this.submitted > 0) {
+            throw new IllegalStateException(this.getClass().getSimpleName() + " for " + this.getPortletWindowId() + " has already been submitted.");
+        }
+        
+        this.submitted = System.currentTimeMillis();
+    }
+
+    @Override
+    public String getOutput(long timeout) throws Exception {
+        this.retrieved = true;
+        final String output = this.cachedPortletData.getCachedWriterOutput();
+        return output == null ? "" : output;
+    }
+
+    @Override
+    public long waitForStart(long timeout) throws InterruptedException {
+        return this.submitted;
+    }
+
+    @Override
+    public PortletRenderResult get(long timeout) throws Exception {
+        this.retrieved = true;
+        return this.cachedPortletData.getPortletResult();
+    }
+
+    @Override
+    public void cancel() {
+        //NOOP
+    }
+
+    @Override
+    public int getCancelCount() {
+        return 0;
+    }
+
+    @Override
+    public Object setExecutionAttribute(String name, Object value) {
+        if (value == null) {
+            return executionAttributes.remove(name);
+        }
+        return this.executionAttributes.put(name, value);
+    }
+
+    @Override
+    public Object getExecutionAttribute(String name) {
+        return this.executionAttributes.get(name);
+    }
+
+    @Override
+    public IPortletWindowId getPortletWindowId() {
+        return this.portletWindowId;
+    }
+
+    @Override
+    public String getPortletFname() {
+        return this.portletFname;
+    }
+
+    @Override
+    public long getApplicableTimeout() {
+        return -1;
+    }
+
+    @Override
+    public boolean isSubmitted() {
+        return this.submitted > 0;
+    }
+
+    @Override
+    public boolean isStarted() {
+        return this.submitted > 0;
+    }
+
+    @Override
+    public boolean isComplete() {
+        return this.submitted > 0;
+    }
+
+    @Override
+    public boolean isRetrieved() {
+        return this.retrieved;
+    }
+
+    @Override
+    public long getSubmittedTime() {
+        return this.submitted;
+    }
+
+    @Override
+    public long getStartedTime() {
+        return this.submitted;
+    }
+
+    @Override
+    public long getCompleteTime() {
+        return this.submitted;
+    }
+
+    @Override
+    public long getWait() {
+        return 0;
+    }
+
+    @Override
+    public long getDuration() {
+        return 0;
+    }
+}
@@ -112,7 +112,10 @@ public final class HungWorkerAnalyzer {
                     entry = new PortletHungWorkerAnalysisEntry(fname, worker.getApplicableTimeout());
                     report.put(fname, entry);
                 }
-                entry.recordHungWorker(worker.getStartedTime());
+                //Workers that haven't started yet have not consumed any run time
+                final long startedTime = worker.getStartedTime();
+                final long currentRunTime = startedTime > 0 ? startTime - startedTime : 0;
+                entry.recordHungWorker(currentRunTime);
             }
         }
         
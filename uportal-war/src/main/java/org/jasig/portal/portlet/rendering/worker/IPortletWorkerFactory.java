@@ -23,7 +23,9 @@ import javax.portlet.Event;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.jasig.portal.portlet.container.cache.CachedPortletData;
 import org.jasig.portal.portlet.om.IPortletWindowId;
+import org.jasig.portal.portlet.rendering.PortletRenderResult;
 
 /**
  * Create workers used to execute portlet actions. The workers take care of submitting to
@@ -57,4 +59,8 @@ public interface IPortletWorkerFactory {
      * Create a worker that will execute the failure handler on the specified portlet window that threw an exception
      */
     public IPortletFailureExecutionWorker createFailureWorker(HttpServletRequest request, HttpServletResponse response, IPortletWindowId failedPortletWindowId, Exception cause);
+    /**
+     * Create a worker that will return previously cached render output for the specified portlet window without executing the portlet
+     */
+    public IPortletRenderExecutionWorker createCachedRenderWorker(HttpServletRequest request, HttpServletResponse response, IPortletWindowId portletWindowId, CachedPortletData<PortletRenderResult> cachedPortletData);
 }
@@ -0,0 +1,277 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.portlet.rendering.worker;
+
+/**
+ * Execution history and circuit breaker state for a single portlet (by fname). Tracks consecutive failures and
+ * timeouts along with a running estimate of a render duration percentile.
+ * <p/>
+ * The estimate is updated in constant time per render: a duration above the estimate raises it by
+ * <code>percentile</code> steps, a duration below lowers it by <code>1 - percentile</code> steps, so it settles
+ * where that fraction of durations fall below it. Steps are a tenth of the current estimate, so the estimate rises
+ * quickly when a portlet slows down and falls slowly when it speeds up again.
+ * <p/>
+ * The breaker starts {@link State#CLOSED}. After enough consecutive failures it moves to {@link State#OPEN} and
+ * executions are refused. Once the open duration has passed it moves to {@link State#HALF_OPEN} and a single trial
+ * execution is allowed, if that succeeds the breaker closes, if it fails the breaker opens again.
+ * 
+ * @version $Revision$
+ */
+public final class PortletCircuitBreaker {
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN;
+    }
+    
+    /**
+     * Fraction of the current estimate a single duration moves it by
+     */
+    private static final double LATENCY_ESTIMATE_STEP = 0.1;
+    
+    private final String fname;
+    private final double latencyPercentile;
+    private double latencyEstimate = 0;
+    private long lastLatency = -1;
+    private int sampleCount = 0;
+    
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long stateChangeTime = System.currentTimeMillis();
+    private long trialStartTime = 0;
+    
+    private long successCount = 0;
+    private long failureCount = 0;
+    private long timeoutCount = 0;
+    private long shortCircuitCount = 0;
+    
+    /**
+     * @param fname The portlet fname
+     * @param latencyPercentile The render duration percentile to estimate, between 0 and 1
+     */
+    public PortletCircuitBreaker(String fname, double latencyPercentile) {
+        this.fname = fname;
+        this.latencyPercentile = latencyPercentile;
+    }
+    
+    public String getFname() {
+        return this.fname;
+    }
+    
+    /**
+     * Determine if an execution should be allowed, moving an open breaker to half open if the open duration has passed.
+     * Records a short circuit if the execution is not allowed.
+     * 
+     * @param now The current time
+     * @param openDuration Time in ms the breaker stays open before a trial execution is allowed
+     * @return true if the portlet should be executed
+     */
+    public synchronized boolean allowExecution(long now, long openDuration) {
+        switch (this.state) {
+            case CLOSED: {
+                return true;
+            }
+            case OPEN: {
+                if (now - this.stateChangeTime >= openDuration) {
+                    this.setState(State.HALF_OPEN, now);
+                    this.trialStartTime = now;
+                    return true;
+                }
+                break;
+            }
+            case HALF_OPEN: {
+                //Allow another trial if the first one never reported back
+                if (now - this.trialStartTime >= openDuration) {
+                    this.trialStartTime = now;
+                    return true;
+                }
+                break;
+            }
+        }
+        
+        this.shortCircuitCount++;
+        return false;
+    }
+    
+    /**
+     * Record a successful execution, closes the breaker
+     * 
+     * @param now The current time
+     * @param duration The execution duration in ms, if less than 0 no latency sample is recorded
+     * @return true if this success closed the breaker
+     */
+    public synchronized boolean recordSuccess(long now, long duration) {
+        this.successCount++;
+        this.consecutiveFailures = 0;
+        
+        if (duration >= 0) {
+            this.addLatency(duration);
+        }
+        
+        if (this.state != State.CLOSED) {
+            this.setState(State.CLOSED, now);
+            return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Record the duration of a render without affecting the breaker state, used for renders that completed after
+     * they had already been recorded as a timeout
+     * 
+     * @param duration The execution duration in ms
+     */
+    public synchronized void recordLatency(long duration) {
+        this.addLatency(duration);
+    }
+    
+    /**
+     * Record how long a render had been running when it timed out. This is not added to the estimate but the
+     * adaptive timeout is never less than the last duration recorded.
+     * 
+     * @param elapsed Time in ms the render ran before timing out
+     */
+    public synchronized void recordTimeoutLatency(long elapsed) {
+        this.lastLatency = elapsed;
+    }
+    
+    /**
+     * Record a failed execution
+     * 
+     * @param now The current time
+     * @param timeout true if the failure was the execution timing out
+     * @param failureThreshold Number of consecutive failures that open the breaker
+     * @return true if this failure opened the breaker
+     */
+    public synchronized boolean recordFailure(long now, boolean timeout, int failureThreshold) {
+        if (timeout) {
+            this.timeoutCount++;
+        }
+        else {
+            this.failureCount++;
+        }
+        this.consecutiveFailures++;
+        
+        if (this.state == State.HALF_OPEN || (this.state == State.CLOSED && this.consecutiveFailures >= failureThreshold)) {
+            this.setState(State.OPEN, now);
+            return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Close the breaker and clear the failure count, the latency estimate is retained
+     */
+    public synchronized void reset() {
+        this.consecutiveFailures = 0;
+        this.setState(State.CLOSED, System.currentTimeMillis());
+    }
+    
+    /**
+     * @return The estimated render duration for the percentile, -1 if no durations have been recorded
+     */
+    public synchronized long getLatencyPercentile() {
+        if (this.sampleCount == 0) {
+            return -1;
+        }
+        
+        return Math.round(this.latencyEstimate);
+    }
+    
+    /**
+     * @return The duration of the last recorded render, or of the last render that timed out if that was more
+     * recent, -1 if nothing has been recorded
+     */
+    public synchronized long getLastLatency() {
+        return this.lastLatency;
+    }
+    
+    public synchronized int getLatencySampleCount() {
+        return this.sampleCount;
+    }
+    
+    public synchronized State getState() {
+        return this.state;
+    }
+    
+    public synchronized long getStateChangeTime() {
+        return this.stateChangeTime;
+    }
+    
+    public synchronized int getConsecutiveFailures() {
+        return this.consecutiveFailures;
+    }
+
+    public synchronized long getSuccessCount() {
+        return this.successCount;
+    }
+
+    public synchronized long getFailureCount() {
+        return this.failureCount;
+    }
+
+    public synchronized long getTimeoutCount() {
+        return this.timeoutCount;
+    }
+
+    public synchronized long getShortCircuitCount() {
+        return this.shortCircuitCount;
+    }
+    
+    private void addLatency(long duration) {
+        if (this.sampleCount == 0) {
+            this.latencyEstimate = duration;
+        }
+        else {
+            final double step = Math.max(1, this.latencyEstimate * LATENCY_ESTIMATE_STEP);
+            if (duration > this.latencyEstimate) {
+                this.latencyEstimate += step * this.latencyPercentile;
+            }
+            else if (duration < this.latencyEstimate) {
+                this.latencyEstimate = Math.max(0, this.latencyEstimate - step * (1 - this.latencyPercentile));
+            }
+        }
+        
+        this.lastLatency = duration;
+        if (this.sampleCount < Integer.MAX_VALUE) {
+            this.sampleCount++;
+        }
+    }
+    
+    private void setState(State state, long now) {
+        this.state = state;
+        this.stateChangeTime = now;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PortletCircuitBreaker [" +
+                "fname=" + this.fname + ", " +
+                "state=" + this.state + ", " +
+                "consecutiveFailures=" + this.consecutiveFailures + ", " +
+                "successCount=" + this.successCount + ", " +
+                "failureCount=" + this.failureCount + ", " +
+                "timeoutCount=" + this.timeoutCount + ", " +
+                "shortCircuitCount=" + this.shortCircuitCount + ", " +
+                "latencySamples=" + this.sampleCount + "]";
+    }
+}
@@ -0,0 +1,335 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.portlet.rendering.worker;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.portal.portlet.rendering.worker.IPortletExecutionContext.ExecutionType;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Tracks portlet execution results and timeouts by fname. Portlets that fail or time out repeatedly have their
+ * {@link PortletCircuitBreaker} opened so the rendering pipeline can skip executing them for a while, and the
+ * recorded render durations are used to shorten the render timeout of portlets that consistently render well
+ * inside of their configured timeout. Only render executions are tracked. Both features are disabled by default.
+ * 
+ * @version $Revision$
+ */
+@Service("portletCircuitBreakerManager")
+public class PortletCircuitBreakerManager {
+    /**
+     * Execution attribute set on workers that have already been recorded as timing out
+     */
+    static final String TIMEOUT_RECORDED_ATTRIBUTE = PortletCircuitBreakerManager.class.getName() + ".TIMEOUT_RECORDED";
+    
+    protected final Log logger = LogFactory.getLog(this.getClass());
+    
+    private final LoadingCache<String, PortletCircuitBreaker> circuitBreakers = CacheBuilder.newBuilder().build(new CacheLoader<String, PortletCircuitBreaker>() {
+        @Override
+        public PortletCircuitBreaker load(String fname) throws Exception {
+            return new PortletCircuitBreaker(fname, adaptiveTimeoutPercentile);
+        }
+    });
+    
+    private boolean circuitBreakerEnabled = false;
+    private int failureThreshold = 10;
+    private long openDuration = 60000;
+    private boolean adaptiveTimeoutEnabled = false;
+    private double adaptiveTimeoutPercentile = 0.99;
+    private double adaptiveTimeoutMultiplier = 3;
+    private long minimumAdaptiveTimeout = 1000;
+    private int minimumLatencySamples = 20;
+
+    /**
+     * @param circuitBreakerEnabled If portlets that repeatedly fail or time out should stop being executed. Defaults to false.
+     */
+    @Value("${org.jasig.portal.portlet.circuitBreaker.enabled:false}")
+    public void setCircuitBreakerEnabled(boolean circuitBreakerEnabled) {
+        this.circuitBreakerEnabled = circuitBreakerEnabled;
+    }
+
+    /**
+     * @param failureThreshold Number of consecutive failures or timeouts that open the circuit breaker. Defaults to 10.
+     */
+    @Value("${org.jasig.portal.portlet.circuitBreaker.failureThreshold:10}")
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * @param openDuration Time in ms an open circuit breaker waits before allowing a trial execution. Defaults to 60000.
+     */
+    @Value("${org.jasig.portal.portlet.circuitBreaker.openDuration:60000}")
+    public void setOpenDuration(long openDuration) {
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * @param adaptiveTimeoutEnabled If render timeouts should be adjusted based on recorded render durations. Defaults to false.
+     */
+    @Value("${org.jasig.portal.portlet.adaptiveTimeout.enabled:false}")
+    public void setAdaptiveTimeoutEnabled(boolean adaptiveTimeoutEnabled) {
+        this.adaptiveTimeoutEnabled = adaptiveTimeoutEnabled;
+    }
+
+    /**
+     * @param adaptiveTimeoutPercentile The render duration percentile the adaptive timeout is based on. Defaults to 0.99
+     */
+    @Value("${org.jasig.portal.portlet.adaptiveTimeout.percentile:0.99}")
+    public void setAdaptiveTimeoutPercentile(double adaptiveTimeoutPercentile) {
+        if (adaptiveTimeoutPercentile <= 0 || adaptiveTimeoutPercentile > 1) {
+            throw new IllegalArgumentException("adaptiveTimeoutPercentile must be greater than 0 and less than or equal to 1: " + adaptiveTimeoutPercentile);
+        }
+        this.adaptiveTimeoutPercentile = adaptiveTimeoutPercentile;
+    }
+
+    /**
+     * @param adaptiveTimeoutMultiplier Multiplied by the percentile render duration to calculate the adaptive timeout. Defaults to 3
+     */
+    @Value("${org.jasig.portal.portlet.adaptiveTimeout.multiplier:3}")
+    public void setAdaptiveTimeoutMultiplier(double adaptiveTimeoutMultiplier) {
+        this.adaptiveTimeoutMultiplier = adaptiveTimeoutMultiplier;
+    }
+
+    /**
+     * @param minimumAdaptiveTimeout The adaptive timeout will never be less than this many ms. Defaults to 1000
+     */
+    @Value("${org.jasig.portal.portlet.adaptiveTimeout.minimumTimeout:1000}")
+    public void setMinimumAdaptiveTimeout(long minimumAdaptiveTimeout) {
+        this.minimumAdaptiveTimeout = minimumAdaptiveTimeout;
+    }
+
+    /**
+     * @param minimumLatencySamples Number of render durations that must be recorded before the adaptive timeout is used. Defaults to 20
+     */
+    public void setMinimumLatencySamples(int minimumLatencySamples) {
+        this.minimumLatencySamples = minimumLatencySamples;
+    }
+
+    
+    public boolean isCircuitBreakerEnabled() {
+        return this.circuitBreakerEnabled;
+    }
+
+    public int getFailureThreshold() {
+        return this.failureThreshold;
+    }
+
+    public long getOpenDuration() {
+        return this.openDuration;
+    }
+
+    public boolean isAdaptiveTimeoutEnabled() {
+        return this.adaptiveTimeoutEnabled;
+    }
+
+    public double getAdaptiveTimeoutPercentile() {
+        return this.adaptiveTimeoutPercentile;
+    }
+
+    public double getAdaptiveTimeoutMultiplier() {
+        return this.adaptiveTimeoutMultiplier;
+    }
+
+    public long getMinimumAdaptiveTimeout() {
+        return this.minimumAdaptiveTimeout;
+    }
+
+    /**
+     * @return true if the portlet should be executed, false if its circuit breaker is open
+     */
+    public boolean allowExecution(String fname) {
+        if (!this.circuitBreakerEnabled) {
+            return true;
+        }
+        
+        final PortletCircuitBreaker circuitBreaker = this.circuitBreakers.getUnchecked(fname);
+        final boolean allowed = circuitBreaker.allowExecution(System.currentTimeMillis(), this.openDuration);
+        if (!allowed && this.logger.isDebugEnabled()) {
+            this.logger.debug("Circuit breaker is open, not executing portlet: " + fname);
+        }
+        return allowed;
+    }
+    
+    /**
+     * Record the result of a completed portlet execution
+     * 
+     * @param context The execution that completed
+     * @param e The exception thrown by the execution, null if it was successful
+     */
+    public void recordExecution(IPortletExecutionContext context, Exception e) {
+        final ExecutionType executionType = context.getExecutionType();
+        if (!isRenderExecution(executionType)) {
+            //Action, event and resource requests don't go through the render breaker and the error portlet
+            //renders on behalf of another portlet, nothing to record
+            return;
+        }
+        
+        final String fname = context.getPortletFname();
+        final PortletCircuitBreaker circuitBreaker = this.circuitBreakers.getUnchecked(fname);
+        final long now = System.currentTimeMillis();
+        
+        //Only render durations are used for the adaptive render timeout
+        final long startedTime = context.getStartedTime();
+        final long duration = executionType == ExecutionType.RENDER && startedTime > 0 ? now - startedTime : -1;
+        
+        if (context.getExecutionAttribute(TIMEOUT_RECORDED_ATTRIBUTE) != null) {
+            //Already recorded as a timeout, only record how long the render really took so the adaptive
+            //timeout can grow to fit it
+            if (e == null && duration >= 0) {
+                circuitBreaker.recordLatency(duration);
+            }
+            return;
+        }
+        
+        if (e == null) {
+            if (circuitBreaker.recordSuccess(now, duration)) {
+                this.logger.info("Circuit breaker closed after successful execution of portlet: " + fname);
+            }
+        }
+        else {
+            this.recordFailure(circuitBreaker, now, false);
+        }
+    }
+    
+    /**
+     * Record that a portlet execution did not complete within its timeout
+     */
+    public void recordTimeout(IPortletExecutionContext context) {
+        if (!isRenderExecution(context.getExecutionType()) || context.getExecutionAttribute(TIMEOUT_RECORDED_ATTRIBUTE) != null) {
+            return;
+        }
+        context.setExecutionAttribute(TIMEOUT_RECORDED_ATTRIBUTE, Boolean.TRUE);
+        
+        final String fname = context.getPortletFname();
+        final PortletCircuitBreaker circuitBreaker = this.circuitBreakers.getUnchecked(fname);
+        final long now = System.currentTimeMillis();
+        
+        final long startedTime = context.getStartedTime();
+        if (context.getExecutionType() == ExecutionType.RENDER && startedTime > 0) {
+            circuitBreaker.recordTimeoutLatency(now - startedTime);
+        }
+        
+        this.recordFailure(circuitBreaker, now, true);
+    }
+    
+    /**
+     * Calculate the render timeout for a portlet. If enough render durations have been recorded the timeout is the
+     * estimated percentile duration times the multiplier, never less than the minimum adaptive timeout or the last
+     * recorded render duration and never more than the configured timeout. Portlets whose circuit breaker is not
+     * closed get the configured timeout so a trial render isn't cut short by a stale estimate.
+     * 
+     * @param fname The portlet fname
+     * @param timeout The configured render timeout
+     * @return The timeout to use for the render
+     */
+    public long getRenderTimeout(String fname, long timeout) {
+        if (!this.adaptiveTimeoutEnabled) {
+            return timeout;
+        }
+        
+        final PortletCircuitBreaker circuitBreaker = this.circuitBreakers.getIfPresent(fname);
+        if (circuitBreaker == null || circuitBreaker.getLatencySampleCount() < this.minimumLatencySamples 
+                || circuitBreaker.getState() != PortletCircuitBreaker.State.CLOSED) {
+            return timeout;
+        }
+        
+        final long percentileLatency = circuitBreaker.getLatencyPercentile();
+        long adaptiveTimeout = Math.max(this.minimumAdaptiveTimeout, (long)(percentileLatency * this.adaptiveTimeoutMultiplier));
+        adaptiveTimeout = Math.max(adaptiveTimeout, circuitBreaker.getLastLatency());
+        return Math.min(timeout, adaptiveTimeout);
+    }
+    
+    /**
+     * @return The state of each tracked portlet's circuit breaker, keyed by fname
+     */
+    public Map<String, String> getCircuitBreakerStates() {
+        final Map<String, String> states = new TreeMap<String, String>();
+        for (final PortletCircuitBreaker circuitBreaker : this.circuitBreakers.asMap().values()) {
+            states.put(circuitBreaker.getFname(), 
+                    circuitBreaker.toString() + " p" + Math.round(this.adaptiveTimeoutPercentile * 100) + "=" + 
+                            circuitBreaker.getLatencyPercentile() + "ms");
+        }
+        return states;
+    }
+    
+    /**
+     * @return The fnames of portlets with open or half-open circuit breakers
+     */
+    public Set<String> getOpenCircuitBreakers() {
+        final Set<String> open = new TreeSet<String>();
+        for (final PortletCircuitBreaker circuitBreaker : this.circuitBreakers.asMap().values()) {
+            if (circuitBreaker.getState() != PortletCircuitBreaker.State.CLOSED) {
+                open.add(circuitBreaker.getFname());
+            }
+        }
+        return open;
+    }
+    
+    /**
+     * @return The number of portlets with open or half-open circuit breakers
+     */
+    public int getOpenCircuitBreakerCount() {
+        return this.getOpenCircuitBreakers().size();
+    }
+    
+    /**
+     * Close the circuit breaker for the portlet
+     */
+    public void resetCircuitBreaker(String fname) {
+        final PortletCircuitBreaker circuitBreaker = this.circuitBreakers.getIfPresent(fname);
+        if (circuitBreaker != null) {
+            circuitBreaker.reset();
+            this.logger.info("Circuit breaker reset for portlet: " + fname);
+        }
+    }
+    
+    /**
+     * Close all circuit breakers
+     */
+    public void resetAllCircuitBreakers() {
+        for (final PortletCircuitBreaker circuitBreaker : this.circuitBreakers.asMap().values()) {
+            circuitBreaker.reset();
+        }
+        this.logger.info("All portlet circuit breakers reset");
+    }
+    
+    private static boolean isRenderExecution(ExecutionType executionType) {
+        return executionType == ExecutionType.RENDER || executionType == ExecutionType.RENDER_HEADER;
+    }
+    
+    private void recordFailure(PortletCircuitBreaker circuitBreaker, long now, boolean timeout) {
+        if (circuitBreaker.recordFailure(now, timeout, this.failureThreshold) && this.circuitBreakerEnabled) {
+            this.logger.warn("Circuit breaker opened for portlet '" + circuitBreaker.getFname() + "' after " + 
+                    circuitBreaker.getConsecutiveFailures() + " consecutive failures or timeouts, it will not be executed for " + 
+                    this.openDuration + "ms");
+        }
+    }
+}
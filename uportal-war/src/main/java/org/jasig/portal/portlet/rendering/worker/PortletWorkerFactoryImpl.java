@@ -28,6 +28,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.jasig.portal.IUserPreferencesManager;
 import org.jasig.portal.layout.IUserLayoutManager;
+import org.jasig.portal.portlet.container.cache.CachedPortletData;
 import org.jasig.portal.portlet.om.IPortletDefinition;
 import org.jasig.portal.portlet.om.IPortletEntity;
 import org.jasig.portal.portlet.om.IPortletWindow;
@@ -35,6 +36,7 @@ import org.jasig.portal.portlet.om.IPortletWindowId;
 import org.jasig.portal.portlet.registry.IPortletEntityRegistry;
 import org.jasig.portal.portlet.registry.IPortletWindowRegistry;
 import org.jasig.portal.portlet.rendering.IPortletRenderer;
+import org.jasig.portal.portlet.rendering.PortletRenderResult;
 import org.jasig.portal.user.IUserInstance;
 import org.jasig.portal.user.IUserInstanceManager;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -79,8 +81,11 @@ public class PortletWorkerFactoryImpl implements IPortletWorkerFactory {
         this.portletWindowRegistry = portletWindowRegistry;
     }
 
+    /**
+     * @param portletThreadPool The executor portlet workers are submitted to, either the platform thread pool or a virtual thread executor
+     */
     @Autowired
-    public void setPortletThreadPool(@Qualifier("portletThreadPool") ExecutorService portletThreadPool) {
+    public void setPortletThreadPool(@Qualifier("portletExecutor") ExecutorService portletThreadPool) {
         this.portletThreadPool = portletThreadPool;
     }
 
@@ -149,6 +154,12 @@ public class PortletWorkerFactoryImpl implements IPortletWorkerFactory {
          */
     }
     
+    @Override
+    public IPortletRenderExecutionWorker createCachedRenderWorker(HttpServletRequest request, HttpServletResponse response, IPortletWindowId portletWindowId, CachedPortletData<PortletRenderResult> cachedPortletData) {
+        final String portletFname = this.getPortletFname(request, portletWindowId);
+        return new CachedPortletRenderExecutionWorker(portletWindowId, portletFname, cachedPortletData);
+    }
+    
     protected IPortletWindowId getErrorPortletWindowId(HttpServletRequest request, String fname) {
         final IUserInstance userInstance = this.userInstanceManager.getUserInstance(request);
         final IUserPreferencesManager preferencesManager = userInstance.getPreferencesManager();
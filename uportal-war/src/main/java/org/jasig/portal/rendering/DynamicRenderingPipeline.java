@@ -21,6 +21,7 @@ package org.jasig.portal.rendering;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -31,9 +32,11 @@ import org.jasig.portal.character.stream.CharacterEventReader;
 import org.jasig.portal.character.stream.events.CharacterDataEvent;
 import org.jasig.portal.character.stream.events.CharacterEvent;
 import org.jasig.portal.character.stream.events.CharacterEventTypes;
+import org.jasig.portal.character.stream.events.ChunkPointCharacterEvent;
 import org.jasig.portal.events.IPortalEventFactory;
 import org.jasig.portal.url.IPortalRequestInfo;
 import org.jasig.portal.url.IUrlSyntaxProvider;
+import org.jasig.portal.utils.cache.CacheKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -48,12 +51,73 @@ public class DynamicRenderingPipeline implements IPortalRenderingPipeline {
     public static final String CHARACTER_SET = "UTF-8";
     public static final String DEFAULT_MEDIA_TYPE = "text/html";
     
+    /**
+     * Request attribute containing the number of UTF-8 bytes written for the rendered page, set after rendering completes
+     */
+    public static final String BYTES_WRITTEN_ATTRIBUTE = DynamicRenderingPipeline.class.getName() + ".BYTES_WRITTEN";
+    /**
+     * Request attribute containing the number of times the response was flushed to the client, set after rendering completes
+     */
+    public static final String FLUSH_COUNT_ATTRIBUTE = DynamicRenderingPipeline.class.getName() + ".FLUSH_COUNT";
+    /**
+     * Request attribute containing the milliseconds speculatively started portlets were rendering while the
+     * pipeline was still transforming the layout, only set if portlets were started speculatively
+     */
+    public static final String SPECULATIVE_RENDER_OVERLAP_ATTRIBUTE = DynamicRenderingPipeline.class.getName() + ".SPECULATIVE_RENDER_OVERLAP";
+    
+    /**
+     * Controls when rendered output is pushed to the client
+     */
+    public enum FlushPolicy {
+        /**
+         * Flush the response after every character event
+         */
+        EVERY_EVENT,
+        /**
+         * Buffer character events and only flush the response at chunk-points, before blocking on a
+         * portlet that is still rendering and at the end of the page
+         */
+        CHUNK_POINTS;
+    }
+    
     protected final Logger logger = LoggerFactory.getLogger(getClass());
     
     private CharacterPipelineComponent pipeline;
     private IPortalEventFactory portalEventFactory;
     private IUrlSyntaxProvider urlSyntaxProvider;
+    private FlushPolicy flushPolicy = FlushPolicy.CHUNK_POINTS;
+    private int bufferSize = 8192;
+    private PageEtagGenerator pageEtagGenerator;
+    private boolean pageEtagsEnabled = false;
     
+    /**
+     * @param flushPolicy When rendered output should be flushed to the client, defaults to {@link FlushPolicy#CHUNK_POINTS}, the same
+     * default portal.properties ships with
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    /**
+     * @param bufferSize Number of characters to buffer before writing through to the response, defaults to 8192
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @param pageEtagGenerator Generates ETags for rendered pages, required if page ETags are enabled
+     */
+    public void setPageEtagGenerator(PageEtagGenerator pageEtagGenerator) {
+        this.pageEtagGenerator = pageEtagGenerator;
+    }
+
+    /**
+     * @param pageEtagsEnabled If ETags should be generated for rendered pages and conditional GETs answered with a 304, defaults to false
+     */
+    public void setPageEtagsEnabled(boolean pageEtagsEnabled) {
+        this.pageEtagsEnabled = pageEtagsEnabled;
+    }
 
     @Autowired
     public void setUrlSyntaxProvider(IUrlSyntaxProvider urlSyntaxProvider) {
@@ -81,8 +145,34 @@ public class DynamicRenderingPipeline implements IPortalRenderingPipeline {
         res.setDateHeader("Expires", 0);
         
         final long startTime = System.nanoTime();
+        
+        //Check if the page is unchanged from what the browser has
+        CacheKey pipelineCacheKey = null;
+        if (this.isPageEtagsEnabled(req)) {
+            pipelineCacheKey = this.pipeline.getCacheKey(req, res);
+            final String pageEtag = this.pageEtagGenerator.getPageEtag(req, pipelineCacheKey);
+            if (pageEtag != null) {
+                res.setHeader("ETag", pageEtag);
+                
+                if (PageEtagGenerator.isEtagMatch(req, pageEtag)) {
+                    res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    req.setAttribute(BYTES_WRITTEN_ATTRIBUTE, 0L);
+                    req.setAttribute(FLUSH_COUNT_ATTRIBUTE, 0);
+                    this.logger.debug("Page ETag {} matches, returning 304", pageEtag);
+                    
+                    this.publishRenderEvent(req, startTime);
+                    return;
+                }
+            }
+        }
 
         final PipelineEventReader<CharacterEventReader, CharacterEvent> pipelineEventReader = this.pipeline.getEventReader(req, res);
+        this.recordSpeculativeRenderOverlap(req);
+        
+        //All portlets on the page have been initiated, record them for generating ETags for later requests
+        if (pipelineCacheKey != null) {
+            this.pageEtagGenerator.recordPagePortletWindows(req, pipelineCacheKey);
+        }
         final String mediaType = getMediaType(req, res, pipelineEventReader);
 
         // set the response mime type
@@ -90,18 +180,68 @@ public class DynamicRenderingPipeline implements IPortalRenderingPipeline {
         res.setContentType(contentType);
         
         final PrintWriter writer = res.getWriter();
-        
-        for (final CharacterEvent event : pipelineEventReader) {
-            if (CharacterEventTypes.CHARACTER != event.getEventType()) {
-                throw new RenderingPipelineConfigurationException("Only " + CharacterEventTypes.CHARACTER + " events are supported in the top level renderer. " + event.getEventType() + " is not supported.");
+        final RenderingOutputBuffer outputBuffer = new RenderingOutputBuffer(writer, res, this.bufferSize);
+        outputBuffer.register(req);
+        try {
+            for (final CharacterEvent event : pipelineEventReader) {
+                if (CharacterEventTypes.CHARACTER != event.getEventType()) {
+                    throw new RenderingPipelineConfigurationException("Only " + CharacterEventTypes.CHARACTER + " events are supported in the top level renderer. " + event.getEventType() + " is not supported.");
+                }
+                
+                final String data = ((CharacterDataEvent)event).getData();
+                outputBuffer.write(data);
+                
+                if (this.flushPolicy == FlushPolicy.EVERY_EVENT || ChunkPointCharacterEvent.isChunkPoint(event)) {
+                    outputBuffer.flush();
+                }
             }
             
-            final String data = ((CharacterDataEvent)event).getData();
-            writer.print(data);
-            writer.flush();
-            res.flushBuffer();
+            outputBuffer.flush();
+        }
+        finally {
+            outputBuffer.unregister(req);
+            outputBuffer.close();
+        }
+        
+        final long bytesWritten = outputBuffer.getBytesWritten();
+        final int flushCount = outputBuffer.getFlushCount();
+        req.setAttribute(BYTES_WRITTEN_ATTRIBUTE, bytesWritten);
+        req.setAttribute(FLUSH_COUNT_ATTRIBUTE, flushCount);
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Rendered " + bytesWritten + " bytes with " + flushCount + " flushes using the " + this.flushPolicy + " flush policy");
+        }
+        
+        this.publishRenderEvent(req, startTime);
+    }
+    
+    /**
+     * If portlets were started speculatively record how long they were rendering before the pipeline
+     * finished transforming the layout.
+     */
+    protected void recordSpeculativeRenderOverlap(HttpServletRequest req) {
+        final Long speculativeStart = (Long) req.getAttribute(PortletRenderingInitiationStAXComponent.SPECULATIVE_RENDER_START_ATTRIBUTE);
+        if (speculativeStart == null) {
+            return;
         }
         
+        final long overlap = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - speculativeStart);
+        req.setAttribute(SPECULATIVE_RENDER_OVERLAP_ATTRIBUTE, overlap);
+        if (this.logger.isDebugEnabled()) {
+            final Integer missed = (Integer) req.getAttribute(PortletRenderingInitiationStAXComponent.SPECULATIVE_RENDER_MISSED_ATTRIBUTE);
+            this.logger.debug("Speculatively started " + req.getAttribute(PortletRenderingInitiationStAXComponent.SPECULATIVE_RENDER_COUNT_ATTRIBUTE) + 
+                    " portlets which rendered for " + overlap + "ms while the layout was transformed, " + 
+                    (missed != null ? missed : 0) + " portlets were not predicted");
+        }
+    }
+    
+    /**
+     * Page ETags are only used for GET requests
+     */
+    protected boolean isPageEtagsEnabled(HttpServletRequest req) {
+        return this.pageEtagsEnabled && this.pageEtagGenerator != null && "GET".equals(req.getMethod());
+    }
+    
+    protected void publishRenderEvent(HttpServletRequest req, long startTime) {
         final long executionTime = System.nanoTime() - startTime;
         final IPortalRequestInfo portalRequestInfo = this.urlSyntaxProvider.getPortalRequestInfo(req);
         this.portalEventFactory.publishPortalRenderEvent(req, this, req.getPathInfo(), executionTime, portalRequestInfo);
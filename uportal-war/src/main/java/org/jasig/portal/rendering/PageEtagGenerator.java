@@ -0,0 +1,213 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.rendering;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+
+import org.apache.commons.codec.binary.Hex;
+import org.jasig.portal.portlet.container.cache.CacheState;
+import org.jasig.portal.portlet.container.cache.CachedPortletData;
+import org.jasig.portal.portlet.container.cache.IPortletCacheControlService;
+import org.jasig.portal.portlet.om.IPortletWindowId;
+import org.jasig.portal.portlet.rendering.PortletRenderResult;
+import org.jasig.portal.utils.cache.CacheKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Builds an aggregate ETag for a rendered portal page from the rendering pipeline {@link CacheKey} and the
+ * cache state of every portlet on the page. The portlets on a page are only known once the pipeline has
+ * run so they are recorded, by pipeline cache key, as each page is rendered. A later request for a page
+ * with the same pipeline cache key gets an ETag only if every recorded portlet has cached output that can
+ * be replayed without executing the portlet.
+ * <p/>
+ * The pipeline cache key is part of every ETag so the layout, theme, locale and skin are only covered as far
+ * as the pipeline components include them in their cache keys. State that affects the page but isn't in any
+ * component's cache key is not detected, which is why page ETags are disabled by default.
+ * 
+ * @version $Revision$
+ */
+public class PageEtagGenerator {
+    private static final String PAGE_PORTLET_WINDOWS_ATTRIBUTE = PageEtagGenerator.class.getName() + ".PAGE_PORTLET_WINDOWS";
+    private static final String IF_NONE_MATCH = "If-None-Match";
+    
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+    
+    private IPortletCacheControlService portletCacheControlService;
+    private Ehcache pagePortletWindowsCache;
+    
+    @Autowired
+    public void setPortletCacheControlService(IPortletCacheControlService portletCacheControlService) {
+        this.portletCacheControlService = portletCacheControlService;
+    }
+
+    /**
+     * Cache of pipeline {@link CacheKey} to the portlet windows rendered on that page
+     */
+    public void setPagePortletWindowsCache(Ehcache pagePortletWindowsCache) {
+        this.pagePortletWindowsCache = pagePortletWindowsCache;
+    }
+    
+    /**
+     * Track a portlet that will have its header rendered for the current request
+     */
+    public static void addPortletHeaderWindow(HttpServletRequest request, IPortletWindowId portletWindowId) {
+        getPagePortletWindows(request, true).headerWindowIds.add(portletWindowId);
+    }
+
+    /**
+     * Track a portlet that will be rendered for the current request
+     */
+    public static void addPortletWindow(HttpServletRequest request, IPortletWindowId portletWindowId) {
+        getPagePortletWindows(request, true).windowIds.add(portletWindowId);
+    }
+    
+    private static PagePortletWindows getPagePortletWindows(HttpServletRequest request, boolean create) {
+        PagePortletWindows pagePortletWindows = (PagePortletWindows) request.getAttribute(PAGE_PORTLET_WINDOWS_ATTRIBUTE);
+        if (pagePortletWindows == null && create) {
+            pagePortletWindows = new PagePortletWindows();
+            request.setAttribute(PAGE_PORTLET_WINDOWS_ATTRIBUTE, pagePortletWindows);
+        }
+        return pagePortletWindows;
+    }
+    
+    /**
+     * @return true if the request has an If-None-Match header that matches the ETag
+     */
+    public static boolean isEtagMatch(HttpServletRequest request, String etag) {
+        final String ifNoneMatch = request.getHeader(IF_NONE_MATCH);
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        
+        for (final String requestEtag : ifNoneMatch.split(",")) {
+            final String trimmedEtag = requestEtag.trim();
+            if (trimmedEtag.equals(etag) || trimmedEtag.equals("*")) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Record the portlets tracked for the current request as the portlets on the page for the pipeline cache key.
+     */
+    public void recordPagePortletWindows(HttpServletRequest request, CacheKey pipelineCacheKey) {
+        final PagePortletWindows pagePortletWindows = getPagePortletWindows(request, false);
+        if (pagePortletWindows == null) {
+            this.pagePortletWindowsCache.put(new Element(pipelineCacheKey, new PagePortletWindows()));
+        }
+        else {
+            this.pagePortletWindowsCache.put(new Element(pipelineCacheKey, pagePortletWindows));
+        }
+    }
+    
+    /**
+     * Generate the ETag for the page with the pipeline cache key.
+     * 
+     * @return The page ETag, null if the portlets on the page are not known or if any portlet must be executed to render the page
+     */
+    public String getPageEtag(HttpServletRequest request, CacheKey pipelineCacheKey) {
+        final Element element = this.pagePortletWindowsCache.get(pipelineCacheKey);
+        if (element == null) {
+            logger.debug("No portlets recorded for pipeline key, no ETag will be generated");
+            return null;
+        }
+        
+        final PagePortletWindows pagePortletWindows = (PagePortletWindows) element.getObjectValue();
+        
+        final MessageDigest digest = createDigest();
+        update(digest, pipelineCacheKey.toString());
+        
+        for (final IPortletWindowId portletWindowId : pagePortletWindows.headerWindowIds) {
+            final CacheState<CachedPortletData<PortletRenderResult>, PortletRenderResult> cacheState = this.portletCacheControlService.getPortletRenderHeaderState(request, portletWindowId);
+            if (!this.update(digest, portletWindowId, cacheState)) {
+                return null;
+            }
+        }
+        
+        for (final IPortletWindowId portletWindowId : pagePortletWindows.windowIds) {
+            final CacheState<CachedPortletData<PortletRenderResult>, PortletRenderResult> cacheState = this.portletCacheControlService.getPortletRenderState(request, portletWindowId);
+            if (!this.update(digest, portletWindowId, cacheState)) {
+                return null;
+            }
+        }
+        
+        return "\"" + Hex.encodeHexString(digest.digest()) + "\"";
+    }
+    
+    /**
+     * Add the portlet's cached data to the digest
+     * 
+     * @return false if the portlet has no cached data that can be replayed
+     */
+    protected boolean update(MessageDigest digest, IPortletWindowId portletWindowId, CacheState<CachedPortletData<PortletRenderResult>, PortletRenderResult> cacheState) {
+        final CachedPortletData<PortletRenderResult> cachedPortletData = cacheState.getCachedPortletData();
+        if (!cacheState.isUseCachedData() || cachedPortletData == null) {
+            logger.debug("{} has no usable cached data, no ETag will be generated", portletWindowId);
+            return false;
+        }
+        
+        update(digest, portletWindowId.getStringId());
+        update(digest, String.valueOf(cachedPortletData.getEtag()));
+        update(digest, String.valueOf(cachedPortletData.getTimeStored()));
+        return true;
+    }
+    
+    private static void update(MessageDigest digest, String value) {
+        try {
+            digest.update(value.getBytes("UTF-8"));
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 must be supported", e);
+        }
+        digest.update((byte) 0);
+    }
+    
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 must be supported", e);
+        }
+    }
+    
+    /**
+     * The header and content portlet windows on a rendered page
+     */
+    private static final class PagePortletWindows implements Serializable {
+        private static final long serialVersionUID = 1L;
+        
+        private final Set<IPortletWindowId> headerWindowIds = new LinkedHashSet<IPortletWindowId>();
+        private final Set<IPortletWindowId> windowIds = new LinkedHashSet<IPortletWindowId>();
+    }
+}
@@ -19,6 +19,7 @@
 
 package org.jasig.portal.rendering;
 
+import java.io.IOException;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
@@ -87,6 +88,23 @@ public class PortletRenderingIncorporationComponent extends CharacterPipelineCom
             this.request = request;
             this.response = response;
         }
+        
+        /**
+         * If the portlet output is not yet available push the already rendered markup to the
+         * client before blocking on the portlet worker.
+         */
+        private void flushIfBlocking(boolean complete) {
+            if (complete) {
+                return;
+            }
+            
+            try {
+                RenderingOutputBuffer.flushOutputBuffer(this.request);
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Failed to flush rendered output before waiting on portlet", e);
+            }
+        }
 
         @Override
         protected CharacterEvent filterEvent(CharacterEvent event, boolean peek) {
@@ -95,6 +113,7 @@ public class PortletRenderingIncorporationComponent extends CharacterPipelineCom
             		final PortletHeaderPlaceholderEvent headerPlaceholderEvent = (PortletHeaderPlaceholderEvent) event;
             		final IPortletWindowId portletWindowId = headerPlaceholderEvent.getPortletWindowId();
             		
+            		flushIfBlocking(portletExecutionManager.isPortletRenderHeaderComplete(portletWindowId, this.request, this.response));
             		final String output = portletExecutionManager.getPortletHeadOutput(portletWindowId, this.request, this.response);
             		
             		return CharacterDataEventImpl.create(output);
@@ -102,6 +121,7 @@ public class PortletRenderingIncorporationComponent extends CharacterPipelineCom
                 case PORTLET_CONTENT: {
                     final PortletContentPlaceholderEvent contentPlaceholderEvent = (PortletContentPlaceholderEvent)event;
                     final IPortletWindowId portletWindowId = contentPlaceholderEvent.getPortletWindowId();
+                    flushIfBlocking(portletExecutionManager.isPortletRenderComplete(portletWindowId, this.request, this.response));
                     
                     final String output = portletExecutionManager.getPortletOutput(portletWindowId, this.request, this.response);
                     
@@ -110,6 +130,7 @@ public class PortletRenderingIncorporationComponent extends CharacterPipelineCom
                 case PORTLET_TITLE: {
                     final PortletTitlePlaceholderEvent titlePlaceholderEvent = (PortletTitlePlaceholderEvent)event;
                     final IPortletWindowId portletWindowId = titlePlaceholderEvent.getPortletWindowId();
+                    flushIfBlocking(portletExecutionManager.isPortletRenderComplete(portletWindowId, this.request, this.response));
                     
                     final String title = portletExecutionManager.getPortletTitle(portletWindowId, this.request, this.response);
                     
@@ -118,6 +139,7 @@ public class PortletRenderingIncorporationComponent extends CharacterPipelineCom
                 case PORTLET_NEW_ITEM_COUNT: {
                     final PortletNewItemCountPlaceholderEvent newItemCountPlaceholderEvent = (PortletNewItemCountPlaceholderEvent)event;
                     final IPortletWindowId portletWindowId = newItemCountPlaceholderEvent.getPortletWindowId();
+                    flushIfBlocking(portletExecutionManager.isPortletRenderComplete(portletWindowId, this.request, this.response));
                     
                     final int newItemCount = portletExecutionManager.getPortletNewItemCount(portletWindowId, this.request, this.response);
                     
@@ -126,6 +148,7 @@ public class PortletRenderingIncorporationComponent extends CharacterPipelineCom
                 case PORTLET_LINK: {
                     final PortletLinkPlaceholderEvent linkPlaceholderEvent = (PortletLinkPlaceholderEvent)event;
                     final IPortletWindowId portletWindowId = linkPlaceholderEvent.getPortletWindowId();
+                    flushIfBlocking(portletExecutionManager.isPortletRenderComplete(portletWindowId, this.request, this.response));
                     final String defaultPortletUrl = linkPlaceholderEvent.getDefaultPortletUrl();
                     
                     final String link = portletExecutionManager.getPortletLink(portletWindowId, defaultPortletUrl, this.request, this.response);
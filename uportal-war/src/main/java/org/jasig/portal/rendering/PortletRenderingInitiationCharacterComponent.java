@@ -86,6 +86,7 @@ public class PortletRenderingInitiationCharacterComponent extends CharacterPipel
                     if (!this.portletExecutionManager.isPortletRenderHeaderRequested(portletWindowId, request, response)) {
                         this.portletExecutionManager.startPortletHeaderRender(portletWindowId, request, response);
                     }
+                    PageEtagGenerator.addPortletHeaderWindow(request, portletWindowId);
                     
                     break;
                 }
@@ -96,6 +97,7 @@ public class PortletRenderingInitiationCharacterComponent extends CharacterPipel
                     if (!this.portletExecutionManager.isPortletRenderRequested(portletWindowId, request, response)) {
                         this.portletExecutionManager.startPortletRender(portletWindowId, request, response);
                     }
+                    PageEtagGenerator.addPortletWindow(request, portletWindowId);
                     
                     break;
                 }
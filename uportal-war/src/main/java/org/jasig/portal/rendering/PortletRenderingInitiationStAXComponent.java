@@ -19,20 +19,35 @@
 
 package org.jasig.portal.rendering;
 
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
 import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.events.Attribute;
 import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
 
+import org.jasig.portal.IUserPreferencesManager;
+import org.jasig.portal.layout.IStylesheetUserPreferencesService;
+import org.jasig.portal.layout.IStylesheetUserPreferencesService.PreferencesScope;
+import org.jasig.portal.layout.IUserLayout;
 import org.jasig.portal.layout.IUserLayoutManager;
+import org.jasig.portal.layout.node.IUserLayoutFolderDescription;
+import org.jasig.portal.layout.node.IUserLayoutNodeDescription;
+import org.jasig.portal.layout.node.IUserLayoutNodeDescription.LayoutNodeType;
 import org.jasig.portal.portlet.om.IPortletWindow;
 import org.jasig.portal.portlet.om.IPortletWindowId;
 import org.jasig.portal.portlet.registry.IPortletWindowRegistry;
 import org.jasig.portal.portlet.rendering.IPortletExecutionManager;
+import org.jasig.portal.user.IUserInstance;
+import org.jasig.portal.user.IUserInstanceManager;
 import org.jasig.portal.utils.Tuple;
 import org.jasig.portal.utils.cache.CacheKey;
 import org.jasig.portal.xml.stream.FilteringXMLEventReader;
@@ -40,19 +55,63 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import com.google.common.collect.Iterators;
+
 /**
  * Initiates portlet rendering based each encountered {@link IUserLayoutManager#CHANNEL_HEADER} and
  * {@link IUserLayoutManager#CHANNEL} element in the event stream
+ * <br/>
+ * If speculative rendering is enabled the portlets expected to be visible are determined from the
+ * {@link IUserLayout} and started before the wrapped component is called, before the structure and theme
+ * transformations run. Portlets that were not predicted are still started as their elements are encountered.
  * 
  * @author Eric Dalquist
  * @version $Revision$
  */
 public class PortletRenderingInitiationStAXComponent extends StAXPipelineComponentWrapper {
+    /**
+     * Request attribute containing the {@link System#nanoTime()} when speculative portlet rendering was initiated
+     */
+    public static final String SPECULATIVE_RENDER_START_ATTRIBUTE = PortletRenderingInitiationStAXComponent.class.getName() + ".SPECULATIVE_RENDER_START";
+    /**
+     * Request attribute containing the number of portlet renders started speculatively
+     */
+    public static final String SPECULATIVE_RENDER_COUNT_ATTRIBUTE = PortletRenderingInitiationStAXComponent.class.getName() + ".SPECULATIVE_RENDER_COUNT";
+    /**
+     * Request attribute containing the number of portlet renders that were not predicted and had to be started from the event stream
+     */
+    public static final String SPECULATIVE_RENDER_MISSED_ATTRIBUTE = PortletRenderingInitiationStAXComponent.class.getName() + ".SPECULATIVE_RENDER_MISSED";
+    
+    private static final String STRUCTURE_PARAM_USER_LAYOUT_ROOT = "userLayoutRoot";
+    private static final String STRUCTURE_PARAM_FOCUSED_TAB_ID = "focusedTabID";
+    private static final String STRUCTURE_PARAM_DEFAULT_TAB = "defaultTab";
+    
     protected final Logger logger = LoggerFactory.getLogger(getClass());
     
+    private final XMLEventFactory xmlEventFactory = XMLEventFactory.newFactory();
     
     private IPortletExecutionManager portletExecutionManager;
     private IPortletWindowRegistry portletWindowRegistry;
+    private IUserInstanceManager userInstanceManager;
+    private IStylesheetUserPreferencesService stylesheetUserPreferencesService;
+    private boolean speculativeRendering = false;
+    
+    /**
+     * @param speculativeRendering If the portlets expected to be visible should be started before the structure and theme transforms run, defaults to false
+     */
+    public void setSpeculativeRendering(boolean speculativeRendering) {
+        this.speculativeRendering = speculativeRendering;
+    }
+
+    @Autowired
+    public void setUserInstanceManager(IUserInstanceManager userInstanceManager) {
+        this.userInstanceManager = userInstanceManager;
+    }
+
+    @Autowired
+    public void setStylesheetUserPreferencesService(IStylesheetUserPreferencesService stylesheetUserPreferencesService) {
+        this.stylesheetUserPreferencesService = stylesheetUserPreferencesService;
+    }
     
     @Autowired
     public void setPortletExecutionManager(IPortletExecutionManager portletExecutionManager) {
@@ -78,6 +137,10 @@ public class PortletRenderingInitiationStAXComponent extends StAXPipelineCompone
      */
     @Override
     public PipelineEventReader<XMLEventReader, XMLEvent> getEventReader(HttpServletRequest request, HttpServletResponse response) {
+        if (this.speculativeRendering) {
+            this.startVisiblePortlets(request, response);
+        }
+        
         final PipelineEventReader<XMLEventReader, XMLEvent> pipelineEventReader = this.wrappedComponent.getEventReader(request, response);
 
         final XMLEventReader eventReader = pipelineEventReader.getEventReader();
@@ -87,6 +150,163 @@ public class PortletRenderingInitiationStAXComponent extends StAXPipelineCompone
         return new PipelineEventReaderImpl<XMLEventReader, XMLEvent>(filteredEventReader, outputProperties);
     }
 
+    /**
+     * Start header and markup rendering for all portlets expected to be visible on the page. Header renders
+     * are started first followed by markup renders, each in layout document order which matches the order
+     * the output is needed in.
+     */
+    protected void startVisiblePortlets(HttpServletRequest request, HttpServletResponse response) {
+        final long start = System.nanoTime();
+        
+        final List<String> subscribeIds;
+        try {
+            subscribeIds = this.getVisiblePortletSubscribeIds(request);
+        }
+        catch (RuntimeException e) {
+            logger.warn("Failed to determine visible portlets, portlets will be started as they are encountered in the layout", e);
+            return;
+        }
+        
+        //Resolve windows from a channel element the same way the event stream does so a detached request gets the same stateless window
+        final List<IPortletWindowId> portletWindowIds = new ArrayList<IPortletWindowId>(subscribeIds.size());
+        for (final String subscribeId : subscribeIds) {
+            final Attribute idAttribute = this.xmlEventFactory.createAttribute(IUserLayoutManager.ID_ATTR_NAME, subscribeId);
+            final StartElement channelElement = this.xmlEventFactory.createStartElement(new QName(IUserLayoutManager.CHANNEL), Iterators.forArray(idAttribute), null);
+            
+            final Tuple<IPortletWindow, StartElement> portletWindowAndElement = this.portletWindowRegistry.getPortletWindow(request, channelElement);
+            if (portletWindowAndElement != null) {
+                portletWindowIds.add(portletWindowAndElement.first.getPortletWindowId());
+            }
+        }
+        
+        int started = 0;
+        for (final IPortletWindowId portletWindowId : portletWindowIds) {
+            if (!this.portletExecutionManager.isPortletRenderHeaderRequested(portletWindowId, request, response)) {
+                this.portletExecutionManager.startPortletHeaderRender(portletWindowId, request, response);
+            }
+        }
+        for (final IPortletWindowId portletWindowId : portletWindowIds) {
+            if (!this.portletExecutionManager.isPortletRenderRequested(portletWindowId, request, response)) {
+                this.portletExecutionManager.startPortletRender(portletWindowId, request, response);
+                started++;
+            }
+        }
+        
+        request.setAttribute(SPECULATIVE_RENDER_START_ATTRIBUTE, start);
+        request.setAttribute(SPECULATIVE_RENDER_COUNT_ATTRIBUTE, started);
+        
+        if (logger.isDebugEnabled()) {
+            logger.debug("Speculatively started " + started + " portlets in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        }
+    }
+    
+    /**
+     * Determine the subscribe ids of the portlets expected to be visible for the request. Mirrors the
+     * selection done by the default columns structure transform: the channels in header folders, the active
+     * tab and footer folders when rendering the whole layout or nothing when a single portlet is focused.
+     */
+    protected List<String> getVisiblePortletSubscribeIds(HttpServletRequest request) {
+        final List<String> subscribeIds = new ArrayList<String>();
+        
+        final String userLayoutRoot = this.stylesheetUserPreferencesService.getStylesheetParameter(request, PreferencesScope.STRUCTURE, STRUCTURE_PARAM_USER_LAYOUT_ROOT);
+        if (userLayoutRoot != null && !IUserLayout.ROOT_NODE_NAME.equals(userLayoutRoot)) {
+            //Single focused portlet, nothing to gain from starting it early
+            return subscribeIds;
+        }
+        
+        final IUserInstance userInstance = this.userInstanceManager.getUserInstance(request);
+        final IUserPreferencesManager preferencesManager = userInstance.getPreferencesManager();
+        final IUserLayoutManager userLayoutManager = preferencesManager.getUserLayoutManager();
+        final IUserLayout userLayout = userLayoutManager.getUserLayout();
+        
+        //Sort the top level folders into header, regular (tabs) and footer
+        final List<String> headerFolderIds = new ArrayList<String>();
+        final List<String> tabIds = new ArrayList<String>();
+        final List<String> footerFolderIds = new ArrayList<String>();
+        for (final Enumeration<?> childIds = userLayout.getChildIds(userLayout.getRootId()); childIds.hasMoreElements();) {
+            final String childId = (String) childIds.nextElement();
+            final IUserLayoutNodeDescription node = userLayout.getNodeDescription(childId);
+            if (!(node instanceof IUserLayoutFolderDescription)) {
+                continue;
+            }
+            
+            switch (((IUserLayoutFolderDescription) node).getFolderType()) {
+                case IUserLayoutFolderDescription.HEADER_TYPE: {
+                    headerFolderIds.add(childId);
+                    break;
+                }
+                case IUserLayoutFolderDescription.FOOTER_TYPE: {
+                    footerFolderIds.add(childId);
+                    break;
+                }
+                case IUserLayoutFolderDescription.REGULAR_TYPE: {
+                    if (!node.isHidden()) {
+                        tabIds.add(childId);
+                    }
+                    break;
+                }
+            }
+        }
+        
+        for (final String headerFolderId : headerFolderIds) {
+            this.addPortletSubscribeIds(userLayout, headerFolderId, subscribeIds);
+        }
+        
+        final String activeTabId = this.getActiveTabId(request, tabIds);
+        if (activeTabId != null) {
+            this.addPortletSubscribeIds(userLayout, activeTabId, subscribeIds);
+        }
+        
+        for (final String footerFolderId : footerFolderIds) {
+            this.addPortletSubscribeIds(userLayout, footerFolderId, subscribeIds);
+        }
+        
+        return subscribeIds;
+    }
+    
+    /**
+     * The focused tab if it is visible, falling back to the default tab index
+     */
+    protected String getActiveTabId(HttpServletRequest request, List<String> tabIds) {
+        final String focusedTabId = this.stylesheetUserPreferencesService.getStylesheetParameter(request, PreferencesScope.STRUCTURE, STRUCTURE_PARAM_FOCUSED_TAB_ID);
+        if (focusedTabId != null && tabIds.contains(focusedTabId)) {
+            return focusedTabId;
+        }
+        
+        int defaultTabIndex = 1;
+        final String defaultTab = this.stylesheetUserPreferencesService.getStylesheetParameter(request, PreferencesScope.STRUCTURE, STRUCTURE_PARAM_DEFAULT_TAB);
+        if (defaultTab != null) {
+            try {
+                defaultTabIndex = Integer.parseInt(defaultTab);
+            }
+            catch (NumberFormatException e) {
+                logger.debug("Ignoring non-numeric defaultTab: {}", defaultTab);
+            }
+        }
+        
+        if (defaultTabIndex < 1 || defaultTabIndex > tabIds.size()) {
+            return null;
+        }
+        
+        return tabIds.get(defaultTabIndex - 1);
+    }
+    
+    /**
+     * Add the subscribe ids of all portlets under the node in document order
+     */
+    protected void addPortletSubscribeIds(IUserLayout userLayout, String nodeId, List<String> subscribeIds) {
+        for (final Enumeration<?> childIds = userLayout.getChildIds(nodeId); childIds.hasMoreElements();) {
+            final String childId = (String) childIds.nextElement();
+            final IUserLayoutNodeDescription node = userLayout.getNodeDescription(childId);
+            if (node.getType() == LayoutNodeType.PORTLET) {
+                subscribeIds.add(childId);
+            }
+            else {
+                this.addPortletSubscribeIds(userLayout, childId, subscribeIds);
+            }
+        }
+    }
+
     private class PortletRenderingXMLEventReader extends FilteringXMLEventReader {
         private final HttpServletRequest request;
         private final HttpServletResponse response;
@@ -117,6 +337,11 @@ public class PortletRenderingInitiationStAXComponent extends StAXPipelineCompone
                     if (!portletExecutionManager.isPortletRenderRequested(portletWindowId, this.request, this.response)) {
                         portletExecutionManager.startPortletRender(portletWindowId, this.request, this.response);
                         logger.debug("Initiated portlet markup rendering for: {}", portletWindow);
+                        
+                        if (speculativeRendering) {
+                            final Integer missed = (Integer) this.request.getAttribute(SPECULATIVE_RENDER_MISSED_ATTRIBUTE);
+                            this.request.setAttribute(SPECULATIVE_RENDER_MISSED_ATTRIBUTE, missed == null ? 1 : missed + 1);
+                        }
                     }
                     else {
                         logger.debug("Portlet render already requested for: {}", portletWindow);
@@ -0,0 +1,239 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.rendering;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Coalesces the character data written by the top level renderer into a size bounded buffer
+ * that is only pushed to the client when {@link #flush()} is called. The char[] backing the
+ * buffer is borrowed from a shared pool and returned on {@link #close()}, callers must
+ * {@link #flush()} before closing to push any remaining data to the client.
+ * <p/>
+ * The buffer is registered as a request attribute while rendering so that pipeline components
+ * that are about to block, such as waiting on a still running portlet worker, can push the
+ * already rendered markup to the client first via {@link #flushOutputBuffer(HttpServletRequest)}
+ * 
+ * @version $Revision$
+ */
+public class RenderingOutputBuffer implements Flushable {
+    public static final String OUTPUT_BUFFER_ATTRIBUTE = RenderingOutputBuffer.class.getName() + ".OUTPUT_BUFFER";
+    
+    private static final int MAX_POOLED_BUFFERS = 64;
+    private static final Queue<char[]> BUFFER_POOL = new ConcurrentLinkedQueue<char[]>();
+    private static final AtomicInteger POOLED_BUFFER_COUNT = new AtomicInteger();
+    
+    private final Writer writer;
+    private final ServletResponse response;
+    private char[] buffer;
+    private int position = 0;
+    private long bytesWritten = 0;
+    private int flushCount = 0;
+    
+    /**
+     * @param writer The writer to push buffered data to
+     * @param response The response to flush after data has been pushed to the writer
+     * @param bufferSize The number of characters to buffer before writing through to the writer
+     */
+    public RenderingOutputBuffer(Writer writer, ServletResponse response, int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be greater than 0: " + bufferSize);
+        }
+        
+        this.writer = writer;
+        this.response = response;
+        this.buffer = borrowBuffer(bufferSize);
+    }
+    
+    /**
+     * Flush the {@link RenderingOutputBuffer} registered for the request, does nothing if no buffer
+     * is registered.
+     */
+    public static void flushOutputBuffer(HttpServletRequest request) throws IOException {
+        final RenderingOutputBuffer outputBuffer = (RenderingOutputBuffer)request.getAttribute(OUTPUT_BUFFER_ATTRIBUTE);
+        if (outputBuffer != null) {
+            outputBuffer.flush();
+        }
+    }
+    
+    /**
+     * Register the buffer with the request, see {@link #flushOutputBuffer(HttpServletRequest)}
+     */
+    public void register(HttpServletRequest request) {
+        request.setAttribute(OUTPUT_BUFFER_ATTRIBUTE, this);
+    }
+    
+    /**
+     * Remove the buffer registration from the request
+     */
+    public void unregister(HttpServletRequest request) {
+        if (request.getAttribute(OUTPUT_BUFFER_ATTRIBUTE) == this) {
+            request.removeAttribute(OUTPUT_BUFFER_ATTRIBUTE);
+        }
+    }
+    
+    /**
+     * Append data to the buffer, if the buffer fills up the buffered data is written through to the
+     * underlying writer but the response is not flushed.
+     */
+    public void write(String data) throws IOException {
+        this.checkOpen();
+        
+        final int length = data.length();
+        if (length == 0) {
+            return;
+        }
+        
+        //Data that can't fit in an empty buffer is written straight through
+        if (length > this.buffer.length) {
+            this.writeBuffer();
+            this.bytesWritten += utf8Length(data);
+            this.writer.write(data);
+            return;
+        }
+        
+        if (length > this.buffer.length - this.position) {
+            this.writeBuffer();
+        }
+        
+        data.getChars(0, length, this.buffer, this.position);
+        this.position += length;
+    }
+
+    /**
+     * Writes all buffered data to the underlying writer and flushes the response to the client.
+     */
+    @Override
+    public void flush() throws IOException {
+        this.checkOpen();
+        
+        this.writeBuffer();
+        this.writer.flush();
+        this.response.flushBuffer();
+        this.flushCount++;
+    }
+    
+    /**
+     * Returns the backing char[] to the pool, any data that has not been flushed is discarded. The
+     * buffer cannot be used after close is called.
+     */
+    public void close() {
+        if (this.buffer == null) {
+            return;
+        }
+        
+        returnBuffer(this.buffer);
+        this.buffer = null;
+        this.position = 0;
+    }
+
+    /**
+     * @return The number of UTF-8 encoded bytes written to the underlying writer
+     */
+    public long getBytesWritten() {
+        return this.bytesWritten;
+    }
+
+    /**
+     * @return The number of times the response has been flushed to the client
+     */
+    public int getFlushCount() {
+        return this.flushCount;
+    }
+    
+    private void writeBuffer() throws IOException {
+        if (this.position == 0) {
+            return;
+        }
+        
+        this.bytesWritten += utf8Length(this.buffer, 0, this.position);
+        this.writer.write(this.buffer, 0, this.position);
+        this.position = 0;
+    }
+    
+    private void checkOpen() {
+        if (this.buffer == null) {
+            throw new IllegalStateException("RenderingOutputBuffer has already been closed");
+        }
+    }
+    
+    static int utf8Length(CharSequence data) {
+        int length = 0;
+        for (int i = 0; i < data.length(); i++) {
+            length += utf8Length(data.charAt(i));
+        }
+        return length;
+    }
+    
+    static int utf8Length(char[] data, int offset, int count) {
+        int length = 0;
+        for (int i = offset; i < offset + count; i++) {
+            length += utf8Length(data[i]);
+        }
+        return length;
+    }
+    
+    private static int utf8Length(char c) {
+        if (c < 0x80) {
+            return 1;
+        }
+        if (c < 0x800) {
+            return 2;
+        }
+        //A surrogate pair encodes to 4 bytes, count them all on the high surrogate
+        if (Character.isHighSurrogate(c)) {
+            return 4;
+        }
+        if (Character.isLowSurrogate(c)) {
+            return 0;
+        }
+        return 3;
+    }
+    
+    private static char[] borrowBuffer(int bufferSize) {
+        char[] pooled;
+        while ((pooled = BUFFER_POOL.poll()) != null) {
+            POOLED_BUFFER_COUNT.decrementAndGet();
+            if (pooled.length == bufferSize) {
+                return pooled;
+            }
+            //Buffer size was reconfigured, drop the old buffer
+        }
+        
+        return new char[bufferSize];
+    }
+    
+    private static void returnBuffer(char[] buffer) {
+        if (POOLED_BUFFER_COUNT.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            BUFFER_POOL.offer(buffer);
+        }
+        else {
+            POOLED_BUFFER_COUNT.decrementAndGet();
+        }
+    }
+}
@@ -32,10 +32,16 @@ class CachedEventReader<E> implements Serializable {
     
     private final List<E> eventCache;
     private final Map<String, String> outputProperties;
+    private final long sizeEstimate;
 
     public CachedEventReader(List<E> eventCache, Map<String, String> outputProperties) {
+        this(eventCache, outputProperties, 0);
+    }
+
+    public CachedEventReader(List<E> eventCache, Map<String, String> outputProperties, long sizeEstimate) {
         this.eventCache = Collections.unmodifiableList(eventCache);
         this.outputProperties = Collections.unmodifiableMap(outputProperties);
+        this.sizeEstimate = sizeEstimate;
     }
 
     public List<E> getEventCache() {
@@ -45,4 +51,11 @@ class CachedEventReader<E> implements Serializable {
     public Map<String, String> getOutputProperties() {
         return this.outputProperties;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return Estimated number of bytes retained by the cached events, shared events are counted in full
+     */
+    public long getSizeEstimate() {
+        return this.sizeEstimate;
+    }
+}
@@ -19,13 +19,22 @@
 
 package org.jasig.portal.rendering.cache;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.ListIterator;
 
 import org.jasig.portal.character.stream.CharacterEventBufferReader;
 import org.jasig.portal.character.stream.CharacterEventReader;
+import org.jasig.portal.character.stream.events.CharacterDataEvent;
+import org.jasig.portal.character.stream.events.CharacterDataEventImpl;
 import org.jasig.portal.character.stream.events.CharacterEvent;
+import org.jasig.portal.character.stream.events.CharacterEventTypes;
+import org.jasig.portal.character.stream.events.ChunkPointCharacterEvent;
 import org.jasig.portal.rendering.CharacterPipelineComponent;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
 /**
  * component that can cache character pipeline events
  * 
@@ -33,9 +42,66 @@ import org.jasig.portal.rendering.CharacterPipelineComponent;
  * @version $Revision$
  */
 public class CachingCharacterPipelineComponent extends CachingPipelineComponent<CharacterEventReader, CharacterEvent> implements CharacterPipelineComponent {
+    //Placeholder events are immutable and implement equals/hashCode, weak references mean no max-size is needed
+    private static final Interner<CharacterEvent> PLACEHOLDER_EVENT_INTERNER = Interners.newWeakInterner();
     
     @Override
     protected CharacterEventReader createEventReader(ListIterator<CharacterEvent> eventCache) {
         return new CharacterEventBufferReader(eventCache);
     }
+
+    /**
+     * Merges adjacent {@link CharacterDataEvent}s into a single shared event, chunk-points are kept as
+     * boundaries so the common strings between them can still be shared across users. Placeholder events
+     * are interned.
+     */
+    @Override
+    protected List<CharacterEvent> compactEvents(List<CharacterEvent> eventBuffer) {
+        final ArrayList<CharacterEvent> compactEvents = new ArrayList<CharacterEvent>(eventBuffer.size());
+        final StringBuilder data = new StringBuilder();
+        
+        for (final CharacterEvent event : eventBuffer) {
+            if (CharacterEventTypes.CHARACTER == event.getEventType() && !ChunkPointCharacterEvent.isChunkPoint(event)) {
+                data.append(((CharacterDataEvent)event).getData());
+                continue;
+            }
+            
+            appendCharacterData(compactEvents, data);
+            
+            if (ChunkPointCharacterEvent.isChunkPoint(event)) {
+                compactEvents.add(ChunkPointCharacterEvent.INSTANCE);
+            }
+            else {
+                compactEvents.add(PLACEHOLDER_EVENT_INTERNER.intern(event));
+            }
+        }
+        appendCharacterData(compactEvents, data);
+        
+        compactEvents.trimToSize();
+        return compactEvents;
+    }
+
+    @Override
+    protected long estimateEventSize(CharacterEvent event) {
+        if (ChunkPointCharacterEvent.isChunkPoint(event)) {
+            return 0;
+        }
+        
+        if (CharacterEventTypes.CHARACTER == event.getEventType()) {
+            //Event object plus the String and its char[]
+            return 24 + 40 + (2 * ((CharacterDataEvent)event).getData().length());
+        }
+        
+        //Placeholder event plus the portlet window id it references
+        return 24 + 64;
+    }
+    
+    private void appendCharacterData(List<CharacterEvent> compactEvents, StringBuilder data) {
+        if (data.length() == 0) {
+            return;
+        }
+        
+        compactEvents.add(CharacterDataEventImpl.create(data.toString()));
+        data.setLength(0);
+    }
 }
@@ -19,11 +19,12 @@
 
 package org.jasig.portal.rendering.cache;
 
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -43,7 +44,8 @@ import org.springframework.beans.factory.BeanNameAware;
 import org.springframework.beans.factory.annotation.Autowired;
 
 /**
- * Component that caches events from a wrapped component
+ * Component that caches events from a wrapped component. Events are compacted via {@link #compactEvents(List)}
+ * before being stored in array backed lists and each cache entry tracks an estimate of its size in bytes.
  * 
  * @author Eric Dalquist
  * @version $Revision$
@@ -55,6 +57,11 @@ public abstract class CachingPipelineComponent<R, E> extends PipelineComponentWr
     private Ehcache cache;
     private String beanName;
     
+    private final AtomicLong cachedEntryCount = new AtomicLong();
+    private final AtomicLong cachedEventCount = new AtomicLong();
+    private final AtomicLong cachedSizeEstimate = new AtomicLong();
+    private volatile long maxEntrySizeEstimate = 0;
+    
     @Autowired
     public void setResourcesElementsProvider(ResourcesElementsProvider resourcesElementsProvider) {
         this.resourcesElementsProvider = resourcesElementsProvider;
@@ -100,19 +107,23 @@ public abstract class CachingPipelineComponent<R, E> extends PipelineComponentWr
             final PipelineEventReader<R, E> pipelineEventReader = this.wrappedComponent.getEventReader(request, response);
 
             //Copy the events from the reader into a buffer to be cached
-            final List<E> eventCache = new LinkedList<E>();
+            final List<E> eventBuffer = new ArrayList<E>();
             for (final E event : pipelineEventReader) {
-                //TODO add de-duplication logic here
-                eventCache.add(event);
+                eventBuffer.add(event);
             }
+            
+            //De-duplicate and merge the events, the compacted list is what gets cached
+            final List<E> eventCache = this.compactEvents(eventBuffer);
+            final long sizeEstimate = this.estimateSize(eventCache);
 
             final Map<String, String> outputProperties = pipelineEventReader.getOutputProperties();
-            cachedEventReader = new CachedEventReader<E>(eventCache, new LinkedHashMap<String, String>(outputProperties));
+            cachedEventReader = new CachedEventReader<E>(eventCache, new LinkedHashMap<String, String>(outputProperties), sizeEstimate);
 
             //Cache the buffer
             element = new Element(cacheKey, cachedEventReader);
             this.cache.put(element);
-            logger.debug("{} - Cached {} events for key {}", new Object[] {this.beanName, eventCache.size(), cacheKey});
+            this.updateStatistics(eventCache.size(), sizeEstimate);
+            logger.debug("{} - Cached {} events compacted from {} events, estimated size {} bytes, for key {}", new Object[] {this.beanName, eventCache.size(), eventBuffer.size(), sizeEstimate, cacheKey});
         }
         else {
             logger.debug("{} - Founed  cached events for key {}", new Object[] {this.beanName, cacheKey});
@@ -125,6 +136,79 @@ public abstract class CachingPipelineComponent<R, E> extends PipelineComponentWr
         return new PipelineEventReaderImpl<R, E>(eventReader, outputProperties);
     }
     
+    /**
+     * @return The number of entries this component has added to the cache
+     */
+    public long getCachedEntryCount() {
+        return this.cachedEntryCount.get();
+    }
+    
+    /**
+     * @return The total number of events this component has added to the cache
+     */
+    public long getCachedEventCount() {
+        return this.cachedEventCount.get();
+    }
+    
+    /**
+     * @return The average estimated size in bytes of the entries this component has added to the cache
+     */
+    public long getAverageEntrySizeEstimate() {
+        final long entryCount = this.cachedEntryCount.get();
+        if (entryCount == 0) {
+            return 0;
+        }
+        return this.cachedSizeEstimate.get() / entryCount;
+    }
+    
+    /**
+     * @return The largest estimated size in bytes of an entry this component has added to the cache
+     */
+    public long getMaxEntrySizeEstimate() {
+        return this.maxEntrySizeEstimate;
+    }
+    
+    /**
+     * @return The estimated size in bytes of all entries currently in the cache, the cache's object count times
+     * the average estimated entry size
+     */
+    public long getCacheSizeEstimate() {
+        return this.cache.getStatistics().getObjectCount() * this.getAverageEntrySizeEstimate();
+    }
+    
+    private void updateStatistics(int eventCount, long sizeEstimate) {
+        this.cachedEntryCount.incrementAndGet();
+        this.cachedEventCount.addAndGet(eventCount);
+        this.cachedSizeEstimate.addAndGet(sizeEstimate);
+        if (sizeEstimate > this.maxEntrySizeEstimate) {
+            this.maxEntrySizeEstimate = sizeEstimate;
+        }
+    }
+    
+    /**
+     * Estimate the number of bytes retained by a list of events created by {@link #compactEvents(List)}
+     */
+    protected long estimateSize(List<E> eventCache) {
+        //Object header, size field and array for the ArrayList
+        long sizeEstimate = 16 + 4 + 16 + (eventCache.size() * 8);
+        for (final E event : eventCache) {
+            sizeEstimate += this.estimateEventSize(event);
+        }
+        return sizeEstimate;
+    }
+    
+    /**
+     * Convert the events read from the wrapped component into the compact form to cache. Implementations
+     * should de-duplicate events and merge adjacent events where possible. The returned list must be
+     * array backed.
+     */
+    protected abstract List<E> compactEvents(List<E> eventBuffer);
+    
+    /**
+     * @return Estimated number of bytes retained by the event
+     */
+    protected abstract long estimateEventSize(E event);
+    
     //Ugly!!! Needed because XMLEventReader implements Iterator but does not parameterize it
     protected abstract R createEventReader(ListIterator<E> eventCache);
 }
@@ -19,14 +19,27 @@
 
 package org.jasig.portal.rendering.cache;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.ListIterator;
 
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
 import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.EndElement;
+import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
 
 import org.jasig.portal.rendering.StAXPipelineComponent;
 import org.jasig.portal.xml.stream.XMLEventBufferReader;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 /**
  * component that can cache StAX pipeline events
  * 
@@ -34,9 +47,121 @@ import org.jasig.portal.xml.stream.XMLEventBufferReader;
  * @version $Revision$
  */
 public class CachingStAXPipelineComponent extends CachingPipelineComponent<XMLEventReader, XMLEvent> implements StAXPipelineComponent {
+    private static final XMLEventFactory EVENT_FACTORY = XMLEventFactory.newFactory();
+    
+    //Since the caches use weak refs for the events they should never be a cause for object retention therefor no max-size is needed
+    private static final Cache<String, Characters> WEAK_CHARACTERS_CACHE = CacheBuilder.newBuilder().weakValues().build();
+    private static final Cache<String, EndElement> WEAK_END_ELEMENT_CACHE = CacheBuilder.newBuilder().weakValues().build();
 
     @Override
     protected XMLEventReader createEventReader(ListIterator<XMLEvent> eventCache) {
         return new XMLEventBufferReader(eventCache);
     }
+
+    /**
+     * Merges adjacent character events and replaces character and end element events with shared
+     * instances.
+     */
+    @Override
+    protected List<XMLEvent> compactEvents(List<XMLEvent> eventBuffer) {
+        final ArrayList<XMLEvent> compactEvents = new ArrayList<XMLEvent>(eventBuffer.size());
+        final StringBuilder data = new StringBuilder();
+        
+        for (final XMLEvent event : eventBuffer) {
+            if (isMergeableCharacters(event)) {
+                data.append(event.asCharacters().getData());
+                continue;
+            }
+            
+            appendCharacters(compactEvents, data);
+            
+            if (event.isEndElement()) {
+                compactEvents.add(internEndElement(event.asEndElement()));
+            }
+            else {
+                compactEvents.add(event);
+            }
+        }
+        appendCharacters(compactEvents, data);
+        
+        compactEvents.trimToSize();
+        return compactEvents;
+    }
+
+    @Override
+    protected long estimateEventSize(XMLEvent event) {
+        switch (event.getEventType()) {
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.SPACE:
+            case XMLStreamConstants.CDATA: {
+                //Event object plus the String and its char[]
+                return 32 + 40 + (2 * event.asCharacters().getData().length());
+            }
+            case XMLStreamConstants.START_ELEMENT: {
+                //Event object, QName and attribute/namespace collections
+                final StartElement startElement = event.asStartElement();
+                long size = 48 + estimateQNameSize(startElement.getName()) + 32;
+                for (final Iterator<?> attributes = startElement.getAttributes(); attributes.hasNext(); ) {
+                    final Attribute attribute = (Attribute)attributes.next();
+                    size += 32 + estimateQNameSize(attribute.getName()) + 40 + (2 * attribute.getValue().length());
+                }
+                return size;
+            }
+            case XMLStreamConstants.END_ELEMENT: {
+                return 32 + estimateQNameSize(event.asEndElement().getName());
+            }
+            default: {
+                return 64;
+            }
+        }
+    }
+    
+    private long estimateQNameSize(QName name) {
+        //QName with local part, Strings for prefix and namespace are almost always shared
+        return 32 + 40 + (2 * name.getLocalPart().length());
+    }
+    
+    /**
+     * Only plain character data can be merged, CDATA and ignorable whitespace are left as-is
+     */
+    private boolean isMergeableCharacters(XMLEvent event) {
+        if (event.getEventType() != XMLStreamConstants.CHARACTERS) {
+            return false;
+        }
+        
+        final Characters characters = event.asCharacters();
+        return !characters.isCData() && !characters.isIgnorableWhiteSpace();
+    }
+    
+    private void appendCharacters(List<XMLEvent> compactEvents, StringBuilder data) {
+        if (data.length() == 0) {
+            return;
+        }
+        
+        final String text = data.toString();
+        data.setLength(0);
+        
+        Characters characters = WEAK_CHARACTERS_CACHE.getIfPresent(text);
+        if (characters == null) {
+            characters = EVENT_FACTORY.createCharacters(text);
+            WEAK_CHARACTERS_CACHE.put(text, characters);
+        }
+        compactEvents.add(characters);
+    }
+    
+    private XMLEvent internEndElement(EndElement endElement) {
+        //End elements that close namespace scopes are rare, don't bother sharing them
+        if (endElement.getNamespaces().hasNext()) {
+            return endElement;
+        }
+        
+        final QName name = endElement.getName();
+        final String key = name.getPrefix() + "|" + name.getNamespaceURI() + "|" + name.getLocalPart();
+        EndElement sharedEndElement = WEAK_END_ELEMENT_CACHE.getIfPresent(key);
+        if (sharedEndElement == null) {
+            sharedEndElement = EVENT_FACTORY.createEndElement(name.getPrefix(), name.getNamespaceURI(), name.getLocalPart());
+            WEAK_END_ELEMENT_CACHE.put(key, sharedEndElement);
+        }
+        return sharedEndElement;
+    }
 }
@@ -24,6 +24,7 @@ import java.io.Serializable;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 
@@ -51,6 +52,7 @@ public abstract class BaseTransformerSource implements TransformerSource, Resour
     private IUserInstanceManager userInstanceManager;
     private XmlUtilities xmlUtilities;
     private ResourceLoader resourceLoader;
+    private TransformerPool transformerPool;
     protected IStylesheetDescriptorDao stylesheetDescriptorDao;
     
     @Autowired
@@ -68,6 +70,11 @@ public abstract class BaseTransformerSource implements TransformerSource, Resour
         this.xmlUtilities = xmlUtilities;
     }
 
+    @Autowired
+    public void setTransformerPool(TransformerPool transformerPool) {
+        this.transformerPool = transformerPool;
+    }
+
     @Override
     public void setResourceLoader(ResourceLoader resourceLoader) {
         this.resourceLoader = resourceLoader;
@@ -101,7 +108,8 @@ public abstract class BaseTransformerSource implements TransformerSource, Resour
     public final Transformer getTransformer(HttpServletRequest request, HttpServletResponse response) {
         final Resource stylesheetResource = this.getStylesheetResource(request);
         try {
-            return this.xmlUtilities.getTransformer(stylesheetResource);
+            final Templates templates = this.xmlUtilities.getTemplates(stylesheetResource);
+            return this.transformerPool.borrowTransformer(templates);
         }
         catch (TransformerConfigurationException e) {
             throw new RuntimeException("Failed to get Transformer for stylesheet: " + stylesheetResource, e);
@@ -111,6 +119,14 @@ public abstract class BaseTransformerSource implements TransformerSource, Resour
         }
     }
     
+    /* (non-Javadoc)
+     * @see org.jasig.portal.rendering.xslt.TransformerSource#releaseTransformer(javax.xml.transform.Transformer)
+     */
+    @Override
+    public final void releaseTransformer(Transformer transformer) {
+        this.transformerPool.returnTransformer(transformer);
+    }
+    
     /**
      * Get the stylesheet description from the user preferences
      */
@@ -0,0 +1,723 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.rendering.xslt;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.EndElement;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+
+import org.apache.commons.codec.binary.Hex;
+import org.jasig.portal.rendering.PipelineEventReader;
+import org.jasig.portal.rendering.PipelineEventReaderImpl;
+import org.jasig.portal.utils.cache.CacheKey;
+import org.jasig.portal.xml.stream.XMLEventBufferReader;
+
+/**
+ * XSLT component that transforms the portlet regions of the document (by default every channel
+ * in a column) separately from the rest of the page. The page skeleton is the document with each
+ * region replaced by a placeholder element. The transformed skeleton is cached by a digest of the
+ * skeleton and each transformed region by a digest of the region and of its context, neither key
+ * includes the user so identical skeletons and regions are shared between users.
+ * <br/>
+ * The context of a region is the document element, the children of the document element named by
+ * {@link #setRegionContextElements(Set)}, the ancestors of the region and its position among the
+ * regions of its parent. The transformed region may depend on nothing else in the document.
+ * <br/>
+ * When the skeleton is not cached the whole document is transformed once and the output is split
+ * at the region elements to seed the skeleton and every region, unless every region is cached in
+ * which case only the skeleton is transformed. When only regions are missing each is transformed
+ * as a region document: the document element, the context elements and the ancestors of the region
+ * with the region and the placeholders of its siblings.
+ * <br/>
+ * The stylesheet must opt in to incremental transformation:
+ * <ul>
+ *  <li>Every region element has the {@link #REGION_ATTRIBUTE} attribute and must be transformed into
+ *      a single element with the same attribute and value wrapping the output for the region. A region
+ *      element that also has the {@link #PLACEHOLDER_ATTRIBUTE} attribute is a placeholder and its
+ *      wrapping element must be empty. The wrapping element itself is dropped from the page.</li>
+ *  <li>A region document has the {@link #REGION_DOCUMENT_ATTRIBUTE} attribute on its root element,
+ *      the stylesheet must output only the wrapping elements of the regions.</li>
+ * </ul>
+ * If the transformed document is missing the element of any region the stylesheet is assumed to
+ * not support incremental transformation and all documents for the stylesheet are transformed as
+ * a whole.
+ * 
+ * @version $Revision$
+ */
+public class IncrementalXSLTComponent extends XSLTComponent {
+    public static final String REGION_ATTRIBUTE = "upRegion";
+    public static final String PLACEHOLDER_ATTRIBUTE = "upRegionPlaceholder";
+    public static final String REGION_DOCUMENT_ATTRIBUTE = "upRegionDocument";
+    
+    private static final XMLEventFactory EVENT_FACTORY = XMLEventFactory.newFactory();
+    private static final QName REGION_ATTRIBUTE_NAME = new QName(REGION_ATTRIBUTE);
+    private static final QName PLACEHOLDER_ATTRIBUTE_NAME = new QName(PLACEHOLDER_ATTRIBUTE);
+    private static final QName ID_ATTRIBUTE_NAME = new QName("ID");
+    
+    private final ConcurrentMap<CacheKey, Boolean> unsupportedStylesheets = new ConcurrentHashMap<CacheKey, Boolean>();
+    
+    private Ehcache regionCache;
+    private boolean incrementalTransform = false;
+    private Set<String> regionElements = new LinkedHashSet<String>(2);
+    private Set<String> regionParentElements = Collections.singleton("column");
+    private Set<String> regionContextElements = new LinkedHashSet<String>(2);
+    
+    public IncrementalXSLTComponent() {
+        this.regionElements.add("channel");
+        this.regionElements.add("blocked-channel");
+        this.regionContextElements.add("header");
+        this.regionContextElements.add("navigation");
+    }
+    
+    /**
+     * Cache for transformed page skeletons and regions
+     */
+    public void setRegionCache(Ehcache regionCache) {
+        this.regionCache = regionCache;
+    }
+
+    /**
+     * If false every document is transformed as a whole, defaults to false
+     */
+    public void setIncrementalTransform(boolean incrementalTransform) {
+        this.incrementalTransform = incrementalTransform;
+    }
+
+    /**
+     * Local names of the elements that are transformed as regions, defaults to channel and blocked-channel
+     */
+    public void setRegionElements(Set<String> regionElements) {
+        this.regionElements = new LinkedHashSet<String>(regionElements);
+    }
+
+    /**
+     * Local names of the elements region elements must be direct children of, defaults to column
+     */
+    public void setRegionParentElements(Set<String> regionParentElements) {
+        this.regionParentElements = new LinkedHashSet<String>(regionParentElements);
+    }
+
+    /**
+     * Local names of the children of the document element the stylesheet reads while transforming a
+     * region, they are part of the cache key of every region. Defaults to header and navigation.
+     */
+    public void setRegionContextElements(Set<String> regionContextElements) {
+        this.regionContextElements = new LinkedHashSet<String>(regionContextElements);
+    }
+
+    @Override
+    public PipelineEventReader<XMLEventReader, XMLEvent> getEventReader(HttpServletRequest request, HttpServletResponse response) {
+        if (!this.incrementalTransform || this.regionCache == null) {
+            return super.getEventReader(request, response);
+        }
+        
+        final CacheKey stylesheetCacheKey = this.getStylesheetCacheKey(request, response);
+        if (stylesheetCacheKey != null && this.unsupportedStylesheets.containsKey(stylesheetCacheKey)) {
+            return super.getEventReader(request, response);
+        }
+        
+        final PipelineEventReader<XMLEventReader, XMLEvent> pipelineEventReader = this.wrappedComponent.getEventReader(request, response);
+        final RegionDocument regionDocument = this.parseRegions(pipelineEventReader.getEventReader());
+        
+        final Transformer transformer = this.createTransformer(request, response);
+        
+        final List<XMLEvent> eventBuffer;
+        final String mediaType;
+        try {
+            if (regionDocument.regions.isEmpty()) {
+                eventBuffer = this.transform(transformer, regionDocument.document);
+            }
+            else {
+                final CacheKey transformerCacheKey = this.getTransformerCacheKey(request, response);
+                final List<XMLEvent> incrementalEventBuffer = this.transformIncremental(transformer, transformerCacheKey, regionDocument);
+                if (incrementalEventBuffer != null) {
+                    eventBuffer = incrementalEventBuffer;
+                }
+                else {
+                    this.logger.warn("{} - Region elements missing from transformed document, stylesheet {} does not support incremental transformation and will always be transformed as a whole", this.getBeanName(), stylesheetCacheKey);
+                    if (stylesheetCacheKey != null) {
+                        this.unsupportedStylesheets.put(stylesheetCacheKey, Boolean.TRUE);
+                    }
+                    eventBuffer = this.transform(transformer, regionDocument.document);
+                }
+            }
+            
+            mediaType = transformer.getOutputProperty(OutputKeys.MEDIA_TYPE);
+        }
+        finally {
+            this.releaseTransformer(transformer);
+        }
+        
+        final XMLEventReader outputEventReader = new XMLEventBufferReader(eventBuffer.listIterator());
+        
+        final Map<String, String> outputProperties = pipelineEventReader.getOutputProperties();
+        final PipelineEventReaderImpl<XMLEventReader, XMLEvent> pipelineEventReaderImpl = new PipelineEventReaderImpl<XMLEventReader, XMLEvent>(outputEventReader, outputProperties);
+        pipelineEventReaderImpl.setOutputProperty(OutputKeys.MEDIA_TYPE, mediaType);
+        return pipelineEventReaderImpl;
+    }
+    
+    /**
+     * Builds the transformed document from the cached skeleton and regions, transforming whatever is
+     * missing from the cache
+     * 
+     * @param transformerCacheKey Key of the transformer, part of the key of the skeleton and of every region
+     * @return The transformed document, null if the transformed output does not contain the element of every region
+     */
+    protected List<XMLEvent> transformIncremental(Transformer transformer, CacheKey transformerCacheKey, RegionDocument regionDocument) {
+        final List<Region> regions = regionDocument.regions;
+        final String contextDigest = digest(regionDocument.context);
+        
+        final List<CacheKey> regionCacheKeys = new ArrayList<CacheKey>(regions.size());
+        final List<List<XMLEvent>> transformedRegions = new ArrayList<List<XMLEvent>>(regions.size());
+        int missingRegions = 0;
+        for (final Region region : regions) {
+            final RegionParent parent = region.parent;
+            final CacheKey regionCacheKey = CacheKey.build(this.getBeanName(), transformerCacheKey, contextDigest, 
+                    parent.getDigest(), region.position, parent.regionIndexes.size(), digest(region.events));
+            regionCacheKeys.add(regionCacheKey);
+            
+            final List<XMLEvent> transformedRegion = this.getCachedEvents(regionCacheKey);
+            if (transformedRegion == null) {
+                missingRegions++;
+            }
+            transformedRegions.add(transformedRegion);
+        }
+        
+        final CacheKey skeletonCacheKey = CacheKey.build(this.getBeanName(), transformerCacheKey, digest(regionDocument.skeleton));
+        List<XMLEvent> skeleton = this.getCachedEvents(skeletonCacheKey);
+        if (skeleton == null) {
+            //With every region cached only the placeholders need to be transformed, otherwise a single
+            //transformation of the whole document provides the skeleton and all of the regions
+            final List<XMLEvent> document = missingRegions == 0 ? regionDocument.skeleton : regionDocument.regionMarkedDocument;
+            final List<List<XMLEvent>> splitRegions = new ArrayList<List<XMLEvent>>(Collections.<List<XMLEvent>>nCopies(regions.size(), null));
+            skeleton = splitRegions(this.transform(transformer, document), splitRegions);
+            if (skeleton == null || splitRegions.contains(null)) {
+                return null;
+            }
+            
+            for (int regionIndex = 0; regionIndex < regions.size(); regionIndex++) {
+                if (transformedRegions.get(regionIndex) == null) {
+                    final List<XMLEvent> transformedRegion = splitRegions.get(regionIndex);
+                    this.regionCache.put(new Element(regionCacheKeys.get(regionIndex), transformedRegion));
+                    transformedRegions.set(regionIndex, transformedRegion);
+                }
+            }
+            
+            skeleton = Collections.unmodifiableList(skeleton);
+            this.regionCache.put(new Element(skeletonCacheKey, skeleton));
+        }
+        else if (missingRegions > 0) {
+            for (int regionIndex = 0; regionIndex < regions.size(); regionIndex++) {
+                if (transformedRegions.get(regionIndex) != null) {
+                    continue;
+                }
+                
+                final List<List<XMLEvent>> splitRegions = new ArrayList<List<XMLEvent>>(Collections.<List<XMLEvent>>nCopies(regions.size(), null));
+                final List<XMLEvent> output = splitRegions(this.transform(transformer, regionDocument.createRegionDocument(regionIndex)), splitRegions);
+                final List<XMLEvent> transformedRegion = output != null ? splitRegions.get(regionIndex) : null;
+                if (transformedRegion == null) {
+                    return null;
+                }
+                
+                this.regionCache.put(new Element(regionCacheKeys.get(regionIndex), transformedRegion));
+                transformedRegions.set(regionIndex, transformedRegion);
+            }
+        }
+        
+        return spliceRegions(skeleton, transformedRegions);
+    }
+    
+    /**
+     * @return The cached events, null if not cached. The returned list is shared by every request that hits the cache and must not be modified.
+     */
+    protected List<XMLEvent> getCachedEvents(CacheKey cacheKey) {
+        final Element element = this.regionCache.get(cacheKey);
+        if (element == null) {
+            return null;
+        }
+        
+        @SuppressWarnings("unchecked")
+        final List<XMLEvent> cachedEvents = (List<XMLEvent>)element.getObjectValue();
+        return cachedEvents;
+    }
+    
+    private List<XMLEvent> transform(Transformer transformer, List<XMLEvent> document) {
+        return this.transform(transformer, new XMLEventBufferReader(document.listIterator()));
+    }
+    
+    /**
+     * Splits transformed output at the region elements. The content of each region element is stored in
+     * regionEvents at the index of the region, the emptied region element is left in the returned events.
+     * 
+     * @param regionEvents Filled with the content of each region found, must be sized to the number of regions
+     * @return The output with the content of every region element removed, null if the output contains an unknown region
+     */
+    protected static List<XMLEvent> splitRegions(List<XMLEvent> output, List<List<XMLEvent>> regionEvents) {
+        final List<XMLEvent> skeleton = new ArrayList<XMLEvent>(output.size());
+        
+        List<XMLEvent> region = null;
+        int regionDepth = 0;
+        for (final XMLEvent event : output) {
+            if (region != null) {
+                if (event.isStartElement()) {
+                    regionDepth++;
+                }
+                else if (event.isEndElement() && --regionDepth == 0) {
+                    //Close the emptied region element
+                    skeleton.add(event);
+                    region = null;
+                    continue;
+                }
+                region.add(event);
+                continue;
+            }
+            
+            if (event.isStartElement()) {
+                final Attribute regionAttribute = event.asStartElement().getAttributeByName(REGION_ATTRIBUTE_NAME);
+                if (regionAttribute != null) {
+                    final int regionIndex;
+                    try {
+                        regionIndex = Integer.parseInt(regionAttribute.getValue());
+                    }
+                    catch (NumberFormatException e) {
+                        return null;
+                    }
+                    if (regionIndex < 0 || regionIndex >= regionEvents.size()) {
+                        return null;
+                    }
+                    
+                    region = new ArrayList<XMLEvent>();
+                    regionEvents.set(regionIndex, Collections.unmodifiableList(region));
+                    regionDepth = 1;
+                }
+            }
+            
+            skeleton.add(event);
+        }
+        
+        return skeleton;
+    }
+    
+    /**
+     * Replaces each region element in the transformed skeleton with the transformed region
+     */
+    protected static List<XMLEvent> spliceRegions(List<XMLEvent> skeleton, List<List<XMLEvent>> transformedRegions) {
+        int eventCount = skeleton.size();
+        for (final List<XMLEvent> transformedRegion : transformedRegions) {
+            eventCount += transformedRegion.size();
+        }
+        final List<XMLEvent> eventBuffer = new ArrayList<XMLEvent>(eventCount);
+        
+        int regionDepth = 0;
+        for (final XMLEvent event : skeleton) {
+            if (regionDepth > 0) {
+                //Skip the end of the region element
+                if (event.isStartElement()) {
+                    regionDepth++;
+                }
+                else if (event.isEndElement()) {
+                    regionDepth--;
+                }
+                continue;
+            }
+            
+            if (event.isStartElement()) {
+                final Attribute regionAttribute = event.asStartElement().getAttributeByName(REGION_ATTRIBUTE_NAME);
+                if (regionAttribute != null) {
+                    final int regionIndex = Integer.parseInt(regionAttribute.getValue());
+                    eventBuffer.addAll(transformedRegions.get(regionIndex));
+                    regionDepth = 1;
+                    continue;
+                }
+            }
+            
+            eventBuffer.add(event);
+        }
+        
+        return eventBuffer;
+    }
+    
+    /**
+     * Buffers the document splitting out each region and replacing it in the skeleton with a placeholder element.
+     */
+    protected RegionDocument parseRegions(XMLEventReader eventReader) {
+        final RegionDocument regionDocument = new RegionDocument();
+        final Map<StartElement, RegionParent> regionParents = new IdentityHashMap<StartElement, RegionParent>();
+        
+        final LinkedList<StartElement> elementStack = new LinkedList<StartElement>();
+        
+        Region region = null;
+        int regionDepth = 0;
+        int contextDepth = 0;
+        
+        while (eventReader.hasNext()) {
+            final XMLEvent event;
+            try {
+                event = eventReader.nextEvent();
+            }
+            catch (XMLStreamException e) {
+                throw new RuntimeException("Failed to read next event from document", e);
+            }
+            regionDocument.document.add(event);
+            
+            if (contextDepth > 0) {
+                regionDocument.context.add(event);
+                if (event.isStartElement()) {
+                    contextDepth++;
+                }
+                else if (event.isEndElement()) {
+                    contextDepth--;
+                }
+            }
+            
+            if (region != null) {
+                region.events.add(event);
+                regionDocument.regionMarkedDocument.add(event);
+                if (event.isStartElement()) {
+                    regionDepth++;
+                }
+                else if (event.isEndElement() && --regionDepth == 0) {
+                    //Close the placeholder element
+                    regionDocument.skeleton.add(event);
+                    region = null;
+                }
+                continue;
+            }
+            
+            if (event.isStartElement()) {
+                final StartElement startElement = event.asStartElement();
+                
+                if (elementStack.isEmpty()) {
+                    regionDocument.documentElement = startElement;
+                    regionDocument.context.add(startElement);
+                }
+                else if (this.isRegion(startElement, elementStack)) {
+                    final StartElement parentElement = elementStack.get(0);
+                    RegionParent parent = regionParents.get(parentElement);
+                    if (parent == null) {
+                        //Ancestors from the child of the document element down to the parent
+                        final List<StartElement> ancestors = new ArrayList<StartElement>(elementStack.subList(0, elementStack.size() - 1));
+                        Collections.reverse(ancestors);
+                        parent = new RegionParent(ancestors);
+                        regionParents.put(parentElement, parent);
+                    }
+                    
+                    final int regionIndex = regionDocument.regions.size();
+                    final StartElement regionStart = createRegionElement(startElement, regionIndex);
+                    region = new Region(regionIndex, parent, regionDocument.skeleton.size(), regionStart);
+                    region.events.add(event);
+                    regionDepth = 1;
+                    regionDocument.regions.add(region);
+                    
+                    regionDocument.regionMarkedDocument.add(regionStart);
+                    regionDocument.skeleton.add(this.createPlaceholder(startElement, regionIndex));
+                    continue;
+                }
+                else if (elementStack.size() == 1 && contextDepth == 0 && this.regionContextElements.contains(startElement.getName().getLocalPart())) {
+                    regionDocument.context.add(event);
+                    contextDepth = 1;
+                }
+                
+                elementStack.push(startElement);
+            }
+            else if (event.isEndElement()) {
+                elementStack.pop();
+            }
+            else if (event.isStartDocument()) {
+                regionDocument.startDocument = event;
+            }
+            else if (event.isEndDocument()) {
+                regionDocument.endDocument = event;
+            }
+            
+            regionDocument.skeleton.add(event);
+            regionDocument.regionMarkedDocument.add(event);
+        }
+        
+        return regionDocument;
+    }
+    
+    protected boolean isRegion(StartElement startElement, List<StartElement> elementStack) {
+        if (elementStack.isEmpty() || !this.regionElements.contains(startElement.getName().getLocalPart())) {
+            return false;
+        }
+        
+        final StartElement parent = elementStack.get(0);
+        return this.regionParentElements.contains(parent.getName().getLocalPart());
+    }
+    
+    /**
+     * Creates the empty element that replaces a region in the skeleton, only the ID attribute of the region is retained
+     */
+    protected StartElement createPlaceholder(StartElement startElement, int regionIndex) {
+        final List<Attribute> attributes = new ArrayList<Attribute>(3);
+        final Attribute idAttribute = startElement.getAttributeByName(ID_ATTRIBUTE_NAME);
+        if (idAttribute != null) {
+            attributes.add(idAttribute);
+        }
+        attributes.add(EVENT_FACTORY.createAttribute(REGION_ATTRIBUTE_NAME, Integer.toString(regionIndex)));
+        attributes.add(EVENT_FACTORY.createAttribute(PLACEHOLDER_ATTRIBUTE_NAME, "true"));
+        
+        return createStartElement(startElement, attributes, Collections.<Namespace>emptyList().iterator());
+    }
+    
+    /**
+     * Copy of the region element with the {@link #REGION_ATTRIBUTE} attribute added
+     */
+    protected static StartElement createRegionElement(StartElement startElement, int regionIndex) {
+        final List<Attribute> attributes = copyAttributes(startElement);
+        attributes.add(EVENT_FACTORY.createAttribute(REGION_ATTRIBUTE_NAME, Integer.toString(regionIndex)));
+        
+        return createStartElement(startElement, attributes, startElement.getNamespaces());
+    }
+    
+    /**
+     * Copy of the document element with the {@link #REGION_DOCUMENT_ATTRIBUTE} attribute added
+     */
+    protected static StartElement createRegionDocumentElement(StartElement documentElement) {
+        final List<Attribute> attributes = copyAttributes(documentElement);
+        attributes.add(EVENT_FACTORY.createAttribute(REGION_DOCUMENT_ATTRIBUTE, "true"));
+        
+        return createStartElement(documentElement, attributes, documentElement.getNamespaces());
+    }
+    
+    private static List<Attribute> copyAttributes(StartElement startElement) {
+        final List<Attribute> attributes = new ArrayList<Attribute>();
+        for (final Iterator<?> attributeItr = startElement.getAttributes(); attributeItr.hasNext(); ) {
+            attributes.add((Attribute)attributeItr.next());
+        }
+        return attributes;
+    }
+    
+    /**
+     * Create a StartElement with the name and location of the original element, the transformer reads the
+     * location of the document element
+     */
+    private static StartElement createStartElement(StartElement original, List<Attribute> attributes, Iterator<?> namespaces) {
+        synchronized (EVENT_FACTORY) {
+            EVENT_FACTORY.setLocation(original.getLocation());
+            try {
+                return EVENT_FACTORY.createStartElement(original.getName(), attributes.iterator(), namespaces);
+            }
+            finally {
+                EVENT_FACTORY.setLocation(null);
+            }
+        }
+    }
+    
+    private static EndElement createEndElement(StartElement startElement) {
+        synchronized (EVENT_FACTORY) {
+            return EVENT_FACTORY.createEndElement(startElement.getName(), startElement.getNamespaces());
+        }
+    }
+    
+    /**
+     * MD5 digest of the names, attributes, namespaces and character data of the events
+     */
+    protected static String digest(List<? extends XMLEvent> events) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 MessageDigest is not available", e);
+        }
+        
+        for (final XMLEvent event : events) {
+            update(digest, Integer.toString(event.getEventType()));
+            
+            switch (event.getEventType()) {
+                case XMLStreamConstants.START_ELEMENT: {
+                    final StartElement startElement = event.asStartElement();
+                    update(digest, startElement.getName());
+                    for (final Iterator<?> namespaceItr = startElement.getNamespaces(); namespaceItr.hasNext(); ) {
+                        final Namespace namespace = (Namespace)namespaceItr.next();
+                        update(digest, namespace.getPrefix());
+                        update(digest, namespace.getNamespaceURI());
+                    }
+                    for (final Iterator<?> attributeItr = startElement.getAttributes(); attributeItr.hasNext(); ) {
+                        final Attribute attribute = (Attribute)attributeItr.next();
+                        update(digest, attribute.getName());
+                        update(digest, attribute.getValue());
+                    }
+                    break;
+                }
+                case XMLStreamConstants.END_ELEMENT: {
+                    update(digest, event.asEndElement().getName());
+                    break;
+                }
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.CDATA: {
+                    update(digest, event.asCharacters().getData());
+                    break;
+                }
+                default: {
+                    update(digest, event.toString());
+                }
+            }
+        }
+        
+        return Hex.encodeHexString(digest.digest());
+    }
+    
+    private static void update(MessageDigest digest, QName name) {
+        update(digest, name.getNamespaceURI());
+        update(digest, name.getLocalPart());
+    }
+    
+    private static void update(MessageDigest digest, String value) {
+        if (value != null) {
+            try {
+                digest.update(value.getBytes("UTF-8"));
+            }
+            catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException("UTF-8 encoding is not supported", e);
+            }
+        }
+        digest.update((byte) 0);
+    }
+    
+    /**
+     * The buffered document split into a skeleton with region placeholders and the events of each region
+     */
+    protected static final class RegionDocument {
+        final List<XMLEvent> document = new ArrayList<XMLEvent>();
+        final List<XMLEvent> regionMarkedDocument = new ArrayList<XMLEvent>();
+        final List<XMLEvent> skeleton = new ArrayList<XMLEvent>();
+        final List<XMLEvent> context = new ArrayList<XMLEvent>();
+        final List<Region> regions = new ArrayList<Region>();
+        StartElement documentElement;
+        XMLEvent startDocument;
+        XMLEvent endDocument;
+        
+        /**
+         * Creates the document a region is transformed as: the document element marked by
+         * {@link IncrementalXSLTComponent#REGION_DOCUMENT_ATTRIBUTE}, the context elements and the
+         * ancestors of the region containing the region and the placeholders of its siblings.
+         */
+        List<XMLEvent> createRegionDocument(int regionIndex) {
+            final Region region = this.regions.get(regionIndex);
+            final RegionParent parent = region.parent;
+            
+            final List<XMLEvent> regionDocument = new ArrayList<XMLEvent>(this.context.size() + region.events.size() + parent.ancestors.size() * 2 + parent.regionIndexes.size() * 2 + 4);
+            if (this.startDocument != null) {
+                regionDocument.add(this.startDocument);
+            }
+            regionDocument.add(createRegionDocumentElement(this.documentElement));
+            regionDocument.addAll(this.context.subList(1, this.context.size()));
+            regionDocument.addAll(parent.ancestors);
+            
+            for (final Integer siblingIndex : parent.regionIndexes) {
+                if (siblingIndex == regionIndex) {
+                    regionDocument.add(region.regionElement);
+                    regionDocument.addAll(region.events.subList(1, region.events.size()));
+                }
+                else {
+                    //Placeholder start and end elements
+                    final int placeholderIndex = this.regions.get(siblingIndex).placeholderIndex;
+                    regionDocument.addAll(this.skeleton.subList(placeholderIndex, placeholderIndex + 2));
+                }
+            }
+            
+            for (final ListIterator<StartElement> ancestorItr = parent.ancestors.listIterator(parent.ancestors.size()); ancestorItr.hasPrevious(); ) {
+                regionDocument.add(createEndElement(ancestorItr.previous()));
+            }
+            regionDocument.add(createEndElement(this.documentElement));
+            if (this.endDocument != null) {
+                regionDocument.add(this.endDocument);
+            }
+            
+            return regionDocument;
+        }
+    }
+    
+    /**
+     * A region of the document
+     */
+    protected static final class Region {
+        final List<XMLEvent> events = new ArrayList<XMLEvent>();
+        final RegionParent parent;
+        final int placeholderIndex;
+        final StartElement regionElement;
+        final int position;
+        
+        Region(int regionIndex, RegionParent parent, int placeholderIndex, StartElement regionElement) {
+            this.parent = parent;
+            this.placeholderIndex = placeholderIndex;
+            this.regionElement = regionElement;
+            this.position = parent.regionIndexes.size();
+            parent.regionIndexes.add(regionIndex);
+        }
+    }
+    
+    /**
+     * The element containing one or more regions
+     */
+    protected static final class RegionParent {
+        final List<StartElement> ancestors;
+        final List<Integer> regionIndexes = new ArrayList<Integer>();
+        private String digest;
+        
+        /**
+         * @param ancestors Start elements from the child of the document element down to the parent itself
+         */
+        RegionParent(List<StartElement> ancestors) {
+            this.ancestors = ancestors;
+        }
+        
+        String getDigest() {
+            if (this.digest == null) {
+                this.digest = digest(this.ancestors);
+            }
+            return this.digest;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.rendering.xslt;
+
+import java.util.List;
+
+import javax.xml.transform.Templates;
+
+import org.jasig.portal.layout.dao.IStylesheetDescriptorDao;
+import org.jasig.portal.layout.om.IStylesheetDescriptor;
+import org.jasig.portal.xml.XmlUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+
+/**
+ * Compiles the structure and theme stylesheets of every {@link IStylesheetDescriptor} when the portal
+ * starts so the first requests don't pay the cost of stylesheet compilation.
+ * 
+ * @version $Revision$
+ */
+@Service
+public class StylesheetPrecompiler implements ApplicationListener<ContextRefreshedEvent>, ApplicationContextAware {
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+    
+    private IStylesheetDescriptorDao stylesheetDescriptorDao;
+    private XmlUtilities xmlUtilities;
+    private ApplicationContext applicationContext;
+    private boolean precompileStylesheets = true;
+
+    @Autowired
+    public void setStylesheetDescriptorDao(IStylesheetDescriptorDao stylesheetDescriptorDao) {
+        this.stylesheetDescriptorDao = stylesheetDescriptorDao;
+    }
+
+    @Autowired
+    public void setXmlUtilities(XmlUtilities xmlUtilities) {
+        this.xmlUtilities = xmlUtilities;
+    }
+
+    @Override
+    public void setApplicationContext(ApplicationContext applicationContext) {
+        this.applicationContext = applicationContext;
+    }
+
+    /**
+     * @param precompileStylesheets If stylesheets should be compiled at startup. Defaults to true.
+     */
+    @Value("${org.jasig.portal.rendering.xslt.precompileStylesheets:true}")
+    public void setPrecompileStylesheets(boolean precompileStylesheets) {
+        this.precompileStylesheets = precompileStylesheets;
+    }
+
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        //Ignore refresh events from child contexts
+        if (!this.precompileStylesheets || event.getApplicationContext() != this.applicationContext) {
+            return;
+        }
+        
+        final List<? extends IStylesheetDescriptor> stylesheetDescriptors;
+        try {
+            stylesheetDescriptors = this.stylesheetDescriptorDao.getStylesheetDescriptors();
+        }
+        catch (RuntimeException e) {
+            this.logger.warn("Failed to load stylesheet descriptors, stylesheets will be compiled on first use", e);
+            return;
+        }
+        
+        final long start = System.currentTimeMillis();
+        int compiled = 0;
+        for (final IStylesheetDescriptor stylesheetDescriptor : stylesheetDescriptors) {
+            final String stylesheetResource = stylesheetDescriptor.getStylesheetResource();
+            final Resource resource = this.applicationContext.getResource(stylesheetResource);
+            try {
+                final Templates templates = this.xmlUtilities.getTemplates(resource);
+                this.logger.debug("Compiled stylesheet {} for {}: {}", new Object[] { stylesheetResource, stylesheetDescriptor.getName(), templates });
+                compiled++;
+            }
+            catch (Exception e) {
+                this.logger.warn("Failed to compile stylesheet " + stylesheetResource + " for stylesheet descriptor " + stylesheetDescriptor.getName(), e);
+            }
+        }
+        
+        this.logger.info("Compiled {} of {} stylesheets in {}ms", new Object[] { compiled, stylesheetDescriptors.size(), System.currentTimeMillis() - start });
+    }
+}
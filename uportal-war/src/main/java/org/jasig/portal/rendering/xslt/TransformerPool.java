@@ -0,0 +1,193 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.rendering.xslt;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Bounded pool of idle {@link Transformer}s for each {@link Templates}. Returned Transformers are
+ * {@link Transformer#reset()} before they are made available again. Pools are weakly keyed by
+ * their Templates so a reloaded stylesheet simply starts a new pool.
+ * 
+ * @version $Revision$
+ */
+@Service("transformerPool")
+public class TransformerPool {
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+    
+    private final LoadingCache<Templates, BlockingQueue<Transformer>> idleTransformers = CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<Templates, BlockingQueue<Transformer>>() {
+        @Override
+        public BlockingQueue<Transformer> load(Templates key) throws Exception {
+            return new ArrayBlockingQueue<Transformer>(maxIdlePerTemplates);
+        }
+    });
+    
+    //Tracks the pool each borrowed Transformer belongs to, borrowed Transformers that are never returned are simply GC'd
+    private final Cache<Transformer, BlockingQueue<Transformer>> borrowedTransformers = CacheBuilder.newBuilder().weakKeys().build();
+    
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong returns = new AtomicLong();
+    private final AtomicLong discards = new AtomicLong();
+    
+    private boolean poolingEnabled = true;
+    private int maxIdlePerTemplates = 16;
+
+    /**
+     * @param poolingEnabled If false a new Transformer is created for every request. Defaults to true.
+     */
+    @Value("${org.jasig.portal.rendering.xslt.TransformerPool.enabled:true}")
+    public void setPoolingEnabled(boolean poolingEnabled) {
+        this.poolingEnabled = poolingEnabled;
+    }
+
+    /**
+     * @param maxIdlePerTemplates Maximum number of idle Transformers kept per stylesheet. Defaults to 16.
+     */
+    @Value("${org.jasig.portal.rendering.xslt.TransformerPool.maxIdlePerTemplates:16}")
+    public void setMaxIdlePerTemplates(int maxIdlePerTemplates) {
+        if (maxIdlePerTemplates < 1) {
+            throw new IllegalArgumentException("maxIdlePerTemplates must be greater than 0: " + maxIdlePerTemplates);
+        }
+        this.maxIdlePerTemplates = maxIdlePerTemplates;
+    }
+    
+    public boolean isPoolingEnabled() {
+        return this.poolingEnabled;
+    }
+
+    public int getMaxIdlePerTemplates() {
+        return this.maxIdlePerTemplates;
+    }
+    
+    /**
+     * @return Number of Transformers borrowed from the pool
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+    
+    /**
+     * @return Number of Transformers created because the pool was empty
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+    
+    /**
+     * @return Number of Transformers returned to the pool
+     */
+    public long getReturns() {
+        return this.returns.get();
+    }
+    
+    /**
+     * @return Number of returned Transformers discarded because the pool was full or the Transformer could not be reset
+     */
+    public long getDiscards() {
+        return this.discards.get();
+    }
+    
+    /**
+     * @return Number of idle Transformers across all stylesheets
+     */
+    public int getIdleCount() {
+        int idle = 0;
+        for (final BlockingQueue<Transformer> pool : this.idleTransformers.asMap().values()) {
+            idle += pool.size();
+        }
+        return idle;
+    }
+    
+    /**
+     * @return Number of stylesheets with a Transformer pool
+     */
+    public long getPoolCount() {
+        return this.idleTransformers.size();
+    }
+
+    /**
+     * Get a Transformer for the Templates, the Transformer should be given back via {@link #returnTransformer(Transformer)}
+     * when the caller is done with it.
+     */
+    public Transformer borrowTransformer(Templates templates) throws TransformerConfigurationException {
+        if (!this.poolingEnabled) {
+            return templates.newTransformer();
+        }
+        
+        final BlockingQueue<Transformer> pool = this.idleTransformers.getUnchecked(templates);
+        
+        Transformer transformer = pool.poll();
+        if (transformer != null) {
+            this.hits.incrementAndGet();
+        }
+        else {
+            this.misses.incrementAndGet();
+            transformer = templates.newTransformer();
+        }
+        
+        this.borrowedTransformers.put(transformer, pool);
+        return transformer;
+    }
+    
+    /**
+     * Reset the Transformer and make it available to other callers. Transformers not borrowed from the pool are ignored.
+     */
+    public void returnTransformer(Transformer transformer) {
+        final BlockingQueue<Transformer> pool = this.borrowedTransformers.asMap().remove(transformer);
+        if (pool == null) {
+            return;
+        }
+        
+        try {
+            //Some implementations (XSLTC) keep parameters set on the translet through a reset
+            transformer.clearParameters();
+            transformer.reset();
+        }
+        catch (RuntimeException e) {
+            this.logger.warn("Failed to reset Transformer {}, it will not be pooled", transformer, e);
+            this.discards.incrementAndGet();
+            return;
+        }
+        
+        if (pool.offer(transformer)) {
+            this.returns.incrementAndGet();
+        }
+        else {
+            this.discards.incrementAndGet();
+        }
+    }
+}
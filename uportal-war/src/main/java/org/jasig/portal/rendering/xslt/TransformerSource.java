@@ -35,6 +35,12 @@ public interface TransformerSource {
      */
     public Transformer getTransformer(HttpServletRequest request, HttpServletResponse response);
     
+    /**
+     * Called with a Transformer returned by {@link #getTransformer(HttpServletRequest, HttpServletResponse)}
+     * once the caller is done with it, the Transformer must not be used after it is released.
+     */
+    public void releaseTransformer(Transformer transformer);
+    
     /**
      * Gets the CacheKey for the Transformer
      */
@@ -98,6 +98,35 @@ public class XSLTComponent extends StAXPipelineComponentWrapper implements BeanN
     public PipelineEventReader<XMLEventReader, XMLEvent> getEventReader(HttpServletRequest request, HttpServletResponse response) {
         final PipelineEventReader<XMLEventReader, XMLEvent> pipelineEventReader = this.wrappedComponent.getEventReader(request, response);
         
+        final Transformer transformer = this.createTransformer(request, response);
+
+        final List<XMLEvent> eventBuffer;
+        final String mediaType;
+        try {
+            //The event reader from the previous component in the pipeline
+            final XMLEventReader eventReader = pipelineEventReader.getEventReader();
+            eventBuffer = this.transform(transformer, eventReader);
+            
+            mediaType = transformer.getOutputProperty(OutputKeys.MEDIA_TYPE);
+        }
+        finally {
+            this.releaseTransformer(transformer);
+        }
+        
+        final XMLEventReader outputEventReader = new XMLEventBufferReader(eventBuffer.listIterator()); 
+        
+        final Map<String, String> outputProperties = pipelineEventReader.getOutputProperties();
+        final PipelineEventReaderImpl<XMLEventReader, XMLEvent> pipelineEventReaderImpl = new PipelineEventReaderImpl<XMLEventReader, XMLEvent>(outputEventReader, outputProperties);
+        pipelineEventReaderImpl.setOutputProperty(OutputKeys.MEDIA_TYPE, mediaType);
+        return pipelineEventReaderImpl;
+    }
+    
+    /**
+     * Get a {@link Transformer} for the request configured with the URI resolver, parameters and output properties.
+     * The returned Transformer may be used for more than one transform during the request and must be
+     * released via {@link #releaseTransformer(Transformer)}.
+     */
+    protected Transformer createTransformer(HttpServletRequest request, HttpServletResponse response) {
         final Transformer transformer = this.transformerSource.getTransformer(request, response);
         
         //Setup a URIResolver based on the current resource loader
@@ -123,10 +152,24 @@ public class XSLTComponent extends StAXPipelineComponentWrapper implements BeanN
                 transformer.setOutputProperties(outputProperties);
             }
         }
-
-        //The event reader from the previous component in the pipeline
-        final XMLEventReader eventReader = pipelineEventReader.getEventReader();
         
+        //Setup logging for the transform
+        transformer.setErrorListener(this.errorListener);
+        
+        return transformer;
+    }
+    
+    /**
+     * Release a Transformer returned by {@link #createTransformer(HttpServletRequest, HttpServletResponse)}
+     */
+    protected void releaseTransformer(Transformer transformer) {
+        this.transformerSource.releaseTransformer(transformer);
+    }
+    
+    /**
+     * Transform the events from the reader returning the buffered result events
+     */
+    protected List<XMLEvent> transform(Transformer transformer, XMLEventReader eventReader) {
         //Wrap the event reader in a stream reader to avoid a JDK bug
         final XMLStreamReader streamReader;
         try {
@@ -136,9 +179,6 @@ public class XSLTComponent extends StAXPipelineComponentWrapper implements BeanN
             throw new RuntimeException("Failed to create XMLStreamReader from XMLEventReader", e);
         }
         final Source xmlReaderSource = new StAXSource(streamReader);
-        
-        //Setup logging for the transform
-        transformer.setErrorListener(this.errorListener);
 
         //Transform to a SAX ContentHandler to avoid JDK bug: http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6775588
         final XMLEventBufferWriter eventWriterBuffer = new XMLEventBufferWriter();
@@ -155,15 +195,39 @@ public class XSLTComponent extends StAXPipelineComponentWrapper implements BeanN
             throw new RuntimeException("Failed to transform document", e);
         }
         
-        final String mediaType = transformer.getOutputProperty(OutputKeys.MEDIA_TYPE);
+        return eventWriterBuffer.getEventBuffer();
+    }
+    
+    /**
+     * @return Cache key for the stylesheet and its configuration, does not include the key of the wrapped component
+     */
+    protected CacheKey getTransformerCacheKey(HttpServletRequest request, HttpServletResponse response) {
+        final CacheKey transformerKey = this.getStylesheetCacheKey(request, response);
         
-        final List<XMLEvent> eventBuffer = eventWriterBuffer.getEventBuffer();
-        final XMLEventReader outputEventReader = new XMLEventBufferReader(eventBuffer.listIterator()); 
+        final CacheKey transformerConfigurationKey;
+        if (this.xsltParameterSource != null) {
+            transformerConfigurationKey = this.xsltParameterSource.getCacheKey(request, response);
+        }
+        else {
+            transformerConfigurationKey = null;
+        }
         
-        final Map<String, String> outputProperties = pipelineEventReader.getOutputProperties();
-        final PipelineEventReaderImpl<XMLEventReader, XMLEvent> pipelineEventReaderImpl = new PipelineEventReaderImpl<XMLEventReader, XMLEvent>(outputEventReader, outputProperties);
-        pipelineEventReaderImpl.setOutputProperty(OutputKeys.MEDIA_TYPE, mediaType);
-        return pipelineEventReaderImpl;
+        return CacheKey.build(this.beanName, transformerKey, transformerConfigurationKey);
+    }
+    
+    /**
+     * @return Cache key for the stylesheet, does not include the stylesheet configuration
+     */
+    protected CacheKey getStylesheetCacheKey(HttpServletRequest request, HttpServletResponse response) {
+        if (transformerSource != null) {
+            return this.transformerSource.getCacheKey(request, response);
+        }
+        
+        return null;
+    }
+    
+    protected String getBeanName() {
+        return this.beanName;
     }
 
     @Override
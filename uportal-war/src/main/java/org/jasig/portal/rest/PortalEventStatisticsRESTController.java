@@ -0,0 +1,71 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.rest;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jasig.portal.events.stats.PortalEventStatisticsService;
+import org.jasig.portal.security.AdminEvaluator;
+import org.jasig.portal.security.IPerson;
+import org.jasig.portal.security.IPersonManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.servlet.ModelAndView;
+
+/**
+ * Returns the live page render and portlet execution latency statistics as JSON, restricted to portal
+ * administrators.
+ * 
+ * @version $Revision$
+ */
+@Controller
+public class PortalEventStatisticsRESTController {
+
+    private IPersonManager personManager;
+    private PortalEventStatisticsService portalEventStatisticsService;
+    
+    @Autowired
+    public void setPersonManager(IPersonManager personManager) {
+        this.personManager = personManager;
+    }
+
+    @Autowired
+    public void setPortalEventStatisticsService(PortalEventStatisticsService portalEventStatisticsService) {
+        this.portalEventStatisticsService = portalEventStatisticsService;
+    }
+
+    @RequestMapping(value="/eventStatistics.json", method = RequestMethod.GET)
+    public ModelAndView getEventStatistics(HttpServletRequest request, HttpServletResponse response) {
+        final IPerson person = personManager.getPerson(request);
+        if (person == null || !AdminEvaluator.isAdmin(person)) {
+            response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+            return null;
+        }
+        
+        final ModelAndView mv = new ModelAndView();
+        mv.addObject("pageRenders", this.portalEventStatisticsService.getPageRenderStatistics());
+        mv.addObject("portlets", this.portalEventStatisticsService.getPortletStatistics());
+        mv.setViewName("json");
+        
+        return mv;
+    }
+}
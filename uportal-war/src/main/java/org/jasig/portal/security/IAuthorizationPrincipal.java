@@ -19,6 +19,9 @@
 
 package org.jasig.portal.security;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 
 import org.jasig.portal.AuthorizationException;
@@ -67,6 +70,20 @@ public interface IAuthorizationPrincipal {
  * @exception AuthorizationException thrown when authorization information could not be retrieved.
  */
     boolean canSubscribe(String channelPublishId) throws AuthorizationException;
+/**
+ * Returns the ids of the channels this <code>IAuthorizationPrincipal</code> has permission to render.
+ * @return Set of the channel publish ids that may be rendered
+ * @param channelPublishIds Collection of channel publish ids to check
+ * @exception AuthorizationException thrown when authorization information could not be retrieved.
+ */
+    Set<String> getRenderableChannels(Collection<String> channelPublishIds) throws AuthorizationException;
+/**
+ * Returns the ids of the channels this <code>IAuthorizationPrincipal</code> has permission to subscribe to.
+ * @return Set of the channel publish ids that may be subscribed to
+ * @param channelPublishIds Collection of channel publish ids to check
+ * @exception AuthorizationException thrown when authorization information could not be retrieved.
+ */
+    Set<String> getSubscribableChannels(Collection<String> channelPublishIds) throws AuthorizationException;
 /**
  * Returns the <code>IPermissions</code> for this <code>IAuthorizationPrincipal</code>,
  * including inherited <code>Permissions</code>.
@@ -150,6 +167,20 @@ public interface IAuthorizationPrincipal {
  */
     public boolean hasPermission(String owner, String activity, String target) throws
     AuthorizationException;
+/**
+ * Answers, for each of the <code>targets</code>, if this <code>IAuthorizationPrincipal</code>
+ * has permission to perform the <code>activity</code> on it.  Params <code>owner</code> and
+ * <code>activity</code> must be non-null.
+ *
+ * @return Map of target to the permission answer
+ * @param owner java.lang.String
+ * @param activity java.lang.String
+ * @param targets Collection of targets to check
+ * @exception AuthorizationException indicates authorization information could not
+ * be retrieved.
+ */
+    public Map<String, Boolean> hasPermissions(String owner, String activity, Collection<String> targets) throws
+    AuthorizationException;
 
 /**
  * Answers if this <code>IAuthorizationPrincipal</code> has permission to perform the
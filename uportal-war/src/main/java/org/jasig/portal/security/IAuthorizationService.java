@@ -19,6 +19,9 @@
 
 package org.jasig.portal.security;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 
 import org.jasig.portal.AuthorizationException;
@@ -86,6 +89,24 @@ public interface IAuthorizationService
  */
     public boolean canPrincipalSubscribe(IAuthorizationPrincipal principal, String channelPublishId)
     throws AuthorizationException;
+/**
+ * Returns the ids of the Channels the principal has permission to render.
+ * @return Set of the channel publish ids that may be rendered
+ * @param principal IAuthorizationPrincipal
+ * @param channelPublishIds Collection of channel publish ids to check
+ * @exception AuthorizationException indicates authorization information could not be retrieved.
+ */
+    public Set<String> getPortletDefinitionsPrincipalCanRender(IAuthorizationPrincipal principal, Collection<String> channelPublishIds)
+    throws AuthorizationException;
+/**
+ * Returns the ids of the Channels the principal has permission to subscribe to.
+ * @return Set of the channel publish ids that may be subscribed to
+ * @param principal IAuthorizationPrincipal
+ * @param channelPublishIds Collection of channel publish ids to check
+ * @exception AuthorizationException indicates authorization information could not be retrieved.
+ */
+    public Set<String> getPortletDefinitionsPrincipalCanSubscribe(IAuthorizationPrincipal principal, Collection<String> channelPublishIds)
+    throws AuthorizationException;
 /**
  * Answers if the owner has given the principal permission to perform the activity on
  * the target.  Params <code>owner</code> and <code>activity</code> must be non-null.
@@ -105,6 +126,27 @@ public interface IAuthorizationService
       String activity,
       String target)
     throws AuthorizationException;
+/**
+ * Answers, for each of the targets, if the owner has given the principal permission to
+ * perform the activity on that target.  Equivalent to calling
+ * {@link #doesPrincipalHavePermission(IAuthorizationPrincipal, String, String, String)}
+ * once per target but lets the service load the principal's permissions only once.
+ * Params <code>owner</code> and <code>activity</code> must be non-null.
+ *
+ * @return Map of target to the permission answer
+ * @param principal IAuthorizationPrincipal
+ * @param owner java.lang.String
+ * @param activity java.lang.String
+ * @param targets Collection of targets to check
+ * @exception AuthorizationException indicates authorization information could not
+ * be retrieved.
+ */
+    public Map<String, Boolean> doesPrincipalHavePermissions(
+      IAuthorizationPrincipal principal,
+      String owner,
+      String activity,
+      Collection<String> targets)
+    throws AuthorizationException;
 /**
  * Returns the <code>IPermissions</code> owner has granted this <code>Principal</code> for
  * the specified activity and target.  This includes inherited <code>IPermissions</code>.
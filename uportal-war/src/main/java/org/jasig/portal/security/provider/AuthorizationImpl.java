@@ -21,9 +21,17 @@ package org.jasig.portal.security.provider;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
 
@@ -357,6 +365,21 @@ throws AuthorizationException
     return canPrincipalSubscribe(principal, portletDefinitionId);
 }
 
+/**
+ * Returns the ids of the portlet definitions the principal has permission to
+ * RENDER.  This implementation currently delegates to the SUBSCRIBE permission.
+ * 
+ * @return Set of the renderable portlet definition ids
+ * @param principal IAuthorizationPrincipal
+ * @param portletDefinitionIds Collection of portlet definition ids to check
+ * @exception AuthorizationException indicates authorization information could not be retrieved.
+ */
+public Set<String> getPortletDefinitionsPrincipalCanRender(IAuthorizationPrincipal principal, Collection<String> portletDefinitionIds)
+throws AuthorizationException
+{
+    return getPortletDefinitionsPrincipalCanSubscribe(principal, portletDefinitionIds);
+}
+
 /**
  * Answers if the principal has permission to SUBSCRIBE to this Channel.
  * @return boolean
@@ -376,30 +399,80 @@ public boolean canPrincipalSubscribe(IAuthorizationPrincipal principal, String p
     if (portlet == null){
     	return false;
     }    
-    PortletLifecycleState state = portlet.getLifecycleState();
+    final String permission = getSubscribeActivity(portlet);
+
+    // test the appropriate permission
+    return doesPrincipalHavePermission(principal, owner, permission, target);
+
+}
+
+/**
+ * Returns the ids of the portlet definitions the principal has permission to
+ * SUBSCRIBE to.  The targets are grouped by the subscribe activity their lifecycle
+ * state requires and each group is evaluated with a single call to
+ * {@link #doesPrincipalHavePermissions(IAuthorizationPrincipal, String, String, Collection)}.
+ * Ids of portlet definitions that do not exist are not returned.
+ * 
+ * @return Set of the subscribable portlet definition ids
+ * @param principal IAuthorizationPrincipal
+ * @param portletDefinitionIds Collection of portlet definition ids to check
+ * @exception AuthorizationException indicates authorization information could not be retrieved.
+ */
+public Set<String> getPortletDefinitionsPrincipalCanSubscribe(IAuthorizationPrincipal principal, Collection<String> portletDefinitionIds)
+throws AuthorizationException
+{
+    final String owner = IPermission.PORTAL_SUBSCRIBE;
     
-    /*
-     * Each channel lifecycle state now has its own subscribe permission.  The
-     * following logic checks the appropriate permission for the lifecycle.
-     */
-    String permission;
+    //activity -> (target -> portlet definition id)
+    final Map<String, Map<String, String>> targetsByActivity = new LinkedHashMap<String, Map<String, String>>();
+    for (final String portletDefinitionId : portletDefinitionIds) {
+        final IPortletDefinition portlet = this.portletDefinitionRegistry.getPortletDefinition(portletDefinitionId);
+        if (portlet == null) {
+            continue;
+        }
+        
+        final String activity = getSubscribeActivity(portlet);
+        Map<String, String> targets = targetsByActivity.get(activity);
+        if (targets == null) {
+            targets = new LinkedHashMap<String, String>();
+            targetsByActivity.put(activity, targets);
+        }
+        targets.put(IPermission.PORTLET_PREFIX + portletDefinitionId, portletDefinitionId);
+    }
+    
+    final Set<String> subscribable = new LinkedHashSet<String>();
+    for (final Map.Entry<String, Map<String, String>> activityEntry : targetsByActivity.entrySet()) {
+        final Map<String, String> targets = activityEntry.getValue();
+        final Map<String, Boolean> results = doesPrincipalHavePermissions(principal, owner, activityEntry.getKey(), targets.keySet());
+        for (final Map.Entry<String, Boolean> resultEntry : results.entrySet()) {
+            if (resultEntry.getValue()) {
+                subscribable.add(targets.get(resultEntry.getKey()));
+            }
+        }
+    }
+    
+    return subscribable;
+}
+
+/**
+ * Each channel lifecycle state has its own subscribe permission, returns the
+ * activity to check for the current lifecycle state of the portlet.
+ */
+private String getSubscribeActivity(IPortletDefinition portlet) throws AuthorizationException {
+    final PortletLifecycleState state = portlet.getLifecycleState();
     if (state.equals(PortletLifecycleState.PUBLISHED)) {
-    	permission = IPermission.PORTLET_SUBSCRIBER_ACTIVITY;
+        return IPermission.PORTLET_SUBSCRIBER_ACTIVITY;
     } else if (state.equals(PortletLifecycleState.APPROVED)) {
-    	permission = IPermission.PORTLET_SUBSCRIBER_APPROVED_ACTIVITY;
+        return IPermission.PORTLET_SUBSCRIBER_APPROVED_ACTIVITY;
     } else if (state.equals(PortletLifecycleState.CREATED)) {
-    	permission = IPermission.PORTLET_SUBSCRIBER_CREATED_ACTIVITY;
+        return IPermission.PORTLET_SUBSCRIBER_CREATED_ACTIVITY;
     } else if (state.equals(PortletLifecycleState.EXPIRED)) {
-    	permission = IPermission.PORTLET_SUBSCRIBER_EXPIRED_ACTIVITY;
-    } else {
-			throw new AuthorizationException(
-					"Unrecognized lifecycle state for channel "
-							+ portletDefinitionId);
+        return IPermission.PORTLET_SUBSCRIBER_EXPIRED_ACTIVITY;
     }
-
-    // test the appropriate permission
-    return doesPrincipalHavePermission(principal, owner, permission, target);
-
+    
+    throw new AuthorizationException(
+            "Unrecognized lifecycle state for channel "
+                    + portlet.getPortletDefinitionId().getStringId());
 }
 
 /**
@@ -444,8 +517,7 @@ throws AuthorizationException
     @RequestCache
     public boolean doesPrincipalHavePermission(IAuthorizationPrincipal principal, String owner, String activity,
             String target, IPermissionPolicy policy) throws AuthorizationException {
-        final CacheKey key = CacheKey.build(AuthorizationImpl.class.getName(), policy.getClass(), principal.getKey(),
-                principal.getType(), owner, activity, target);
+        final CacheKey key = getPermissionCacheKey(principal, owner, activity, target, policy);
 
         final Element element = this.doesPrincipalHavePermissionCache.get(key);
         if (element != null) {
@@ -463,6 +535,74 @@ throws AuthorizationException
         return doesPrincipalHavePermission;
     }
 
+    /**
+     * Answers, for each of the targets, if the owner has given the principal (or any of
+     * its parents) permission to perform the activity on that target. When the default
+     * policy is {@link AnyUnblockedGrantPermissionPolicy} the groups the principal inherits
+     * from and their grants and denies are resolved once for the whole collection and each
+     * target is answered from those, any other policy is asked target by target. Answers are
+     * cached exactly as
+     * {@link #doesPrincipalHavePermission(IAuthorizationPrincipal, String, String, String)}
+     * caches them.
+     *
+     * @return Map of target to the permission answer, in target iteration order
+     * @param principal IAuthorizationPrincipal
+     * @param owner java.lang.String
+     * @param activity java.lang.String
+     * @param targets Collection of targets to check
+     * @exception AuthorizationException indicates authorization information could not
+     * be retrieved.
+     */
+    public Map<String, Boolean> doesPrincipalHavePermissions(IAuthorizationPrincipal principal, String owner,
+            String activity, Collection<String> targets) throws AuthorizationException {
+        final IPermissionPolicy policy = getDefaultPermissionPolicy();
+        final Map<String, Boolean> results = new LinkedHashMap<String, Boolean>(targets.size() * 2);
+
+        //Only the default policy's rules are known well enough to answer them from sets, subclasses may change them
+        final UnblockedGrantEvaluator evaluator;
+        if (owner != null && activity != null && policy.getClass() == AnyUnblockedGrantPermissionPolicy.class) {
+            evaluator = new UnblockedGrantEvaluator(principal, owner, activity, policy);
+        }
+        else {
+            evaluator = null;
+        }
+
+        for (final String target : targets) {
+            if (results.containsKey(target)) {
+                continue;
+            }
+
+            if (evaluator != null && target != null) {
+                results.put(target, evaluator.doesPrincipalHavePermission(target));
+                continue;
+            }
+
+            final CacheKey key = getPermissionCacheKey(principal, owner, activity, target, policy);
+            final Element element = this.doesPrincipalHavePermissionCache.get(key);
+            if (element != null) {
+                results.put(target, (Boolean) element.getValue());
+                continue;
+            }
+
+            final boolean doesPrincipalHavePermission = policy.doesPrincipalHavePermission(this,
+                    principal,
+                    owner,
+                    activity,
+                    target);
+
+            this.doesPrincipalHavePermissionCache.put(new Element(key, doesPrincipalHavePermission));
+            results.put(target, doesPrincipalHavePermission);
+        }
+
+        return results;
+    }
+
+    private CacheKey getPermissionCacheKey(IAuthorizationPrincipal principal, String owner, String activity,
+            String target, IPermissionPolicy policy) {
+        return CacheKey.build(AuthorizationImpl.class.getName(), policy.getClass(), principal.getKey(),
+                principal.getType(), owner, activity, target);
+    }
+
 /**
  * Returns the <code>IPermissions</code> owner has granted this <code>Principal</code> for
  * the specified activity and target.  Null parameters will be ignored, that is, all
@@ -838,15 +978,12 @@ public IUpdatingPermissionManager newUpdatingPermissionManager(String owner)
  * Returns permissions for a principal.  First check the entity caching
  * service, and if the permissions have not been cached, retrieve and
  * cache them.
- * @return IPermission[]
+ * @return IPermissionSet
  * @param principal org.jasig.portal.security.IAuthorizationPrincipal
  */
-private IPermission[] primGetPermissionsForPrincipal(IAuthorizationPrincipal principal)
+private IPermissionSet primGetPermissionSet(IAuthorizationPrincipal principal)
 throws AuthorizationException
 {
-    if ( ! this.cachePermissions )
-        { return getUncachedPermissionsForPrincipal(principal, null, null, null);}
-
     IPermissionSet ps = null;
     // Check the caching service for the Permissions first.
     ps = cacheGet(principal);
@@ -863,7 +1000,66 @@ throws AuthorizationException
             cacheAdd(ps);
         }
     }      // end synchronized
-    return ps.getPermissions();
+    return ps;
+}
+
+/**
+ * Returns the owner, activity and target index over the permissions of a principal.
+ * @return PermissionIndex
+ * @param principal org.jasig.portal.security.IAuthorizationPrincipal
+ */
+private PermissionIndex primGetPermissionIndex(IAuthorizationPrincipal principal)
+throws AuthorizationException
+{
+    final IPermissionSet ps = primGetPermissionSet(principal);
+    if (ps instanceof PermissionSetImpl) {
+        return ((PermissionSetImpl) ps).getPermissionIndex();
+    }
+    return new PermissionIndex(ps.getPermissions());
+}
+
+/**
+ * @return The group with the key, null if there is no such group
+ * @param key String
+ */
+protected IEntityGroup findGroup(String key)
+throws GroupsException
+{
+    return GroupService.findGroup(key);
+}
+
+/**
+ * Returns the keys of all the groups (recursively) containing the target, the
+ * results are cached in the entity parents cache.
+ * @return Set of group keys, empty if the target is not a group member
+ * @param target String
+ */
+private Set<String> getContainingGroupKeys(String target)
+throws GroupsException
+{
+    final Element element = this.entityParentsCache.get(target);
+    if (element != null) {
+        return (Set<String>) element.getObjectValue();
+    }
+
+    final Set<String> containingGroups = new HashSet<String>();
+    IGroupMember targetEntity = findGroup(target);
+    if (targetEntity == null) {
+        if (target.startsWith(IPermission.PORTLET_PREFIX)) {
+            targetEntity = GroupService.getGroupMember(target.replace(IPermission.PORTLET_PREFIX, ""), IPortletDefinition.class);
+        } else {
+            targetEntity = GroupService.getGroupMember(target, IPerson.class);
+        }
+    }
+
+    if (targetEntity != null) {
+        for (Iterator containing = targetEntity.getAllContainingGroups(); containing.hasNext();) {
+            containingGroups.add(((IEntityGroup)containing.next()).getKey());
+        }
+    }
+
+    this.entityParentsCache.put(new Element(target, containingGroups));
+    return containingGroups;
 }
 
 /**
@@ -887,66 +1083,39 @@ throws AuthorizationException
      * criteria.
      */
 
-    IPermission[] perms = primGetPermissionsForPrincipal(principal);
+    final IPermission[] perms;
+    final PermissionIndex permissionIndex;
+    if ( this.cachePermissions ) {
+        final IPermissionSet ps = primGetPermissionSet(principal);
+        perms = ps.getPermissions();
+        permissionIndex = ps instanceof PermissionSetImpl ? ((PermissionSetImpl) ps).getPermissionIndex() : null;
+    }
+    else {
+        perms = getUncachedPermissionsForPrincipal(principal, null, null, null);
+        permissionIndex = null;
+    }
+    
     if ( owner == null && activity == null && target == null )
         { return perms; }
 
 	Set<String> containingGroups;
 	
 	if (target != null) {
-		
-        final Element element = this.entityParentsCache.get(target);
-        if (element != null) {
-            containingGroups = (Set<String>) element.getObjectValue();
-        }
-        else {
-        	containingGroups = new HashSet<String>();
-        	IGroupMember targetEntity = GroupService.findGroup(target);
-    		if (targetEntity == null) {
-    			if (target.startsWith(IPermission.PORTLET_PREFIX)) {
-    				targetEntity = GroupService.getGroupMember(target.replace(IPermission.PORTLET_PREFIX, ""), IPortletDefinition.class);
-    			} else {
-    				targetEntity = GroupService.getGroupMember(target, IPerson.class);
-    			}
-    		}
-    		
-    		if (targetEntity != null) {
-    			for (Iterator containing = targetEntity.getAllContainingGroups(); containing.hasNext();) {
-    				containingGroups.add(((IEntityGroup)containing.next()).getKey());
-    			}
-    		}
-    		
-    		this.entityParentsCache.put(new Element(target, containingGroups));
-        	
-        }
-
-		
+	    containingGroups = getContainingGroupKeys(target);
 	} else {
-		containingGroups = new HashSet<String>();
+		containingGroups = Collections.emptySet();
 	}
 
-    List<IPermission> al = new ArrayList<IPermission>(perms.length);
-    
-    for ( int i=0; i<perms.length; i++ ) {
-        String permissionTarget = perms[i].getTarget();
-        
-        if (
-        		// owner matches
-        		(owner == null || owner.equals(perms[i].getOwner())) &&
-        		// activity matches
-                (activity == null || activity.equals(perms[i].getActivity())) &&
-                // target matches or is a member of the current permission target
-                (target == null || target.equals(permissionTarget) 
-                		|| containingGroups.contains(permissionTarget))    
-            ) {
-        	
-            al.add(perms[i]);
-        } 
-        
+    final List<IPermission> al;
+    if (permissionIndex != null && owner != null && activity != null && target != null) {
+        // fully specified lookup, only look at the permissions for the owner and activity
+        al = permissionIndex.getPermissions(owner, activity, target, containingGroups);
+    }
+    else {
+        al = new ArrayList<IPermission>(perms.length);
+        addMatchingPermissions(perms, owner, activity, target, containingGroups, al);
     }
 
-
-    
     if (log.isTraceEnabled()) {
         log.trace(
                 "AuthorizationImpl.primGetPermissionsForPrincipal(): " +
@@ -964,6 +1133,31 @@ throws AuthorizationException
 
 }
 
+/**
+ * Adds the permissions matching the non-null owner, activity and target to the list.
+ */
+private void addMatchingPermissions(IPermission[] perms, String owner, String activity, String target,
+        Set<String> containingGroups, List<IPermission> al)
+{
+    for ( int i=0; i<perms.length; i++ ) {
+        String permissionTarget = perms[i].getTarget();
+        
+        if (
+        		// owner matches
+        		(owner == null || owner.equals(perms[i].getOwner())) &&
+        		// activity matches
+                (activity == null || activity.equals(perms[i].getActivity())) &&
+                // target matches or is a member of the current permission target
+                (target == null || target.equals(permissionTarget) 
+                		|| containingGroups.contains(permissionTarget))    
+            ) {
+        	
+            al.add(perms[i]);
+        } 
+        
+    }
+}
+
 /**
  * @return IPermission[]
  * @param owner String
@@ -1031,4 +1225,197 @@ throws AuthorizationException
             { removeFromPermissionsCache(permissions); }
     }
 }
+
+    /**
+     * Answers the questions {@link AnyUnblockedGrantPermissionPolicy} answers for one principal,
+     * owner and activity and any number of targets. On the first answer that isn't cached the
+     * groups the principal inherits from are walked once and the targets each of them, and the
+     * principal, is actively granted or denied are collected into sets. Each target is then
+     * answered by looking the target and the groups containing it up in those sets, following
+     * the same rules, in the same order, as the policy.
+     */
+    private final class UnblockedGrantEvaluator {
+        private final IAuthorizationPrincipal principal;
+        private final String owner;
+        private final String activity;
+        private final IPermissionPolicy policy;
+        private final String principalString;
+
+        /** Principal string of the principal and of each group it inherits from to those of the groups directly containing it */
+        private final Map<String, List<String>> parents = new HashMap<String, List<String>>();
+        private final Map<String, Set<String>> grantedTargets = new HashMap<String, Set<String>>();
+        private final Map<String, Set<String>> deniedTargets = new HashMap<String, Set<String>>();
+        private boolean loaded = false;
+
+        UnblockedGrantEvaluator(IAuthorizationPrincipal principal, String owner, String activity, IPermissionPolicy policy) {
+            this.principal = principal;
+            this.owner = owner;
+            this.activity = activity;
+            this.policy = policy;
+            this.principalString = getPrincipalString(principal);
+        }
+
+        /**
+         * Answers from, and caches in, the same cache the single target checks use
+         */
+        boolean doesPrincipalHavePermission(String target) throws AuthorizationException {
+            final CacheKey key = getPermissionCacheKey(this.principal, this.owner, this.activity, target, this.policy);
+            final Element element = doesPrincipalHavePermissionCache.get(key);
+            if (element != null) {
+                return (Boolean) element.getValue();
+            }
+
+            final boolean doesPrincipalHavePermission = this.evaluate(target);
+            doesPrincipalHavePermissionCache.put(new Element(key, doesPrincipalHavePermission));
+            return doesPrincipalHavePermission;
+        }
+
+        private boolean evaluate(String target) throws AuthorizationException {
+            if (!IPermission.ALL_PERMISSIONS_ACTIVITY.equals(this.activity)) {
+                final UnblockedGrantEvaluator superUserEvaluator = new UnblockedGrantEvaluator(this.principal,
+                        IPermission.PORTAL_SYSTEM, IPermission.ALL_PERMISSIONS_ACTIVITY, this.policy);
+                if (superUserEvaluator.doesPrincipalHavePermission(IPermission.ALL_TARGET)) {
+                    return true;
+                }
+            }
+
+            this.load();
+
+            final Set<String> containingGroups = getContainingGroupKeys(target);
+            if (matches(this.deniedTargets.get(this.principalString), target, containingGroups)) {
+                return false;
+            }
+            if (matches(this.grantedTargets.get(this.principalString), target, containingGroups)) {
+                return true;
+            }
+
+            if (target.startsWith(IPermission.PORTLET_PREFIX)
+                    && this.doesPrincipalHavePermission(IPermission.ALL_PORTLETS_TARGET)) {
+                return true;
+            }
+
+            final IEntityGroup targetGroup = findGroup(target);
+            if (targetGroup != null) {
+                if ((targetGroup.getEntityType().equals(IPortletDefinition.class)
+                        && this.doesPrincipalHavePermission(IPermission.ALL_CATEGORIES_TARGET))
+                        || this.doesPrincipalHavePermission(IPermission.ALL_GROUPS_TARGET)) {
+                    return true;
+                }
+            }
+
+            return this.hasUnblockedPathToGrant(this.principalString, target, containingGroups, new HashSet<String>());
+        }
+
+        private boolean hasUnblockedPathToGrant(String member, String target, Set<String> containingGroups, Set<String> seenMembers) {
+            if (!seenMembers.add(member)) {
+                return false;
+            }
+
+            for (final String parent : this.parents.get(member)) {
+                if (matches(this.deniedTargets.get(parent), target, containingGroups)) {
+                    continue;
+                }
+                if (matches(this.grantedTargets.get(parent), target, containingGroups)
+                        || this.hasUnblockedPathToGrant(parent, target, containingGroups, seenMembers)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Walks the groups containing the principal and collects the active grants and denies of the
+         * principal and of each group
+         */
+        private void load() throws AuthorizationException {
+            if (this.loaded) {
+                return;
+            }
+            this.loaded = true;
+
+            final Date now = new Date();
+            this.addPermissions(this.principalString, this.principal, now);
+
+            final LinkedList<Tuple<String, IAuthorizationPrincipal>> members = new LinkedList<Tuple<String, IAuthorizationPrincipal>>();
+            members.add(new Tuple<String, IAuthorizationPrincipal>(this.principalString, this.principal));
+            while (!members.isEmpty()) {
+                final Tuple<String, IAuthorizationPrincipal> member = members.removeFirst();
+                final List<String> memberParents = new ArrayList<String>(4);
+                this.parents.put(member.first, memberParents);
+
+                try {
+                    for (final Iterator i = getGroupMember(member.second).getContainingGroups(); i.hasNext();) {
+                        final IGroupMember parentGroup = (IGroupMember) i.next();
+                        if (parentGroup == null) {
+                            continue;
+                        }
+
+                        final IAuthorizationPrincipal parentPrincipal = newPrincipal(parentGroup);
+                        final String parentString = getPrincipalString(parentPrincipal);
+                        memberParents.add(parentString);
+                        if (!this.grantedTargets.containsKey(parentString)) {
+                            this.addPermissions(parentString, parentPrincipal, now);
+                            members.add(new Tuple<String, IAuthorizationPrincipal>(parentString, parentPrincipal));
+                        }
+                    }
+                }
+                catch (GroupsException e) {
+                    //Like the policy, a broken part of the group structure doesn't stop the rest from granting
+                    log.error("Error retrieving the groups containing [" + member.second + "]", e);
+                }
+            }
+        }
+
+        private void addPermissions(String principalString, IAuthorizationPrincipal principal, Date now) throws AuthorizationException {
+            final List<IPermission> permissions;
+            if (cachePermissions) {
+                permissions = primGetPermissionIndex(principal).getPermissions(this.owner, this.activity);
+            }
+            else {
+                permissions = Arrays.asList(getUncachedPermissionsForPrincipal(principal, this.owner, this.activity, null));
+            }
+
+            final Set<String> granted = new HashSet<String>();
+            final Set<String> denied = new HashSet<String>();
+            for (final IPermission permission : permissions) {
+                if ((permission.getEffective() != null && permission.getEffective().after(now))
+                        || (permission.getExpires() != null && !permission.getExpires().after(now))) {
+                    continue;
+                }
+
+                if (IPermission.PERMISSION_TYPE_GRANT.equals(permission.getType())) {
+                    granted.add(permission.getTarget());
+                }
+                else if (IPermission.PERMISSION_TYPE_DENY.equals(permission.getType())) {
+                    denied.add(permission.getTarget());
+                }
+            }
+
+            this.grantedTargets.put(principalString, granted);
+            this.deniedTargets.put(principalString, denied);
+        }
+
+        /**
+         * @return true if the target or one of the groups containing it is in the set of targets
+         */
+        private boolean matches(Set<String> targets, String target, Set<String> containingGroups) {
+            if (targets.isEmpty()) {
+                return false;
+            }
+            if (targets.contains(target)) {
+                return true;
+            }
+
+            //Probe with whichever side is smaller
+            final Set<String> probes = targets.size() < containingGroups.size() ? targets : containingGroups;
+            final Set<String> lookup = probes == targets ? containingGroups : targets;
+            for (final String probe : probes) {
+                if (lookup.contains(probe)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
 }
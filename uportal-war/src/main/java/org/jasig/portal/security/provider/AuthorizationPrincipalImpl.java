@@ -19,6 +19,10 @@
 
 package org.jasig.portal.security.provider;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
 import org.jasig.portal.AuthorizationException;
 import org.jasig.portal.portlet.om.PortletLifecycleState;
 import org.jasig.portal.security.IAuthorizationPrincipal;
@@ -92,6 +96,24 @@ public boolean canRender(String channelPublishId) throws org.jasig.portal.Author
 public boolean canSubscribe(String channelPublishId) throws org.jasig.portal.AuthorizationException {
     return getAuthorizationService().canPrincipalSubscribe(this, channelPublishId);
 }
+/**
+ * Returns the ids of the channels this <code>IAuthorizationPrincipal</code> has permission to render.
+ * @return Set of the channel publish ids that may be rendered
+ * @param channelPublishIds Collection of channel publish ids to check
+ * @exception AuthorizationException thrown when authorization information could not be retrieved.
+ */
+public Set<String> getRenderableChannels(Collection<String> channelPublishIds) throws AuthorizationException {
+    return getAuthorizationService().getPortletDefinitionsPrincipalCanRender(this, channelPublishIds);
+}
+/**
+ * Returns the ids of the channels this <code>IAuthorizationPrincipal</code> has permission to subscribe to.
+ * @return Set of the channel publish ids that may be subscribed to
+ * @param channelPublishIds Collection of channel publish ids to check
+ * @exception AuthorizationException thrown when authorization information could not be retrieved.
+ */
+public Set<String> getSubscribableChannels(Collection<String> channelPublishIds) throws AuthorizationException {
+    return getAuthorizationService().getPortletDefinitionsPrincipalCanSubscribe(this, channelPublishIds);
+}
 @Override
 public boolean equals(Object obj) {
     if (this == obj)
@@ -235,6 +257,23 @@ throws org.jasig.portal.AuthorizationException
 {
     return getAuthorizationService().doesPrincipalHavePermission(this, owner, activity, target);
 }
+/**
+ * Answers, for each of the <code>targets</code>, if this <code>IAuthorizationPrincipal</code>
+ * has permission to perform the <code>activity</code> on it.  Params <code>owner</code> and
+ * <code>activity</code> must be non-null.
+ * 
+ * @return Map of target to the permission answer
+ * @param owner String
+ * @param activity String
+ * @param targets Collection of targets to check
+ * @exception AuthorizationException indicates authorization information could not 
+ * be retrieved.
+ */
+public Map<String, Boolean> hasPermissions(String owner, String activity, Collection<String> targets) 
+throws AuthorizationException 
+{
+    return getAuthorizationService().doesPrincipalHavePermissions(this, owner, activity, targets);
+}
 /**
  * Set the value of the principal string.
  */
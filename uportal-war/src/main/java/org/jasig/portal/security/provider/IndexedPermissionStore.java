@@ -0,0 +1,370 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.security.provider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.portal.AuthorizationException;
+import org.jasig.portal.security.IPermission;
+import org.jasig.portal.security.IPermissionStore;
+import org.jasig.portal.utils.Tuple;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+
+/**
+ * {@link IPermissionStore} that answers {@link #select(String, String, String, String, String)}
+ * from an in-memory snapshot of every permission in the target store, indexed by principal,
+ * owner and activity. Changes are written through to the target store and then applied to a
+ * copy of the snapshot which replaces the current one, readers never block and never see a
+ * partially updated snapshot.
+ * <p/>
+ * Each snapshot has a version which is stored in the version cache when the snapshot changes.
+ * A missing or different version in the cache causes the snapshot to be reloaded from the
+ * target store, so with the version cache replicated by invalidation a change on one server
+ * results in a reload on all of the others. Without replication changes on other servers are
+ * picked up when the version expires.
+ * <p/>
+ * Permissions are copied on the way in and out of the snapshot as {@link IPermission} is mutable.
+ * 
+ * @version $Revision$
+ */
+public class IndexedPermissionStore implements IPermissionStore {
+    static final String SNAPSHOT_VERSION_KEY = "SNAPSHOT_VERSION";
+    
+    protected final Log logger = LogFactory.getLog(getClass());
+    
+    private final Object snapshotLock = new Object();
+    private volatile PermissionSnapshot snapshot;
+    
+    private IPermissionStore targetPermissionStore;
+    private Ehcache snapshotVersionCache;
+    
+    /**
+     * The store the permissions are loaded from and changes are written to
+     */
+    public void setTargetPermissionStore(IPermissionStore targetPermissionStore) {
+        this.targetPermissionStore = targetPermissionStore;
+    }
+
+    @Autowired
+    public void setSnapshotVersionCache(@Qualifier("org.jasig.portal.security.provider.IndexedPermissionStore.SNAPSHOT_VERSION") Ehcache snapshotVersionCache) {
+        this.snapshotVersionCache = snapshotVersionCache;
+    }
+
+    @Override
+    public void add(IPermission[] perms) throws AuthorizationException {
+        if (perms.length == 0) {
+            return;
+        }
+        
+        synchronized (this.snapshotLock) {
+            this.targetPermissionStore.add(perms);
+            this.applyChanges(Collections.<IPermission>emptyList(), Arrays.asList(perms), false);
+        }
+    }
+
+    @Override
+    public void add(IPermission perm) throws AuthorizationException {
+        synchronized (this.snapshotLock) {
+            this.targetPermissionStore.add(perm);
+            this.applyChanges(Collections.<IPermission>emptyList(), Collections.singletonList(perm), false);
+        }
+    }
+
+    @Override
+    public void delete(IPermission[] perms) throws AuthorizationException {
+        if (perms.length == 0) {
+            return;
+        }
+        
+        synchronized (this.snapshotLock) {
+            this.targetPermissionStore.delete(perms);
+            this.applyChanges(Arrays.asList(perms), Collections.<IPermission>emptyList(), false);
+        }
+    }
+
+    @Override
+    public void delete(IPermission perm) throws AuthorizationException {
+        synchronized (this.snapshotLock) {
+            this.targetPermissionStore.delete(perm);
+            this.applyChanges(Collections.singletonList(perm), Collections.<IPermission>emptyList(), false);
+        }
+    }
+
+    @Override
+    public IPermission newInstance(String owner) {
+        return this.targetPermissionStore.newInstance(owner);
+    }
+
+    @Override
+    public void update(IPermission[] perms) throws AuthorizationException {
+        if (perms.length == 0) {
+            return;
+        }
+        
+        synchronized (this.snapshotLock) {
+            this.targetPermissionStore.update(perms);
+            this.applyChanges(Collections.<IPermission>emptyList(), Arrays.asList(perms), true);
+        }
+    }
+
+    @Override
+    public void update(IPermission perm) throws AuthorizationException {
+        synchronized (this.snapshotLock) {
+            this.targetPermissionStore.update(perm);
+            this.applyChanges(Collections.<IPermission>emptyList(), Collections.singletonList(perm), true);
+        }
+    }
+
+    @Override
+    public IPermission[] select(String owner, String principal, String activity, String target, String type)
+            throws AuthorizationException {
+        
+        final PermissionSnapshot currentSnapshot = this.getSnapshot();
+        final IPermission[] candidates = currentSnapshot.getPermissions(principal, owner, activity);
+
+        final List<IPermission> permissions = new ArrayList<IPermission>(candidates.length);
+        for (final IPermission permission : candidates) {
+            if ((owner == null || owner.equals(permission.getOwner())) &&
+                    (principal == null || principal.equals(permission.getPrincipal())) &&
+                    (activity == null || activity.equals(permission.getActivity())) &&
+                    (target == null || target.equals(permission.getTarget())) &&
+                    (type == null || type.equals(permission.getType()))) {
+                
+                permissions.add(this.copyPermission(permission));
+            }
+        }
+        
+        if (this.logger.isTraceEnabled()) {
+            this.logger.trace("select() for owner=[" + owner + "] and principal=[" + principal + "] and activity=[" + 
+                    activity + "] and target=[" + target + "] and type=[" + type + "] returned permissions " + permissions);
+        }
+        
+        return permissions.toArray(new IPermission[permissions.size()]);
+    }
+    
+    /**
+     * Returns the current snapshot, reloading it from the target store if the version in the
+     * version cache does not match the current snapshot.
+     */
+    protected PermissionSnapshot getSnapshot() {
+        PermissionSnapshot currentSnapshot = this.snapshot;
+        if (currentSnapshot != null && this.isCurrentVersion(currentSnapshot)) {
+            return currentSnapshot;
+        }
+        
+        synchronized (this.snapshotLock) {
+            currentSnapshot = this.snapshot;
+            if (currentSnapshot != null && this.isCurrentVersion(currentSnapshot)) {
+                return currentSnapshot;
+            }
+            
+            final long start = System.nanoTime();
+            final IPermission[] permissions = this.targetPermissionStore.select(null, null, null, null, null);
+            currentSnapshot = new PermissionSnapshot(Arrays.asList(permissions));
+            
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("Loaded " + permissions.length + " permissions in " + 
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+            }
+            
+            this.snapshot = currentSnapshot;
+            
+            //Quiet put, a reload must not cause the other servers to reload as well
+            this.snapshotVersionCache.putQuiet(new Element(SNAPSHOT_VERSION_KEY, currentSnapshot.getVersion()));
+            
+            return currentSnapshot;
+        }
+    }
+    
+    private boolean isCurrentVersion(PermissionSnapshot currentSnapshot) {
+        final Element element = this.snapshotVersionCache.get(SNAPSHOT_VERSION_KEY);
+        return element != null && currentSnapshot.getVersion().equals(element.getObjectValue());
+    }
+    
+    /**
+     * Builds a copy of the current snapshot with the changes applied and makes it the current
+     * snapshot. Must be called while holding the snapshot lock.
+     * 
+     * @param removed Permissions to remove
+     * @param changed Permissions to add or replace
+     * @param existingOnly If true changed permissions only replace existing permissions
+     */
+    private void applyChanges(Collection<IPermission> removed, Collection<IPermission> changed, boolean existingOnly) {
+        final PermissionSnapshot currentSnapshot = this.snapshot;
+        if (currentSnapshot == null) {
+            //Nothing loaded yet, the first read will load the changes from the target store
+            return;
+        }
+        
+        final Map<List<String>, IPermission> permissions = new LinkedHashMap<List<String>, IPermission>(currentSnapshot.getPermissionsByKey());
+        for (final IPermission permission : removed) {
+            permissions.remove(getPermissionKey(permission));
+        }
+        for (final IPermission permission : changed) {
+            final List<String> key = getPermissionKey(permission);
+            if (!existingOnly || permissions.containsKey(key)) {
+                permissions.put(key, this.copyPermission(permission));
+            }
+        }
+        
+        final PermissionSnapshot newSnapshot = new PermissionSnapshot(permissions.values());
+        this.snapshot = newSnapshot;
+        
+        //Replicated put, tells the other servers their snapshot is out of date
+        this.snapshotVersionCache.put(new Element(SNAPSHOT_VERSION_KEY, newSnapshot.getVersion()));
+    }
+    
+    private IPermission copyPermission(IPermission permission) {
+        final IPermission copy = this.targetPermissionStore.newInstance(permission.getOwner());
+        copy.setPrincipal(permission.getPrincipal());
+        copy.setActivity(permission.getActivity());
+        copy.setTarget(permission.getTarget());
+        copy.setType(permission.getType());
+        
+        final Date effective = permission.getEffective();
+        if (effective != null) {
+            copy.setEffective(new Date(effective.getTime()));
+        }
+        
+        final Date expires = permission.getExpires();
+        if (expires != null) {
+            copy.setExpires(new Date(expires.getTime()));
+        }
+        
+        return copy;
+    }
+    
+    /**
+     * The columns that identify a permission row in the store
+     */
+    static List<String> getPermissionKey(IPermission permission) {
+        return Arrays.asList(permission.getOwner(), permission.getPrincipal(), permission.getActivity(), permission.getTarget());
+    }
+    
+    /**
+     * Immutable set of permissions indexed by principal, owner and activity
+     */
+    static final class PermissionSnapshot {
+        private static final IPermission[] NO_PERMISSIONS = new IPermission[0];
+        
+        private final String version = UUID.randomUUID().toString();
+        private final Map<List<String>, IPermission> permissionsByKey;
+        private final IPermission[] allPermissions;
+        private final Map<String, IPermission[]> permissionsByPrincipal;
+        private final Map<String, Map<Tuple<String, String>, IPermission[]>> permissionsByPrincipalOwnerActivity;
+        
+        PermissionSnapshot(Collection<IPermission> permissions) {
+            final Map<List<String>, IPermission> byKey = new LinkedHashMap<List<String>, IPermission>(permissions.size() * 2);
+            final Map<String, List<IPermission>> byPrincipal = new HashMap<String, List<IPermission>>();
+            final Map<String, Map<Tuple<String, String>, List<IPermission>>> byPrincipalOwnerActivity = new HashMap<String, Map<Tuple<String, String>, List<IPermission>>>();
+            
+            for (final IPermission permission : permissions) {
+                byKey.put(getPermissionKey(permission), permission);
+                
+                final String principal = permission.getPrincipal();
+                List<IPermission> principalPermissions = byPrincipal.get(principal);
+                Map<Tuple<String, String>, List<IPermission>> principalOwnerActivity = byPrincipalOwnerActivity.get(principal);
+                if (principalPermissions == null) {
+                    principalPermissions = new ArrayList<IPermission>();
+                    byPrincipal.put(principal, principalPermissions);
+                    principalOwnerActivity = new HashMap<Tuple<String, String>, List<IPermission>>();
+                    byPrincipalOwnerActivity.put(principal, principalOwnerActivity);
+                }
+                principalPermissions.add(permission);
+                
+                final Tuple<String, String> ownerActivity = new Tuple<String, String>(permission.getOwner(), permission.getActivity());
+                List<IPermission> ownerActivityPermissions = principalOwnerActivity.get(ownerActivity);
+                if (ownerActivityPermissions == null) {
+                    ownerActivityPermissions = new ArrayList<IPermission>(1);
+                    principalOwnerActivity.put(ownerActivity, ownerActivityPermissions);
+                }
+                ownerActivityPermissions.add(permission);
+            }
+            
+            this.permissionsByKey = Collections.unmodifiableMap(byKey);
+            this.allPermissions = byKey.values().toArray(new IPermission[byKey.size()]);
+            
+            //Compact the lists into arrays
+            this.permissionsByPrincipal = new HashMap<String, IPermission[]>(byPrincipal.size() * 2);
+            for (final Map.Entry<String, List<IPermission>> principalEntry : byPrincipal.entrySet()) {
+                final List<IPermission> principalPermissions = principalEntry.getValue();
+                this.permissionsByPrincipal.put(principalEntry.getKey(), principalPermissions.toArray(new IPermission[principalPermissions.size()]));
+            }
+            this.permissionsByPrincipalOwnerActivity = new HashMap<String, Map<Tuple<String, String>, IPermission[]>>(byPrincipalOwnerActivity.size() * 2);
+            for (final Map.Entry<String, Map<Tuple<String, String>, List<IPermission>>> principalEntry : byPrincipalOwnerActivity.entrySet()) {
+                final Map<Tuple<String, String>, List<IPermission>> ownerActivityLists = principalEntry.getValue();
+                final Map<Tuple<String, String>, IPermission[]> ownerActivityArrays = new HashMap<Tuple<String, String>, IPermission[]>(ownerActivityLists.size() * 2);
+                for (final Map.Entry<Tuple<String, String>, List<IPermission>> ownerActivityEntry : ownerActivityLists.entrySet()) {
+                    final List<IPermission> ownerActivityPermissions = ownerActivityEntry.getValue();
+                    ownerActivityArrays.put(ownerActivityEntry.getKey(), ownerActivityPermissions.toArray(new IPermission[ownerActivityPermissions.size()]));
+                }
+                this.permissionsByPrincipalOwnerActivity.put(principalEntry.getKey(), ownerActivityArrays);
+            }
+        }
+        
+        String getVersion() {
+            return this.version;
+        }
+        
+        Map<List<String>, IPermission> getPermissionsByKey() {
+            return this.permissionsByKey;
+        }
+        
+        /**
+         * Returns the smallest indexed set of permissions that contains all of the permissions
+         * matching the principal, owner and activity, any of which may be null. The returned
+         * permissions still need to be filtered.
+         */
+        IPermission[] getPermissions(String principal, String owner, String activity) {
+            if (principal == null) {
+                return this.allPermissions;
+            }
+            
+            if (owner != null && activity != null) {
+                final Map<Tuple<String, String>, IPermission[]> ownerActivityPermissions = this.permissionsByPrincipalOwnerActivity.get(principal);
+                if (ownerActivityPermissions == null) {
+                    return NO_PERMISSIONS;
+                }
+                
+                final IPermission[] permissions = ownerActivityPermissions.get(new Tuple<String, String>(owner, activity));
+                return permissions != null ? permissions : NO_PERMISSIONS;
+            }
+            
+            final IPermission[] permissions = this.permissionsByPrincipal.get(principal);
+            return permissions != null ? permissions : NO_PERMISSIONS;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.security.provider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jasig.portal.security.IPermission;
+import org.jasig.portal.utils.Tuple;
+
+/**
+ * Immutable view of the permissions held by a single principal, indexed by owner,
+ * activity and target. Lets a fully specified permission lookup touch only the
+ * permissions for the requested owner and activity instead of scanning every
+ * permission the principal holds.
+ * 
+ * @version $Revision$
+ */
+final class PermissionIndex {
+    private final Map<Tuple<String, String>, Map<String, List<IPermission>>> permissionsByOwnerActivity;
+    private final Map<Tuple<String, String>, List<IPermission>> permissionListsByOwnerActivity;
+    
+    PermissionIndex(IPermission[] permissions) {
+        final Map<Tuple<String, String>, Map<String, List<IPermission>>> byOwnerActivity = new HashMap<Tuple<String, String>, Map<String, List<IPermission>>>();
+        final Map<Tuple<String, String>, List<IPermission>> listsByOwnerActivity = new HashMap<Tuple<String, String>, List<IPermission>>();
+        
+        for (final IPermission permission : permissions) {
+            final Tuple<String, String> ownerActivity = new Tuple<String, String>(permission.getOwner(), permission.getActivity());
+            
+            Map<String, List<IPermission>> byTarget = byOwnerActivity.get(ownerActivity);
+            if (byTarget == null) {
+                byTarget = new HashMap<String, List<IPermission>>();
+                byOwnerActivity.put(ownerActivity, byTarget);
+                listsByOwnerActivity.put(ownerActivity, new ArrayList<IPermission>());
+            }
+            
+            List<IPermission> targetPermissions = byTarget.get(permission.getTarget());
+            if (targetPermissions == null) {
+                targetPermissions = new ArrayList<IPermission>(1);
+                byTarget.put(permission.getTarget(), targetPermissions);
+            }
+            targetPermissions.add(permission);
+            
+            listsByOwnerActivity.get(ownerActivity).add(permission);
+        }
+        
+        this.permissionsByOwnerActivity = byOwnerActivity;
+        this.permissionListsByOwnerActivity = listsByOwnerActivity;
+    }
+    
+    /**
+     * Returns all of the permissions for the owner and activity, whatever their target.
+     * Owner and activity must both be non-null.
+     * 
+     * @return A non-null, possibly empty, list of matching permissions
+     */
+    List<IPermission> getPermissions(String owner, String activity) {
+        final List<IPermission> permissions = this.permissionListsByOwnerActivity.get(new Tuple<String, String>(owner, activity));
+        if (permissions == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(permissions);
+    }
+    
+    /**
+     * Returns the permissions for the owner and activity whose target is either the
+     * specified target or one of the groups containing it. Owner, activity and target
+     * must all be non-null.
+     * 
+     * @param containingGroups Keys of the groups containing the target, may be empty
+     * @return A non-null, possibly empty, list of matching permissions
+     */
+    List<IPermission> getPermissions(String owner, String activity, String target, Set<String> containingGroups) {
+        final Tuple<String, String> ownerActivity = new Tuple<String, String>(owner, activity);
+        final Map<String, List<IPermission>> byTarget = this.permissionsByOwnerActivity.get(ownerActivity);
+        if (byTarget == null) {
+            return Collections.emptyList();
+        }
+        
+        //Fewer distinct targets than containing groups, cheaper to walk the owner/activity permissions
+        if (byTarget.size() <= containingGroups.size()) {
+            final List<IPermission> ownerActivityPermissions = this.permissionListsByOwnerActivity.get(ownerActivity);
+            final List<IPermission> matches = new ArrayList<IPermission>(1);
+            for (final IPermission permission : ownerActivityPermissions) {
+                final String permissionTarget = permission.getTarget();
+                if (target.equals(permissionTarget) || containingGroups.contains(permissionTarget)) {
+                    matches.add(permission);
+                }
+            }
+            return matches;
+        }
+        
+        final List<IPermission> targetPermissions = byTarget.get(target);
+        if (containingGroups.isEmpty()) {
+            if (targetPermissions == null) {
+                return Collections.emptyList();
+            }
+            return Collections.unmodifiableList(targetPermissions);
+        }
+        
+        final List<IPermission> matches = new ArrayList<IPermission>(1);
+        if (targetPermissions != null) {
+            matches.addAll(targetPermissions);
+        }
+        for (final String groupKey : containingGroups) {
+            if (groupKey.equals(target)) {
+                continue;
+            }
+            
+            final List<IPermission> groupPermissions = byTarget.get(groupKey);
+            if (groupPermissions != null) {
+                matches.addAll(groupPermissions);
+            }
+        }
+        return matches;
+    }
+}
@@ -44,6 +44,7 @@ public class PermissionSetImpl implements IPermissionSet {
 
     private EntityIdentifier entityIdentifier;
     private IPermission[] permissions;
+    private volatile PermissionIndex permissionIndex;
     private static Class IPS_TYPE = IPermissionSet.class; 
 
 public PermissionSetImpl(IPermission[] perms, IAuthorizationPrincipal principal) 
@@ -63,6 +64,18 @@ public IPermission[] getPermissions() {
     return permissions;
 }
 
+/** 
+ * @return PermissionIndex over the permissions in this set, built on first use.
+ */
+PermissionIndex getPermissionIndex() {
+    PermissionIndex index = this.permissionIndex;
+    if (index == null) {
+        index = new PermissionIndex(permissions);
+        this.permissionIndex = index;
+    }
+    return index;
+}
+
 /** 
  * @return EntityIdentifier IPermission[]
  */
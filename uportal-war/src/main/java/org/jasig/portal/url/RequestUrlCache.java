@@ -0,0 +1,215 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.url;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jasig.portal.portlet.om.IPortletWindowId;
+
+/**
+ * Request scoped data used by {@link UrlSyntaxProviderImpl} when generating URLs. Holds the pre-encoded
+ * path segments and parameter name parts for each portlet window, which do not change during a request,
+ * and the URL strings already generated so identical URLs share one String.
+ * <p/>
+ * Portlets render in worker threads that all generate URLs against the same portal request so the
+ * class is thread safe.
+ *
+ * @version $Revision$
+ */
+public final class RequestUrlCache {
+    /**
+     * Limit on the number of distinct URLs remembered per request, URLs generated after this are not memoized
+     */
+    static final int MAX_MEMOIZED_URLS = 2048;
+
+    private final String encoding;
+    private final String contextPath;
+    private final ConcurrentMap<String, String> folderPaths = new ConcurrentHashMap<String, String>();
+    private volatile String defaultFolderPath;
+    private final ConcurrentMap<IPortletWindowId, TargetedPortletSegments> targetedPortletSegments = new ConcurrentHashMap<IPortletWindowId, TargetedPortletSegments>();
+    private final ConcurrentMap<IPortletWindowId, PortletWindowSegments> portletWindowSegments = new ConcurrentHashMap<IPortletWindowId, PortletWindowSegments>();
+
+    //Open addressing table of generated URLs, sized at twice the limit so probes stay short
+    private final String[] urls = new String[MAX_MEMOIZED_URLS * 2];
+    private int urlCount = 0;
+    private long urlHits = 0;
+
+    /**
+     * @param encoding The encoding the segments were encoded with
+     * @param contextPath The path segment for the portal's context path, "" or "/uPortal" for example
+     */
+    RequestUrlCache(String encoding, String contextPath) {
+        this.encoding = encoding;
+        this.contextPath = contextPath;
+    }
+
+    public String getEncoding() {
+        return this.encoding;
+    }
+
+    public String getContextPath() {
+        return this.contextPath;
+    }
+
+    /**
+     * @return The folder path segments for the layout node, null if not yet cached
+     */
+    public String getFolderPath(String layoutNodeId) {
+        if (layoutNodeId == null) {
+            return this.defaultFolderPath;
+        }
+        return this.folderPaths.get(layoutNodeId);
+    }
+
+    /**
+     * @param layoutNodeId The layout node, null for URLs that do not target a folder
+     * @param folderPath The folder path segments, "/f/n2" for example or "" if there are no folder names
+     */
+    public void putFolderPath(String layoutNodeId, String folderPath) {
+        if (layoutNodeId == null) {
+            this.defaultFolderPath = folderPath;
+        }
+        else {
+            this.folderPaths.put(layoutNodeId, folderPath);
+        }
+    }
+
+    /**
+     * @return The segments for the window when it is the URL's target, null if not yet cached
+     */
+    public TargetedPortletSegments getTargetedPortletSegments(IPortletWindowId portletWindowId) {
+        return this.targetedPortletSegments.get(portletWindowId);
+    }
+
+    public void putTargetedPortletSegments(IPortletWindowId portletWindowId, TargetedPortletSegments segments) {
+        this.targetedPortletSegments.put(portletWindowId, segments);
+    }
+
+    /**
+     * @return The segments for the window when it is an additional portlet on the URL, null if not yet cached
+     */
+    public PortletWindowSegments getPortletWindowSegments(IPortletWindowId portletWindowId) {
+        return this.portletWindowSegments.get(portletWindowId);
+    }
+
+    public void putPortletWindowSegments(IPortletWindowId portletWindowId, PortletWindowSegments segments) {
+        this.portletWindowSegments.put(portletWindowId, segments);
+    }
+
+    /**
+     * Returns the String for a generated URL. If an identical URL was generated earlier in the request that
+     * String is returned, otherwise a new String is created and remembered.
+     *
+     * @param url The generated URL
+     */
+    public synchronized String getUrlString(CharSequence url) {
+        final int hash = hash(url);
+        final int mask = this.urls.length - 1;
+        
+        //Spread the high bits, the table index only looks at the low ones
+        for (int index = (hash ^ (hash >>> 16)) & mask; ; index = (index + 1) & mask) {
+            final String existing = this.urls[index];
+            if (existing == null) {
+                final String urlString = url.toString();
+                if (this.urlCount < MAX_MEMOIZED_URLS) {
+                    this.urls[index] = urlString;
+                    this.urlCount++;
+                }
+                return urlString;
+            }
+            if (existing.hashCode() == hash && existing.contentEquals(url)) {
+                this.urlHits++;
+                return existing;
+            }
+        }
+    }
+
+    /**
+     * @return Number of URLs that were returned from the memo instead of being created
+     */
+    public synchronized long getUrlHits() {
+        return this.urlHits;
+    }
+
+    /**
+     * Same result as {@link String#hashCode()} without creating the String
+     */
+    static int hash(CharSequence s) {
+        int hash = 0;
+        for (int i = 0; i < s.length(); i++) {
+            hash = 31 * hash + s.charAt(i);
+        }
+        return hash;
+    }
+
+    /**
+     * Pre-built pieces of a URL that targets a portlet window
+     */
+    static final class TargetedPortletSegments {
+        /**
+         * Folder path of the window, "/f/n2" for example or "" if the window is not in a folder
+         */
+        final String folderPath;
+        /**
+         * Portlet path segments, "/p/fname.s3" for example
+         */
+        final String portletPath;
+        /**
+         * Encoded value for the target portlet parameter, "fname.s3" for example
+         */
+        final String encodedTargetedPortlet;
+
+        TargetedPortletSegments(String folderPath, String portletPath, String encodedTargetedPortlet) {
+            this.folderPath = folderPath;
+            this.portletPath = portletPath;
+            this.encodedTargetedPortlet = encodedTargetedPortlet;
+        }
+    }
+
+    /**
+     * Pre-encoded pieces of the parameters for an additional, non-targeted, portlet window
+     */
+    static final class PortletWindowSegments {
+        /**
+         * Encoded window id, the value of the additional portlet parameter
+         */
+        final String encodedWindowId;
+        /**
+         * Suffix for portlet control parameter names, "_pw2" for example
+         */
+        final String encodedControlParameterSuffix;
+        /**
+         * Namespace written between the prefix and the name of portlet parameters, "pw2_" for example
+         */
+        final String encodedParameterNamespace;
+        /**
+         * Encoded id of the window's delegation parent, null if the window is not a delegate
+         */
+        final String encodedDelegationParentId;
+
+        PortletWindowSegments(String encodedWindowId, String encodedDelegationParentId) {
+            this.encodedWindowId = encodedWindowId;
+            this.encodedControlParameterSuffix = UrlSyntaxProviderImpl.SEPARATOR + encodedWindowId;
+            this.encodedParameterNamespace = encodedWindowId + UrlSyntaxProviderImpl.SEPARATOR;
+            this.encodedDelegationParentId = encodedDelegationParentId;
+        }
+    }
+}
@@ -26,7 +26,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -48,7 +47,7 @@ public final class UrlStringBuilder implements Serializable, Cloneable {
     private final String protocol;
     private final String host;
     private final Integer port;
-    private final List<String> path = new LinkedList<String>();
+    private final List<String> path = new ArrayList<String>();
     private final Map<String, List<String>> parameters = new LinkedHashMap<String, List<String>>();
     
     /**
@@ -136,6 +135,11 @@ public final class UrlStringBuilder implements Serializable, Cloneable {
     }
     
     protected String encode(String s) {
+        //Most names and values need no encoding, skip the encoder and the garbage it creates
+        if (!needsEncoding(s)) {
+            return s;
+        }
+        
         try {
             return URLEncoder.encode(s, this.encoding);
         }
@@ -144,6 +148,21 @@ public final class UrlStringBuilder implements Serializable, Cloneable {
         }
     }
     
+    /**
+     * @return true if {@link URLEncoder} would change the string, false if it only contains characters it leaves as-is
+     */
+    static boolean needsEncoding(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || 
+                    c == '.' || c == '-' || c == '*' || c == '_') {
+                continue;
+            }
+            return true;
+        }
+        return false;
+    }
+    
     /**
      * Sets a URL parameter, replacing any existing parameter with the same name.
      * 
@@ -350,7 +369,7 @@ public final class UrlStringBuilder implements Serializable, Cloneable {
      */
     @Override
     public String toString() {
-        final StringBuilder url = new StringBuilder();
+        final StringBuilder url = new StringBuilder(this.estimateLength());
         
         //Add protocol://host:port if they are set
         if (this.host != null) {
@@ -408,4 +427,30 @@ public final class UrlStringBuilder implements Serializable, Cloneable {
 
         return url.toString();
     }
+    
+    /**
+     * Estimate the length of the URL to avoid growing the StringBuilder, assumes no parameter encoding is needed
+     */
+    private int estimateLength() {
+        int length = 16;
+        if (this.host != null) {
+            length += this.protocol.length() + this.host.length() + 9;
+        }
+        for (final String element : this.path) {
+            length += element.length() + 1;
+        }
+        for (final Map.Entry<String, List<String>> paramEntry : this.parameters.entrySet()) {
+            final int nameLength = paramEntry.getKey().length() + 2;
+            final List<String> values = paramEntry.getValue();
+            if (values == null || values.isEmpty()) {
+                length += nameLength;
+            }
+            else {
+                for (final String value : values) {
+                    length += nameLength + (value != null ? value.length() : 0);
+                }
+            }
+        }
+        return length;
+    }
 }
@@ -0,0 +1,294 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.url;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Map;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * Writes a URL straight into a character buffer, the streaming counterpart of {@link UrlStringBuilder}.
+ * The path must be written completely before the first parameter. Names and values are encoded the same
+ * way {@link UrlStringBuilder} encodes them, path elements and arguments documented as pre-encoded are
+ * written as-is. Unlike {@link UrlStringBuilder} repeated parameter names are not grouped, callers write
+ * parameters in the order they should appear.
+ * <p/>
+ * The buffer is borrowed from the current thread and handed back by {@link #release()}, a writer that is
+ * never released simply leaves the next writer on the thread to allocate a new buffer.
+ * <p/>
+ * This class is not thread safe.
+ *
+ * @version $Revision$
+ */
+public final class UrlStringWriter {
+    /**
+     * Buffers that grew past this capacity are dropped on release instead of being kept for the thread
+     */
+    static final int MAX_RETAINED_CAPACITY = 4096;
+    private static final int INITIAL_CAPACITY = 256;
+
+    //Holds JDK types only so a pooled thread never pins the webapp class loader
+    private static final ThreadLocal<StringBuilder> THREAD_BUFFER = new ThreadLocal<StringBuilder>();
+
+    private final String encoding;
+    private StringBuilder buffer;
+    private boolean hasParameters = false;
+
+    /**
+     * @param encoding The encoding to use for parameters
+     */
+    public UrlStringWriter(String encoding) {
+        Validate.notNull(encoding, "encoding can not be null");
+        this.encoding = encoding;
+
+        //Take the buffer off the thread so a nested writer (a debug toString for example) gets its own
+        StringBuilder buffer = THREAD_BUFFER.get();
+        if (buffer != null) {
+            THREAD_BUFFER.remove();
+            buffer.setLength(0);
+        }
+        else {
+            buffer = new StringBuilder(INITIAL_CAPACITY);
+        }
+        this.buffer = buffer;
+    }
+
+    /**
+     * Adds a single element to the path, the element is not encoded
+     *
+     * @param element The element to add
+     * @return this
+     */
+    public UrlStringWriter appendPath(String element) {
+        this.checkPath();
+        this.buffer.append('/').append(element);
+        return this;
+    }
+
+    /**
+     * Adds a single element with a suffix to the path, for example "render" and ".uP". Neither is encoded.
+     *
+     * @return this
+     */
+    public UrlStringWriter appendPath(String element, String suffix) {
+        this.checkPath();
+        this.buffer.append('/').append(element).append(suffix);
+        return this;
+    }
+
+    /**
+     * Adds a pre-built run of path elements such as "/f/n2", the segments must start with a / and are not encoded
+     *
+     * @return this
+     */
+    public UrlStringWriter appendPathSegments(String segments) {
+        this.checkPath();
+        this.buffer.append(segments);
+        return this;
+    }
+
+    /**
+     * Adds a parameter with no value
+     *
+     * @param name Parameter name, encoded
+     * @return this
+     */
+    public UrlStringWriter appendParameter(String name) {
+        this.startParameter();
+        this.appendEncoded(name);
+        return this;
+    }
+
+    /**
+     * Adds a parameter with a single value
+     *
+     * @param name Parameter name, encoded
+     * @param value Parameter value, encoded, null is written as an empty value
+     * @return this
+     */
+    public UrlStringWriter appendParameter(String name, String value) {
+        this.startParameter();
+        this.appendEncoded(name);
+        this.buffer.append('=');
+        this.appendEncoded(value);
+        return this;
+    }
+
+    /**
+     * Adds a parameter with no value whose name is the encoded name followed by a pre-encoded suffix
+     *
+     * @param name Parameter name, encoded
+     * @param encodedNameSuffix Written after the name as-is
+     * @return this
+     */
+    public UrlStringWriter appendSuffixedParameter(String name, String encodedNameSuffix) {
+        this.startParameter();
+        this.appendEncoded(name);
+        this.buffer.append(encodedNameSuffix);
+        return this;
+    }
+
+    /**
+     * Adds a parameter with a single value whose name is the encoded name followed by a pre-encoded suffix
+     *
+     * @param name Parameter name, encoded
+     * @param encodedNameSuffix Written after the name as-is
+     * @param value Parameter value, encoded, null is written as an empty value
+     * @return this
+     */
+    public UrlStringWriter appendSuffixedParameter(String name, String encodedNameSuffix, String value) {
+        this.startParameter();
+        this.appendEncoded(name);
+        this.buffer.append(encodedNameSuffix);
+        this.buffer.append('=');
+        this.appendEncoded(value);
+        return this;
+    }
+
+    /**
+     * Adds a parameter with a single value that is already encoded
+     *
+     * @param name Parameter name, encoded
+     * @param encodedNameSuffix Written after the name as-is
+     * @param encodedValue Parameter value, written as-is
+     * @return this
+     */
+    public UrlStringWriter appendEncodedValueParameter(String name, String encodedNameSuffix, String encodedValue) {
+        this.startParameter();
+        this.appendEncoded(name);
+        this.buffer.append(encodedNameSuffix);
+        this.buffer.append('=').append(encodedValue);
+        return this;
+    }
+
+    /**
+     * Adds every entry of the Map as a parameter, a null or empty value array is written as the name alone.
+     * The name of each parameter is the encoded prefix, the pre-encoded namespace and the encoded key.
+     *
+     * @param prefix String to prepend to each parameter name, encoded
+     * @param encodedNamespace String written between the prefix and each name as-is
+     * @param parameters Map of parameters to add
+     * @return this
+     */
+    public UrlStringWriter appendParameters(String prefix, String encodedNamespace, Map<String, String[]> parameters) {
+        for (final Map.Entry<String, String[]> paramEntry : parameters.entrySet()) {
+            final String name = paramEntry.getKey();
+            Validate.notNull(name, "parameter map cannot contain any null keys");
+
+            final String[] values = paramEntry.getValue();
+            if (values == null || values.length == 0) {
+                this.startParameter();
+                this.appendParameterName(prefix, encodedNamespace, name);
+            }
+            else {
+                for (final String value : values) {
+                    this.startParameter();
+                    this.appendParameterName(prefix, encodedNamespace, name);
+                    this.buffer.append('=');
+                    this.appendEncoded(value);
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return The URL written so far, only valid until {@link #release()} is called
+     */
+    public CharSequence getBuffer() {
+        this.checkReleased();
+        return this.buffer;
+    }
+
+    /**
+     * Hands the buffer back to the current thread, the writer can not be used afterwards
+     */
+    public void release() {
+        final StringBuilder buffer = this.buffer;
+        this.buffer = null;
+        if (buffer != null && buffer.capacity() <= MAX_RETAINED_CAPACITY) {
+            THREAD_BUFFER.set(buffer);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        this.checkReleased();
+        return this.buffer.toString();
+    }
+
+    private void appendParameterName(String prefix, String encodedNamespace, String name) {
+        this.appendEncoded(prefix);
+        this.buffer.append(encodedNamespace);
+        this.appendEncoded(name);
+    }
+
+    private void checkReleased() {
+        if (this.buffer == null) {
+            throw new IllegalStateException("UrlStringWriter has already been released");
+        }
+    }
+
+    private void checkPath() {
+        this.checkReleased();
+        if (this.hasParameters) {
+            throw new IllegalStateException("The path can not be added to after parameters have been written");
+        }
+    }
+
+    private void startParameter() {
+        this.checkReleased();
+        if (this.hasParameters) {
+            this.buffer.append('&');
+        }
+        else {
+            this.buffer.append('?');
+            this.hasParameters = true;
+        }
+    }
+
+    private void appendEncoded(String s) {
+        if (s != null) {
+            this.buffer.append(encode(s, this.encoding));
+        }
+    }
+
+    /**
+     * Encode a parameter name or value the same way the writer does, for pre-encoding segments that are reused
+     */
+    static String encode(String s, String encoding) {
+        //Most names and values need no encoding, skip the encoder and the garbage it creates
+        if (!UrlStringBuilder.needsEncoding(s)) {
+            return s;
+        }
+
+        try {
+            return URLEncoder.encode(s, encoding);
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalArgumentException("Encoding '" + encoding + "' is not supported", e);
+        }
+    }
+}
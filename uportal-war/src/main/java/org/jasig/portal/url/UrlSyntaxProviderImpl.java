@@ -21,18 +21,17 @@ package org.jasig.portal.url;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 import javax.portlet.PortletMode;
 import javax.portlet.WindowState;
@@ -50,6 +49,8 @@ import org.jasig.portal.portlet.om.IPortletWindow;
 import org.jasig.portal.portlet.om.IPortletWindowId;
 import org.jasig.portal.portlet.registry.IPortletWindowRegistry;
 import org.jasig.portal.portlet.rendering.IPortletRenderer;
+import org.jasig.portal.url.RequestUrlCache.PortletWindowSegments;
+import org.jasig.portal.url.RequestUrlCache.TargetedPortletSegments;
 import org.jasig.portal.user.IUserInstance;
 import org.jasig.portal.user.IUserInstanceManager;
 import org.jasig.portal.utils.Tuple;
@@ -103,13 +104,14 @@ public class UrlSyntaxProviderImpl implements IUrlSyntaxProvider {
     static final String LEGACY_PARAM_LAYOUT_TAB_ID = "activeTab";
     
     static final String SLASH = "/";
+    private static final char SLASH_CHAR = '/';
     static final String PORTLET_PATH_PREFIX = "p";
     static final String FOLDER_PATH_PREFIX = "f";
     static final String REQUEST_TYPE_SUFFIX = ".uP";
     
-    private static final Pattern SLASH_PATTERN = Pattern.compile(SLASH);
     private static final String PORTAL_CANONICAL_URL = UrlSyntaxProviderImpl.class.getName() + ".PORTAL_CANONICAL_URL";
     private static final String PORTAL_REQUEST_INFO_ATTR = UrlSyntaxProviderImpl.class.getName() + ".PORTAL_REQUEST_INFO"; 
+    private static final String REQUEST_URL_CACHE_ATTR = UrlSyntaxProviderImpl.class.getName() + ".REQUEST_URL_CACHE";
     private static final String PORTAL_REQUEST_PARSING_IN_PROGRESS_ATTR = UrlSyntaxProviderImpl.class.getName() + ".PORTAL_REQUEST_PARSING_IN_PROGRESS";
     
     /**
@@ -226,7 +228,7 @@ public class UrlSyntaxProviderImpl implements IUrlSyntaxProvider {
             IPortletWindowId targetedPortletWindowId = null;
             PortletRequestInfoImpl targetedPortletRequestInfo = null;
             
-            final String[] requestPathParts = SLASH_PATTERN.split(requestPath);
+            final String[] requestPathParts = splitPath(requestPath);
             
             UrlState requestedUrlState = null;
             ParseStep parseStep = ParseStep.FOLDER;
@@ -244,7 +246,7 @@ public class UrlSyntaxProviderImpl implements IUrlSyntaxProvider {
                             //Skip adding the prefix to the folders deque
                             pathPartIndex++;
                             
-                            final LinkedList<String> folders = new LinkedList<String>();
+                            final List<String> folders = new ArrayList<String>();
                             for (;pathPartIndex < requestPathParts.length; pathPartIndex++) {
                                 pathPart = requestPathParts[pathPartIndex];
                                 
@@ -260,7 +262,7 @@ public class UrlSyntaxProviderImpl implements IUrlSyntaxProvider {
                                     
                                     //If a state was added to the folder list remove it and step back one so other code can handle it
                                     if (UrlState.valueOfIngoreCase(pathPart, null) != null) {
-                                        folders.removeLast();
+                                        folders.remove(folders.size() - 1);
                                         pathPartIndex--;
                                     }
                                     break;
@@ -735,6 +737,34 @@ public class UrlSyntaxProviderImpl implements IUrlSyntaxProvider {
         return null;
     }
     
+    /**
+     * Split the path on {@link #SLASH}, same result as {@link java.util.regex.Pattern#split(CharSequence)} with
+     * a "/" pattern without running the regex engine on every request.
+     */
+    static String[] splitPath(String path) {
+        int end = path.indexOf(SLASH_CHAR);
+        if (end < 0) {
+            return new String[] { path };
+        }
+        
+        final List<String> parts = new ArrayList<String>();
+        int start = 0;
+        do {
+            parts.add(path.substring(start, end));
+            start = end + 1;
+            end = path.indexOf(SLASH_CHAR, start);
+        } while (end >= 0);
+        parts.add(path.substring(start));
+        
+        //Trailing empty parts are dropped, just like Pattern.split
+        int size = parts.size();
+        while (size > 0 && parts.get(size - 1).length() == 0) {
+            size--;
+        }
+        
+        return parts.subList(0, size).toArray(new String[size]);
+    }
+    
     protected String safeSubstringAfter(String prefix, String fullName) {
         if (prefix.length() >= fullName.length()) {
             return "";
@@ -862,122 +892,134 @@ public class UrlSyntaxProviderImpl implements IUrlSyntaxProvider {
         
         final IUrlNodeSyntaxHelper urlNodeSyntaxHelper = this.urlNodeSyntaxHelperRegistry.getCurrentUrlNodeSyntaxHelper(request);
         
-        //Get the encoding and create a new URL string builder
+        //Get the encoding and the segments already built for this request
         final String encoding = this.getEncoding(request);
-        final UrlStringBuilder url = new UrlStringBuilder(encoding);
-        
-        //Add the portal's context path
-        final String contextPath = this.getCleanedContextPath(request);
-        if (contextPath.length() > 0) {
-            url.setPath(contextPath);
-        }
+        final RequestUrlCache urlCache = this.getRequestUrlCache(request, encoding);
         
         final Map<IPortletWindowId, IPortletUrlBuilder> portletUrlBuilders = portalUrlBuilder.getPortletUrlBuilders();
         
-        //Build folder path based on targeted portlet or targeted folder
+        //Work out the folder path and state based on targeted portlet or targeted folder
         final IPortletWindowId targetedPortletWindowId = portalUrlBuilder.getTargetPortletWindowId();
         final UrlType urlType = portalUrlBuilder.getUrlType();
         final UrlState urlState;
+        final String folderPath;
+        final TargetedPortletSegments targetedPortletSegments;
         if (targetedPortletWindowId != null) {
             final IPortletWindow portletWindow = this.portletWindowRegistry.getPortletWindow(request, targetedPortletWindowId);
-            final IPortletEntity portletEntity = portletWindow.getPortletEntity();
-            
-            //Add folder information if available: /f/tabId
-            final String channelSubscribeId = portletEntity.getLayoutNodeId();
-            final List<String> folderNames = urlNodeSyntaxHelper.getFolderNamesForLayoutNode(request, channelSubscribeId);
-            if (!folderNames.isEmpty()) {
-                url.addPath(FOLDER_PATH_PREFIX);
-                for (final String folderName : folderNames) {
-                    url.addPath(folderName);
-                }
-            }
+            targetedPortletSegments = this.getTargetedPortletSegments(request, urlCache, urlNodeSyntaxHelper, targetedPortletWindowId, portletWindow);
+            folderPath = targetedPortletSegments.folderPath;
             
             final IPortletUrlBuilder targetedPortletUrlBuilder = portletUrlBuilders.get(targetedPortletWindowId);
             
             //Resource requests will never have a requested window state
             urlState = this.determineUrlState(portletWindow, targetedPortletUrlBuilder);
-            
-            final String targetedPortletString = urlNodeSyntaxHelper.getFolderNameForPortlet(request, targetedPortletWindowId);
+        }
+        else {
+            targetedPortletSegments = null;
+            folderPath = this.getFolderPath(request, urlCache, urlNodeSyntaxHelper, portalUrlBuilder.getTargetFolderId());
+            urlState = UrlState.NORMAL;
+        }
+        
+        //Write the URL into the thread's buffer, the path has to be complete before the first parameter
+        final UrlStringWriter url = new UrlStringWriter(encoding);
+        try {
+            //Add the portal's context path and folder information if available: /f/tabId
+            url.appendPathSegments(urlCache.getContextPath());
+            url.appendPathSegments(folderPath);
             
             //If a non-normal render url or an action/resource url stick the portlet info in the path 
-            if ((urlType == UrlType.RENDER && urlState != UrlState.NORMAL) || urlType == UrlType.ACTION || urlType == UrlType.RESOURCE) {
-                url.addPath(PORTLET_PATH_PREFIX);
-                url.addPath(targetedPortletString);
+            final boolean portletInPath = targetedPortletSegments != null &&
+                    ((urlType == UrlType.RENDER && urlState != UrlState.NORMAL) || urlType == UrlType.ACTION || urlType == UrlType.RESOURCE);
+            if (portletInPath) {
+                url.appendPathSegments(targetedPortletSegments.portletPath);
             }
+            
+            //Add the state of the URL
+            url.appendPath(urlState.toLowercaseString());
+    
+            //File part specifying the type of URL
+            url.appendPath(urlType.toLowercaseString(), REQUEST_TYPE_SUFFIX);
+            
             //For normal render requests (generally multiple portlets on a page) add the targeted portlet as a parameter
-            else {
-                url.addParameter(PARAM_TARGET_PORTLET, targetedPortletString);
+            if (targetedPortletSegments != null && !portletInPath) {
+                url.appendEncodedValueParameter(PARAM_TARGET_PORTLET, "", targetedPortletSegments.encodedTargetedPortlet);
             }
-        }
-        else {
-            final String targetFolderId = portalUrlBuilder.getTargetFolderId();
-            final List<String> folderNames = urlNodeSyntaxHelper.getFolderNamesForLayoutNode(request, targetFolderId);
-            if (folderNames != null && !folderNames.isEmpty()) {
-                url.addPath(FOLDER_PATH_PREFIX);
-                for (final String folderName : folderNames) {
-                    url.addPath(folderName);
+            
+            //Add all portal parameters
+            final Map<String, String[]> portalParameters = portalUrlBuilder.getParameters();
+            url.appendParameters(PORTAL_PARAM_PREFIX, "", portalParameters);
+    
+            //Is this URL stateless
+            final boolean statelessUrl = statelessUrlStates.contains(urlState);
+            
+            //Add parameters for every portlet URL
+            boolean additionalPortletsAdded = false;
+            for (final IPortletUrlBuilder portletUrlBuilder : portletUrlBuilders.values()) {
+                //All of the additional portlet ids are listed together where the first additional portlet's data starts
+                if (!additionalPortletsAdded && !portletUrlBuilder.getPortletWindowId().equals(targetedPortletWindowId)) {
+                    this.addAdditionalPortlets(request, urlCache, url, portletUrlBuilders, targetedPortletWindowId);
+                    additionalPortletsAdded = true;
                 }
+                
+                this.addPortletUrlData(request, urlCache, url, urlType, portletUrlBuilder, targetedPortletWindowId, statelessUrl);
             }
             
-            urlState = UrlState.NORMAL;
+            //Identical URLs generated during the request share a String
+            final String urlString = urlCache.getUrlString(url.getBuffer());
+    
+            if (logger.isDebugEnabled()) {
+                logger.debug("Generated '" + urlString + "' from '" + portalUrlBuilder);
+            }
+            
+            return urlString;
         }
-        
-        //Add the state of the URL
-        url.addPath(urlState.toLowercaseString());
-
-        //File part specifying the type of URL
-        url.addPath(urlType.toLowercaseString() + REQUEST_TYPE_SUFFIX);
-        
-        //Add all portal parameters
-        final Map<String, String[]> portalParameters = portalUrlBuilder.getParameters();
-        url.addParametersArray(PORTAL_PARAM_PREFIX, portalParameters);
-
-        //Is this URL stateless
-        final boolean statelessUrl = statelessUrlStates.contains(urlState);
-        
-        //Add parameters for every portlet URL
-        for (final IPortletUrlBuilder portletUrlBuilder : portletUrlBuilders.values()) {
-            this.addPortletUrlData(request, url, urlType, portletUrlBuilder, targetedPortletWindowId, statelessUrl);
+        finally {
+            url.release();
         }
+    }
 
-        if (logger.isDebugEnabled()) {
-            logger.debug("Generated '" + url + "' from '" + portalUrlBuilder);
-        }
+    /**
+     * Add the additional portlet parameter for every portlet url builder that is not for the targeted portlet
+     */
+    protected void addAdditionalPortlets(
+            final HttpServletRequest request, final RequestUrlCache urlCache, final UrlStringWriter url,
+            final Map<IPortletWindowId, IPortletUrlBuilder> portletUrlBuilders, final IPortletWindowId targetedPortletWindowId) {
         
-        return url.toString();
+        for (final IPortletWindowId portletWindowId : portletUrlBuilders.keySet()) {
+            if (!portletWindowId.equals(targetedPortletWindowId)) {
+                final PortletWindowSegments segments = this.getPortletWindowSegments(request, urlCache, portletWindowId);
+                url.appendEncodedValueParameter(PARAM_ADDITIONAL_PORTLET, "", segments.encodedWindowId);
+            }
+        }
     }
 
     /**
-     * Add the provided portlet url builder data to the url string builder
+     * Add the provided portlet url builder data to the url string writer, the additional portlet
+     * parameter is written by {@link #addAdditionalPortlets(HttpServletRequest, RequestUrlCache, UrlStringWriter, Map, IPortletWindowId)}
      */
     protected void addPortletUrlData(
-            final HttpServletRequest request, final UrlStringBuilder url, final UrlType urlType, 
+            final HttpServletRequest request, final RequestUrlCache urlCache, final UrlStringWriter url, final UrlType urlType, 
             final IPortletUrlBuilder portletUrlBuilder, final IPortletWindowId targetedPortletWindowId, 
             final boolean statelessUrl) {
         
         final IPortletWindowId portletWindowId = portletUrlBuilder.getPortletWindowId();
         final boolean targeted = portletWindowId.equals(targetedPortletWindowId);
         
-        IPortletWindow portletWindow = null;
-        
         //The targeted portlet doesn't need namespaced parameters
-        final String prefixedPortletWindowId;
-        final String suffixedPortletWindowId;
+        final String controlParameterSuffix;
+        final String parameterNamespace;
         if (targeted) {
-            prefixedPortletWindowId = "";
-            suffixedPortletWindowId = "";
+            controlParameterSuffix = "";
+            parameterNamespace = "";
         }
         else {
-            final String portletWindowIdStr = portletWindowId.toString();
-            prefixedPortletWindowId = SEPARATOR + portletWindowIdStr;
-            suffixedPortletWindowId = portletWindowIdStr + SEPARATOR;
-            url.addParameter(PARAM_ADDITIONAL_PORTLET, portletWindowIdStr);
+            final PortletWindowSegments segments = this.getPortletWindowSegments(request, urlCache, portletWindowId);
+            controlParameterSuffix = segments.encodedControlParameterSuffix;
+            parameterNamespace = segments.encodedParameterNamespace;
 
             //targeted portlets can never be delegates (it is always the top most parent that is targeted)
-            portletWindow = this.portletWindowRegistry.getPortletWindow(request, portletWindowId);
-            final IPortletWindowId delegationParentId = portletWindow.getDelegationParentId();
-            if (delegationParentId != null) {
-                url.addParameter(PARAM_DELEGATE_PARENT + prefixedPortletWindowId, delegationParentId.getStringId());
+            if (segments.encodedDelegationParentId != null) {
+                url.appendEncodedValueParameter(PARAM_DELEGATE_PARENT, controlParameterSuffix, segments.encodedDelegationParentId);
             }
         }
 
@@ -985,12 +1027,12 @@ public class UrlSyntaxProviderImpl implements IUrlSyntaxProvider {
             case RESOURCE: {
                 final String cacheability = portletUrlBuilder.getCacheability();
                 if(cacheability != null) {
-                    url.addParameter(PARAM_CACHEABILITY + prefixedPortletWindowId, cacheability);
+                    url.appendSuffixedParameter(PARAM_CACHEABILITY, controlParameterSuffix, cacheability);
                 }
                 
                 final String resourceId = portletUrlBuilder.getResourceId();
                 if(resourceId != null) {
-                    url.addParameter(PARAM_RESOURCE_ID + prefixedPortletWindowId, resourceId);
+                    url.appendSuffixedParameter(PARAM_RESOURCE_ID, controlParameterSuffix, resourceId);
                 }
                 
                 break;
@@ -999,18 +1041,18 @@ public class UrlSyntaxProviderImpl implements IUrlSyntaxProvider {
                 //Add requested portlet mode
                 final PortletMode portletMode = portletUrlBuilder.getPortletMode();
                 if (portletMode != null) {
-                    url.addParameter(PARAM_PORTLET_MODE + prefixedPortletWindowId, portletMode.toString());
+                    url.appendSuffixedParameter(PARAM_PORTLET_MODE, controlParameterSuffix, portletMode.toString());
                 }
                 else if (targeted && statelessUrl) {
-                    portletWindow = portletWindow != null ? portletWindow : this.portletWindowRegistry.getPortletWindow(request, portletWindowId);
+                    final IPortletWindow portletWindow = this.portletWindowRegistry.getPortletWindow(request, portletWindowId);
                     final PortletMode currentPortletMode = portletWindow.getPortletMode();
-                    url.addParameter(PARAM_PORTLET_MODE + prefixedPortletWindowId, currentPortletMode.toString());
+                    url.appendSuffixedParameter(PARAM_PORTLET_MODE, controlParameterSuffix, currentPortletMode.toString());
                 }
                 
                 //Add requested window state if it isn't included on the path
                 final WindowState windowState = portletUrlBuilder.getWindowState();
                 if (windowState != null && (!targeted || !PATH_WINDOW_STATES.contains(windowState))) {
-                    url.addParameter(PARAM_WINDOW_STATE + prefixedPortletWindowId, windowState.toString());
+                    url.appendSuffixedParameter(PARAM_WINDOW_STATE, controlParameterSuffix, windowState.toString());
                 }
                 
                 break;
@@ -1018,13 +1060,84 @@ public class UrlSyntaxProviderImpl implements IUrlSyntaxProvider {
         }
         
         if (portletUrlBuilder.getCopyCurrentRenderParameters()) {
-            url.addParameter(PARAM_COPY_PARAMETERS + suffixedPortletWindowId);
+            url.appendSuffixedParameter(PARAM_COPY_PARAMETERS, parameterNamespace);
         }
             
         final Map<String, String[]> parameters = portletUrlBuilder.getParameters();
         if (!parameters.isEmpty()) {
-            url.addParametersArray(PORTLET_PARAM_PREFIX + suffixedPortletWindowId, parameters);
+            url.appendParameters(PORTLET_PARAM_PREFIX, parameterNamespace, parameters);
+        }
+    }
+    
+    /**
+     * Get the URL data cached on the portal request, created on first use. Portlet worker threads share the
+     * request so two threads may both create one, the last one set wins which only costs rebuilding segments.
+     */
+    private RequestUrlCache getRequestUrlCache(HttpServletRequest request, String encoding) {
+        RequestUrlCache urlCache = (RequestUrlCache)request.getAttribute(REQUEST_URL_CACHE_ATTR);
+        if (urlCache == null || !urlCache.getEncoding().equals(encoding)) {
+            final String contextPath = this.getCleanedContextPath(request);
+            urlCache = new RequestUrlCache(encoding, contextPath.length() > 0 ? SLASH + contextPath : "");
+            request.setAttribute(REQUEST_URL_CACHE_ATTR, urlCache);
+        }
+        return urlCache;
+    }
+    
+    /**
+     * @return The folder path for the layout node, "/f/n2" for example, or "" if it has no folder names
+     */
+    private String getFolderPath(HttpServletRequest request, RequestUrlCache urlCache, IUrlNodeSyntaxHelper urlNodeSyntaxHelper, String layoutNodeId) {
+        String folderPath = urlCache.getFolderPath(layoutNodeId);
+        if (folderPath == null) {
+            final List<String> folderNames = urlNodeSyntaxHelper.getFolderNamesForLayoutNode(request, layoutNodeId);
+            if (folderNames == null || folderNames.isEmpty()) {
+                folderPath = "";
+            }
+            else {
+                final StringBuilder folderPathBuilder = new StringBuilder(SLASH).append(FOLDER_PATH_PREFIX);
+                for (final String folderName : folderNames) {
+                    folderPathBuilder.append(SLASH_CHAR).append(folderName);
+                }
+                folderPath = folderPathBuilder.toString();
+            }
+            urlCache.putFolderPath(layoutNodeId, folderPath);
+        }
+        return folderPath;
+    }
+    
+    private TargetedPortletSegments getTargetedPortletSegments(
+            HttpServletRequest request, RequestUrlCache urlCache, IUrlNodeSyntaxHelper urlNodeSyntaxHelper, 
+            IPortletWindowId portletWindowId, IPortletWindow portletWindow) {
+        
+        TargetedPortletSegments segments = urlCache.getTargetedPortletSegments(portletWindowId);
+        if (segments == null) {
+            final IPortletEntity portletEntity = portletWindow.getPortletEntity();
+            final String channelSubscribeId = portletEntity.getLayoutNodeId();
+            final String folderPath = this.getFolderPath(request, urlCache, urlNodeSyntaxHelper, channelSubscribeId);
+            
+            final String targetedPortletString = urlNodeSyntaxHelper.getFolderNameForPortlet(request, portletWindowId);
+            final String portletPath = SLASH + PORTLET_PATH_PREFIX + SLASH + targetedPortletString;
+            
+            segments = new TargetedPortletSegments(folderPath, portletPath, UrlStringWriter.encode(targetedPortletString, urlCache.getEncoding()));
+            urlCache.putTargetedPortletSegments(portletWindowId, segments);
+        }
+        return segments;
+    }
+    
+    private PortletWindowSegments getPortletWindowSegments(HttpServletRequest request, RequestUrlCache urlCache, IPortletWindowId portletWindowId) {
+        PortletWindowSegments segments = urlCache.getPortletWindowSegments(portletWindowId);
+        if (segments == null) {
+            final String encoding = urlCache.getEncoding();
+            final String encodedWindowId = UrlStringWriter.encode(portletWindowId.toString(), encoding);
+            
+            final IPortletWindow portletWindow = this.portletWindowRegistry.getPortletWindow(request, portletWindowId);
+            final IPortletWindowId delegationParentId = portletWindow.getDelegationParentId();
+            final String encodedDelegationParentId = delegationParentId != null ? UrlStringWriter.encode(delegationParentId.getStringId(), encoding) : null;
+            
+            segments = new PortletWindowSegments(encodedWindowId, encodedDelegationParentId);
+            urlCache.putPortletWindowSegments(portletWindowId, segments);
         }
+        return segments;
     }
 
     /**
@@ -22,8 +22,14 @@ package org.jasig.portal.utils.cache.resource;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.transform.Templates;
 import javax.xml.transform.TransformerConfigurationException;
@@ -32,16 +38,19 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.stream.StreamSource;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.jasig.portal.xml.ResourceLoaderURIResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ResourceLoaderAware;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.ResourceLoader;
 import org.springframework.stereotype.Service;
 
 /**
- * Parses the provided input stream into a {@link Templates} object.
+ * Parses the provided input stream into a {@link Templates} object. The time taken to compile each
+ * stylesheet is tracked and exposed as statistics.
  * 
  * @author Eric Dalquist
  * @version $Revision$
@@ -51,7 +60,12 @@ public class TemplatesBuilder implements Loader<Templates>, ResourceLoaderAware
     protected final Logger logger = LoggerFactory.getLogger(this.getClass());
 
     private ResourceLoader resourceLoader;
+    private final ConcurrentMap<String, AtomicLong> lastCompileTimes = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> compileCounts = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong totalCompileTime = new AtomicLong();
+    
     private Map<String, Object> transformerAttributes;
+    private String transformerFactoryClass;
 
     @Override
     public void setResourceLoader(ResourceLoader resourceLoader) {
@@ -61,13 +75,50 @@ public class TemplatesBuilder implements Loader<Templates>, ResourceLoaderAware
     public void setTransformerAttributes(Map<String, Object> transformerAttributes) {
         this.transformerAttributes = transformerAttributes;
     }
+    
+    /**
+     * @param transformerFactoryClass The {@link TransformerFactory} implementation to compile stylesheets with,
+     * if not set the default JAXP lookup is used. Set to <code>org.apache.xalan.xsltc.trax.TransformerFactoryImpl</code>
+     * to compile stylesheets to bytecode with XSLTC.
+     */
+    @Value("${org.jasig.portal.utils.cache.resource.TemplatesBuilder.transformerFactoryClass:}")
+    public void setTransformerFactoryClass(String transformerFactoryClass) {
+        this.transformerFactoryClass = StringUtils.trimToNull(transformerFactoryClass);
+    }
+    
+    /**
+     * @return Time in ms it took to compile each stylesheet the last time it was loaded, keyed by stylesheet URI
+     */
+    public SortedMap<String, Long> getLastCompileTimes() {
+        return getValues(this.lastCompileTimes);
+    }
+    
+    /**
+     * @return Number of times each stylesheet has been compiled, keyed by stylesheet URI
+     */
+    public SortedMap<String, Long> getCompileCounts() {
+        return getValues(this.compileCounts);
+    }
+    
+    /**
+     * @return Total time in ms spent compiling stylesheets
+     */
+    public long getTotalCompileTime() {
+        return this.totalCompileTime.get();
+    }
 
     /* (non-Javadoc)
      * @see org.jasig.portal.utils.cache.resource.ResourceBuilder#buildResource(org.springframework.core.io.Resource, java.io.InputStream)
      */
     @Override
     public LoadedResource<Templates> loadResource(Resource resource) throws IOException {
-        final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+        final TransformerFactory transformerFactory;
+        if (this.transformerFactoryClass != null) {
+            transformerFactory = TransformerFactory.newInstance(this.transformerFactoryClass, this.getClass().getClassLoader());
+        }
+        else {
+            transformerFactory = TransformerFactory.newInstance();
+        }
         
         if (this.transformerAttributes != null) {
             for (final Map.Entry<String, Object> attributeEntry : this.transformerAttributes.entrySet()) {
@@ -81,6 +132,7 @@ public class TemplatesBuilder implements Loader<Templates>, ResourceLoaderAware
         final URI uri = resource.getURI();
         final String systemId = uri.toString();
         
+        final long start = System.currentTimeMillis();
         final InputStream stream = resource.getInputStream();
         final Templates templates;
         try {
@@ -94,11 +146,41 @@ public class TemplatesBuilder implements Loader<Templates>, ResourceLoaderAware
             IOUtils.closeQuietly(stream);
         }
         
+        final long compileTime = System.currentTimeMillis() - start;
+        this.recordCompileTime(systemId, compileTime);
+        this.logger.debug("Compiled stylesheet {} in {}ms", systemId, compileTime);
+        
         final Map<Resource, Long> resolvedResources = uriResolver.getResolvedResources();
         
         return new LoadedResourceImpl<Templates>(templates, resolvedResources);
     }
     
+    private void recordCompileTime(String systemId, long compileTime) {
+        getCounter(this.lastCompileTimes, systemId).set(compileTime);
+        getCounter(this.compileCounts, systemId).incrementAndGet();
+        this.totalCompileTime.addAndGet(compileTime);
+    }
+    
+    private static AtomicLong getCounter(ConcurrentMap<String, AtomicLong> counters, String systemId) {
+        AtomicLong counter = counters.get(systemId);
+        if (counter == null) {
+            counter = new AtomicLong();
+            final AtomicLong existing = counters.putIfAbsent(systemId, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        return counter;
+    }
+    
+    private static SortedMap<String, Long> getValues(Map<String, AtomicLong> counters) {
+        final SortedMap<String, Long> values = new TreeMap<String, Long>();
+        for (final Map.Entry<String, AtomicLong> counterEntry : counters.entrySet()) {
+            values.put(counterEntry.getKey(), counterEntry.getValue().get());
+        }
+        return Collections.unmodifiableSortedMap(values);
+    }
+    
     private static class ResourceTrackingURIResolver extends ResourceLoaderURIResolver {
         private final Map<Resource, Long> resolvedResources = new LinkedHashMap<Resource, Long>();
         
@@ -0,0 +1,594 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.utils.threading;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jasig.portal.utils.ConcurrentMapUtils;
+
+/**
+ * Lock-free alternative to {@link QualityOfServiceBlockingQueue}. Elements are placed into sub-queues based on the
+ * key returned for each element by {@link #getElementKey(Object)} and the sub-queues are serviced round-robin: each
+ * key that has queued elements gets one element removed before any key gets a second. Elements for the same key
+ * are returned in FIFO order.
+ * <p/>
+ * Keys with queued elements are tracked in a {@link ConcurrentLinkedQueue}, each key is in that queue at most once
+ * and is only ever held by a single consumer at a time, so offer and poll never take a lock. The total size is
+ * tracked with an {@link AtomicInteger}. The locks and conditions used by {@link #take()}, {@link #put(Object)} and
+ * the timed variants are only acquired by threads that have to wait, idle consumers and producers blocked on a full
+ * queue, and are only signaled when there is actually a thread waiting.
+ * <p/>
+ * Unlike {@link QualityOfServiceBlockingQueue} the element returned by {@link #peek()} is NOT guaranteed to be the
+ * next element returned by {@link #poll()}, and {@link #size()} may briefly include elements that are in the
+ * process of being added.
+ * 
+ * @version $Revision$
+ * @param <K> The type of key used for grouping elements in the queue
+ * @param <T> The type of elements in the queue
+ */
+public abstract class ConcurrentQualityOfServiceBlockingQueue<K, T> extends AbstractQueue<T> implements BlockingQueue<T> {
+    private final ConcurrentMap<K, KeyQueue<K, T>> keyedQueues = new ConcurrentHashMap<K, KeyQueue<K, T>>();
+    private final Set<K> queueKeySet = Collections.unmodifiableSet(this.keyedQueues.keySet());
+    
+    //Sub-queues that have elements, in the order they will be serviced
+    private final Queue<KeyQueue<K, T>> readyQueues = new ConcurrentLinkedQueue<KeyQueue<K, T>>();
+    
+    private final int capacity;
+    private final AtomicInteger count = new AtomicInteger();
+    
+    //Only used by threads that have to wait
+    private final ReentrantLock takeLock = new ReentrantLock();
+    private final Condition notEmpty = takeLock.newCondition();
+    private final AtomicInteger waitingConsumers = new AtomicInteger();
+    private final ReentrantLock putLock = new ReentrantLock();
+    private final Condition notFull = putLock.newCondition();
+    private final AtomicInteger waitingProducers = new AtomicInteger();
+    
+    public ConcurrentQualityOfServiceBlockingQueue() {
+        this.capacity = Integer.MAX_VALUE;
+    }
+    
+    public ConcurrentQualityOfServiceBlockingQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException();
+        }
+        
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return the key for the specified element
+     */
+    protected abstract K getElementKey(T e);
+    
+    /**
+     * @return A read only Set of the keys in the queue
+     */
+    public final Set<K> getKeySet() {
+        return queueKeySet;
+    }
+    
+    /**
+     * @return true if there are no elements for the specified key
+     */
+    public final boolean isKeyEmpty(K key) {
+        final KeyQueue<K, T> queue = this.keyedQueues.get(key);
+        if (queue == null) {
+            return true;
+        }
+        
+        return queue.elements.isEmpty();
+    }
+    
+    /**
+     * @return The number of elements in the queue for the specified key
+     */
+    public final int getKeySize(K key) {
+        final KeyQueue<K, T> queue = this.keyedQueues.get(key);
+        if (queue == null) {
+            return 0;
+        }
+        
+        return queue.elements.size();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Queue#offer(java.lang.Object)
+     */
+    @Override
+    public final boolean offer(T e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        
+        if (!this.reserve()) {
+            return false;
+        }
+        
+        this.enqueue(e);
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#put(java.lang.Object)
+     */
+    @Override
+    public final void put(T e) throws InterruptedException {
+        this.offer(e, -1, null);
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object, long, java.util.concurrent.TimeUnit)
+     */
+    @Override
+    public final boolean offer(T e, long timeout, TimeUnit unit) throws InterruptedException {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        
+        if (!this.reserve()) {
+            long nanos = timeout >= 0 ? unit.toNanos(timeout) : -1;
+            
+            this.putLock.lockInterruptibly();
+            try {
+                this.waitingProducers.incrementAndGet();
+                try {
+                    while (!this.reserve()) {
+                        if (nanos < 0) {
+                            this.notFull.await();
+                        }
+                        else if (nanos == 0) {
+                            return false;
+                        }
+                        else {
+                            nanos = Math.max(0, this.notFull.awaitNanos(nanos));
+                        }
+                    }
+                }
+                finally {
+                    this.waitingProducers.decrementAndGet();
+                }
+                
+                //Pass the wake up along if there is still room
+                if (this.count.get() < this.capacity) {
+                    this.notFull.signal();
+                }
+            }
+            finally {
+                this.putLock.unlock();
+            }
+        }
+        
+        this.enqueue(e);
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Queue#poll()
+     */
+    @Override
+    public final T poll() {
+        final T e = this.dequeue();
+        if (e != null) {
+            this.signalNotFull(false);
+        }
+        return e;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#take()
+     */
+    @Override
+    public final T take() throws InterruptedException {
+        return this.poll(-1, null);
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#poll(long, java.util.concurrent.TimeUnit)
+     */
+    @Override
+    public final T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        T e = this.poll();
+        if (e != null) {
+            return e;
+        }
+        
+        long nanos = timeout >= 0 ? unit.toNanos(timeout) : -1;
+        
+        this.takeLock.lockInterruptibly();
+        try {
+            this.waitingConsumers.incrementAndGet();
+            try {
+                while ((e = this.dequeue()) == null) {
+                    if (nanos < 0) {
+                        this.notEmpty.await();
+                    }
+                    else if (nanos == 0) {
+                        return null;
+                    }
+                    else {
+                        nanos = Math.max(0, this.notEmpty.awaitNanos(nanos));
+                    }
+                }
+            }
+            finally {
+                this.waitingConsumers.decrementAndGet();
+            }
+            
+            //Pass the wake up along if there are more elements for other idle consumers
+            if (this.count.get() > 0) {
+                this.notEmpty.signal();
+            }
+        }
+        finally {
+            this.takeLock.unlock();
+        }
+        
+        this.signalNotFull(false);
+        return e;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Queue#peek()
+     */
+    @Override
+    public final T peek() {
+        for (final KeyQueue<K, T> queue : this.readyQueues) {
+            final T e = queue.elements.peek();
+            if (e != null) {
+                return e;
+            }
+        }
+        
+        return null;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#remainingCapacity()
+     */
+    @Override
+    public final int remainingCapacity() {
+        return this.capacity - this.count.get();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection)
+     */
+    @Override
+    public final int drainTo(Collection<? super T> c) {
+        return this.drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection, int)
+     */
+    @Override
+    public final int drainTo(Collection<? super T> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        
+        int count = 0;
+        T e;
+        while (count < maxElements && (e = this.dequeue()) != null) {
+            c.add(e);
+            count++;
+        }
+        
+        if (count > 0) {
+            this.signalNotFull(count > 1);
+        }
+        
+        return count;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractCollection#remove(java.lang.Object)
+     */
+    @Override
+    public final boolean remove(Object o) {
+        if (o == null) {
+            return false;
+        }
+        
+        @SuppressWarnings("unchecked")
+        final K key = this.getElementKey((T)o);
+        final KeyQueue<K, T> queue = this.keyedQueues.get(key);
+        if (queue == null || !queue.elements.remove(o)) {
+            return false;
+        }
+        
+        //The KeyQueue may still be scheduled, dequeue skips over it if it no longer has elements
+        this.count.decrementAndGet();
+        this.signalNotFull(false);
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractCollection#contains(java.lang.Object)
+     */
+    @Override
+    public final boolean contains(Object o) {
+        if (o == null) {
+            return false;
+        }
+        
+        @SuppressWarnings("unchecked")
+        final K key = this.getElementKey((T)o);
+        final KeyQueue<K, T> queue = this.keyedQueues.get(key);
+        if (queue == null) {
+            return false;
+        }
+        
+        return queue.elements.contains(o);
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractCollection#size()
+     */
+    @Override
+    public final int size() {
+        return this.count.get();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractCollection#isEmpty()
+     */
+    @Override
+    public final boolean isEmpty() {
+        return this.count.get() == 0;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractCollection#iterator()
+     */
+    @Override
+    public final Iterator<T> iterator() {
+        return new ElementIterator();
+    }
+    
+    /**
+     * Claims space for one element, returns false if the queue is at capacity
+     */
+    private boolean reserve() {
+        while (true) {
+            final int c = this.count.get();
+            if (c >= this.capacity) {
+                return false;
+            }
+            if (this.count.compareAndSet(c, c + 1)) {
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Adds an element for which space has already been reserved
+     */
+    private void enqueue(T e) {
+        final KeyQueue<K, T> queue = this.getOrCreateQueue(e);
+        queue.elements.add(e);
+        this.schedule(queue);
+        this.signalNotEmpty();
+    }
+    
+    /**
+     * Removes the next element, taking one element from the KeyQueue at the head of {@link #readyQueues} and moving
+     * it to the tail if it still has elements.
+     */
+    private T dequeue() {
+        KeyQueue<K, T> queue;
+        while ((queue = this.readyQueues.poll()) != null) {
+            //This thread now owns the queue until it is re-scheduled
+            final T e = queue.elements.poll();
+            
+            if (!queue.elements.isEmpty()) {
+                this.readyQueues.add(queue);
+                
+                //Elements added while this thread owned the queue were not visible to waiting consumers
+                this.signalNotEmpty();
+            }
+            else {
+                //Clear the flag then re-check, an element added before the flag was cleared would otherwise be missed
+                queue.scheduled.set(false);
+                if (!queue.elements.isEmpty()) {
+                    this.schedule(queue);
+                    this.signalNotEmpty();
+                }
+            }
+            
+            //e is only null if the element was removed via remove(Object), try the next key
+            if (e != null) {
+                this.count.decrementAndGet();
+                return e;
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Adds the KeyQueue to {@link #readyQueues} if it isn't already there
+     */
+    private void schedule(KeyQueue<K, T> queue) {
+        if (queue.scheduled.compareAndSet(false, true)) {
+            this.readyQueues.add(queue);
+        }
+    }
+    
+    private void signalNotEmpty() {
+        if (this.waitingConsumers.get() > 0) {
+            this.takeLock.lock();
+            try {
+                this.notEmpty.signal();
+            }
+            finally {
+                this.takeLock.unlock();
+            }
+        }
+    }
+    
+    private void signalNotFull(boolean all) {
+        if (this.waitingProducers.get() > 0) {
+            this.putLock.lock();
+            try {
+                if (all) {
+                    this.notFull.signalAll();
+                }
+                else {
+                    this.notFull.signal();
+                }
+            }
+            finally {
+                this.putLock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * @return The KeyQueue to use for the specified element
+     */
+    private KeyQueue<K, T> getOrCreateQueue(T e) {
+        final K key = this.getElementKey(e);
+        KeyQueue<K, T> queue = this.keyedQueues.get(key);
+        if (queue == null) {
+            queue = new KeyQueue<K, T>(key);
+            queue = ConcurrentMapUtils.putIfAbsent(this.keyedQueues, key, queue);
+        }
+        return queue;
+    }
+    
+    /**
+     * Elements for a single key along with a flag tracking if the key is in {@link #readyQueues}
+     */
+    private static final class KeyQueue<K, T> {
+        private final K key;
+        private final Queue<T> elements = new ConcurrentLinkedQueue<T>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        
+        public KeyQueue(K key) {
+            this.key = key;
+        }
+
+        @Override
+        public String toString() {
+            return this.key + "=" + this.elements.size();
+        }
+    }
+    
+    /**
+     * Iterates over the elements of each KeyQueue in the keyedQueues Map
+     */
+    private final class ElementIterator implements Iterator<T> {
+        private final Iterator<KeyQueue<K, T>> queueIterator;
+        private Iterator<T> elementIterator = null;
+        private T next = null;
+        private T lastReturned = null;
+        
+        public ElementIterator() {
+            this.queueIterator = keyedQueues.values().iterator();
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.Iterator#hasNext()
+         */
+        @Override
+        public boolean hasNext() {
+            while (this.next == null) {
+                if (this.elementIterator != null && this.elementIterator.hasNext()) {
+                    this.next = this.elementIterator.next();
+                }
+                else if (this.queueIterator.hasNext()) {
+                    this.elementIterator = this.queueIterator.next().elements.iterator();
+                }
+                else {
+                    return false;
+                }
+            }
+            
+            return true;
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.Iterator#next()
+         */
+        @Override
+        public T next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            
+            this.lastReturned = this.next;
+            this.next = null;
+            return this.lastReturned;
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.Iterator#remove()
+         */
+        @Override
+        public void remove() {
+            if (this.lastReturned == null) {
+                throw new IllegalStateException();
+            }
+            
+            ConcurrentQualityOfServiceBlockingQueue.this.remove(this.lastReturned);
+            this.lastReturned = null;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractCollection#toString()
+     */
+    @Override
+    public String toString() {
+        final StringBuilder str = new StringBuilder((this.keyedQueues.size() * 50) + 2);
+        
+        str.append("{");
+        
+        for (final Iterator<Entry<K, KeyQueue<K, T>>> entryItr = this.keyedQueues.entrySet().iterator(); entryItr.hasNext(); ) {
+            final Entry<K, KeyQueue<K, T>> entry = entryItr.next();
+            str.append(entry.getValue());
+            
+            if (entryItr.hasNext()) {
+                str.append(", ");
+            }
+        }
+        
+        str.append("}");
+        return str.toString();
+    }
+}
@@ -48,6 +48,9 @@ import org.jasig.portal.utils.ConcurrentMapUtils;
  * The class appropriately handles {@link #peek()} such that the peeked element will be the element operated on by
  * {@link #take()}, {@link #poll()}, {@link #poll(long, TimeUnit)}, {@link #remove()}, {@link #element()},
  * {@link #drainTo(Collection)}, and {@link #drainTo(Collection, int)} no matter how much time has elapsed
+ * <p/>
+ * Every operation that modifies the queue is serialized through a single write lock, for round-robin servicing of
+ * keys under heavy concurrency see {@link ConcurrentQualityOfServiceBlockingQueue}
  * 
  * @author Eric Dalquist
  * @param <K> The type of key used for grouping elements in the queue
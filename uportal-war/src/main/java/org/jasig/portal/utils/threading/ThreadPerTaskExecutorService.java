@@ -0,0 +1,214 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.utils.threading;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link java.util.concurrent.ExecutorService} that starts a new thread from the provided {@link ThreadFactory}
+ * for every task. Intended for use with a factory that creates cheap threads, such as virtual threads, where
+ * pooling provides no benefit. An optional limit on the number of concurrently running tasks can be set, tasks
+ * submitted while the limit is reached are rejected the same way a saturated thread pool rejects them.
+ * 
+ * @version $Revision$
+ */
+public class ThreadPerTaskExecutorService extends AbstractExecutorService {
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+    
+    private final Set<Thread> activeThreads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+    private final AtomicInteger largestActiveCount = new AtomicInteger();
+    private final AtomicLong completedTaskCount = new AtomicLong();
+    private final AtomicLong rejectedTaskCount = new AtomicLong();
+    private final Object terminationMonitor = new Object();
+    private final ThreadFactory threadFactory;
+    private final Semaphore concurrencyLimit;
+    private final int maxConcurrentTasks;
+    private volatile boolean shutdown = false;
+    
+    /**
+     * @param threadFactory Factory used to create a thread for each task
+     * @param maxConcurrentTasks Maximum number of tasks that can run at once, 0 or less for no limit
+     */
+    public ThreadPerTaskExecutorService(ThreadFactory threadFactory, int maxConcurrentTasks) {
+        this.threadFactory = threadFactory;
+        this.maxConcurrentTasks = maxConcurrentTasks;
+        this.concurrencyLimit = maxConcurrentTasks > 0 ? new Semaphore(maxConcurrentTasks) : null;
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        if (this.shutdown) {
+            this.rejectedTaskCount.incrementAndGet();
+            throw new RejectedExecutionException("Executor has been shut down, rejecting task " + command);
+        }
+        
+        if (this.concurrencyLimit != null && !this.concurrencyLimit.tryAcquire()) {
+            this.rejectedTaskCount.incrementAndGet();
+            throw new RejectedExecutionException(this.maxConcurrentTasks + " tasks are already running, rejecting task " + command);
+        }
+        
+        final Thread thread;
+        try {
+            thread = this.threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        command.run();
+                    }
+                    finally {
+                        taskComplete(Thread.currentThread());
+                    }
+                }
+            });
+        }
+        catch (RuntimeException e) {
+            this.releasePermit();
+            throw e;
+        }
+        
+        this.activeThreads.add(thread);
+        this.updateLargestActiveCount();
+        
+        try {
+            thread.start();
+        }
+        catch (RuntimeException e) {
+            this.activeThreads.remove(thread);
+            this.releasePermit();
+            throw e;
+        }
+    }
+    
+    private void taskComplete(Thread thread) {
+        this.activeThreads.remove(thread);
+        this.completedTaskCount.incrementAndGet();
+        this.releasePermit();
+        
+        if (this.shutdown && this.activeThreads.isEmpty()) {
+            synchronized (this.terminationMonitor) {
+                this.terminationMonitor.notifyAll();
+            }
+        }
+    }
+    
+    private void releasePermit() {
+        if (this.concurrencyLimit != null) {
+            this.concurrencyLimit.release();
+        }
+    }
+    
+    private void updateLargestActiveCount() {
+        final int activeCount = this.activeThreads.size();
+        int largest;
+        do {
+            largest = this.largestActiveCount.get();
+        } while (activeCount > largest && !this.largestActiveCount.compareAndSet(largest, activeCount));
+    }
+
+    @Override
+    public void shutdown() {
+        this.shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        this.shutdown = true;
+        for (final Thread thread : this.activeThreads) {
+            thread.interrupt();
+        }
+        
+        //Tasks are never queued
+        return new ArrayList<Runnable>(0);
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return this.shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return this.shutdown && this.activeThreads.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this.terminationMonitor) {
+            while (!this.isTerminated()) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this.terminationMonitor, remaining);
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * @return Number of tasks currently running
+     */
+    public int getActiveCount() {
+        return this.activeThreads.size();
+    }
+    
+    /**
+     * @return Largest number of tasks that have been running at the same time
+     */
+    public int getLargestActiveCount() {
+        return this.largestActiveCount.get();
+    }
+    
+    /**
+     * @return Maximum number of concurrent tasks, 0 or less if there is no limit
+     */
+    public int getMaxConcurrentTasks() {
+        return this.maxConcurrentTasks;
+    }
+    
+    /**
+     * @return Number of tasks that have completed
+     */
+    public long getCompletedTaskCount() {
+        return this.completedTaskCount.get();
+    }
+    
+    /**
+     * @return Number of tasks rejected due to shutdown or the concurrency limit
+     */
+    public long getRejectedTaskCount() {
+        return this.rejectedTaskCount.get();
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.utils.threading;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.config.AbstractFactoryBean;
+
+/**
+ * Creates a {@link ThreadPerTaskExecutorService} that runs each task on a new virtual thread. Virtual threads
+ * are only available on Java 21 and later JVMs so they are looked up reflectively, if they are not enabled or the
+ * running JVM does not support them the configured fallback {@link ExecutorService} is returned instead.
+ * <p/>
+ * The fallback executor is owned by its own bean definition and is never shut down by this factory. 
+ * 
+ * @version $Revision$
+ */
+public class VirtualThreadExecutorFactoryBean extends AbstractFactoryBean<ExecutorService> {
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+    
+    private boolean enabled = false;
+    private String threadNamePrefix = "uPortal-VirtualThread-";
+    private int maxConcurrentTasks = 0;
+    private ExecutorService fallbackExecutor;
+    
+    /**
+     * @param enabled If virtual threads should be used when the JVM supports them, defaults to false
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param threadNamePrefix Prefix for the names of created virtual threads
+     */
+    public void setThreadNamePrefix(String threadNamePrefix) {
+        this.threadNamePrefix = threadNamePrefix;
+    }
+
+    /**
+     * @param maxConcurrentTasks Maximum number of tasks that can run at once, 0 or less for no limit. Defaults to 0 
+     */
+    public void setMaxConcurrentTasks(int maxConcurrentTasks) {
+        this.maxConcurrentTasks = maxConcurrentTasks;
+    }
+
+    /**
+     * @param fallbackExecutor Executor to use when virtual threads are disabled or unsupported, required
+     */
+    public void setFallbackExecutor(ExecutorService fallbackExecutor) {
+        this.fallbackExecutor = fallbackExecutor;
+    }
+
+    @Override
+    public Class<?> getObjectType() {
+        return ExecutorService.class;
+    }
+
+    @Override
+    protected ExecutorService createInstance() throws Exception {
+        if (this.fallbackExecutor == null) {
+            throw new IllegalStateException("fallbackExecutor must be set");
+        }
+        
+        if (!this.enabled) {
+            return this.fallbackExecutor;
+        }
+        
+        final ThreadFactory virtualThreadFactory = createVirtualThreadFactory(this.threadNamePrefix);
+        if (virtualThreadFactory == null) {
+            this.logger.warn("Virtual threads are enabled but are not supported by the running JVM " + System.getProperty("java.version") + ", using the fallback executor instead");
+            return this.fallbackExecutor;
+        }
+        
+        this.logger.info("Using virtual threads with name prefix '{}' and a concurrent task limit of {}", this.threadNamePrefix, this.maxConcurrentTasks);
+        return new ThreadPerTaskExecutorService(virtualThreadFactory, this.maxConcurrentTasks);
+    }
+
+    @Override
+    protected void destroyInstance(ExecutorService instance) throws Exception {
+        if (instance != this.fallbackExecutor) {
+            instance.shutdownNow();
+        }
+    }
+    
+    /**
+     * @return true if the running JVM can create virtual threads
+     */
+    public static boolean isVirtualThreadSupported() {
+        return createVirtualThreadFactory("") != null;
+    }
+    
+    /**
+     * Equivalent to <code>Thread.ofVirtual().name(prefix, 0).factory()</code>
+     * 
+     * @return A factory for virtual threads, null if the running JVM doesn't support them.
+     */
+    static ThreadFactory createVirtualThreadFactory(String threadNamePrefix) {
+        try {
+            final Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            final Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            final Method name = builderType.getMethod("name", String.class, Long.TYPE);
+            final Method factory = builderType.getMethod("factory");
+            
+            Object builder = ofVirtual.invoke(null);
+            builder = name.invoke(builder, threadNamePrefix, 0L);
+            return (ThreadFactory)factory.invoke(builder);
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+        catch (ClassNotFoundException e) {
+            return null;
+        }
+        catch (Exception e) {
+            //Virtual threads can be disabled by preview flags on some JVMs
+            LoggerFactory.getLogger(VirtualThreadExecutorFactoryBean.class).debug("Failed to create virtual thread factory", e);
+            return null;
+        }
+    }
+}
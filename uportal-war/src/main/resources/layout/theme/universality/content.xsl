@@ -52,12 +52,36 @@
     exclude-result-prefixes="url upAuth upGroup upMsg dlm xsi" 
     version="1.0">
       
+  <!-- ========== TEMPLATE: PORTLET REGION ========== -->
+  <!-- ============================================== -->
+  <!--
+   | These templates support incremental theme transformation. Each portlet in a column is wrapped in a
+   | region element so its markup can be cached apart from the page, placeholders of portlets that are
+   | already cached produce an empty region. A portlet may only depend on the header, the navigation and
+   | its column. A region document contains one portlet with the placeholders of the other portlets in
+   | its column, it is applied per column so position() matches the columns template.
+  -->
+  <xsl:template match="channel[@upRegion]|blocked-channel[@upRegion]" priority="10">
+    <region upRegion="{@upRegion}">
+      <xsl:if test="not(@upRegionPlaceholder)">
+        <xsl:call-template name="portlet"/>
+      </xsl:if>
+    </region>
+  </xsl:template>
+  
+  <xsl:template match="layout[@upRegionDocument]|layout_fragment[@upRegionDocument]" priority="10">
+    <xsl:for-each select="content/column">
+      <xsl:apply-templates select="channel|blocked-channel"/>
+    </xsl:for-each>
+  </xsl:template>
+  
+  
   <!-- ========== TEMPLATE: PORTLET ========== -->
   <!-- ======================================= -->
   <!--
    | This template renders the portlet containers: chrome and controls.
   -->
-  <xsl:template match="channel|blocked-channel">
+  <xsl:template match="channel|blocked-channel" name="portlet">
     
     <xsl:variable name="PORTLET_LOCKED"> <!-- Test to determine if the portlet is locked in the layout. -->
       <xsl:choose> 
@@ -0,0 +1,179 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.events;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jasig.portal.events.PortalEvent.PortalEventBuilder;
+import org.jasig.portal.security.SystemPerson;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationEventPublisher;
+
+/**
+ * @version $Revision$
+ */
+public class AsyncPortalEventPublisherTest {
+    private final List<ApplicationEvent> publishedEvents = new CopyOnWriteArrayList<ApplicationEvent>();
+    private final List<Thread> publishingThreads = new CopyOnWriteArrayList<Thread>();
+    private final Thread testThread = Thread.currentThread();
+    private volatile CountDownLatch dispatchStarted = new CountDownLatch(0);
+    private volatile CountDownLatch releaseDispatch = new CountDownLatch(0);
+    
+    private PortalEventBuilder eventBuilder;
+    private AsyncPortalEventPublisher asyncPortalEventPublisher;
+    
+    @Before
+    public void setup() {
+        eventBuilder = new PortalEventBuilder(this, "example.com", "1234567890123_system_AAAAAAAAAAA", SystemPerson.INSTANCE);
+        
+        asyncPortalEventPublisher = new AsyncPortalEventPublisher();
+        asyncPortalEventPublisher.setApplicationEventPublisher(new ApplicationEventPublisher() {
+            @Override
+            public void publishEvent(ApplicationEvent event) {
+                //Only block the dispatcher thread
+                if (Thread.currentThread() != testThread) {
+                    dispatchStarted.countDown();
+                    try {
+                        releaseDispatch.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                
+                publishingThreads.add(Thread.currentThread());
+                publishedEvents.add(event);
+            }
+        });
+    }
+    
+    @After
+    public void teardown() throws Exception {
+        releaseDispatch.countDown();
+        asyncPortalEventPublisher.destroy();
+    }
+    
+    @Test
+    public void testDisabled() throws Exception {
+        asyncPortalEventPublisher.setEnabled(false);
+        asyncPortalEventPublisher.afterPropertiesSet();
+        
+        final PortalEvent event = newLayoutEvent();
+        asyncPortalEventPublisher.publishEvent(event);
+        
+        assertEquals(1, publishedEvents.size());
+        assertSame(event, publishedEvents.get(0));
+        assertSame(Thread.currentThread(), publishingThreads.get(0));
+        assertEquals(0, asyncPortalEventPublisher.getEventsQueued());
+    }
+    
+    @Test
+    public void testSynchronousEventTypes() throws Exception {
+        asyncPortalEventPublisher.afterPropertiesSet();
+        
+        final LogoutEvent event = new LogoutEvent(eventBuilder);
+        asyncPortalEventPublisher.publishEvent(event);
+        
+        assertEquals(1, publishedEvents.size());
+        assertSame(event, publishedEvents.get(0));
+        assertSame(Thread.currentThread(), publishingThreads.get(0));
+        assertEquals(0, asyncPortalEventPublisher.getEventsQueued());
+    }
+    
+    @Test
+    public void testAsyncDispatch() throws Exception {
+        asyncPortalEventPublisher.afterPropertiesSet();
+        
+        for (int i = 0; i < 10; i++) {
+            asyncPortalEventPublisher.publishEvent(newLayoutEvent());
+        }
+        
+        //destroy dispatches anything still buffered
+        asyncPortalEventPublisher.destroy();
+        
+        assertEquals(10, publishedEvents.size());
+        assertEquals(10, asyncPortalEventPublisher.getEventsQueued());
+        assertEquals(10, asyncPortalEventPublisher.getEventsDispatched());
+    }
+    
+    @Test
+    public void testDropPolicy() throws Exception {
+        asyncPortalEventPublisher.setBufferSize(1);
+        asyncPortalEventPublisher.setBatchSize(1);
+        asyncPortalEventPublisher.setOverflowPolicy(AsyncPortalEventPublisher.OverflowPolicy.DROP);
+        asyncPortalEventPublisher.afterPropertiesSet();
+        
+        dispatchStarted = new CountDownLatch(1);
+        releaseDispatch = new CountDownLatch(1);
+        
+        //First event is taken by the dispatcher which then blocks
+        asyncPortalEventPublisher.publishEvent(newLayoutEvent());
+        assertTrue(dispatchStarted.await(5, TimeUnit.SECONDS));
+        
+        //Second event fills the buffer, third is dropped
+        asyncPortalEventPublisher.publishEvent(newLayoutEvent());
+        asyncPortalEventPublisher.publishEvent(newLayoutEvent());
+        assertEquals(1, asyncPortalEventPublisher.getEventsDropped());
+        assertEquals(0, publishedEvents.size());
+        
+        releaseDispatch.countDown();
+        asyncPortalEventPublisher.destroy();
+        
+        assertEquals(2, publishedEvents.size());
+        assertEquals(2, asyncPortalEventPublisher.getEventsDispatched());
+    }
+    
+    @Test
+    public void testCallerRunsPolicy() throws Exception {
+        asyncPortalEventPublisher.setBufferSize(1);
+        asyncPortalEventPublisher.setBatchSize(1);
+        asyncPortalEventPublisher.afterPropertiesSet();
+        
+        dispatchStarted = new CountDownLatch(1);
+        releaseDispatch = new CountDownLatch(1);
+        
+        asyncPortalEventPublisher.publishEvent(newLayoutEvent());
+        assertTrue(dispatchStarted.await(5, TimeUnit.SECONDS));
+        asyncPortalEventPublisher.publishEvent(newLayoutEvent());
+        
+        //Buffer is full, published on this thread
+        asyncPortalEventPublisher.publishEvent(newLayoutEvent());
+        assertEquals(1, asyncPortalEventPublisher.getEventsPublishedByCaller());
+        assertEquals(1, publishedEvents.size());
+        assertSame(Thread.currentThread(), publishingThreads.get(0));
+        
+        releaseDispatch.countDown();
+        asyncPortalEventPublisher.destroy();
+        assertEquals(3, publishedEvents.size());
+    }
+
+    private PortalEvent newLayoutEvent() {
+        return new FolderAddedToLayoutPortalEvent(eventBuilder, SystemPerson.INSTANCE, 1, "n32");
+    }
+}
@@ -22,6 +22,7 @@ package org.jasig.portal.events;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.Collections;
 import java.util.Comparator;
@@ -30,7 +31,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicReference;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
@@ -87,11 +87,10 @@ public class JpaPortalEventStoreTest extends BaseJpaDaoTest {
         });
         
         verifyGetEvents(originalEvents, startDate, endDate);
-        verifyAggregateEvents(originalEvents, startDate, endDate);
-        verifyAggregateEvents(Collections.<PortalEvent>emptyList(), startDate, endDate);
+        verifyPartitionedGetEvents(originalEvents, startDate, endDate);
         deleteEvents(originalEvents, startDate, endDate);
         verifyGetEvents(Collections.<PortalEvent>emptyList(), startDate, endDate);
-        verifyAggregateEvents(Collections.<PortalEvent>emptyList(), startDate, endDate);
+        verifyPartitionedGetEvents(Collections.<PortalEvent>emptyList(), startDate, endDate);
     }
     
     @Test
@@ -142,11 +141,10 @@ public class JpaPortalEventStoreTest extends BaseJpaDaoTest {
         });
         
         verifyGetEvents(originalEvents, startDate, endDate);
-        verifyAggregateEvents(originalEvents, startDate, endDate);
-        verifyAggregateEvents(Collections.<PortalEvent>emptyList(), startDate, endDate);
+        verifyPartitionedGetEvents(originalEvents, startDate, endDate);
         deleteEvents(originalEvents, startDate, endDate);
         verifyGetEvents(Collections.<PortalEvent>emptyList(), startDate, endDate);
-        verifyAggregateEvents(Collections.<PortalEvent>emptyList(), startDate, endDate);
+        verifyPartitionedGetEvents(Collections.<PortalEvent>emptyList(), startDate, endDate);
     }
 
     protected void verifyGetEvents(final List<PortalEvent> originalEvents, final DateTime startDate, final DateTime endDate) {
@@ -174,28 +172,30 @@ public class JpaPortalEventStoreTest extends BaseJpaDaoTest {
         });
     }
 
-    protected void verifyAggregateEvents(final List<PortalEvent> originalEvents, final DateTime startDate, final DateTime endDate) {
+    protected void verifyPartitionedGetEvents(final List<PortalEvent> originalEvents, final DateTime startDate, final DateTime endDate) {
         execute(new CallableWithoutResult() {
             @Override
             protected void callWithoutResult() {
                 //Get all events
                 final List<PortalEvent> portalEvents = new LinkedList<PortalEvent>();
                 
-                final AtomicReference<DateTime> nextStart = new AtomicReference<DateTime>(startDate);
-
-                //aggregate all events, 5 at a time.
-                final int loadSize = 10;
-                int startSize;
-                do {
-                    startSize = portalEvents.size();
-                    portalEventDao.aggregatePortalEvents(nextStart.get(), endDate, loadSize, new FunctionWithoutResult<PortalEvent>() {
+                //get all events in consecutive hour long partitions, the same way aggregation reads them
+                DateTime partitionStart = startDate;
+                while (partitionStart.isBefore(endDate)) {
+                    DateTime partitionEnd = partitionStart.plusHours(1);
+                    if (partitionEnd.isAfter(endDate)) {
+                        partitionEnd = endDate;
+                    }
+                    
+                    portalEventDao.getPortalEvents(partitionStart, partitionEnd, new FunctionWithoutResult<PortalEvent>() {
                         @Override
                         protected void applyWithoutResult(PortalEvent input) {
                             portalEvents.add(input);
-                            nextStart.set(input.getTimestampAsDate());
                         }
                     });
-                } while (loadSize + startSize == portalEvents.size());
+                    
+                    partitionStart = partitionEnd;
+                }
                 
                 assertEquals(originalEvents.size(), portalEvents.size());
                 
@@ -210,14 +210,14 @@ public class JpaPortalEventStoreTest extends BaseJpaDaoTest {
     }
      
     protected void deleteEvents(final List<PortalEvent> originalEvents, final DateTime startDate, final DateTime endDate) {
-        execute(new CallableWithoutResult() {
-            @Override
-            protected void callWithoutResult() {
-                
-                //Delete the events
-                portalEventDao.deletePortalEventsBefore(endDate);
-            }
-        });
+        //Delete the events in batches of 3 the same way purging deletes them, purging runs without an open
+        //transaction so each DAO call has to start its own
+        DateTime batchEnd;
+        do {
+            batchEnd = portalEventDao.getPortalEventBatchEnd(endDate, 3);
+            assertTrue(!batchEnd.isAfter(endDate));
+            portalEventDao.deletePortalEventsBefore(batchEnd);
+        } while (batchEnd.isBefore(endDate));
     }
     
     private static final long EVENT_DELAY = 100;
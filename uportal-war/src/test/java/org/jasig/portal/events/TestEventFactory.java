@@ -23,8 +23,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.xml.namespace.QName;
+
 import org.jasig.portal.events.PortalEvent.PortalEventBuilder;
 import org.jasig.portal.security.IPerson;
+import org.jasig.portal.url.UrlState;
+import org.jasig.portal.url.UrlType;
 
 /**
  * Utility used to create portal events for testing. Events all use package-private constructors but for tests
@@ -46,4 +50,92 @@ public final class TestEventFactory {
         return new LoginEvent(portalEventBuilder, groups, attributes);
     }
     
+    public static LogoutEvent newLogoutEvent(Object source, String serverName, String eventSessionId, IPerson person) {
+        final PortalEventBuilder portalEventBuilder = new PortalEventBuilder(source, serverName, eventSessionId, person);
+        return new LogoutEvent(portalEventBuilder);
+    }
+    
+    public static PortalRenderEvent newPortalRenderEvent(Object source, String serverName, String eventSessionId, IPerson person,
+            String requestPathInfo, long executionTimeNano, UrlState urlState, UrlType urlType, Map<String, List<String>> parameters, String targetedLayoutNodeId) {
+        
+        final PortalEventBuilder portalEventBuilder = new PortalEventBuilder(source, serverName, eventSessionId, person);
+        return new PortalRenderEvent(portalEventBuilder, requestPathInfo, executionTimeNano, urlState, urlType, parameters, targetedLayoutNodeId);
+    }
+    
+    public static PortletActionExecutionEvent newPortletActionExecutionEvent(Object source, String serverName, String eventSessionId, IPerson person,
+            String fname, long executionTimeNano, Map<String, List<String>> parameters) {
+        
+        final PortalEventBuilder portalEventBuilder = new PortalEventBuilder(source, serverName, eventSessionId, person);
+        return new PortletActionExecutionEvent(portalEventBuilder, fname, executionTimeNano, parameters);
+    }
+    
+    public static PortletEventExecutionEvent newPortletEventExecutionEvent(Object source, String serverName, String eventSessionId, IPerson person,
+            String fname, long executionTimeNano, Map<String, List<String>> parameters, QName eventName) {
+        
+        final PortalEventBuilder portalEventBuilder = new PortalEventBuilder(source, serverName, eventSessionId, person);
+        return new PortletEventExecutionEvent(portalEventBuilder, fname, executionTimeNano, parameters, eventName);
+    }
+    
+    public static PortletRenderHeaderExecutionEvent newPortletRenderHeaderExecutionEvent(Object source, String serverName, String eventSessionId, IPerson person,
+            String fname, long executionTimeNano, Map<String, List<String>> parameters, boolean targeted, boolean cached) {
+        
+        final PortalEventBuilder portalEventBuilder = new PortalEventBuilder(source, serverName, eventSessionId, person);
+        return new PortletRenderHeaderExecutionEvent(portalEventBuilder, fname, executionTimeNano, parameters, targeted, cached);
+    }
+    
+    public static PortletRenderExecutionEvent newPortletRenderExecutionEvent(Object source, String serverName, String eventSessionId, IPerson person,
+            String fname, long executionTimeNano, Map<String, List<String>> parameters, boolean targeted, boolean usedPortalCache) {
+        
+        final PortalEventBuilder portalEventBuilder = new PortalEventBuilder(source, serverName, eventSessionId, person);
+        return new PortletRenderExecutionEvent(portalEventBuilder, fname, executionTimeNano, parameters, targeted, usedPortalCache);
+    }
+    
+    public static PortletResourceExecutionEvent newPortletResourceExecutionEvent(Object source, String serverName, String eventSessionId, IPerson person,
+            String fname, long executionTimeNano, Map<String, List<String>> parameters, String resourceId, boolean usedBrowserCache, boolean usedPortalCache) {
+        
+        final PortalEventBuilder portalEventBuilder = new PortalEventBuilder(source, serverName, eventSessionId, person);
+        return new PortletResourceExecutionEvent(portalEventBuilder, fname, executionTimeNano, parameters, resourceId, usedBrowserCache, usedPortalCache);
+    }
+    
+    public static PortletAddedToLayoutPortalEvent newPortletAddedToLayoutPortalEvent(Object source, String serverName, String eventSessionId, IPerson person,
+            IPerson layoutOwner, long layoutId, String parentFolderId, String fname) {
+        
+        final PortalEventBuilder portalEventBuilder = new PortalEventBuilder(source, serverName, eventSessionId, person);
+        return new PortletAddedToLayoutPortalEvent(portalEventBuilder, layoutOwner, layoutId, parentFolderId, fname);
+    }
+    
+    public static PortletMovedInLayoutPortalEvent newPortletMovedInLayoutPortalEvent(Object source, String serverName, String eventSessionId, IPerson person,
+            IPerson layoutOwner, long layoutId, String oldParentFolderId, String newParentFolderId, String fname) {
+        
+        final PortalEventBuilder portalEventBuilder = new PortalEventBuilder(source, serverName, eventSessionId, person);
+        return new PortletMovedInLayoutPortalEvent(portalEventBuilder, layoutOwner, layoutId, oldParentFolderId, newParentFolderId, fname);
+    }
+    
+    public static PortletDeletedFromLayoutPortalEvent newPortletDeletedFromLayoutPortalEvent(Object source, String serverName, String eventSessionId, IPerson person,
+            IPerson layoutOwner, long layoutId, String oldParentFolderId, String fname) {
+        
+        final PortalEventBuilder portalEventBuilder = new PortalEventBuilder(source, serverName, eventSessionId, person);
+        return new PortletDeletedFromLayoutPortalEvent(portalEventBuilder, layoutOwner, layoutId, oldParentFolderId, fname);
+    }
+    
+    public static FolderAddedToLayoutPortalEvent newFolderAddedToLayoutPortalEvent(Object source, String serverName, String eventSessionId, IPerson person,
+            IPerson layoutOwner, long layoutId, String newFolderId) {
+        
+        final PortalEventBuilder portalEventBuilder = new PortalEventBuilder(source, serverName, eventSessionId, person);
+        return new FolderAddedToLayoutPortalEvent(portalEventBuilder, layoutOwner, layoutId, newFolderId);
+    }
+    
+    public static FolderMovedInLayoutPortalEvent newFolderMovedInLayoutPortalEvent(Object source, String serverName, String eventSessionId, IPerson person,
+            IPerson layoutOwner, long layoutId, String oldParentFolderId, String movedFolderId) {
+        
+        final PortalEventBuilder portalEventBuilder = new PortalEventBuilder(source, serverName, eventSessionId, person);
+        return new FolderMovedInLayoutPortalEvent(portalEventBuilder, layoutOwner, layoutId, oldParentFolderId, movedFolderId);
+    }
+    
+    public static FolderDeletedFromLayoutPortalEvent newFolderDeletedFromLayoutPortalEvent(Object source, String serverName, String eventSessionId, IPerson person,
+            IPerson layoutOwner, long layoutId, String oldParentFolderId, String deletedFolderId, String deletedFolderName) {
+        
+        final PortalEventBuilder portalEventBuilder = new PortalEventBuilder(source, serverName, eventSessionId, person);
+        return new FolderDeletedFromLayoutPortalEvent(portalEventBuilder, layoutOwner, layoutId, oldParentFolderId, deletedFolderId, deletedFolderName);
+    }
 }
@@ -21,6 +21,7 @@ package org.jasig.portal.events.aggr;
 
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -35,6 +36,7 @@ import org.jasig.portal.concurrency.CallableWithoutResult;
 import org.jasig.portal.concurrency.FunctionWithoutResult;
 import org.jasig.portal.concurrency.locking.IClusterLockService;
 import org.jasig.portal.concurrency.locking.IClusterLockService.TryLockFunctionResult;
+import org.jasig.portal.events.PortalEvent;
 import org.jasig.portal.events.aggr.IEventAggregatorStatus.ProcessingType;
 import org.jasig.portal.events.aggr.dao.DateDimensionDao;
 import org.jasig.portal.events.aggr.dao.IEventAggregationManagementDao;
@@ -101,7 +103,7 @@ public class PortalEventAggregationManagerImplTest extends BaseJpaDaoTest {
         portalEventAggregationManager.setIntervalHelper(intervalHelper);
         portalEventAggregationManager.setClusterLockService(clusterLockService);
         portalEventAggregationManager.setEventAggregationManagementDao(eventAggregationManagementDao);
-        //        portalEventAggregationManager.setPortalEventAggregators(null);
+        portalEventAggregationManager.setPortalEventAggregators(Collections.<IPortalEventAggregator<PortalEvent>>emptySet());
         portalEventAggregationManager.setPortalInfoProvider(portalInfoProvider);
     }
 
@@ -251,7 +253,10 @@ public class PortalEventAggregationManagerImplTest extends BaseJpaDaoTest {
         final TryLockFunctionResult<?> tryLockFunctionResult = mock(TryLockFunctionResult.class);
         when(this.clusterLockService.doInTryLock(Mockito.anyString(), Mockito.any(Function.class))).thenReturn(tryLockFunctionResult);
         
+        final DateTime now = new DateTime(1325881376117l);
+        
         final IEventAggregatorStatus eventAggregatorStatus = mock(IEventAggregatorStatus.class);
+        when(eventAggregatorStatus.getLastEventDate()).thenReturn(now.minusMinutes(5));
         when(this.eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, true)).thenReturn(eventAggregatorStatus);
         
         when(this.portalInfoProvider.getServerName()).thenReturn("TEST_SERVER_NAME");
@@ -263,6 +268,12 @@ public class PortalEventAggregationManagerImplTest extends BaseJpaDaoTest {
             }
         });
         
-        verify(portalEventDao).aggregatePortalEvents(Mockito.any(DateTime.class), Mockito.any(DateTime.class), Mockito.eq(5000), Mockito.any(FunctionWithoutResult.class));
+        //4.5 minutes of events are aggregated in 1 minute partitions
+        verify(portalEventDao, times(5)).getPortalEvents(Mockito.any(DateTime.class), Mockito.any(DateTime.class), Mockito.any(FunctionWithoutResult.class));
+        
+        //The high-water mark is the inclusive end of the last partition
+        final DateTime aggregationEnd = now.minusSeconds(30).secondOfMinute().roundFloorCopy();
+        verify(eventAggregatorStatus).setLastEventDate(aggregationEnd.minusMillis(1));
+        verify(eventAggregationManagementDao).updateEventAggregatorStatus(eventAggregatorStatus);
     }
 }
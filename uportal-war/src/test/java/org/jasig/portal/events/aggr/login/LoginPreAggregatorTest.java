@@ -0,0 +1,121 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.events.aggr.login;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.codehaus.jackson.map.AnnotationIntrospector;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.introspect.JacksonAnnotationIntrospector;
+import org.codehaus.jackson.xc.JaxbAnnotationIntrospector;
+import org.jasig.portal.events.LoginEvent;
+import org.jasig.portal.events.PortalEvent;
+import org.jasig.portal.events.aggr.login.LoginPreAggregator.LoginCounts;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @version $Revision$
+ */
+public class LoginPreAggregatorTest {
+    private static final DateTime MINUTE = new DateTime(2012, 5, 7, 10, 0, 0, 0);
+    
+    private final ObjectMapper mapper = new ObjectMapper();
+    private LoginPreAggregator loginPreAggregator;
+    
+    @Before
+    public void setup() {
+        final AnnotationIntrospector pair = new AnnotationIntrospector.Pair(new JacksonAnnotationIntrospector(), new JaxbAnnotationIntrospector());
+        mapper.getDeserializationConfig().withAnnotationIntrospector(pair);
+        
+        loginPreAggregator = new LoginPreAggregator();
+        loginPreAggregator.setEnabled(true);
+    }
+    
+    @Test
+    public void testCountLogins() throws Exception {
+        loginPreAggregator.onApplicationEvent(createLoginEvent(MINUTE.plusSeconds(10), "bob", "local.1", "local.2"));
+        loginPreAggregator.onApplicationEvent(createLoginEvent(MINUTE.plusSeconds(40), "bob", "local.1"));
+        loginPreAggregator.onApplicationEvent(createLoginEvent(MINUTE.plusSeconds(50), "alice", "local.1"));
+        loginPreAggregator.onApplicationEvent(createLoginEvent(MINUTE.plusSeconds(65), "alice", "local.1"));
+        
+        //Only the first minute is complete
+        Map<DateTime, LoginCounts> completedBuckets = loginPreAggregator.removeCompletedBuckets(MINUTE.plusSeconds(90));
+        assertEquals(1, completedBuckets.size());
+        
+        final LoginCounts loginCounts = completedBuckets.get(MINUTE);
+        assertEquals(2, loginCounts.getUserLogins("local.1").count("bob"));
+        assertEquals(1, loginCounts.getUserLogins("local.1").count("alice"));
+        assertEquals(1, loginCounts.getUserLogins("local.2").count("bob"));
+        assertEquals(0, loginCounts.getUserLogins("local.2").count("alice"));
+        
+        //Already removed
+        completedBuckets = loginPreAggregator.removeCompletedBuckets(MINUTE.plusSeconds(90));
+        assertTrue(completedBuckets.isEmpty());
+        
+        completedBuckets = loginPreAggregator.removeCompletedBuckets(MINUTE.plusMinutes(2));
+        assertEquals(1, completedBuckets.size());
+        assertEquals(1, completedBuckets.get(MINUTE.plusMinutes(1)).getUserLogins("local.1").count("alice"));
+    }
+    
+    @Test
+    public void testRestoreBuckets() throws Exception {
+        loginPreAggregator.onApplicationEvent(createLoginEvent(MINUTE.plusSeconds(10), "bob", "local.1"));
+        
+        final Map<DateTime, LoginCounts> completedBuckets = loginPreAggregator.removeCompletedBuckets(MINUTE.plusMinutes(1));
+        assertEquals(1, completedBuckets.size());
+        
+        //Late event for the same minute arrives while the flush is failing
+        loginPreAggregator.onApplicationEvent(createLoginEvent(MINUTE.plusSeconds(59), "bob", "local.1"));
+        loginPreAggregator.restoreBuckets(completedBuckets);
+        
+        final Map<DateTime, LoginCounts> restoredBuckets = loginPreAggregator.removeCompletedBuckets(MINUTE.plusMinutes(1));
+        assertEquals(1, restoredBuckets.size());
+        assertEquals(2, restoredBuckets.get(MINUTE).getUserLogins("local.1").count("bob"));
+    }
+    
+    @Test
+    public void testDisabled() throws Exception {
+        loginPreAggregator.setEnabled(false);
+        loginPreAggregator.onApplicationEvent(createLoginEvent(MINUTE.plusSeconds(10), "bob", "local.1"));
+        
+        assertTrue(loginPreAggregator.removeCompletedBuckets(MINUTE.plusMinutes(1)).isEmpty());
+    }
+    
+    private LoginEvent createLoginEvent(DateTime timestamp, String userName, String... groups) throws Exception {
+        final StringBuilder json = new StringBuilder();
+        json.append("{\"@c\":\".LoginEvent\",\"timestamp\":").append(timestamp.getMillis())
+            .append(",\"serverId\":\"example.com\",\"eventSessionId\":\"").append(userName)
+            .append("_session\",\"userName\":\"").append(userName).append("\",\"groups\":[");
+        for (int i = 0; i < groups.length; i++) {
+            if (i > 0) {
+                json.append(",");
+            }
+            json.append("\"").append(groups[i]).append("\"");
+        }
+        json.append("],\"attributes\":{}}");
+        
+        return (LoginEvent)mapper.readValue(json.toString(), PortalEvent.class);
+    }
+}
@@ -150,7 +150,7 @@ public class JpaEventSessionDaoTest extends BaseJpaDaoTest {
         this.execute(new CallableWithoutResult() {
             @Override
             protected void callWithoutResult() {
-                eventSessionDao.purgeExpiredEventSessions();
+                eventSessionDao.purgeExpiredEventSessions(100);
             }
         });
         
@@ -0,0 +1,145 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.events.handlers.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+
+import org.codehaus.jackson.map.AnnotationIntrospector;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.introspect.JacksonAnnotationIntrospector;
+import org.codehaus.jackson.xc.JaxbAnnotationIntrospector;
+import org.jasig.portal.events.LoginEvent;
+import org.jasig.portal.events.PortalEvent;
+import org.jasig.portal.events.TestEventFactory;
+import org.jasig.portal.security.IPerson;
+import org.jasig.portal.security.SystemPerson;
+import org.jasig.portal.url.UrlState;
+import org.jasig.portal.url.UrlType;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * @version $Revision$
+ */
+public class DeflatePortalEventDataCodecTest {
+    private static final String SERVER_NAME = "example.com";
+    private static final String SESSION_ID = "1234567890123_system_AAAAAAAAAAA";
+    
+    private final DeflatePortalEventDataCodec codec = new DeflatePortalEventDataCodec();
+    private final ObjectMapper mapper;
+    
+    public DeflatePortalEventDataCodecTest() {
+        //Configured the same as JpaPortalEventStore
+        mapper = new ObjectMapper();
+        final AnnotationIntrospector pair = new AnnotationIntrospector.Pair(new JacksonAnnotationIntrospector(), new JaxbAnnotationIntrospector());
+        mapper.getDeserializationConfig().withAnnotationIntrospector(pair);
+        mapper.getSerializationConfig().withAnnotationIntrospector(pair);
+    }
+    
+    @Test
+    public void testEventRoundTrip() throws Exception {
+        final Set<String> groups = ImmutableSet.of("Student", "Employee");
+        final Map<String, List<String>> attributes = ImmutableMap.of("username", (List<String>)ImmutableList.of("system"), "roles", (List<String>)ImmutableList.of("student", "employee"));
+        
+        final LoginEvent loginEvent = TestEventFactory.newLoginEvent(this, SERVER_NAME, SESSION_ID, SystemPerson.INSTANCE, groups, attributes);
+        
+        final String json = mapper.writeValueAsString(loginEvent);
+        final String encoded = codec.encode(json);
+        assertTrue("Encoded data should be smaller than the JSON: " + encoded, encoded.length() < json.length());
+        
+        final String decoded = codec.decode(encoded);
+        assertEquals(json, decoded);
+        
+        final PortalEvent event = mapper.readValue(decoded, PortalEvent.class);
+        assertEquals(loginEvent.toString(), event.toString());
+    }
+    
+    @Test
+    public void testDictionaryMatchesEventJson() throws Exception {
+        final String dictionary = new String(DeflatePortalEventDataCodec.DICTIONARY, "UTF-8");
+        
+        for (final PortalEvent event : this.createEvents()) {
+            final String json = mapper.writeValueAsString(event);
+            
+            //The type id as written by Jackson, including the start of the object
+            final String typePrefix = json.substring(0, json.indexOf(',') + 1);
+            assertTrue("Dictionary is missing the type of " + json, dictionary.contains(typePrefix));
+            
+            for (final Iterator<String> fieldNames = mapper.readTree(json).getFieldNames(); fieldNames.hasNext(); ) {
+                final String fieldName = "\"" + fieldNames.next() + "\":";
+                assertTrue("Dictionary is missing " + fieldName + " of " + json, dictionary.contains(fieldName));
+            }
+            
+            final String encoded = codec.encode(json);
+            assertEquals(json, codec.decode(encoded));
+        }
+    }
+    
+    @Test
+    public void testNonAsciiRoundTrip() throws Exception {
+        final String json = "{\"@c\":\".PortletRenderExecutionEvent\",\"userName\":\"j\u00f6rg\",\"fname\":\"\u5929\u6c17\"}";
+        assertEquals(json, codec.decode(codec.encode(json)));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testTruncatedData() throws Exception {
+        final String encoded = codec.encode("{\"@c\":\".LogoutEvent\",\"timestamp\":1336416960341,\"serverId\":\"example.com\",\"userName\":\"system\"}");
+        codec.decode(encoded.substring(0, encoded.length() / 2));
+    }
+    
+    /**
+     * One event of every concrete type
+     */
+    protected List<PortalEvent> createEvents() {
+        final IPerson person = SystemPerson.INSTANCE;
+        final Set<String> groups = ImmutableSet.of("local.0", "pags.student");
+        final Map<String, List<String>> attributes = ImmutableMap.of("username", (List<String>)ImmutableList.of("system"));
+        final Map<String, List<String>> parameters = ImmutableMap.of("action", (List<String>)ImmutableList.of("view"));
+        final Map<String, List<String>> noParameters = Collections.emptyMap();
+        
+        return ImmutableList.<PortalEvent>of(
+                TestEventFactory.newLoginEvent(this, SERVER_NAME, SESSION_ID, person, groups, attributes),
+                TestEventFactory.newLogoutEvent(this, SERVER_NAME, SESSION_ID, person),
+                TestEventFactory.newPortalRenderEvent(this, SERVER_NAME, SESSION_ID, person, "/f/s4/normal/render.uP", 250000000, UrlState.NORMAL, UrlType.RENDER, noParameters, "s4"),
+                TestEventFactory.newPortletActionExecutionEvent(this, SERVER_NAME, SESSION_ID, person, "news", 5000000, parameters),
+                TestEventFactory.newPortletEventExecutionEvent(this, SERVER_NAME, SESSION_ID, person, "news", 5000000, noParameters, new QName("https://source.jasig.org/schema/uportal/events", "refresh")),
+                TestEventFactory.newPortletRenderHeaderExecutionEvent(this, SERVER_NAME, SESSION_ID, person, "news", 5000000, noParameters, false, true),
+                TestEventFactory.newPortletRenderExecutionEvent(this, SERVER_NAME, SESSION_ID, person, "news", 5000000, noParameters, false, true),
+                TestEventFactory.newPortletResourceExecutionEvent(this, SERVER_NAME, SESSION_ID, person, "news", 5000000, noParameters, "feed", false, false),
+                TestEventFactory.newPortletAddedToLayoutPortalEvent(this, SERVER_NAME, SESSION_ID, person, person, 1, "s5", "news"),
+                TestEventFactory.newPortletMovedInLayoutPortalEvent(this, SERVER_NAME, SESSION_ID, person, person, 1, "s5", "s9", "news"),
+                TestEventFactory.newPortletDeletedFromLayoutPortalEvent(this, SERVER_NAME, SESSION_ID, person, person, 1, "s9", "news"),
+                TestEventFactory.newFolderAddedToLayoutPortalEvent(this, SERVER_NAME, SESSION_ID, person, person, 1, "s10"),
+                TestEventFactory.newFolderMovedInLayoutPortalEvent(this, SERVER_NAME, SESSION_ID, person, person, 1, "s1", "s10"),
+                TestEventFactory.newFolderDeletedFromLayoutPortalEvent(this, SERVER_NAME, SESSION_ID, person, person, 1, "s1", "s10", "Research"));
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.events.stats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @version $Revision$
+ */
+public class RollingLatencyStatisticsTest {
+    private static final long NOW = 1336400000000l;
+    
+    @Test
+    public void testHistogramBuckets() {
+        int lastBucket = -1;
+        for (long micros = 0; micros < 100000; micros++) {
+            final int bucket = LatencyHistogram.getBucket(micros);
+            
+            //Buckets are contiguous and values are never larger than their bucket's upper bound
+            assertTrue(bucket == lastBucket || bucket == lastBucket + 1);
+            assertTrue(micros <= LatencyHistogram.getBucketUpperBound(bucket));
+            assertTrue(bucket == 0 || micros > LatencyHistogram.getBucketUpperBound(bucket - 1));
+            
+            //Relative error is at most 1/8
+            assertTrue(LatencyHistogram.getBucketUpperBound(bucket) - micros <= micros / 8 + 1);
+            
+            lastBucket = bucket;
+        }
+        
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.getBucket(Long.MAX_VALUE));
+    }
+    
+    @Test
+    public void testPercentiles() {
+        final RollingLatencyStatistics statistics = new RollingLatencyStatistics(6, 10000);
+        
+        //1ms to 100ms
+        for (int i = 1; i <= 100; i++) {
+            statistics.record(TimeUnit.MILLISECONDS.toNanos(i), NOW);
+        }
+        
+        final LatencySnapshot snapshot = statistics.getSnapshot(NOW);
+        assertEquals(100, snapshot.getCount());
+        assertEquals(100, snapshot.getTotalCount());
+        assertEquals(50.5, snapshot.getMean(), 0.001);
+        assertEquals(100, snapshot.getMax(), 0.001);
+        assertEquals(50, snapshot.getMedian(), 50 / 8d);
+        assertEquals(90, snapshot.getPercentile90(), 90 / 8d);
+        assertEquals(99, snapshot.getPercentile99(), 99 / 8d);
+    }
+    
+    @Test
+    public void testRollingWindow() {
+        final RollingLatencyStatistics statistics = new RollingLatencyStatistics(6, 10000);
+        
+        statistics.record(TimeUnit.MILLISECONDS.toNanos(500), NOW);
+        statistics.record(TimeUnit.MILLISECONDS.toNanos(10), NOW + 30000);
+        
+        LatencySnapshot snapshot = statistics.getSnapshot(NOW + 30000);
+        assertEquals(2, snapshot.getCount());
+        assertEquals(500, snapshot.getMax(), 0.001);
+        
+        //First sample has left the window
+        snapshot = statistics.getSnapshot(NOW + 70000);
+        assertEquals(1, snapshot.getCount());
+        assertEquals(10, snapshot.getMax(), 0.001);
+        assertEquals(2, snapshot.getTotalCount());
+        
+        //Slice is re-used for a new sample
+        statistics.record(TimeUnit.MILLISECONDS.toNanos(20), NOW + 60000);
+        snapshot = statistics.getSnapshot(NOW + 60000);
+        assertEquals(2, snapshot.getCount());
+        assertEquals(20, snapshot.getMax(), 0.001);
+        
+        //Nothing left in the window
+        snapshot = statistics.getSnapshot(NOW + 200000);
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getRate(), 0.001);
+    }
+}
@@ -0,0 +1,373 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.groups;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+import org.jasig.portal.EntityIdentifier;
+import org.jasig.portal.security.IPerson;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * @version $Revision$
+ */
+public class GroupAncestorIndexImplTest {
+    private CacheManager cacheManager;
+    private Cache ancestorCache;
+    private List<IEntityGroup> rootGroups;
+    private Map<IEntityGroup, List<IGroupMember>> groupMembers;
+    private ExecutorService rebuildExecutor;
+    private GroupAncestorIndexImpl groupAncestorIndex;
+    
+    @Before
+    public void setup() {
+        this.cacheManager = CacheManager.create();
+        this.ancestorCache = new Cache("GroupAncestorIndexImplTest.ANCESTORS", 1, false, false, 0, 0);
+        this.cacheManager.addCache(this.ancestorCache);
+        
+        this.rootGroups = new ArrayList<IEntityGroup>();
+        this.groupMembers = new HashMap<IEntityGroup, List<IGroupMember>>();
+        
+        this.groupAncestorIndex = new GroupAncestorIndexImpl() {
+            @Override
+            protected List<IEntityGroup> getRootGroups() throws GroupsException {
+                return rootGroups;
+            }
+        };
+        this.groupAncestorIndex.setAncestorCache(this.ancestorCache);
+        
+        this.rebuildExecutor = mock(ExecutorService.class);
+        this.groupAncestorIndex.setRebuildExecutor(this.rebuildExecutor);
+    }
+    
+    @After
+    public void teardown() {
+        this.cacheManager.removeCache(this.ancestorCache.getName());
+    }
+    
+    @Test
+    public void testAncestorGroupKeys() throws Exception {
+        final IEntityGroup everyone = createRootGroup("local.0");
+        final IEntityGroup students = createGroup("local.1", everyone);
+        final IEntityGroup staff = createGroup("local.2", everyone);
+        final IEntityGroup studentWorkers = createGroup("local.3", students, staff);
+        final IGroupMember person = createEntity("student", studentWorkers);
+        
+        assertEquals(ImmutableSet.of("local.0", "local.1", "local.2", "local.3"), this.groupAncestorIndex.getAncestorGroupKeys(person));
+        assertEquals(ImmutableSet.of("local.0"), this.groupAncestorIndex.getAncestorGroupKeys(staff));
+        assertEquals(ImmutableSet.of(), this.groupAncestorIndex.getAncestorGroupKeys(everyone));
+        assertEquals(ImmutableSet.of("local.0", "local.1", "local.2", "local.3"), this.groupAncestorIndex.getAncestorGroupKeys(person));
+        
+        //All groups were indexed in one pass, entities are not indexed
+        assertEquals(1, this.groupAncestorIndex.getBuildCount());
+        assertEquals(4, this.groupAncestorIndex.getIndexedGroups());
+        assertEquals(5, this.groupAncestorIndex.getIndexedAncestorKeys());
+        assertEquals(0, this.groupAncestorIndex.getUnindexedGroupLookups());
+        verify(person, times(2)).getContainingGroups();
+        verify(staff, times(1)).getContainingGroups();
+        verify(studentWorkers, times(1)).getMembers();
+    }
+    
+    @Test
+    public void testEntityMembershipsNotPinned() throws Exception {
+        final IEntityGroup everyone = createRootGroup("local.0");
+        final IEntityGroup students = createGroup("local.1", everyone);
+        final IEntityGroup staff = createGroup("local.2", everyone);
+        final IGroupMember person = createEntity("student", students);
+        
+        assertEquals(ImmutableSet.of("local.0", "local.1"), this.groupAncestorIndex.getAncestorGroupKeys(person));
+        
+        //A computed membership (e.g. person attributes) changes without any group being updated
+        when(person.getContainingGroups()).thenAnswer(new ContainingGroupsAnswer(staff));
+        assertEquals(ImmutableSet.of("local.0", "local.2"), this.groupAncestorIndex.getAncestorGroupKeys(person));
+        assertEquals(1, this.groupAncestorIndex.getBuildCount());
+    }
+    
+    @Test
+    public void testCyclicGroups() throws Exception {
+        final IEntityGroup first = createRootGroup("local.0");
+        final IEntityGroup second = createGroup("local.1", first);
+        addMember(second, first);
+        final IGroupMember person = createEntity("student", first);
+        
+        assertEquals(ImmutableSet.of("local.0", "local.1"), this.groupAncestorIndex.getAncestorGroupKeys(person));
+        assertEquals(ImmutableSet.of("local.0", "local.1"), this.groupAncestorIndex.getAncestorGroupKeys(second));
+        assertEquals(ImmutableSet.of("local.0", "local.1"), this.groupAncestorIndex.getAncestorGroupKeys(first));
+    }
+    
+    @Test
+    public void testGroupsOutsideRootGroups() throws Exception {
+        final IEntityGroup everyone = createRootGroup("local.0");
+        final IEntityGroup students = createGroup("local.1", everyone);
+        final IEntityGroup external = createGroup("ldap.0");
+        final IEntityGroup externalStudents = createGroup("local.2", external, students);
+        final IEntityGroup orphan = createGroup("local.3");
+        final IEntityGroup orphanChild = createGroup("local.4", orphan);
+        
+        //Parents outside of the root groups are found through the containing groups
+        assertEquals(ImmutableSet.of("local.0", "local.1", "ldap.0"), this.groupAncestorIndex.getAncestorGroupKeys(externalStudents));
+        assertEquals(ImmutableSet.of(), this.groupAncestorIndex.getAncestorGroupKeys(external));
+        assertEquals(4, this.groupAncestorIndex.getIndexedGroups());
+        
+        //Groups not connected to a root group are resolved on every lookup
+        assertEquals(ImmutableSet.of("local.3"), this.groupAncestorIndex.getAncestorGroupKeys(orphanChild));
+        assertEquals(1, this.groupAncestorIndex.getUnindexedGroupLookups());
+        assertEquals(1, this.groupAncestorIndex.getBuildCount());
+    }
+    
+    @Test
+    public void testInvalidateGroupMembers() throws Exception {
+        final CacheEventListener listener = mock(CacheEventListener.class);
+        this.ancestorCache.getCacheEventNotificationService().registerListener(listener);
+        
+        final IEntityGroup everyone = createRootGroup("local.0");
+        final IEntityGroup students = createGroup("local.1", everyone);
+        final IEntityGroup staff = createGroup("local.2");
+        final IGroupMember employee = createEntity("employee", staff);
+        
+        assertEquals(ImmutableSet.of("local.2"), this.groupAncestorIndex.getAncestorGroupKeys(employee));
+        
+        //Adding an entity doesn't change any group's ancestors
+        this.groupAncestorIndex.invalidateGroupMembers(students, Arrays.asList(employee));
+        assertNotNull(this.ancestorCache.get(GroupAncestorIndexImpl.GROUP_ANCESTORS_KEY));
+        
+        //Add staff to everyone, the index is updated instead of rebuilt
+        addMember(everyone, staff);
+        this.groupAncestorIndex.invalidateGroupMembers(everyone, Arrays.asList(staff));
+        assertNotNull(this.ancestorCache.get(GroupAncestorIndexImpl.GROUP_ANCESTORS_KEY));
+        assertEquals(1, this.groupAncestorIndex.getInvalidationCount());
+        assertEquals(1, this.groupAncestorIndex.getUpdateCount());
+        
+        assertEquals(ImmutableSet.of("local.0", "local.2"), this.groupAncestorIndex.getAncestorGroupKeys(employee));
+        assertEquals(1, this.groupAncestorIndex.getBuildCount());
+        verify(this.rebuildExecutor, never()).execute(any(Runnable.class));
+        
+        //Builds and updates are quiet so they don't invalidate other servers, invalidations are not
+        verify(listener, never()).notifyElementPut(any(Ehcache.class), any(Element.class));
+        verify(listener, times(1)).notifyElementRemoved(any(Ehcache.class), any(Element.class));
+    }
+    
+    @Test
+    public void testUpdateRecomputesDescendants() throws Exception {
+        final IEntityGroup everyone = createRootGroup("local.0");
+        final IEntityGroup students = createGroup("local.1", everyone);
+        final IEntityGroup staff = createGroup("local.2", everyone);
+        final IEntityGroup studentWorkers = createGroup("local.3", students);
+        final IEntityGroup tutors = createGroup("local.4", studentWorkers);
+        final IEntityGroup alumni = createGroup("local.5", everyone);
+        final IGroupMember person = createEntity("student", tutors);
+        
+        assertEquals(ImmutableSet.of("local.0", "local.1", "local.3", "local.4"), this.groupAncestorIndex.getAncestorGroupKeys(person));
+        
+        //Move student workers from students to staff
+        moveGroup(studentWorkers, students, staff);
+        this.groupAncestorIndex.invalidateGroupMembers(students, Arrays.asList(studentWorkers));
+        this.groupAncestorIndex.invalidateGroupMembers(staff, Arrays.asList(studentWorkers));
+        
+        assertEquals(ImmutableSet.of("local.0", "local.2", "local.3", "local.4"), this.groupAncestorIndex.getAncestorGroupKeys(person));
+        assertEquals(ImmutableSet.of("local.0", "local.2", "local.3"), this.groupAncestorIndex.getAncestorGroupKeys(tutors));
+        assertEquals(ImmutableSet.of("local.0"), this.groupAncestorIndex.getAncestorGroupKeys(alumni));
+        assertEquals(6, this.groupAncestorIndex.getIndexedGroups());
+        assertEquals(1, this.groupAncestorIndex.getBuildCount());
+        assertEquals(2, this.groupAncestorIndex.getUpdateCount());
+        
+        //Only the parents of the moved group were read again, the groups below it were recomputed from the index
+        verify(studentWorkers, times(3)).getContainingGroups();
+        verify(tutors, times(1)).getContainingGroups();
+        verify(alumni, times(1)).getContainingGroups();
+    }
+    
+    @Test
+    public void testUpdateDeletedGroup() throws Exception {
+        final IEntityGroup everyone = createRootGroup("local.0");
+        final IEntityGroup students = createGroup("local.1", everyone);
+        final IEntityGroup studentWorkers = createGroup("local.2", students);
+        final IGroupMember person = createEntity("student", studentWorkers);
+        
+        assertEquals(ImmutableSet.of("local.0", "local.1", "local.2"), this.groupAncestorIndex.getAncestorGroupKeys(person));
+        assertEquals(3, this.groupAncestorIndex.getIndexedGroups());
+        
+        //Delete students, the deleted group is one of its own changed members
+        this.groupMembers.get(everyone).remove(students);
+        when(studentWorkers.getContainingGroups()).thenAnswer(new ContainingGroupsAnswer());
+        this.groupAncestorIndex.invalidateGroupMembers(students, Arrays.asList(studentWorkers, students));
+        
+        assertEquals(ImmutableSet.of("local.2"), this.groupAncestorIndex.getAncestorGroupKeys(person));
+        assertEquals(ImmutableSet.of(), this.groupAncestorIndex.getAncestorGroupKeys(studentWorkers));
+        assertEquals(2, this.groupAncestorIndex.getIndexedGroups());
+        assertEquals(1, this.groupAncestorIndex.getBuildCount());
+    }
+    
+    @Test
+    public void testRebuildInBackground() throws Exception {
+        final IEntityGroup everyone = createRootGroup("local.0");
+        final IEntityGroup students = createGroup("local.1", everyone);
+        final IEntityGroup staff = createGroup("local.2", everyone);
+        final IEntityGroup studentWorkers = createGroup("local.3", students);
+        
+        assertEquals(ImmutableSet.of("local.0", "local.1"), this.groupAncestorIndex.getAncestorGroupKeys(studentWorkers));
+        
+        //A group store finds out about a membership change outside of the group services
+        moveGroup(studentWorkers, students, staff);
+        this.groupAncestorIndex.invalidateGroupAncestors();
+        assertNull(this.ancestorCache.get(GroupAncestorIndexImpl.GROUP_ANCESTORS_KEY));
+        
+        //Lookups keep using the previous index while a single rebuild is queued
+        assertEquals(ImmutableSet.of("local.0", "local.1"), this.groupAncestorIndex.getAncestorGroupKeys(studentWorkers));
+        assertEquals(ImmutableSet.of("local.0"), this.groupAncestorIndex.getAncestorGroupKeys(staff));
+        assertEquals(2, this.groupAncestorIndex.getStaleLookups());
+        assertEquals(1, this.groupAncestorIndex.getBuildCount());
+        
+        final ArgumentCaptor<Runnable> rebuild = ArgumentCaptor.forClass(Runnable.class);
+        verify(this.rebuildExecutor, times(1)).execute(rebuild.capture());
+        rebuild.getValue().run();
+        
+        assertNotNull(this.ancestorCache.get(GroupAncestorIndexImpl.GROUP_ANCESTORS_KEY));
+        assertEquals(ImmutableSet.of("local.0", "local.2"), this.groupAncestorIndex.getAncestorGroupKeys(studentWorkers));
+        assertEquals(2, this.groupAncestorIndex.getBuildCount());
+        assertEquals(2, this.groupAncestorIndex.getStaleLookups());
+        verify(this.rebuildExecutor, times(1)).execute(any(Runnable.class));
+    }
+    
+    @Test
+    public void testRebuildDiscardedWhenInvalidated() throws Exception {
+        final IEntityGroup everyone = createRootGroup("local.0");
+        final IEntityGroup students = createGroup("local.1", everyone);
+        
+        assertEquals(ImmutableSet.of("local.0"), this.groupAncestorIndex.getAncestorGroupKeys(students));
+        this.groupAncestorIndex.invalidateGroupAncestors();
+        
+        final ArgumentCaptor<Runnable> rebuild = ArgumentCaptor.forClass(Runnable.class);
+        verify(this.rebuildExecutor, times(1)).execute(rebuild.capture());
+        
+        //Another server invalidates the index while the rebuild is reading the groups
+        when(everyone.getContainingGroups()).thenAnswer(new Answer<Iterator<IEntityGroup>>() {
+            @Override
+            public Iterator<IEntityGroup> answer(InvocationOnMock invocation) throws Throwable {
+                ancestorCache.remove(GroupAncestorIndexImpl.GROUP_ANCESTORS_KEY);
+                return new ArrayList<IEntityGroup>().iterator();
+            }
+        });
+        rebuild.getValue().run();
+        
+        //The possibly stale rebuild isn't stored and the next lookup queues another
+        assertNull(this.ancestorCache.get(GroupAncestorIndexImpl.GROUP_ANCESTORS_KEY));
+        assertEquals(ImmutableSet.of("local.0"), this.groupAncestorIndex.getAncestorGroupKeys(students));
+        verify(this.rebuildExecutor, times(2)).execute(any(Runnable.class));
+    }
+    
+    private IEntityGroup createRootGroup(String key) throws GroupsException {
+        final IEntityGroup group = createGroup(key);
+        this.rootGroups.add(group);
+        return group;
+    }
+    
+    private IEntityGroup createGroup(String key, IEntityGroup... parents) throws GroupsException {
+        final IEntityGroup group = mock(IEntityGroup.class);
+        when(group.getKey()).thenReturn(key);
+        when(group.isGroup()).thenReturn(true);
+        when(group.getEntityIdentifier()).thenReturn(new EntityIdentifier(key, IEntityGroup.class));
+        
+        final List<IGroupMember> members = new ArrayList<IGroupMember>();
+        this.groupMembers.put(group, members);
+        when(group.getMembers()).thenAnswer(new Answer<Iterator<IGroupMember>>() {
+            @Override
+            public Iterator<IGroupMember> answer(InvocationOnMock invocation) throws Throwable {
+                return new ArrayList<IGroupMember>(members).iterator();
+            }
+        });
+        
+        setParents(group, parents);
+        return group;
+    }
+    
+    private IGroupMember createEntity(String key, IEntityGroup... parents) throws GroupsException {
+        final IGroupMember entity = mock(IEntity.class);
+        when(entity.getKey()).thenReturn(key);
+        when(entity.getEntityIdentifier()).thenReturn(new EntityIdentifier(key, IPerson.class));
+        setParents(entity, parents);
+        return entity;
+    }
+    
+    private void setParents(IGroupMember member, IEntityGroup... parents) throws GroupsException {
+        for (final IEntityGroup parent : parents) {
+            this.groupMembers.get(parent).add(member);
+        }
+        when(member.getContainingGroups()).thenAnswer(new ContainingGroupsAnswer(parents));
+    }
+    
+    private void moveGroup(IEntityGroup group, IEntityGroup from, IEntityGroup to) throws GroupsException {
+        this.groupMembers.get(from).remove(group);
+        this.groupMembers.get(to).add(group);
+        when(group.getContainingGroups()).thenAnswer(new ContainingGroupsAnswer(to));
+    }
+    
+    private void addMember(IEntityGroup group, IEntityGroup member) throws GroupsException {
+        this.groupMembers.get(group).add(member);
+        
+        final List<IEntityGroup> parents = new ArrayList<IEntityGroup>();
+        for (final Iterator<?> itr = member.getContainingGroups(); itr.hasNext();) {
+            parents.add((IEntityGroup) itr.next());
+        }
+        parents.add(group);
+        when(member.getContainingGroups()).thenAnswer(new ContainingGroupsAnswer(parents.toArray(new IEntityGroup[parents.size()])));
+    }
+    
+    private static final class ContainingGroupsAnswer implements Answer<Iterator<IEntityGroup>> {
+        private final IEntityGroup[] parents;
+        
+        public ContainingGroupsAnswer(IEntityGroup... parents) {
+            this.parents = parents;
+        }
+
+        @Override
+        public Iterator<IEntityGroup> answer(InvocationOnMock invocation) throws Throwable {
+            return Arrays.asList(this.parents).iterator();
+        }
+    }
+}
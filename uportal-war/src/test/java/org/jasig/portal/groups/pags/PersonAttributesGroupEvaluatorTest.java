@@ -0,0 +1,174 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.groups.pags;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jasig.portal.groups.pags.PersonAttributesGroupStore.GroupDefinition;
+import org.jasig.portal.groups.pags.PersonAttributesGroupStore.TestGroup;
+import org.jasig.portal.groups.pags.testers.RegexTester;
+import org.jasig.portal.groups.pags.testers.StringEqualsTester;
+import org.jasig.portal.security.IPerson;
+import org.jasig.portal.security.provider.PersonImpl;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @version $Revision$
+ */
+public class PersonAttributesGroupEvaluatorTest {
+    private Map<String, GroupDefinition> groupDefinitions;
+    private PersonAttributesGroupEvaluator groupEvaluator;
+    
+    @Before
+    public void setup() {
+        this.groupDefinitions = new LinkedHashMap<String, GroupDefinition>();
+        
+        final GroupDefinition root = this.createGroup("pags_root");
+        root.addMember("students");
+        root.addMember("staff");
+        
+        final GroupDefinition students = this.createGroup("students", 
+                this.createTestGroup(new StringEqualsTester("affiliation", "student")));
+        students.addMember("math_students");
+        
+        this.createGroup("math_students", 
+                this.createTestGroup(new StringEqualsTester("affiliation", "student"), new RegexTester("major", "math.*")));
+        
+        final GroupDefinition staff = this.createGroup("staff", 
+                this.createTestGroup(new StringEqualsTester("affiliation", "staff")),
+                this.createTestGroup(new StringEqualsTester("affiliation", "faculty")));
+        staff.addMember("math_staff");
+        
+        this.createGroup("math_staff", 
+                this.createTestGroup(new RegexTester("major", "math.*")));
+        
+        this.groupEvaluator = new PersonAttributesGroupEvaluator(this.groupDefinitions);
+    }
+    
+    @Test
+    public void testSharedTests() {
+        assertEquals(4, this.groupEvaluator.getTesterCount());
+        assertEquals(5, this.groupEvaluator.getTestGroupCount());
+    }
+    
+    @Test
+    public void testEvaluate() {
+        final IPerson person = this.createPerson("student", "mathematics");
+        final BitSet memberships = this.groupEvaluator.evaluate(person);
+        
+        assertFalse(this.groupEvaluator.isMember(memberships, "pags_root"));
+        assertTrue(this.groupEvaluator.isMember(memberships, "students"));
+        assertTrue(this.groupEvaluator.isMember(memberships, "math_students"));
+        assertFalse(this.groupEvaluator.isMember(memberships, "staff"));
+        //Passes its own tests but not the tests of the parent group
+        assertFalse(this.groupEvaluator.isMember(memberships, "math_staff"));
+        assertFalse(this.groupEvaluator.isMember(memberships, "missing"));
+        
+        final BitSet facultyMemberships = this.groupEvaluator.evaluate(this.createPerson("faculty", "mathematics"));
+        assertFalse(this.groupEvaluator.isMember(facultyMemberships, "students"));
+        assertFalse(this.groupEvaluator.isMember(facultyMemberships, "math_students"));
+        assertTrue(this.groupEvaluator.isMember(facultyMemberships, "staff"));
+        assertTrue(this.groupEvaluator.isMember(facultyMemberships, "math_staff"));
+    }
+    
+    @Test
+    public void testMatchesGroupDefinitions() {
+        for (final String affiliation : Arrays.asList("student", "staff", "faculty", "guest")) {
+            for (final String major : Arrays.asList("mathematics", "history")) {
+                final IPerson person = this.createPerson(affiliation, major);
+                final BitSet memberships = this.groupEvaluator.evaluate(person);
+                
+                for (final GroupDefinition groupDefinition : this.groupDefinitions.values()) {
+                    final String groupKey = groupDefinition.getKey();
+                    assertEquals(affiliation + "/" + major + " in " + groupKey, 
+                            this.isMember(groupDefinition, person), this.groupEvaluator.isMember(memberships, groupKey));
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testAttributesVersion() {
+        final Map<String, List<Object>> attributes = new HashMap<String, List<Object>>();
+        attributes.put("affiliation", Arrays.<Object>asList("student"));
+        attributes.put("major", Arrays.<Object>asList("mathematics"));
+        attributes.put("mail", Arrays.<Object>asList("student@example.edu"));
+        
+        final Map<String, List<Object>> expected = new HashMap<String, List<Object>>();
+        expected.put("affiliation", Arrays.<Object>asList("student"));
+        expected.put("major", Arrays.<Object>asList("mathematics"));
+        
+        assertEquals(expected, this.groupEvaluator.getAttributesVersion(attributes));
+        assertTrue(this.groupEvaluator.getAttributesVersion(null).isEmpty());
+    }
+    
+    /**
+     * Membership using the group definitions directly
+     */
+    private boolean isMember(GroupDefinition groupDefinition, IPerson person) {
+        if (!groupDefinition.contains(person)) {
+            return false;
+        }
+        
+        for (final GroupDefinition parent : this.groupDefinitions.values()) {
+            if (parent.hasMember(groupDefinition.getKey()) && !parent.test(person)) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private IPerson createPerson(String affiliation, String major) {
+        final IPerson person = new PersonImpl();
+        person.setUserName(affiliation + "_" + major);
+        person.setAttribute("affiliation", affiliation);
+        person.setAttribute("major", major);
+        return person;
+    }
+    
+    private GroupDefinition createGroup(String key, TestGroup... testGroups) {
+        final GroupDefinition groupDefinition = new GroupDefinition();
+        groupDefinition.setKey(key);
+        groupDefinition.setName(key);
+        for (final TestGroup testGroup : testGroups) {
+            groupDefinition.addTestGroup(testGroup);
+        }
+        this.groupDefinitions.put(key, groupDefinition);
+        return groupDefinition;
+    }
+    
+    private TestGroup createTestGroup(IPersonTester... testers) {
+        final TestGroup testGroup = new TestGroup();
+        for (final IPersonTester tester : testers) {
+            testGroup.addTest(tester);
+        }
+        return testGroup;
+    }
+}
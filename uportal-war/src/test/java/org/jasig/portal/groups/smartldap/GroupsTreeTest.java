@@ -0,0 +1,122 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.groups.smartldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.jasig.portal.groups.IEntityGroup;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * @version $Revision$
+ */
+public class GroupsTreeTest {
+    private final IEntityGroup root = createGroup("ROOT", "Root");
+    
+    @Test
+    public void testBuildTree() throws Exception {
+        final LdapRecord staff = createRecord("cn=staff", "Staff", "cn=faculty", "cn=unknown");
+        final LdapRecord faculty = createRecord("cn=faculty", "Faculty");
+        final LdapRecord students = createRecord("cn=students", "Students");
+        
+        final GroupsTree tree = new GroupsTree(root, Arrays.asList(staff, faculty, students), 1000);
+        
+        assertEquals(ImmutableSet.of("ROOT", "cn=staff", "cn=faculty", "cn=students"), tree.getGroups().keySet());
+        assertEquals(3, tree.getRecords().size());
+        assertEquals(Arrays.asList("cn=staff"), tree.getParents().get("cn=faculty"));
+        assertEquals(Arrays.asList("ROOT"), tree.getParents().get("cn=staff"));
+        assertEquals(Arrays.asList("cn=faculty"), tree.getChildren().get("cn=staff"));
+        assertEquals(ImmutableSet.of("cn=staff", "cn=students"), ImmutableSet.copyOf(tree.getChildren().get("ROOT")));
+        assertEquals(Arrays.asList("cn=students"), tree.getKeysByUpperCaseName().get("STUDENTS"));
+        assertEquals(Arrays.asList("ROOT"), tree.getKeysByUpperCaseName().get("ROOT"));
+        assertEquals(1000, tree.getFullRefreshTime());
+        assertEquals(1000, tree.getRefreshTime());
+    }
+    
+    @Test
+    public void testUnknownChildDoesNotHideLaterChildren() throws Exception {
+        final LdapRecord staff = createRecord("cn=staff", "Staff", "cn=unknown", "cn=faculty");
+        final LdapRecord faculty = createRecord("cn=faculty", "Faculty");
+        
+        final GroupsTree tree = new GroupsTree(root, Arrays.asList(staff, faculty), 1000);
+        
+        assertEquals(Arrays.asList("cn=staff"), tree.getParents().get("cn=faculty"));
+        assertEquals(Arrays.asList("cn=faculty"), tree.getChildren().get("cn=staff"));
+    }
+    
+    @Test
+    public void testApplyChanges() throws Exception {
+        final LdapRecord staff = createRecord("cn=staff", "Staff", "cn=faculty");
+        final LdapRecord faculty = createRecord("cn=faculty", "Faculty");
+        final LdapRecord students = createRecord("cn=students", "Students");
+        final GroupsTree tree = new GroupsTree(root, Arrays.asList(staff, faculty, students), 1000);
+        
+        //Faculty moves from staff to a new employees group, students is deleted
+        final LdapRecord modifiedStaff = createRecord("cn=staff", "Staff");
+        final LdapRecord employees = createRecord("cn=employees", "Employees", "cn=faculty");
+        final GroupsTree updated = tree.applyChanges(Arrays.asList(modifiedStaff, employees), 
+                ImmutableSet.of("cn=staff", "cn=faculty", "cn=employees"), 2000);
+        
+        assertEquals(ImmutableSet.of("ROOT", "cn=staff", "cn=faculty", "cn=employees"), updated.getGroups().keySet());
+        assertSame(modifiedStaff.getGroup(), updated.getGroups().get("cn=staff"));
+        assertSame(faculty.getGroup(), updated.getGroups().get("cn=faculty"));
+        assertEquals(Arrays.asList("cn=employees"), updated.getParents().get("cn=faculty"));
+        assertEquals(Collections.emptyList(), updated.getChildren().get("cn=staff"));
+        assertEquals(ImmutableSet.of("cn=staff", "cn=employees"), ImmutableSet.copyOf(updated.getChildren().get("ROOT")));
+        assertNull(updated.getKeysByUpperCaseName().get("STUDENTS"));
+        assertEquals(1000, updated.getFullRefreshTime());
+        assertEquals(2000, updated.getRefreshTime());
+        
+        //The original tree is unchanged
+        assertEquals(ImmutableSet.of("ROOT", "cn=staff", "cn=faculty", "cn=students"), tree.getGroups().keySet());
+        assertEquals(Arrays.asList("cn=staff"), tree.getParents().get("cn=faculty"));
+        assertFalse(tree.getGroups().containsKey("cn=employees"));
+    }
+    
+    @Test(expected=UnsupportedOperationException.class)
+    public void testTreeIsImmutable() throws Exception {
+        final GroupsTree tree = new GroupsTree(root, Arrays.asList(createRecord("cn=staff", "Staff")), 1000);
+        tree.getChildren().get("ROOT").add("cn=faculty");
+    }
+    
+    private LdapRecord createRecord(String key, String name, String... children) {
+        final List<String> keysOfChildren = Arrays.asList(children);
+        return new LdapRecord(createGroup(key, name), keysOfChildren);
+    }
+    
+    private IEntityGroup createGroup(String key, String name) {
+        final IEntityGroup group = mock(IEntityGroup.class);
+        when(group.getKey()).thenReturn(key);
+        when(group.getLocalKey()).thenReturn(key);
+        when(group.getName()).thenReturn(name);
+        return group;
+    }
+}
@@ -0,0 +1,239 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.groups.smartldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+
+import org.jasig.portal.groups.IEntityGroup;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.ldap.SizeLimitExceededException;
+import org.springframework.ldap.core.AttributesMapper;
+import org.springframework.ldap.core.support.LdapContextSource;
+
+import com.google.common.collect.ImmutableSet;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
+
+/**
+ * Runs {@link PagedLdapSearcher} and the incremental groups tree refresh against an 
+ * in-memory LDAP server that, like Active Directory, limits the entries returned per search.
+ * 
+ * @version $Revision$
+ */
+public class PagedLdapSearcherTest {
+    private static final String BASE_DN = "dc=example,dc=edu";
+    private static final String GROUPS_DN = "ou=groups," + BASE_DN;
+    private static final String FILTER = "(objectClass=groupOfNames)";
+    private static final int MAX_SIZE_LIMIT = 3;
+    
+    private static final String STAFF = "cn=staff," + GROUPS_DN;
+    private static final String FACULTY = "cn=faculty," + GROUPS_DN;
+    private static final String ADMINS = "cn=admins," + GROUPS_DN;
+    private static final String STUDENTS = "cn=students," + GROUPS_DN;
+    private static final String ALUMNI = "cn=alumni," + GROUPS_DN;
+    private static final String EMPLOYEES = "cn=employees," + GROUPS_DN;
+    private static final String PERSON = "uid=jdoe,ou=people," + BASE_DN;
+    
+    private final AtomicInteger pagedSearches = new AtomicInteger();
+    private final AttributesMapper attributesMapper = new GroupAttributesMapper();
+    private final IEntityGroup root = mock(IEntityGroup.class);
+    private InMemoryDirectoryServer server;
+    private LdapContextSource contextSource;
+    
+    @Before
+    public void setUp() throws Exception {
+        final InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+        config.setMaxSizeLimit(MAX_SIZE_LIMIT);
+        config.addInMemoryOperationInterceptor(new InMemoryOperationInterceptor() {
+            @Override
+            public void processSearchRequest(InMemoryInterceptedSearchRequest request) {
+                if (request.getRequest().hasControl(SimplePagedResultsControl.PAGED_RESULTS_OID)) {
+                    pagedSearches.incrementAndGet();
+                }
+            }
+        });
+        
+        server = new InMemoryDirectoryServer(config);
+        server.add("dn: " + BASE_DN, "objectClass: domain", "dc: example");
+        server.add("dn: " + GROUPS_DN, "objectClass: organizationalUnit", "ou: groups");
+        addGroup(STAFF, FACULTY, ADMINS, PERSON);
+        addGroup(FACULTY, PERSON);
+        addGroup(ADMINS, PERSON);
+        addGroup(STUDENTS, PERSON);
+        addGroup(ALUMNI, PERSON);
+        server.startListening();
+        
+        contextSource = new LdapContextSource();
+        contextSource.setUrl("ldap://localhost:" + server.getListenPort());
+        contextSource.setAnonymousReadOnly(true);
+        contextSource.afterPropertiesSet();
+        
+        when(root.getKey()).thenReturn("ROOT");
+        when(root.getLocalKey()).thenReturn("ROOT");
+        when(root.getName()).thenReturn("Root");
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        server.shutDown(true);
+    }
+    
+    @Test
+    public void testPagedSearch() throws Exception {
+        final PagedLdapSearcher searcher = new PagedLdapSearcher(contextSource, BASE_DN, 2);
+        
+        final Set<LdapRecord> records = searcher.searchGroups(FILTER, attributesMapper);
+        
+        assertEquals(ImmutableSet.of(STAFF, FACULTY, ADMINS, STUDENTS, ALUMNI), getKeys(records));
+        assertEquals(3, pagedSearches.get());
+    }
+    
+    @Test
+    public void testUnpagedSearchHitsSizeLimit() throws Exception {
+        final PagedLdapSearcher searcher = new PagedLdapSearcher(contextSource, BASE_DN, 0);
+        
+        try {
+            searcher.searchGroups(FILTER, attributesMapper);
+            fail("A search without paging should be cut off by the server's size limit");
+        }
+        catch (SizeLimitExceededException e) {
+            //expected
+        }
+        assertEquals(0, pagedSearches.get());
+    }
+    
+    @Test
+    public void testSearchGroupKeys() throws Exception {
+        final PagedLdapSearcher searcher = new PagedLdapSearcher(contextSource, BASE_DN, 2);
+        
+        final Set<String> keys = searcher.searchGroupKeys(FILTER, "distinguishedName");
+        
+        assertEquals(ImmutableSet.of(STAFF, FACULTY, ADMINS, STUDENTS, ALUMNI), keys);
+        assertEquals(3, pagedSearches.get());
+    }
+    
+    @Test
+    public void testIncrementalRefresh() throws Exception {
+        final PagedLdapSearcher searcher = new PagedLdapSearcher(contextSource, BASE_DN, 2);
+        final GroupsTree tree = new GroupsTree(root, searcher.searchGroups(FILTER, attributesMapper), 1000);
+        assertEquals(Arrays.asList(STAFF), tree.getParents().get(ADMINS));
+        
+        //modifyTimestamp has a resolution of one second, make the changes in a later second than the adds
+        final long since = (System.currentTimeMillis() / 1000 + 1) * 1000;
+        Thread.sleep(since - System.currentTimeMillis());
+        
+        //Admins moves from staff to a new employees group, alumni is deleted
+        server.modify(STAFF, new Modification(ModificationType.DELETE, "member", ADMINS));
+        addGroup(EMPLOYEES, ADMINS);
+        server.delete(ALUMNI);
+        
+        final Set<LdapRecord> changedRecords = searcher.searchGroupsModifiedSince(FILTER, "modifyTimestamp", since, attributesMapper);
+        final Set<String> currentKeys = searcher.searchGroupKeys(FILTER, "distinguishedName");
+        
+        assertEquals(ImmutableSet.of(STAFF, EMPLOYEES), getKeys(changedRecords));
+        assertEquals(ImmutableSet.of(STAFF, FACULTY, ADMINS, STUDENTS, EMPLOYEES), currentKeys);
+        
+        final GroupsTree updated = tree.applyChanges(changedRecords, currentKeys, 2000);
+        
+        assertEquals(ImmutableSet.of("ROOT", STAFF, FACULTY, ADMINS, STUDENTS, EMPLOYEES), updated.getGroups().keySet());
+        assertEquals(Arrays.asList(EMPLOYEES), updated.getParents().get(ADMINS));
+        assertEquals(Arrays.asList(FACULTY), updated.getChildren().get(STAFF));
+        assertFalse(updated.getKeysByUpperCaseName().containsKey("ALUMNI"));
+        
+        //Unchanged groups keep their instances, modified groups are replaced
+        assertSame(tree.getGroups().get(FACULTY), updated.getGroups().get(FACULTY));
+        assertNotSame(tree.getGroups().get(STAFF), updated.getGroups().get(STAFF));
+        assertEquals(1000, updated.getFullRefreshTime());
+        assertEquals(2000, updated.getRefreshTime());
+    }
+    
+    private void addGroup(String dn, String... members) throws Exception {
+        final String cn = dn.substring(3, dn.indexOf(','));
+        final String[] ldif = new String[members.length + 6];
+        ldif[0] = "dn: " + dn;
+        ldif[1] = "objectClass: top";
+        ldif[2] = "objectClass: groupOfNames";
+        ldif[3] = "objectClass: extensibleObject";
+        ldif[4] = "cn: " + cn;
+        ldif[5] = "distinguishedName: " + dn;
+        for (int i = 0; i < members.length; i++) {
+            ldif[i + 6] = "member: " + members[i];
+        }
+        server.add(ldif);
+    }
+    
+    /**
+     * Reads the same attributes {@link SimpleAttributesMapper} is configured with but creates mock groups, 
+     * the groups SimpleAttributesMapper creates need the portal's application context
+     */
+    private static final class GroupAttributesMapper implements AttributesMapper {
+        public Object mapFromAttributes(Attributes attributes) throws NamingException {
+            final String key = (String) attributes.get("distinguishedName").get();
+            final IEntityGroup group = mock(IEntityGroup.class);
+            when(group.getKey()).thenReturn(key);
+            when(group.getLocalKey()).thenReturn(key);
+            when(group.getName()).thenReturn((String) attributes.get("cn").get());
+            
+            final List<String> members = new ArrayList<String>();
+            final Attribute member = attributes.get("member");
+            if (member != null) {
+                for (final NamingEnumeration<?> values = member.getAll(); values.hasMore(); ) {
+                    members.add((String) values.next());
+                }
+            }
+            return new LdapRecord(group, members);
+        }
+    }
+    
+    private Set<String> getKeys(Set<LdapRecord> records) {
+        final Set<String> keys = new HashSet<String>();
+        for (final LdapRecord record : records) {
+            keys.add(record.getGroup().getKey());
+        }
+        return keys;
+    }
+}
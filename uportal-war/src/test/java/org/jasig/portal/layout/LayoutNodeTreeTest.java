@@ -0,0 +1,293 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.layout;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.XMLEvent;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stax.StAXSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.namespace.QName;
+
+import org.custommonkey.xmlunit.Diff;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.jasig.portal.layout.dlm.Constants;
+import org.jasig.portal.layout.dlm.DistributedUserLayout;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.xml.FixedXMLEventStreamReader;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * @version $Revision$
+ */
+public class LayoutNodeTreeTest {
+    private static final String[] NODE_IDS = { "s1", "s2", "n3", "s4", "s5", "n6", "n7", "s8", "s9", "n10", "missing" };
+    private static final String[] FNAMES = { "header-portlet", "welcome", "news", "no-id", "missing" };
+    
+    private Document document;
+    private LayoutNodeTree layoutNodeTree;
+    
+    @Before
+    public void setup() throws Exception {
+        final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        final DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
+        
+        final InputStream documentStream = this.getClass().getResourceAsStream("layoutNodeTree.xml");
+        this.document = documentBuilder.parse(documentStream);
+        
+        //DLM marks the ID attributes of the layout, the fixture has no DTD to do it
+        final NodeList elements = this.document.getElementsByTagName("*");
+        for (int i = 0; i < elements.getLength(); i++) {
+            final Element element = (Element) elements.item(i);
+            if (element.hasAttribute("ID")) {
+                element.setIdAttribute("ID", true);
+            }
+        }
+        
+        this.layoutNodeTree = LayoutNodeTree.build(this.document, 0);
+    }
+    
+    @Test
+    public void testNodeIndex() throws Exception {
+        assertEquals(0, this.layoutNodeTree.getLayoutVersion());
+        
+        assertTrue(this.layoutNodeTree.containsNode("s1"));
+        assertTrue(this.layoutNodeTree.containsNode("n10"));
+        assertFalse(this.layoutNodeTree.containsNode("tLayout"));
+        assertFalse(this.layoutNodeTree.containsNode("missing"));
+        
+        assertNull(this.layoutNodeTree.getParentId("s1"));
+        assertEquals("s1", this.layoutNodeTree.getParentId("s4"));
+        assertEquals("s9", this.layoutNodeTree.getParentId("n10"));
+        assertNull(this.layoutNodeTree.getParentId("missing"));
+    }
+    
+    @Test
+    public void testSubscribeId() throws Exception {
+        assertEquals("n3", this.layoutNodeTree.getSubscribeId("header-portlet"));
+        assertEquals("n7", this.layoutNodeTree.getSubscribeId("news"));
+        assertNull(this.layoutNodeTree.getSubscribeId("no-id"));
+        assertNull(this.layoutNodeTree.getSubscribeId("missing"));
+        
+        assertEquals("n7", this.layoutNodeTree.getSubscribeId("s1", "news"));
+        assertEquals("n7", this.layoutNodeTree.getSubscribeId("s4", "news"));
+        assertEquals("n10", this.layoutNodeTree.getSubscribeId("s8", "news"));
+        assertEquals("n10", this.layoutNodeTree.getSubscribeId("s9", "news"));
+        assertNull(this.layoutNodeTree.getSubscribeId("s2", "news"));
+        assertNull(this.layoutNodeTree.getSubscribeId("n7", "news"));
+    }
+    
+    @Test
+    public void testTabId() throws Exception {
+        assertNull(this.layoutNodeTree.getTabId("s1"));
+        assertEquals("s2", this.layoutNodeTree.getTabId("n3"));
+        assertEquals("s4", this.layoutNodeTree.getTabId("s4"));
+        assertEquals("s4", this.layoutNodeTree.getTabId("n7"));
+        assertEquals("s8", this.layoutNodeTree.getTabId("n10"));
+        assertNull(this.layoutNodeTree.getTabId("missing"));
+    }
+    
+    @Test
+    public void testMatchesDocumentResolvers() throws Exception {
+        for (final String nodeId : NODE_IDS) {
+            final INodeIdResolver resolver = new PortletTabIdResolver(nodeId);
+            assertEquals(nodeId, resolver.traverseDocument(this.document), resolver.traverseLayoutNodeTree(this.layoutNodeTree));
+        }
+        
+        for (final String fname : FNAMES) {
+            final INodeIdResolver resolver = new PortletSubscribeIdResolver(fname);
+            assertEquals(fname, resolver.traverseDocument(this.document), resolver.traverseLayoutNodeTree(this.layoutNodeTree));
+        }
+    }
+    
+    @Test
+    public void testSharedLayoutSnapshot() throws Exception {
+        //The layout is cached once per owner and shared by all of the owner's sessions
+        final DistributedUserLayout userLayout = new DistributedUserLayout(this.document);
+        
+        final LayoutNodeTree snapshot = userLayout.getLayoutNodeTree();
+        assertSame(snapshot, userLayout.getLayoutNodeTree());
+        assertEquals("n7", snapshot.getSubscribeId("news"));
+        
+        //Remove n7 as another session would, the modification has to be visible to every session
+        final NodeList channels = this.document.getElementsByTagName("channel");
+        for (int i = 0; i < channels.getLength(); i++) {
+            final Element channel = (Element) channels.item(i);
+            if ("n7".equals(channel.getAttribute("ID"))) {
+                channel.getParentNode().removeChild(channel);
+                break;
+            }
+        }
+        userLayout.layoutModified();
+        
+        final LayoutNodeTree modifiedSnapshot = userLayout.getLayoutNodeTree();
+        assertFalse(snapshot == modifiedSnapshot);
+        assertFalse(modifiedSnapshot.containsNode("n7"));
+        assertEquals("n10", modifiedSnapshot.getSubscribeId("news"));
+        assertSame(modifiedSnapshot, userLayout.getLayoutNodeTree());
+    }
+    
+    @Test
+    public void testEventsMatchDocument() throws Exception {
+        assertSame(this.layoutNodeTree.getEvents(), this.layoutNodeTree.getEvents());
+        this.assertMatchesDocument(this.layoutNodeTree);
+    }
+    
+    @Test
+    public void testUpdateMovedNode() throws Exception {
+        //Move n7 in front of n10 in the other tab
+        final Element n7 = this.document.getElementById("n7");
+        this.document.getElementById("s9").insertBefore(n7, this.document.getElementById("n10"));
+        
+        final LayoutNodeTree updatedTree = this.layoutNodeTree.update(n7);
+        assertEquals("s9", updatedTree.getParentId("n7"));
+        assertEquals("s8", updatedTree.getTabId("n7"));
+        assertEquals("n7", updatedTree.getSubscribeId("s8", "news"));
+        assertNull(updatedTree.getSubscribeId("s4", "news"));
+        this.assertMatchesDocument(updatedTree);
+        
+        //The original tree is not modified, untouched folders and siblings are shared
+        assertEquals("s5", this.layoutNodeTree.getParentId("n7"));
+        assertEquals("n7", this.layoutNodeTree.getSubscribeId("s4", "news"));
+        assertSame(getStartElement(this.layoutNodeTree, "n3"), getStartElement(updatedTree, "n3"));
+        assertSame(getStartElement(this.layoutNodeTree, "n6"), getStartElement(updatedTree, "n6"));
+        assertSame(getStartElement(this.layoutNodeTree, "n10"), getStartElement(updatedTree, "n10"));
+    }
+    
+    @Test
+    public void testUpdateAddedNode() throws Exception {
+        final Element channel = this.document.createElement("channel");
+        channel.setAttribute("ID", "n11");
+        channel.setAttribute("fname", "weather");
+        channel.setAttributeNS(Constants.NS_URI, Constants.ATT_ORIGIN, "u1l1n1");
+        this.document.getElementById("s5").insertBefore(channel, this.document.getElementById("n6"));
+        channel.setIdAttribute("ID", true);
+        
+        final LayoutNodeTree updatedTree = this.layoutNodeTree.update(channel);
+        assertEquals("s5", updatedTree.getParentId("n11"));
+        assertEquals("n11", updatedTree.getSubscribeId("weather"));
+        assertEquals(3, updatedTree.getChildIds("s5").size());
+        assertEquals("n11", updatedTree.getChildIds("s5").get(0));
+        this.assertMatchesDocument(updatedTree);
+        
+        assertFalse(this.layoutNodeTree.containsNode("n11"));
+    }
+    
+    @Test
+    public void testUpdateModifiedNode() throws Exception {
+        final Element folder = this.document.getElementById("s8");
+        folder.setAttribute("name", "Research");
+        
+        final LayoutNodeTree updatedTree = this.layoutNodeTree.update(folder);
+        assertEquals("Research", updatedTree.getAttribute("s8", new QName("name")));
+        assertEquals("Academics", this.layoutNodeTree.getAttribute("s8", new QName("name")));
+        assertEquals("n10", updatedTree.getSubscribeId("s8", "news"));
+        this.assertMatchesDocument(updatedTree);
+    }
+    
+    @Test
+    public void testRemoveNode() throws Exception {
+        final Element n7 = this.document.getElementById("n7");
+        n7.getParentNode().removeChild(n7);
+        
+        final LayoutNodeTree updatedTree = this.layoutNodeTree.remove("n7");
+        assertFalse(updatedTree.containsNode("n7"));
+        assertEquals("n10", updatedTree.getSubscribeId("news"));
+        this.assertMatchesDocument(updatedTree);
+        
+        assertTrue(this.layoutNodeTree.containsNode("n7"));
+        assertNull(updatedTree.remove("n7"));
+    }
+    
+    @Test
+    public void testNodeUpdatedInUserLayout() throws Exception {
+        final DistributedUserLayout userLayout = new DistributedUserLayout(this.document);
+        final LayoutNodeTree layoutNodeTree = userLayout.getLayoutNodeTree();
+        
+        final Element n6 = this.document.getElementById("n6");
+        n6.setAttribute("hidden", "true");
+        userLayout.nodeUpdated(n6);
+        
+        final LayoutNodeTree updatedTree = userLayout.getLayoutNodeTree();
+        assertFalse(layoutNodeTree == updatedTree);
+        assertEquals(layoutNodeTree.getLayoutVersion(), updatedTree.getLayoutVersion());
+        assertEquals("true", updatedTree.getAttribute("n6", new QName("hidden")));
+        
+        //A node the tree can't place causes a rebuild from the document
+        userLayout.nodeRemoved("missing");
+        assertFalse(updatedTree.getLayoutVersion() == userLayout.getLayoutNodeTree().getLayoutVersion());
+        assertEquals("true", userLayout.getLayoutNodeTree().getAttribute("n6", new QName("hidden")));
+    }
+    
+    protected void assertMatchesDocument(LayoutNodeTree tree) throws Exception {
+        final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+        
+        final StringWriter expected = new StringWriter();
+        transformerFactory.newTransformer().transform(new DOMSource(this.document), new StreamResult(expected));
+        
+        //Serialize the events directly and through a transformer the way XSLTComponent reads them
+        final StringWriter actual = new StringWriter();
+        final XMLEventWriter xmlEventWriter = XMLOutputFactory.newInstance().createXMLEventWriter(actual);
+        xmlEventWriter.add(tree.getEventReader());
+        xmlEventWriter.close();
+        
+        final StringWriter transformed = new StringWriter();
+        final Transformer transformer = transformerFactory.newTransformer();
+        transformer.transform(new StAXSource(new FixedXMLEventStreamReader(tree.getEventReader())), new StreamResult(transformed));
+        
+        XMLUnit.setIgnoreWhitespace(false);
+        final Diff eventDiff = new Diff(expected.toString(), actual.toString());
+        assertTrue("Layout events don't match the document: " + eventDiff, eventDiff.identical());
+        final Diff transformedDiff = new Diff(expected.toString(), transformed.toString());
+        assertTrue("Transformed layout events don't match the document: " + transformedDiff, transformedDiff.identical());
+    }
+    
+    protected static XMLEvent getStartElement(LayoutNodeTree tree, String nodeId) {
+        final List<XMLEvent> events = tree.getEvents();
+        for (final XMLEvent event : events) {
+            if (event.isStartElement()) {
+                final Attribute idAttribute = event.asStartElement().getAttributeByName(new QName("ID"));
+                if (idAttribute != null && nodeId.equals(idAttribute.getValue())) {
+                    return event;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.portlet.container.cache;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+
+import javax.portlet.CacheControl;
+import javax.portlet.MimeResponse;
+import javax.portlet.PortletMode;
+import javax.portlet.WindowState;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.jasig.portal.mock.portlet.om.MockPortletDefinitionId;
+import org.jasig.portal.mock.portlet.om.MockPortletWindowId;
+import org.jasig.portal.portlet.om.IPortletEntity;
+import org.jasig.portal.portlet.om.IPortletWindow;
+import org.jasig.portal.portlet.registry.IPortletDefinitionRegistry;
+import org.jasig.portal.portlet.registry.IPortletWindowRegistry;
+import org.jasig.portal.portlet.rendering.PortletRenderResult;
+import org.jasig.portal.url.IUrlSyntaxProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ * Runs two {@link PortletCacheControlServiceImpl} "nodes" against one in-process
+ * {@link EhcacheSharedPublicPortletCache}
+ * 
+ * @version $Revision$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class EhcacheSharedPublicPortletCacheTest {
+    private static final String CACHE_PREFIX = "org.jasig.portal.portlet.container.cache.PortletCacheControlServiceImpl.";
+    
+    @Mock private IPortletWindowRegistry portletWindowRegistry;
+    @Mock private IPortletDefinitionRegistry portletDefinitionRegistry;
+    @Mock private IUrlSyntaxProvider urlSyntaxProvider;
+    @Mock private IPortletWindow portletWindow;
+    @Mock private IPortletEntity portletEntity;
+    @Mock private PortletDefinition portletDescriptor;
+    
+    private CacheManager cacheManager;
+    private EhcacheSharedPublicPortletCache sharedPublicPortletCache;
+    private PortletCacheControlServiceImpl nodeA;
+    private PortletCacheControlServiceImpl nodeB;
+    
+    @Before
+    public void setup() {
+        cacheManager = new CacheManager(this.getClass().getResource("/portletCacheControlServiceTestEhcache.xml"));
+        
+        sharedPublicPortletCache = new EhcacheSharedPublicPortletCache();
+        sharedPublicPortletCache.setSharedPublicScopePortletOutputCache(cacheManager.getCache("org.jasig.portal.portlet.container.cache.EhcacheSharedPublicPortletCache.sharedPublicScopePortletOutputCache"));
+        
+        nodeA = createNode("nodeA.");
+        nodeB = createNode("nodeB.");
+    }
+    
+    @After
+    public void shutdown() {
+        cacheManager.shutdown();
+    }
+    
+    private PortletCacheControlServiceImpl createNode(String name) {
+        final PortletCacheControlServiceImpl node = new PortletCacheControlServiceImpl();
+        node.setPortletWindowRegistry(portletWindowRegistry);
+        node.setPortletDefinitionRegistry(portletDefinitionRegistry);
+        node.setUrlSyntaxProvider(urlSyntaxProvider);
+        
+        node.setPrivateScopePortletRenderHeaderOutputCache(createCache(name + "privateScopePortletRenderHeaderOutputCache"));
+        node.setPublicScopePortletRenderHeaderOutputCache(createCache(name + "publicScopePortletRenderHeaderOutputCache"));
+        node.setPrivateScopePortletRenderOutputCache(createCache(name + "privateScopePortletRenderOutputCache"));
+        node.setPublicScopePortletRenderOutputCache(createCache(name + "publicScopePortletRenderOutputCache"));
+        node.setPrivateScopePortletResourceOutputCache(createCache(name + "privateScopePortletResourceOutputCache"));
+        node.setPublicScopePortletResourceOutputCache(createCache(name + "publicScopePortletResourceOutputCache"));
+        
+        node.setSharedPublicPortletCache(sharedPublicPortletCache);
+        node.setSharedPublicCacheEnabled(true);
+        
+        return node;
+    }
+    
+    private Cache createCache(String name) {
+        cacheManager.addCache(CACHE_PREFIX + name);
+        return cacheManager.getCache(CACHE_PREFIX + name);
+    }
+    
+    @Test
+    public void testMissFilledFromOtherNode() {
+        final MockHttpServletRequest requestA = new MockHttpServletRequest();
+        final MockHttpServletRequest requestB = new MockHttpServletRequest();
+        final MockPortletWindowId portletWindowId = setupPublicPortlet(requestA, requestB);
+        
+        //Node A misses everywhere, renders and caches
+        final CacheState<CachedPortletData<PortletRenderResult>, PortletRenderResult> cacheStateA = nodeA.getPortletRenderState(requestA, portletWindowId);
+        assertNull(cacheStateA.getCachedPortletData());
+        assertTrue(cacheStateA.getCacheControl().isPublicScope());
+        
+        final CachedPortletData<PortletRenderResult> cachedPortletData = createCachedPortletData(cacheStateA.getCacheControl());
+        nodeA.cachePortletRenderOutput(portletWindowId, requestA, cacheStateA, cachedPortletData);
+        
+        //Node B misses locally and is filled from the shared tier
+        final Cache publicRenderCacheB = cacheManager.getCache(CACHE_PREFIX + "nodeB.publicScopePortletRenderOutputCache");
+        assertEquals(0, publicRenderCacheB.getSize());
+        
+        final CacheState<CachedPortletData<PortletRenderResult>, PortletRenderResult> cacheStateB = nodeB.getPortletRenderState(requestB, portletWindowId);
+        assertNotNull(cacheStateB.getCachedPortletData());
+        assertTrue(cacheStateB.isUseCachedData());
+        assertEquals("<p>Shared content</p>", cacheStateB.getCachedPortletData().getCachedWriterOutput());
+        
+        //And now has its own local copy
+        assertEquals(1, publicRenderCacheB.getSize());
+    }
+    
+    @Test
+    public void testPurgeInvalidatesAllNodes() {
+        final MockHttpServletRequest requestA = new MockHttpServletRequest();
+        final MockHttpServletRequest requestB = new MockHttpServletRequest();
+        final MockPortletWindowId portletWindowId = setupPublicPortlet(requestA, requestB);
+        
+        final CacheState<CachedPortletData<PortletRenderResult>, PortletRenderResult> cacheStateA = nodeA.getPortletRenderState(requestA, portletWindowId);
+        nodeA.cachePortletRenderOutput(portletWindowId, requestA, cacheStateA, createCachedPortletData(cacheStateA.getCacheControl()));
+        
+        //Populate node B's local cache
+        assertNotNull(nodeB.getPortletRenderState(requestB, portletWindowId).getCachedPortletData());
+        final Cache publicRenderCacheB = cacheManager.getCache(CACHE_PREFIX + "nodeB.publicScopePortletRenderOutputCache");
+        assertEquals(1, publicRenderCacheB.getSize());
+        
+        //Purge on node A removes node B's local copy
+        assertTrue(nodeA.purgeCachedPortletData(portletWindowId, requestA));
+        assertEquals(0, publicRenderCacheB.getSize());
+        assertNull(nodeB.getPortletRenderState(requestB, portletWindowId).getCachedPortletData());
+    }
+    
+    @Test
+    public void testSharedTierDisabled() {
+        final MockHttpServletRequest requestA = new MockHttpServletRequest();
+        final MockHttpServletRequest requestB = new MockHttpServletRequest();
+        final MockPortletWindowId portletWindowId = setupPublicPortlet(requestA, requestB);
+        
+        nodeA.setSharedPublicCacheEnabled(false);
+        nodeB.setSharedPublicCacheEnabled(false);
+        
+        final CacheState<CachedPortletData<PortletRenderResult>, PortletRenderResult> cacheStateA = nodeA.getPortletRenderState(requestA, portletWindowId);
+        nodeA.cachePortletRenderOutput(portletWindowId, requestA, cacheStateA, createCachedPortletData(cacheStateA.getCacheControl()));
+        
+        assertNotNull(nodeA.getPortletRenderState(requestA, portletWindowId).getCachedPortletData());
+        assertNull(nodeB.getPortletRenderState(requestB, portletWindowId).getCachedPortletData());
+        assertFalse(sharedPublicPortletCache.purge(new MockPortletDefinitionId(789)));
+    }
+    
+    private MockPortletWindowId setupPublicPortlet(MockHttpServletRequest... requests) {
+        final MockPortletWindowId portletWindowId = new MockPortletWindowId("123");
+        final MockPortletDefinitionId portletDefinitionId = new MockPortletDefinitionId(789);
+        
+        when(portletDescriptor.getCacheScope()).thenReturn(MimeResponse.PUBLIC_SCOPE);
+        when(portletDescriptor.getExpirationCache()).thenReturn(300);
+        
+        for (final MockHttpServletRequest request : requests) {
+            when(portletWindowRegistry.getPortletWindow(request, portletWindowId)).thenReturn(portletWindow);
+        }
+        when(portletWindow.getPortletEntity()).thenReturn(portletEntity);
+        when(portletWindow.getWindowState()).thenReturn(WindowState.NORMAL);
+        when(portletWindow.getPortletMode()).thenReturn(PortletMode.VIEW);
+        when(portletWindow.getRenderParameters()).thenReturn(Collections.<String, String[]>emptyMap());
+        when(portletEntity.getPortletDefinitionId()).thenReturn(portletDefinitionId);
+        when(portletDefinitionRegistry.getParentPortletDescriptor(portletDefinitionId)).thenReturn(portletDescriptor);
+        
+        return portletWindowId;
+    }
+    
+    private CachedPortletData<PortletRenderResult> createCachedPortletData(CacheControl cacheControl) {
+        final PortletRenderResult portletResult = new PortletRenderResult("title", null, 0, 1);
+        return new CachedPortletData<PortletRenderResult>(portletResult, "<p>Shared content</p>", null, null,
+                cacheControl.isPublicScope(), cacheControl.getETag(), cacheControl.getExpirationTime());
+    }
+}
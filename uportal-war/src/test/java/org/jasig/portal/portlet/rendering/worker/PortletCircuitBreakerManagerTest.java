@@ -0,0 +1,197 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.portlet.rendering.worker;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jasig.portal.portlet.rendering.worker.IPortletExecutionContext.ExecutionType;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+/**
+ * @version $Revision$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class PortletCircuitBreakerManagerTest {
+    private PortletCircuitBreakerManager circuitBreakerManager;
+    @Mock private IPortletExecutionContext context;
+    
+    @Before
+    public void setup() {
+        this.circuitBreakerManager = new PortletCircuitBreakerManager();
+        this.circuitBreakerManager.setCircuitBreakerEnabled(true);
+        this.circuitBreakerManager.setAdaptiveTimeoutEnabled(true);
+        this.circuitBreakerManager.setFailureThreshold(3);
+        this.circuitBreakerManager.setOpenDuration(50);
+        this.circuitBreakerManager.setMinimumLatencySamples(5);
+        this.circuitBreakerManager.setMinimumAdaptiveTimeout(100);
+        
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        when(this.context.getPortletFname()).thenReturn("slow-portlet");
+        when(this.context.getExecutionType()).thenReturn(ExecutionType.RENDER);
+        when(this.context.setExecutionAttribute(anyString(), any())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                final Object[] args = invocation.getArguments();
+                return attributes.put((String)args[0], args[1]);
+            }
+        });
+        when(this.context.getExecutionAttribute(anyString())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                return attributes.get(invocation.getArguments()[0]);
+            }
+        });
+    }
+    
+    @Test
+    public void testCircuitBreakerOpensAndCloses() throws Exception {
+        assertTrue(this.circuitBreakerManager.allowExecution("slow-portlet"));
+        
+        this.circuitBreakerManager.recordExecution(this.context, new Exception());
+        this.circuitBreakerManager.recordExecution(this.context, new Exception());
+        assertTrue(this.circuitBreakerManager.allowExecution("slow-portlet"));
+        
+        //Third consecutive failure opens the breaker
+        this.circuitBreakerManager.recordTimeout(this.context);
+        assertFalse(this.circuitBreakerManager.allowExecution("slow-portlet"));
+        assertTrue(this.circuitBreakerManager.getOpenCircuitBreakers().contains("slow-portlet"));
+        
+        //Late completion of the timed out worker doesn't close the breaker
+        this.circuitBreakerManager.recordExecution(this.context, null);
+        assertFalse(this.circuitBreakerManager.allowExecution("slow-portlet"));
+        
+        //After the open duration a single trial is allowed
+        Thread.sleep(60);
+        assertTrue(this.circuitBreakerManager.allowExecution("slow-portlet"));
+        assertFalse(this.circuitBreakerManager.allowExecution("slow-portlet"));
+        
+        final IPortletExecutionContext trial = mock(IPortletExecutionContext.class);
+        when(trial.getPortletFname()).thenReturn("slow-portlet");
+        when(trial.getExecutionType()).thenReturn(ExecutionType.RENDER);
+        this.circuitBreakerManager.recordExecution(trial, null);
+        
+        assertTrue(this.circuitBreakerManager.allowExecution("slow-portlet"));
+        assertEquals(0, this.circuitBreakerManager.getOpenCircuitBreakerCount());
+    }
+    
+    @Test
+    public void testFailureExecutionsIgnored() throws Exception {
+        when(this.context.getExecutionType()).thenReturn(ExecutionType.FAILURE);
+        
+        for (int i = 0; i < 5; i++) {
+            this.circuitBreakerManager.recordExecution(this.context, new Exception());
+        }
+        
+        assertTrue(this.circuitBreakerManager.allowExecution("slow-portlet"));
+    }
+    
+    @Test
+    public void testNonRenderFailuresIgnored() throws Exception {
+        when(this.context.getExecutionType()).thenReturn(ExecutionType.ACTION);
+        
+        for (int i = 0; i < 5; i++) {
+            this.circuitBreakerManager.recordExecution(this.context, new Exception());
+        }
+        this.circuitBreakerManager.recordTimeout(this.context);
+        
+        assertTrue(this.circuitBreakerManager.allowExecution("slow-portlet"));
+    }
+    
+    @Test
+    public void testAdaptiveRenderTimeout() throws Exception {
+        //No samples, configured timeout is used
+        assertEquals(5000, this.circuitBreakerManager.getRenderTimeout("slow-portlet", 5000));
+        
+        for (int i = 0; i < 5; i++) {
+            when(this.context.getStartedTime()).thenReturn(System.currentTimeMillis() - 200);
+            this.circuitBreakerManager.recordExecution(this.context, null);
+        }
+        
+        //p99 of ~200ms * 3
+        final long timeout = this.circuitBreakerManager.getRenderTimeout("slow-portlet", 5000);
+        assertTrue("Unexpected adaptive timeout: " + timeout, timeout >= 600 && timeout < 1000);
+        
+        //Never more than the configured timeout
+        assertEquals(300, this.circuitBreakerManager.getRenderTimeout("slow-portlet", 300));
+        
+        this.circuitBreakerManager.setAdaptiveTimeoutEnabled(false);
+        assertEquals(5000, this.circuitBreakerManager.getRenderTimeout("slow-portlet", 5000));
+    }
+    
+    @Test
+    public void testTimedOutRenderRaisesTimeout() throws Exception {
+        this.recordRenders(5, 200);
+        
+        final long timeout = this.circuitBreakerManager.getRenderTimeout("slow-portlet", 5000);
+        assertTrue("Unexpected adaptive timeout: " + timeout, timeout >= 600 && timeout < 1000);
+        
+        //The portlet got slower and timed out, the timeout is never less than how long it ran
+        when(this.context.getStartedTime()).thenReturn(System.currentTimeMillis() - 1200);
+        this.circuitBreakerManager.recordTimeout(this.context);
+        assertTrue(this.circuitBreakerManager.getRenderTimeout("slow-portlet", 5000) >= 1200);
+        
+        //The late completion records the real duration
+        when(this.context.getStartedTime()).thenReturn(System.currentTimeMillis() - 2000);
+        this.circuitBreakerManager.recordExecution(this.context, null);
+        assertTrue(this.circuitBreakerManager.getRenderTimeout("slow-portlet", 5000) >= 2000);
+    }
+    
+    @Test
+    public void testTrialRenderUsesConfiguredTimeout() throws Exception {
+        this.recordRenders(5, 200);
+        
+        for (int i = 0; i < 3; i++) {
+            final IPortletExecutionContext failed = mock(IPortletExecutionContext.class);
+            when(failed.getPortletFname()).thenReturn("slow-portlet");
+            when(failed.getExecutionType()).thenReturn(ExecutionType.RENDER);
+            this.circuitBreakerManager.recordExecution(failed, new Exception());
+        }
+        assertFalse(this.circuitBreakerManager.allowExecution("slow-portlet"));
+        
+        Thread.sleep(60);
+        assertTrue(this.circuitBreakerManager.allowExecution("slow-portlet"));
+        assertEquals(5000, this.circuitBreakerManager.getRenderTimeout("slow-portlet", 5000));
+    }
+    
+    private void recordRenders(int count, long duration) {
+        for (int i = 0; i < count; i++) {
+            final IPortletExecutionContext render = mock(IPortletExecutionContext.class);
+            when(render.getPortletFname()).thenReturn("slow-portlet");
+            when(render.getExecutionType()).thenReturn(ExecutionType.RENDER);
+            when(render.getStartedTime()).thenReturn(System.currentTimeMillis() - duration);
+            this.circuitBreakerManager.recordExecution(render, null);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.rendering;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+
+import org.jasig.portal.mock.portlet.om.MockPortletWindowId;
+import org.jasig.portal.portlet.container.cache.CacheState;
+import org.jasig.portal.portlet.container.cache.CachedPortletData;
+import org.jasig.portal.portlet.container.cache.IPortletCacheControlService;
+import org.jasig.portal.portlet.rendering.PortletRenderResult;
+import org.jasig.portal.utils.cache.CacheKey;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ * @version $Revision$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class PageEtagGeneratorTest {
+    @Mock private IPortletCacheControlService portletCacheControlService;
+    @Mock private Ehcache pagePortletWindowsCache;
+    @Mock private CacheState<CachedPortletData<PortletRenderResult>, PortletRenderResult> headerCacheState;
+    @Mock private CacheState<CachedPortletData<PortletRenderResult>, PortletRenderResult> renderCacheState;
+    
+    private PageEtagGenerator pageEtagGenerator;
+    private final CacheKey pipelineCacheKey = CacheKey.build("testPipeline", "layout", 42);
+    private final MockPortletWindowId portletWindowId = new MockPortletWindowId("pw1");
+    
+    @Before
+    public void setup() {
+        pageEtagGenerator = new PageEtagGenerator();
+        pageEtagGenerator.setPortletCacheControlService(portletCacheControlService);
+        pageEtagGenerator.setPagePortletWindowsCache(pagePortletWindowsCache);
+    }
+    
+    private void recordPage() {
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        PageEtagGenerator.addPortletHeaderWindow(request, portletWindowId);
+        PageEtagGenerator.addPortletWindow(request, portletWindowId);
+        pageEtagGenerator.recordPagePortletWindows(request, pipelineCacheKey);
+        
+        final ArgumentCaptor<Element> elementCaptor = ArgumentCaptor.forClass(Element.class);
+        verify(pagePortletWindowsCache).put(elementCaptor.capture());
+        when(pagePortletWindowsCache.get(pipelineCacheKey)).thenReturn(elementCaptor.getValue());
+    }
+    
+    private void setupCachedData(MockHttpServletRequest request, String etag) {
+        final CachedPortletData<PortletRenderResult> headerData = new CachedPortletData<PortletRenderResult>(
+                new PortletRenderResult(null, null, 0, 1), "<script/>", null, null, true, etag, -1);
+        final CachedPortletData<PortletRenderResult> renderData = new CachedPortletData<PortletRenderResult>(
+                new PortletRenderResult("title", null, 0, 1), "<p>content</p>", null, null, true, etag, -1);
+        
+        when(headerCacheState.isUseCachedData()).thenReturn(true);
+        when(headerCacheState.getCachedPortletData()).thenReturn(headerData);
+        when(renderCacheState.isUseCachedData()).thenReturn(true);
+        when(renderCacheState.getCachedPortletData()).thenReturn(renderData);
+        when(portletCacheControlService.getPortletRenderHeaderState(request, portletWindowId)).thenReturn(headerCacheState);
+        when(portletCacheControlService.getPortletRenderState(request, portletWindowId)).thenReturn(renderCacheState);
+    }
+    
+    @Test
+    public void testNoRecordedPage() {
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        assertNull(pageEtagGenerator.getPageEtag(request, pipelineCacheKey));
+    }
+    
+    @Test
+    public void testAllPortletsCached() {
+        recordPage();
+        
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        setupCachedData(request, "abc");
+        
+        final String etag = pageEtagGenerator.getPageEtag(request, pipelineCacheKey);
+        assertNotNull(etag);
+        assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+        
+        //Same state generates the same ETag
+        assertEquals(etag, pageEtagGenerator.getPageEtag(request, pipelineCacheKey));
+    }
+    
+    @Test
+    public void testPortletChangeChangesEtag() {
+        recordPage();
+        
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        setupCachedData(request, "abc");
+        final String etag = pageEtagGenerator.getPageEtag(request, pipelineCacheKey);
+        
+        setupCachedData(request, "def");
+        final String changedEtag = pageEtagGenerator.getPageEtag(request, pipelineCacheKey);
+        assertNotNull(changedEtag);
+        assertFalse(etag.equals(changedEtag));
+    }
+    
+    @Test
+    public void testPipelineChangeChangesEtag() {
+        recordPage();
+        
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        setupCachedData(request, "abc");
+        final String etag = pageEtagGenerator.getPageEtag(request, pipelineCacheKey);
+        
+        //Same portlets and portlet output but a different layout, theme, locale or skin
+        final CacheKey changedPipelineCacheKey = CacheKey.build("testPipeline", "layout", 42, "skin", "uportal3");
+        final Element pagePortletWindows = pagePortletWindowsCache.get(pipelineCacheKey);
+        when(pagePortletWindowsCache.get(changedPipelineCacheKey)).thenReturn(pagePortletWindows);
+        final String changedEtag = pageEtagGenerator.getPageEtag(request, changedPipelineCacheKey);
+        assertNotNull(changedEtag);
+        assertFalse(etag.equals(changedEtag));
+    }
+    
+    @Test
+    public void testUncachedPortletNoEtag() {
+        recordPage();
+        
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        setupCachedData(request, "abc");
+        when(renderCacheState.isUseCachedData()).thenReturn(false);
+        
+        assertNull(pageEtagGenerator.getPageEtag(request, pipelineCacheKey));
+    }
+    
+    @Test
+    public void testEtagMatch() {
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        assertFalse(PageEtagGenerator.isEtagMatch(request, "\"abc\""));
+        
+        request.addHeader("If-None-Match", "\"xyz\", \"abc\"");
+        assertTrue(PageEtagGenerator.isEtagMatch(request, "\"abc\""));
+        assertFalse(PageEtagGenerator.isEtagMatch(request, "\"def\""));
+    }
+}
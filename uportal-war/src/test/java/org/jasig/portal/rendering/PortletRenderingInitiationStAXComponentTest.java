@@ -0,0 +1,200 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.rendering;
+
+import static junit.framework.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.events.StartElement;
+
+import org.jasig.portal.IUserPreferencesManager;
+import org.jasig.portal.layout.IStylesheetUserPreferencesService;
+import org.jasig.portal.layout.IStylesheetUserPreferencesService.PreferencesScope;
+import org.jasig.portal.layout.IUserLayout;
+import org.jasig.portal.layout.IUserLayoutManager;
+import org.jasig.portal.layout.node.IUserLayoutFolderDescription;
+import org.jasig.portal.layout.node.IUserLayoutNodeDescription;
+import org.jasig.portal.layout.node.IUserLayoutNodeDescription.LayoutNodeType;
+import org.jasig.portal.portlet.om.IPortletWindow;
+import org.jasig.portal.portlet.om.IPortletWindowId;
+import org.jasig.portal.portlet.registry.IPortletWindowRegistry;
+import org.jasig.portal.portlet.rendering.IPortletExecutionManager;
+import org.jasig.portal.user.IUserInstance;
+import org.jasig.portal.user.IUserInstanceManager;
+import org.jasig.portal.utils.Tuple;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * @version $Revision$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class PortletRenderingInitiationStAXComponentTest {
+    @Mock private IUserInstanceManager userInstanceManager;
+    @Mock private IUserInstance userInstance;
+    @Mock private IUserPreferencesManager preferencesManager;
+    @Mock private IUserLayoutManager userLayoutManager;
+    @Mock private IUserLayout userLayout;
+    @Mock private IStylesheetUserPreferencesService stylesheetUserPreferencesService;
+    @Mock private IPortletWindowRegistry portletWindowRegistry;
+    @Mock private IPortletExecutionManager portletExecutionManager;
+    
+    private PortletRenderingInitiationStAXComponent component;
+    private MockHttpServletRequest request;
+    
+    @Before
+    public void setup() {
+        request = new MockHttpServletRequest();
+        
+        component = new PortletRenderingInitiationStAXComponent();
+        component.setUserInstanceManager(userInstanceManager);
+        component.setStylesheetUserPreferencesService(stylesheetUserPreferencesService);
+        component.setPortletWindowRegistry(portletWindowRegistry);
+        component.setPortletExecutionManager(portletExecutionManager);
+        
+        when(userInstanceManager.getUserInstance(request)).thenReturn(userInstance);
+        when(userInstance.getPreferencesManager()).thenReturn(preferencesManager);
+        when(preferencesManager.getUserLayoutManager()).thenReturn(userLayoutManager);
+        when(userLayoutManager.getUserLayout()).thenReturn(userLayout);
+        
+        /*
+         * root
+         *  s1 (header) - n1
+         *  s2 (tab)    - s3 (column) - n2, n3
+         *  s4 (tab)    - s5 (column) - n4
+         *  s6 (hidden tab) - n5
+         *  s7 (footer) - n6
+         */
+        when(userLayout.getRootId()).thenReturn("root");
+        addFolder("root", IUserLayoutFolderDescription.REGULAR_TYPE, false, "s1", "s2", "s4", "s6", "s7");
+        addFolder("s1", IUserLayoutFolderDescription.HEADER_TYPE, false, "n1");
+        addFolder("s2", IUserLayoutFolderDescription.REGULAR_TYPE, false, "s3");
+        addFolder("s3", IUserLayoutFolderDescription.REGULAR_TYPE, false, "n2", "n3");
+        addFolder("s4", IUserLayoutFolderDescription.REGULAR_TYPE, false, "s5");
+        addFolder("s5", IUserLayoutFolderDescription.REGULAR_TYPE, false, "n4");
+        addFolder("s6", IUserLayoutFolderDescription.REGULAR_TYPE, true, "n5");
+        addFolder("s7", IUserLayoutFolderDescription.FOOTER_TYPE, false, "n6");
+        for (final String portletId : Arrays.asList("n1", "n2", "n3", "n4", "n5", "n6")) {
+            final IUserLayoutNodeDescription node = mock(IUserLayoutNodeDescription.class);
+            when(node.getType()).thenReturn(LayoutNodeType.PORTLET);
+            when(userLayout.getNodeDescription(portletId)).thenReturn(node);
+        }
+    }
+    
+    private void addFolder(String id, int folderType, boolean hidden, String... childIds) {
+        final IUserLayoutFolderDescription folder = mock(IUserLayoutFolderDescription.class);
+        when(folder.getType()).thenReturn(LayoutNodeType.FOLDER);
+        when(folder.getFolderType()).thenReturn(folderType);
+        when(folder.isHidden()).thenReturn(hidden);
+        when(userLayout.getNodeDescription(id)).thenReturn(folder);
+        when(userLayout.getChildIds(id)).thenReturn(Collections.enumeration(Arrays.asList(childIds)));
+    }
+    
+    private void setStructureParameter(String name, String value) {
+        when(stylesheetUserPreferencesService.getStylesheetParameter(request, PreferencesScope.STRUCTURE, name)).thenReturn(value);
+    }
+    
+    @Test
+    public void testDefaultTab() {
+        final List<String> subscribeIds = component.getVisiblePortletSubscribeIds(request);
+        assertEquals(Arrays.asList("n1", "n2", "n3", "n6"), subscribeIds);
+    }
+    
+    @Test
+    public void testFocusedTab() {
+        setStructureParameter("focusedTabID", "s4");
+        
+        final List<String> subscribeIds = component.getVisiblePortletSubscribeIds(request);
+        assertEquals(Arrays.asList("n1", "n4", "n6"), subscribeIds);
+    }
+    
+    @Test
+    public void testHiddenFocusedTabUsesDefault() {
+        setStructureParameter("focusedTabID", "s6");
+        setStructureParameter("defaultTab", "2");
+        
+        final List<String> subscribeIds = component.getVisiblePortletSubscribeIds(request);
+        assertEquals(Arrays.asList("n1", "n4", "n6"), subscribeIds);
+    }
+    
+    @Test
+    public void testStartVisiblePortlets() {
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        
+        //The registry resolves channel elements to windows that aren't the default window, stateless windows for example
+        final Map<String, IPortletWindowId> portletWindowIds = new HashMap<String, IPortletWindowId>();
+        when(portletWindowRegistry.getPortletWindow(eq(request), any(StartElement.class))).thenAnswer(new Answer<Tuple<IPortletWindow, StartElement>>() {
+            @Override
+            public Tuple<IPortletWindow, StartElement> answer(InvocationOnMock invocation) throws Throwable {
+                final StartElement element = (StartElement) invocation.getArguments()[1];
+                assertEquals(IUserLayoutManager.CHANNEL, element.getName().getLocalPart());
+                
+                final String subscribeId = element.getAttributeByName(IUserLayoutManager.ID_ATTR_NAME).getValue();
+                final IPortletWindowId portletWindowId = mock(IPortletWindowId.class);
+                portletWindowIds.put(subscribeId, portletWindowId);
+                
+                final IPortletWindow portletWindow = mock(IPortletWindow.class);
+                when(portletWindow.getPortletWindowId()).thenReturn(portletWindowId);
+                return new Tuple<IPortletWindow, StartElement>(portletWindow, element);
+            }
+        });
+        
+        component.startVisiblePortlets(request, response);
+        
+        verify(portletWindowRegistry, never()).getOrCreateDefaultPortletWindowByLayoutNodeId(eq(request), anyString());
+        assertEquals(4, request.getAttribute(PortletRenderingInitiationStAXComponent.SPECULATIVE_RENDER_COUNT_ATTRIBUTE));
+        
+        final InOrder inOrder = Mockito.inOrder(portletExecutionManager);
+        for (final String subscribeId : Arrays.asList("n1", "n2", "n3", "n6")) {
+            inOrder.verify(portletExecutionManager).startPortletHeaderRender(portletWindowIds.get(subscribeId), request, response);
+        }
+        for (final String subscribeId : Arrays.asList("n1", "n2", "n3", "n6")) {
+            inOrder.verify(portletExecutionManager).startPortletRender(portletWindowIds.get(subscribeId), request, response);
+        }
+    }
+    
+    @Test
+    public void testFocusedPortlet() {
+        setStructureParameter("userLayoutRoot", "n3");
+        
+        final List<String> subscribeIds = component.getVisiblePortletSubscribeIds(request);
+        assertEquals(Collections.<String>emptyList(), subscribeIds);
+    }
+}
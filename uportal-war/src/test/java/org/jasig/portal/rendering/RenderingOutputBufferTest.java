@@ -0,0 +1,119 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.rendering;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * @version $Revision$
+ */
+public class RenderingOutputBufferTest {
+    @Test
+    public void testBufferUntilFlush() throws IOException {
+        final StringWriter writer = new StringWriter();
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        final RenderingOutputBuffer outputBuffer = new RenderingOutputBuffer(writer, response, 16);
+        
+        outputBuffer.write("<html>");
+        outputBuffer.write("<head>");
+        assertEquals("", writer.toString());
+        assertFalse(response.isCommitted());
+        
+        outputBuffer.flush();
+        assertEquals("<html><head>", writer.toString());
+        assertTrue(response.isCommitted());
+        assertEquals(1, outputBuffer.getFlushCount());
+        assertEquals(12, outputBuffer.getBytesWritten());
+        
+        outputBuffer.close();
+    }
+    
+    @Test
+    public void testWriteThroughWhenFull() throws IOException {
+        final StringWriter writer = new StringWriter();
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        final RenderingOutputBuffer outputBuffer = new RenderingOutputBuffer(writer, response, 8);
+        
+        outputBuffer.write("12345");
+        outputBuffer.write("6789");
+        assertEquals("12345", writer.toString());
+        
+        outputBuffer.write("abcdefghijklmnop");
+        assertEquals("123456789abcdefghijklmnop", writer.toString());
+        assertFalse(response.isCommitted());
+        assertEquals(0, outputBuffer.getFlushCount());
+        
+        outputBuffer.close();
+    }
+    
+    @Test
+    public void testMultiByteLength() throws IOException {
+        final StringWriter writer = new StringWriter();
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        final RenderingOutputBuffer outputBuffer = new RenderingOutputBuffer(writer, response, 32);
+        
+        //1 + 2 + 3 + 4 byte characters
+        outputBuffer.write("a\u00e9\u20ac\ud834\udd1e");
+        outputBuffer.flush();
+        
+        assertEquals(10, outputBuffer.getBytesWritten());
+        
+        outputBuffer.close();
+    }
+    
+    @Test
+    public void testRequestFlush() throws IOException {
+        final StringWriter writer = new StringWriter();
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        final RenderingOutputBuffer outputBuffer = new RenderingOutputBuffer(writer, response, 64);
+        
+        //No registered buffer is a no-op
+        RenderingOutputBuffer.flushOutputBuffer(request);
+        
+        outputBuffer.register(request);
+        outputBuffer.write("<body>");
+        RenderingOutputBuffer.flushOutputBuffer(request);
+        assertEquals("<body>", writer.toString());
+        assertEquals(1, outputBuffer.getFlushCount());
+        
+        outputBuffer.unregister(request);
+        outputBuffer.close();
+        
+        RenderingOutputBuffer.flushOutputBuffer(request);
+        assertEquals(1, outputBuffer.getFlushCount());
+    }
+    
+    @Test(expected=IllegalStateException.class)
+    public void testWriteAfterClose() throws IOException {
+        final RenderingOutputBuffer outputBuffer = new RenderingOutputBuffer(new StringWriter(), new MockHttpServletResponse(), 8);
+        outputBuffer.close();
+        outputBuffer.write("data");
+    }
+}
@@ -26,6 +26,7 @@ import static org.easymock.EasyMock.notNull;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -34,7 +35,11 @@ import net.sf.ehcache.Element;
 
 import org.jasig.portal.character.stream.CharacterEventBufferReader;
 import org.jasig.portal.character.stream.CharacterEventReader;
+import org.jasig.portal.character.stream.events.CharacterDataEventImpl;
 import org.jasig.portal.character.stream.events.CharacterEvent;
+import org.jasig.portal.character.stream.events.ChunkPointCharacterEvent;
+import org.jasig.portal.character.stream.events.PortletContentPlaceholderEventImpl;
+import org.jasig.portal.mock.portlet.om.MockPortletWindowId;
 import org.jasig.portal.rendering.CharacterPipelineComponent;
 import org.jasig.portal.rendering.PipelineEventReader;
 import org.jasig.portal.rendering.PipelineEventReaderImpl;
@@ -117,4 +122,29 @@ public class CachingCharacterPipelineComponentTest {
         
         verify(cache, targetComponent, elementsProvider);
     }
+    
+    @Test
+    public void testCompactEvents() {
+        final List<CharacterEvent> eventBuffer = Arrays.<CharacterEvent>asList(
+                CharacterDataEventImpl.create("<html>"),
+                CharacterDataEventImpl.create("<head>"),
+                ChunkPointCharacterEvent.INSTANCE,
+                CharacterDataEventImpl.create("<title>"),
+                CharacterDataEventImpl.create(""),
+                new PortletContentPlaceholderEventImpl(new MockPortletWindowId("w1")),
+                CharacterDataEventImpl.create("</body>"),
+                CharacterDataEventImpl.create("</html>"));
+        
+        final CachingCharacterPipelineComponent cachingComponent = new CachingCharacterPipelineComponent();
+        final List<CharacterEvent> compactEvents = cachingComponent.compactEvents(eventBuffer);
+        
+        Assert.assertEquals(5, compactEvents.size());
+        Assert.assertEquals(CharacterDataEventImpl.create("<html><head>"), compactEvents.get(0));
+        Assert.assertSame(ChunkPointCharacterEvent.INSTANCE, compactEvents.get(1));
+        Assert.assertEquals(CharacterDataEventImpl.create("<title>"), compactEvents.get(2));
+        Assert.assertEquals(new PortletContentPlaceholderEventImpl(new MockPortletWindowId("w1")), compactEvents.get(3));
+        Assert.assertEquals(CharacterDataEventImpl.create("</body></html>"), compactEvents.get(4));
+        
+        Assert.assertTrue(cachingComponent.estimateSize(compactEvents) > 0);
+    }
 }
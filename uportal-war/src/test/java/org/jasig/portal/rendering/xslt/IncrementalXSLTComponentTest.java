@@ -0,0 +1,253 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.rendering.xslt;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import junit.framework.Assert;
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+
+import org.custommonkey.xmlunit.Diff;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.easymock.EasyMock;
+import org.jasig.portal.rendering.PipelineEventReader;
+import org.jasig.portal.rendering.PipelineEventReaderImpl;
+import org.jasig.portal.rendering.StAXPipelineComponent;
+import org.jasig.portal.utils.cache.CacheKey;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * @version $Revision$
+ */
+public class IncrementalXSLTComponentTest {
+    private static final String STYLESHEET_START = 
+            "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+            "<xsl:variable name='ACTIVE_TAB' select='/layout/navigation/tab[@activeTab=\"true\"]'/>" +
+            "<xsl:template match='layout'><html><h1><xsl:value-of select='navigation/tab[@activeTab=\"true\"]/@name'/></h1>" +
+            "<xsl:for-each select='content/column'><div><xsl:apply-templates select='channel'/></div></xsl:for-each><p><xsl:value-of select='footer'/></p></html></xsl:template>" +
+            "<xsl:template match='channel' name='channel'><p id='{@ID}' state='{@windowState}' immutable='{$ACTIVE_TAB/@immutable}' position='{position()}' last='{last()}'>" +
+            "<xsl:value-of select='parameter/@value'/></p></xsl:template>";
+    private static final String REGION_TEMPLATES = 
+            "<xsl:template match='channel[@upRegion]' priority='10'><region upRegion='{@upRegion}'><xsl:if test='not(@upRegionPlaceholder)'><xsl:call-template name='channel'/></xsl:if></region></xsl:template>" +
+            "<xsl:template match='layout[@upRegionDocument]' priority='10'><xsl:for-each select='content/column'><xsl:apply-templates select='channel'/></xsl:for-each></xsl:template>";
+    private static final String STYLESHEET_END = "</xsl:stylesheet>";
+    
+    private CacheManager cacheManager;
+    private Cache regionCache;
+    private IncrementalXSLTComponent incrementalXSLTComponent;
+    private int transformCount;
+    
+    @Before
+    public void setup() {
+        this.cacheManager = CacheManager.create();
+        this.regionCache = new Cache("IncrementalXSLTComponentTest.REGION_TRANSFORM", 1000, false, false, 0, 0);
+        this.cacheManager.addCache(this.regionCache);
+        
+        this.incrementalXSLTComponent = new IncrementalXSLTComponent() {
+            @Override
+            protected List<XMLEvent> transform(Transformer transformer, XMLEventReader eventReader) {
+                transformCount++;
+                return super.transform(transformer, eventReader);
+            }
+        };
+        this.incrementalXSLTComponent.setBeanName("incrementalXSLTComponent");
+        this.incrementalXSLTComponent.setRegionCache(this.regionCache);
+        this.incrementalXSLTComponent.setIncrementalTransform(true);
+    }
+    
+    @After
+    public void teardown() {
+        this.cacheManager.removeCache(this.regionCache.getName());
+    }
+    
+    @Test
+    public void testIncrementalTransform() throws Exception {
+        final String stylesheet = STYLESHEET_START + REGION_TEMPLATES + STYLESHEET_END;
+        
+        //The whole document is transformed once and split into the skeleton and the portlets
+        final String layout = getLayout("Home", "false", "normal");
+        this.assertTransform(stylesheet, layout, 1);
+        Assert.assertEquals(4, this.regionCache.getSize());
+        
+        //Same document is served completely from the region cache
+        this.assertTransform(stylesheet, layout, 0);
+        Assert.assertEquals(4, this.regionCache.getSize());
+        
+        //Changing one portlet only transforms that portlet
+        this.assertTransform(stylesheet, getLayout("Home", "false", "minimized"), 1);
+        Assert.assertEquals(5, this.regionCache.getSize());
+        
+        //Changing the context of the portlets transforms the whole document once
+        this.assertTransform(stylesheet, getLayout("Home", "true", "minimized"), 1);
+        Assert.assertEquals(9, this.regionCache.getSize());
+    }
+    
+    @Test
+    public void testSkeletonChanged() throws Exception {
+        final String stylesheet = STYLESHEET_START + REGION_TEMPLATES + STYLESHEET_END;
+        
+        this.assertTransform(stylesheet, getLayout("Home", "false", "normal", "Footer"), 1);
+        Assert.assertEquals(4, this.regionCache.getSize());
+        
+        //Changing the page outside of the portlet context only transforms the skeleton, the portlets are reused
+        this.assertTransform(stylesheet, getLayout("Home", "false", "normal", "Changed Footer"), 1);
+        Assert.assertEquals(5, this.regionCache.getSize());
+    }
+    
+    @Test
+    public void testRegionPositionChanged() throws Exception {
+        final String stylesheet = STYLESHEET_START + REGION_TEMPLATES + STYLESHEET_END;
+        
+        this.assertTransform(stylesheet, getLayout("Home", "false", "normal"), 1);
+        Assert.assertEquals(4, this.regionCache.getSize());
+        
+        //Removing the first portlet changes the position of the unchanged second portlet, the portlet in the other column is reused
+        this.assertTransform(stylesheet, getLayout("Home", "false", "normal").replace("<channel ID='n4' windowState='normal'><parameter value='A'/></channel>", ""), 1);
+        Assert.assertEquals(6, this.regionCache.getSize());
+    }
+    
+    @Test
+    public void testRegionsSharedBetweenPages() throws Exception {
+        final String stylesheet = STYLESHEET_START + REGION_TEMPLATES + STYLESHEET_END;
+        
+        this.assertTransform(stylesheet, getLayout("Home", "false", "normal"), 1);
+        Assert.assertEquals(4, this.regionCache.getSize());
+        
+        //Another layout with the same portlets in a different skeleton only transforms the skeleton
+        final String otherLayout = getLayout("Home", "false", "normal").replace("</content>", "<column ID='s8'/></content>");
+        this.assertTransform(stylesheet, otherLayout, 1);
+        Assert.assertEquals(5, this.regionCache.getSize());
+        
+        //A changed portlet is transformed on its own and is then served to both layouts
+        this.assertTransform(stylesheet, getLayout("Home", "false", "minimized"), 1);
+        Assert.assertEquals(6, this.regionCache.getSize());
+        this.assertTransform(stylesheet, otherLayout.replace("ID='n5' windowState='normal'", "ID='n5' windowState='minimized'"), 0);
+        Assert.assertEquals(6, this.regionCache.getSize());
+    }
+    
+    @Test
+    public void testUnsupportedStylesheet() throws Exception {
+        final String stylesheet = STYLESHEET_START + STYLESHEET_END;
+        
+        final String layout = getLayout("Home", "false", "normal");
+        //Nothing is cached from output missing the region elements, the original document is transformed again
+        this.assertTransform(stylesheet, layout, 2);
+        Assert.assertEquals(0, this.regionCache.getSize());
+        
+        //The stylesheet is remembered as not supporting incremental transforms
+        this.assertTransform(stylesheet, getLayout("Welcome", "false", "normal"), 1);
+        Assert.assertEquals(0, this.regionCache.getSize());
+    }
+    
+    protected void assertTransform(String stylesheet, String layout, int expectedTransforms) throws Exception {
+        final XSLTComponent xsltComponent = new XSLTComponent();
+        final String expected = this.transform(xsltComponent, stylesheet, layout);
+        
+        this.transformCount = 0;
+        final String actual = this.transform(this.incrementalXSLTComponent, stylesheet, layout);
+        Assert.assertEquals(expectedTransforms, this.transformCount);
+
+        XMLUnit.setIgnoreWhitespace(true);
+        final Diff d = new Diff(expected, actual);
+        Assert.assertTrue("Incremental transform doesn't match full transform: " + d, d.similar());
+    }
+    
+    protected String transform(XSLTComponent xsltComponent, String stylesheet, String layout) throws Exception {
+        final MockHttpServletRequest mockReq = new MockHttpServletRequest();
+        final MockHttpServletResponse mockRes = new MockHttpServletResponse();
+
+        final XMLEventReader xmlEventReader = XMLInputFactory.newInstance().createXMLEventReader(new StringReader(layout));
+        final PipelineEventReaderImpl<XMLEventReader, XMLEvent> cacheableEventReader = new PipelineEventReaderImpl<XMLEventReader, XMLEvent>(xmlEventReader);
+        
+        final StAXPipelineComponent targetComponent = EasyMock.createMock(StAXPipelineComponent.class);
+        final TransformerSource transformerSource = EasyMock.createMock(TransformerSource.class);
+        EasyMock.expect(targetComponent.getEventReader(mockReq, mockRes)).andReturn(cacheableEventReader);
+        final Transformer transformer = this.getTransformer(stylesheet);
+        EasyMock.expect(transformerSource.getTransformer(mockReq, mockRes)).andReturn(transformer);
+        transformerSource.releaseTransformer(transformer);
+        EasyMock.expect(transformerSource.getCacheKey(mockReq, mockRes)).andReturn(CacheKey.build("stylesheet", stylesheet)).anyTimes();
+        
+        EasyMock.replay(targetComponent, transformerSource);
+        
+        xsltComponent.setWrappedComponent(targetComponent);
+        xsltComponent.setTransformerSource(transformerSource);
+        
+        final PipelineEventReader<XMLEventReader, XMLEvent> eventReader = xsltComponent.getEventReader(mockReq, mockRes);
+        final String output = this.serializeXMLEventReader(eventReader.getEventReader());
+        
+        EasyMock.verify(targetComponent, transformerSource);
+        
+        return output;
+    }
+    
+    protected static String getLayout(String tabName, String immutable, String windowState) {
+        return getLayout(tabName, immutable, windowState, "Footer");
+    }
+    
+    protected static String getLayout(String tabName, String immutable, String windowState, String footer) {
+        return "<layout>" +
+                "<navigation><tab ID='s1' name='" + tabName + "' activeTab='true' immutable='" + immutable + "'/><tab ID='s2' name='Other' activeTab='false' immutable='true'/></navigation>" +
+                "<content>" +
+                "<column ID='s3'><channel ID='n4' windowState='normal'><parameter value='A'/></channel><channel ID='n5' windowState='" + windowState + "'><parameter value='B'/></channel></column>" +
+                "<column ID='s6'><channel ID='n7' windowState='normal'><parameter value='C'/></channel></column>" +
+                "</content>" +
+                "<footer>" + footer + "</footer>" +
+                "</layout>";
+    }
+    
+    protected String serializeXMLEventReader(XMLEventReader reader) throws XMLStreamException {
+        final StringWriter writer = new StringWriter();
+        
+        final XMLEventWriter xmlEventWriter = XMLOutputFactory.newInstance().createXMLEventWriter(writer);
+        xmlEventWriter.add(reader);
+        xmlEventWriter.flush();
+        xmlEventWriter.close();
+        
+        return writer.toString();
+    }
+    
+    protected Transformer getTransformer(String stylesheet) {
+        final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+        try {
+            return transformerFactory.newTransformer(new StreamSource(new StringReader(stylesheet)));
+        }
+        catch (TransformerConfigurationException e) {
+            throw new RuntimeException("Failed to create Transformer for stylesheet", e);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.rendering.xslt;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+
+import java.io.StringReader;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @version $Revision$
+ */
+public class TransformerPoolTest {
+    private static final String STYLESHEET = 
+            "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+            "<xsl:param name='foo'/><xsl:template match='/'><xsl:value-of select='$foo'/></xsl:template>" +
+            "</xsl:stylesheet>";
+    
+    private TransformerPool transformerPool;
+    private Templates templates;
+    
+    @Before
+    public void setup() throws Exception {
+        this.transformerPool = new TransformerPool();
+        this.transformerPool.setMaxIdlePerTemplates(1);
+        
+        this.templates = TransformerFactory.newInstance().newTemplates(new StreamSource(new StringReader(STYLESHEET)));
+    }
+    
+    @Test
+    public void testBorrowReturn() throws Exception {
+        final Transformer transformer = this.transformerPool.borrowTransformer(this.templates);
+        transformer.setParameter("foo", "bar");
+        this.transformerPool.returnTransformer(transformer);
+        
+        //Returned transformer is reused after being reset
+        final Transformer pooledTransformer = this.transformerPool.borrowTransformer(this.templates);
+        assertSame(transformer, pooledTransformer);
+        assertNull(pooledTransformer.getParameter("foo"));
+        
+        assertEquals(1, this.transformerPool.getHits());
+        assertEquals(1, this.transformerPool.getMisses());
+        assertEquals(1, this.transformerPool.getReturns());
+        assertEquals(0, this.transformerPool.getIdleCount());
+    }
+    
+    @Test
+    public void testPoolBounds() throws Exception {
+        final Transformer transformer1 = this.transformerPool.borrowTransformer(this.templates);
+        final Transformer transformer2 = this.transformerPool.borrowTransformer(this.templates);
+        assertNotSame(transformer1, transformer2);
+        
+        this.transformerPool.returnTransformer(transformer1);
+        this.transformerPool.returnTransformer(transformer2);
+        
+        //Returning twice or returning a transformer from outside of the pool is ignored
+        this.transformerPool.returnTransformer(transformer1);
+        this.transformerPool.returnTransformer(this.templates.newTransformer());
+        
+        assertEquals(1, this.transformerPool.getReturns());
+        assertEquals(1, this.transformerPool.getDiscards());
+        assertEquals(1, this.transformerPool.getIdleCount());
+    }
+    
+    @Test
+    public void testPoolingDisabled() throws Exception {
+        this.transformerPool.setPoolingEnabled(false);
+        
+        final Transformer transformer = this.transformerPool.borrowTransformer(this.templates);
+        this.transformerPool.returnTransformer(transformer);
+        
+        assertNotSame(transformer, this.transformerPool.borrowTransformer(this.templates));
+        assertEquals(0, this.transformerPool.getIdleCount());
+    }
+}
@@ -83,6 +83,7 @@ public class XSLTComponentTest {
         
         EasyMock.expect(targetComponent.getEventReader(mockReq, mockRes)).andReturn(cacheableEventReader);
         EasyMock.expect(transformerSource.getTransformer(mockReq, mockRes)).andReturn(transformer);
+        transformerSource.releaseTransformer(transformer);
         
         EasyMock.replay(targetComponent, transformerSource);
         
@@ -0,0 +1,337 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.security.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+
+import org.jasig.portal.EntityTypes;
+import org.jasig.portal.groups.IEntityGroup;
+import org.jasig.portal.groups.IGroupMember;
+import org.jasig.portal.portlet.om.IPortletDefinition;
+import org.jasig.portal.portlet.om.PortletLifecycleState;
+import org.jasig.portal.portlet.registry.IPortletDefinitionRegistry;
+import org.jasig.portal.security.IAuthorizationPrincipal;
+import org.jasig.portal.security.IAuthorizationService;
+import org.jasig.portal.security.IPermission;
+import org.jasig.portal.security.IPermissionPolicy;
+import org.jasig.portal.security.IPermissionStore;
+import org.jasig.portal.security.IPerson;
+import org.jasig.portal.spring.locator.EntityTypesLocator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Verifies the bulk permission checks answer exactly as the single target checks do
+ * 
+ * @version $Revision$
+ */
+public class AuthorizationImplTest {
+    private static final String OWNER = IPermission.PORTAL_SUBSCRIBE;
+    private static final String ACTIVITY = IPermission.PORTLET_SUBSCRIBER_ACTIVITY;
+    
+    private CacheManager cacheManager;
+    private Cache permissionCache;
+    private Cache principalCache;
+    private Cache entityParentsCache;
+    private EntityTypesLocator entityTypesLocator;
+    private CountingPermissionPolicy permissionPolicy;
+    private IPortletDefinitionRegistry portletDefinitionRegistry;
+    private IAuthorizationPrincipal principal;
+    private AuthorizationImpl authorizationService;
+    
+    @Before
+    public void setup() throws Exception {
+        this.cacheManager = CacheManager.create();
+        this.permissionCache = new Cache("AuthorizationImplTest.PRINCIPAL_HAS_PERMISSION", 1000, false, false, 0, 0);
+        this.cacheManager.addCache(this.permissionCache);
+        this.principalCache = new Cache("AuthorizationImplTest.PRINCIPAL", 1000, false, false, 0, 0);
+        this.cacheManager.addCache(this.principalCache);
+        this.entityParentsCache = new Cache("AuthorizationImplTest.ENTITY_PARENTS", 1000, false, false, 0, 0);
+        this.cacheManager.addCache(this.entityParentsCache);
+        
+        final EntityTypes entityTypes = mock(EntityTypes.class);
+        when(entityTypes.getEntityIDFromType(IPerson.class)).thenReturn(3);
+        when(entityTypes.getEntityIDFromType(EntityTypes.GROUP_ENTITY_TYPE)).thenReturn(2);
+        this.entityTypesLocator = new EntityTypesLocator(entityTypes);
+        this.entityTypesLocator.afterPropertiesSet();
+        
+        this.permissionPolicy = new CountingPermissionPolicy();
+        this.permissionPolicy.grant(OWNER, ACTIVITY, "PORTLET_ID.1");
+        this.permissionPolicy.grant(OWNER, ACTIVITY, "PORTLET_ID.3");
+        this.permissionPolicy.grant(OWNER, IPermission.PORTLET_SUBSCRIBER_APPROVED_ACTIVITY, "PORTLET_ID.4");
+        this.permissionPolicy.grant(OWNER, IPermission.PORTLET_SUBSCRIBER_EXPIRED_ACTIVITY, "PORTLET_ID.5");
+        
+        this.portletDefinitionRegistry = mock(IPortletDefinitionRegistry.class);
+        addPortletDefinition("1", PortletLifecycleState.PUBLISHED);
+        addPortletDefinition("2", PortletLifecycleState.PUBLISHED);
+        //Granted the published activity but needs the approved activity
+        addPortletDefinition("3", PortletLifecycleState.APPROVED);
+        addPortletDefinition("4", PortletLifecycleState.APPROVED);
+        addPortletDefinition("5", PortletLifecycleState.EXPIRED);
+        addPortletDefinition("6", PortletLifecycleState.CREATED);
+        
+        this.principal = mock(IAuthorizationPrincipal.class);
+        when(this.principal.getKey()).thenReturn("student");
+        when(this.principal.getType()).thenReturn(IPerson.class);
+        
+        this.authorizationService = new AuthorizationImpl();
+        //Permission sets are loaded through the GroupService, the policy stub doesn't need them
+        this.authorizationService.setCachePermissions(false);
+        this.authorizationService.setDefaultPermissionPolicy(this.permissionPolicy);
+        this.authorizationService.setDoesPrincipalHavePermissionCache(this.permissionCache);
+        this.authorizationService.setPortletDefinitionRegistry(this.portletDefinitionRegistry);
+    }
+    
+    @After
+    public void teardown() throws Exception {
+        this.entityTypesLocator.destroy();
+        this.cacheManager.removeCache(this.permissionCache.getName());
+        this.cacheManager.removeCache(this.principalCache.getName());
+        this.cacheManager.removeCache(this.entityParentsCache.getName());
+    }
+    
+    @Test
+    public void testDoesPrincipalHavePermissions() throws Exception {
+        final List<String> targets = Arrays.asList("PORTLET_ID.3", "PORTLET_ID.1", "PORTLET_ID.2", "PORTLET_ID.1", IPermission.ALL_PORTLETS_TARGET);
+        
+        final Map<String, Boolean> results = this.authorizationService.doesPrincipalHavePermissions(this.principal, OWNER, ACTIVITY, targets);
+        assertEquals(Arrays.asList("PORTLET_ID.3", "PORTLET_ID.1", "PORTLET_ID.2", IPermission.ALL_PORTLETS_TARGET), 
+                Arrays.asList(results.keySet().toArray()));
+        assertEquals(4, this.permissionPolicy.evaluations);
+        
+        //Compare against uncached single target checks
+        this.permissionCache.removeAll();
+        final Map<String, Boolean> expected = new LinkedHashMap<String, Boolean>();
+        for (final String target : targets) {
+            expected.put(target, this.authorizationService.doesPrincipalHavePermission(this.principal, OWNER, ACTIVITY, target));
+        }
+        assertEquals(expected, results);
+    }
+    
+    @Test
+    public void testDoesPrincipalHavePermissionsDefaultPolicy() throws Exception {
+        //student is in students and staff, students is in everyone
+        final IEntityGroup everyone = createGroup("local.everyone");
+        final IEntityGroup students = createGroup("local.students", everyone);
+        final IEntityGroup staff = createGroup("local.staff");
+        final IGroupMember student = mock(IGroupMember.class);
+        setContainingGroups(student, students, staff);
+        
+        final Map<String, IGroupMember> groupMembers = new HashMap<String, IGroupMember>();
+        groupMembers.put("student", student);
+        for (final IEntityGroup group : Arrays.asList(everyone, students, staff)) {
+            groupMembers.put(group.getKey(), group);
+        }
+        
+        final List<IPermission> permissions = new ArrayList<IPermission>();
+        //Everyone can subscribe to the portlets in the category, students are denied portlet 2
+        permissions.add(createPermission("2.local.everyone", "local.category", IPermission.PERMISSION_TYPE_GRANT));
+        permissions.add(createPermission("2.local.students", "PORTLET_ID.2", IPermission.PERMISSION_TYPE_DENY));
+        permissions.add(createPermission("2.local.staff", "PORTLET_ID.7", IPermission.PERMISSION_TYPE_GRANT));
+        permissions.add(createPermission("3.student", "PORTLET_ID.3", IPermission.PERMISSION_TYPE_DENY));
+        permissions.add(createPermission("3.student", "PORTLET_ID.4", IPermission.PERMISSION_TYPE_GRANT));
+        final IPermission expired = createPermission("3.student", "PORTLET_ID.5", IPermission.PERMISSION_TYPE_GRANT);
+        expired.setExpires(new Date(System.currentTimeMillis() - 60000));
+        permissions.add(expired);
+        
+        final IPermissionStore permissionStore = mock(IPermissionStore.class);
+        when(permissionStore.select(anyString(), anyString(), anyString(), (String) isNull(), (String) isNull())).thenAnswer(new Answer<IPermission[]>() {
+            @Override
+            public IPermission[] answer(InvocationOnMock invocation) throws Throwable {
+                final Object[] args = invocation.getArguments();
+                final List<IPermission> selected = new ArrayList<IPermission>();
+                for (final IPermission permission : permissions) {
+                    if (permission.getOwner().equals(args[0]) && permission.getPrincipal().equals(args[1]) && permission.getActivity().equals(args[2])) {
+                        selected.add(permission);
+                    }
+                }
+                return selected.toArray(new IPermission[selected.size()]);
+            }
+        });
+        
+        final AuthorizationImpl authorizationService = new AuthorizationImpl() {
+            @Override
+            public IGroupMember getGroupMember(IAuthorizationPrincipal principal) {
+                return groupMembers.get(principal.getKey());
+            }
+            
+            @Override
+            protected IEntityGroup findGroup(String key) {
+                return null;
+            }
+        };
+        authorizationService.setCachePermissions(false);
+        authorizationService.setDefaultPermissionPolicy(new AnyUnblockedGrantPermissionPolicy());
+        authorizationService.setDoesPrincipalHavePermissionCache(this.permissionCache);
+        authorizationService.setPrincipalCache(this.principalCache);
+        authorizationService.setEntityParentsCache(this.entityParentsCache);
+        authorizationService.setPermissionStore(permissionStore);
+        
+        final List<String> targets = Arrays.asList("PORTLET_ID.1", "PORTLET_ID.2", "PORTLET_ID.3", "PORTLET_ID.4", 
+                "PORTLET_ID.5", "PORTLET_ID.6", "PORTLET_ID.7");
+        for (final String target : targets) {
+            final Set<String> containingGroups = new HashSet<String>();
+            if (target.compareTo("PORTLET_ID.4") < 0) {
+                containingGroups.add("local.category");
+            }
+            this.entityParentsCache.put(new Element(target, containingGroups));
+        }
+        this.entityParentsCache.put(new Element(IPermission.ALL_TARGET, Collections.emptySet()));
+        this.entityParentsCache.put(new Element(IPermission.ALL_PORTLETS_TARGET, Collections.emptySet()));
+        
+        final IAuthorizationPrincipal principal = authorizationService.newPrincipal("student", IPerson.class);
+        final Map<String, Boolean> results = authorizationService.doesPrincipalHavePermissions(principal, OWNER, ACTIVITY, targets);
+        
+        final Map<String, Boolean> expected = new LinkedHashMap<String, Boolean>();
+        expected.put("PORTLET_ID.1", true);
+        //The deny on students blocks the only path to the grant on everyone
+        expected.put("PORTLET_ID.2", false);
+        expected.put("PORTLET_ID.3", false);
+        expected.put("PORTLET_ID.4", true);
+        expected.put("PORTLET_ID.5", false);
+        expected.put("PORTLET_ID.6", false);
+        expected.put("PORTLET_ID.7", true);
+        assertEquals(expected, results);
+        
+        //The permissions of each principal were read once for the whole batch, not once per target
+        for (final String principalString : Arrays.asList("3.student", "2.local.students", "2.local.staff", "2.local.everyone")) {
+            verify(permissionStore, times(1)).select(OWNER, principalString, ACTIVITY, null, null);
+            verify(permissionStore, times(1)).select(IPermission.PORTAL_SYSTEM, principalString, IPermission.ALL_PERMISSIONS_ACTIVITY, null, null);
+        }
+        
+        //And the single target checks reuse the batch answers
+        assertEquals(false, authorizationService.doesPrincipalHavePermission(principal, OWNER, ACTIVITY, "PORTLET_ID.2"));
+        assertEquals(true, authorizationService.doesPrincipalHavePermission(principal, OWNER, ACTIVITY, "PORTLET_ID.7"));
+    }
+    
+    @Test
+    public void testSharedPermissionCache() throws Exception {
+        assertEquals(true, this.authorizationService.doesPrincipalHavePermission(this.principal, OWNER, ACTIVITY, "PORTLET_ID.1"));
+        assertEquals(1, this.permissionPolicy.evaluations);
+        
+        //The batch only evaluates the target the single check didn't already answer
+        final Map<String, Boolean> results = this.authorizationService.doesPrincipalHavePermissions(this.principal, OWNER, ACTIVITY, 
+                Arrays.asList("PORTLET_ID.1", "PORTLET_ID.2"));
+        assertEquals(true, results.get("PORTLET_ID.1"));
+        assertEquals(false, results.get("PORTLET_ID.2"));
+        assertEquals(2, this.permissionPolicy.evaluations);
+        
+        //And the single check reuses the batch answer
+        assertEquals(false, this.authorizationService.doesPrincipalHavePermission(this.principal, OWNER, ACTIVITY, "PORTLET_ID.2"));
+        assertEquals(2, this.permissionPolicy.evaluations);
+    }
+    
+    @Test
+    public void testGetPortletDefinitionsPrincipalCanSubscribe() throws Exception {
+        final List<String> portletDefinitionIds = Arrays.asList("1", "2", "3", "4", "5", "6", "missing");
+        
+        final Set<String> subscribable = this.authorizationService.getPortletDefinitionsPrincipalCanSubscribe(this.principal, portletDefinitionIds);
+        assertEquals(new HashSet<String>(Arrays.asList("1", "4", "5")), subscribable);
+        assertEquals(subscribable, this.authorizationService.getPortletDefinitionsPrincipalCanRender(this.principal, portletDefinitionIds));
+        
+        //Compare against uncached single target checks
+        this.permissionCache.removeAll();
+        final Set<String> expected = new HashSet<String>();
+        for (final String portletDefinitionId : portletDefinitionIds) {
+            if (this.authorizationService.canPrincipalSubscribe(this.principal, portletDefinitionId)) {
+                expected.add(portletDefinitionId);
+            }
+        }
+        assertEquals(expected, subscribable);
+    }
+    
+    private IEntityGroup createGroup(String key, IEntityGroup... containingGroups) throws Exception {
+        final IEntityGroup group = mock(IEntityGroup.class);
+        when(group.getKey()).thenReturn(key);
+        doReturn(EntityTypes.GROUP_ENTITY_TYPE).when(group).getType();
+        doReturn(IPortletDefinition.class).when(group).getEntityType();
+        setContainingGroups(group, containingGroups);
+        return group;
+    }
+    
+    private void setContainingGroups(IGroupMember member, final IEntityGroup... containingGroups) throws Exception {
+        when(member.getContainingGroups()).thenAnswer(new Answer<Iterator<IEntityGroup>>() {
+            @Override
+            public Iterator<IEntityGroup> answer(InvocationOnMock invocation) throws Throwable {
+                return Arrays.asList(containingGroups).iterator();
+            }
+        });
+    }
+    
+    private IPermission createPermission(String principal, String target, String type) {
+        final IPermission permission = new PermissionImpl(OWNER);
+        permission.setPrincipal(principal);
+        permission.setActivity(ACTIVITY);
+        permission.setTarget(target);
+        permission.setType(type);
+        return permission;
+    }
+    
+    private void addPortletDefinition(String id, PortletLifecycleState state) {
+        final IPortletDefinition portletDefinition = mock(IPortletDefinition.class);
+        when(portletDefinition.getLifecycleState()).thenReturn(state);
+        when(this.portletDefinitionRegistry.getPortletDefinition(id)).thenReturn(portletDefinition);
+    }
+    
+    /**
+     * Grants the explicitly listed owner, activity and target combinations and counts evaluations
+     */
+    private static class CountingPermissionPolicy implements IPermissionPolicy {
+        private final Set<String> grants = new HashSet<String>();
+        private int evaluations = 0;
+        
+        public void grant(String owner, String activity, String target) {
+            this.grants.add(owner + "|" + activity + "|" + target);
+        }
+        
+        @Override
+        public boolean doesPrincipalHavePermission(IAuthorizationService service, IAuthorizationPrincipal principal,
+                String owner, String activity, String target) {
+            this.evaluations++;
+            return this.grants.contains(owner + "|" + activity + "|" + target);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.security.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+
+import org.jasig.portal.security.IPermission;
+import org.jasig.portal.security.IPermissionStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * @version $Revision$
+ */
+public class IndexedPermissionStoreTest {
+    private CacheManager cacheManager;
+    private Cache snapshotVersionCache;
+    private IPermissionStore targetPermissionStore;
+    private IndexedPermissionStore permissionStore;
+    
+    @Before
+    public void setup() throws Exception {
+        this.cacheManager = CacheManager.create();
+        this.snapshotVersionCache = new Cache("IndexedPermissionStoreTest.SNAPSHOT_VERSION", 1, false, false, 0, 0);
+        this.cacheManager.addCache(this.snapshotVersionCache);
+        
+        this.targetPermissionStore = mock(IPermissionStore.class);
+        when(this.targetPermissionStore.newInstance(anyString())).thenAnswer(new Answer<IPermission>() {
+            @Override
+            public IPermission answer(InvocationOnMock invocation) throws Throwable {
+                return new PermissionImpl((String) invocation.getArguments()[0]);
+            }
+        });
+        when(this.targetPermissionStore.select(null, null, null, null, null)).thenReturn(new IPermission[] {
+                createPermission(IPermission.PORTAL_SUBSCRIBE, "2.admin", IPermission.PORTLET_SUBSCRIBER_ACTIVITY, "PORTLET_ID.1", IPermission.PERMISSION_TYPE_GRANT),
+                createPermission(IPermission.PORTAL_SUBSCRIBE, "2.admin", IPermission.PORTLET_SUBSCRIBER_ACTIVITY, "PORTLET_ID.2", IPermission.PERMISSION_TYPE_DENY),
+                createPermission(IPermission.PORTAL_PUBLISH, "2.admin", IPermission.PORTLET_MANAGER_ACTIVITY, "local.5", IPermission.PERMISSION_TYPE_GRANT),
+                createPermission(IPermission.PORTAL_SUBSCRIBE, "1.local.0", IPermission.PORTLET_SUBSCRIBER_ACTIVITY, "PORTLET_ID.1", IPermission.PERMISSION_TYPE_GRANT),
+        });
+        
+        this.permissionStore = new IndexedPermissionStore();
+        this.permissionStore.setTargetPermissionStore(this.targetPermissionStore);
+        this.permissionStore.setSnapshotVersionCache(this.snapshotVersionCache);
+    }
+    
+    @After
+    public void teardown() {
+        this.cacheManager.removeCache(this.snapshotVersionCache.getName());
+    }
+    
+    @Test
+    public void testSelect() throws Exception {
+        assertEquals(4, this.permissionStore.select(null, null, null, null, null).length);
+        assertEquals(3, this.permissionStore.select(null, "2.admin", null, null, null).length);
+        assertEquals(2, this.permissionStore.select(IPermission.PORTAL_SUBSCRIBE, "2.admin", IPermission.PORTLET_SUBSCRIBER_ACTIVITY, null, null).length);
+        assertEquals(1, this.permissionStore.select(IPermission.PORTAL_SUBSCRIBE, "2.admin", IPermission.PORTLET_SUBSCRIBER_ACTIVITY, null, IPermission.PERMISSION_TYPE_DENY).length);
+        assertEquals(2, this.permissionStore.select(null, null, null, "PORTLET_ID.1", null).length);
+        assertEquals(0, this.permissionStore.select(IPermission.PORTAL_PUBLISH, "2.student", IPermission.PORTLET_MANAGER_ACTIVITY, null, null).length);
+        
+        //Everything answered from the single load
+        verify(this.targetPermissionStore, times(1)).select(null, null, null, null, null);
+    }
+    
+    @Test
+    public void testSelectReturnsCopies() throws Exception {
+        final IPermission[] permissions = this.permissionStore.select(IPermission.PORTAL_PUBLISH, "2.admin", IPermission.PORTLET_MANAGER_ACTIVITY, null, null);
+        assertEquals(1, permissions.length);
+        permissions[0].setType(IPermission.PERMISSION_TYPE_DENY);
+        
+        final IPermission[] reselected = this.permissionStore.select(IPermission.PORTAL_PUBLISH, "2.admin", IPermission.PORTLET_MANAGER_ACTIVITY, null, null);
+        assertEquals(IPermission.PERMISSION_TYPE_GRANT, reselected[0].getType());
+    }
+    
+    @Test
+    public void testChangesAppliedToSnapshot() throws Exception {
+        this.permissionStore.select(null, null, null, null, null);
+        final Object initialVersion = this.snapshotVersionCache.get(IndexedPermissionStore.SNAPSHOT_VERSION_KEY).getObjectValue();
+        
+        final IPermission added = createPermission(IPermission.PORTAL_SUBSCRIBE, "2.student", IPermission.PORTLET_SUBSCRIBER_ACTIVITY, "PORTLET_ID.1", IPermission.PERMISSION_TYPE_GRANT);
+        this.permissionStore.add(new IPermission[] { added });
+        verify(this.targetPermissionStore).add(new IPermission[] { added });
+        assertEquals(1, this.permissionStore.select(null, "2.student", null, null, null).length);
+        
+        final IPermission updated = createPermission(IPermission.PORTAL_SUBSCRIBE, "2.admin", IPermission.PORTLET_SUBSCRIBER_ACTIVITY, "PORTLET_ID.2", IPermission.PERMISSION_TYPE_GRANT);
+        this.permissionStore.update(updated);
+        verify(this.targetPermissionStore).update(updated);
+        assertEquals(3, this.permissionStore.select(null, "2.admin", null, null, IPermission.PERMISSION_TYPE_GRANT).length);
+        assertEquals(0, this.permissionStore.select(null, "2.admin", null, null, IPermission.PERMISSION_TYPE_DENY).length);
+        
+        //Updating a permission that doesn't exist doesn't add it
+        this.permissionStore.update(createPermission(IPermission.PORTAL_SUBSCRIBE, "2.staff", IPermission.PORTLET_SUBSCRIBER_ACTIVITY, "PORTLET_ID.2", IPermission.PERMISSION_TYPE_GRANT));
+        assertEquals(0, this.permissionStore.select(null, "2.staff", null, null, null).length);
+        
+        final IPermission deleted = createPermission(IPermission.PORTAL_SUBSCRIBE, "1.local.0", IPermission.PORTLET_SUBSCRIBER_ACTIVITY, "PORTLET_ID.1", null);
+        this.permissionStore.delete(new IPermission[] { deleted });
+        verify(this.targetPermissionStore).delete(new IPermission[] { deleted });
+        assertEquals(0, this.permissionStore.select(null, "1.local.0", null, null, null).length);
+        
+        //Changes were applied without reloading and published a new version
+        verify(this.targetPermissionStore, times(1)).select(null, null, null, null, null);
+        final Element versionElement = this.snapshotVersionCache.get(IndexedPermissionStore.SNAPSHOT_VERSION_KEY);
+        assertNotNull(versionElement);
+        assertFalse(initialVersion.equals(versionElement.getObjectValue()));
+    }
+    
+    @Test
+    public void testReloadOnInvalidation() throws Exception {
+        assertEquals(4, this.permissionStore.select(null, null, null, null, null).length);
+        
+        //Another server invalidated the version
+        this.snapshotVersionCache.remove(IndexedPermissionStore.SNAPSHOT_VERSION_KEY);
+        assertEquals(4, this.permissionStore.select(null, null, null, null, null).length);
+        assertEquals(4, this.permissionStore.select(null, null, null, null, null).length);
+        
+        verify(this.targetPermissionStore, times(2)).select(null, null, null, null, null);
+    }
+    
+    private IPermission createPermission(String owner, String principal, String activity, String target, String type) {
+        final IPermission permission = new PermissionImpl(owner);
+        permission.setPrincipal(principal);
+        permission.setActivity(activity);
+        permission.setTarget(target);
+        permission.setType(type);
+        return permission;
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.security.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jasig.portal.security.IPermission;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @version $Revision$
+ */
+public class PermissionIndexTest {
+    private IPermission subscribePortlet1;
+    private IPermission subscribeAllPortlets;
+    private IPermission subscribeCategory;
+    private IPermission manageCategory;
+    private IPermission subscribeApprovedPortlet1;
+    private PermissionIndex permissionIndex;
+    
+    @Before
+    public void setup() {
+        subscribePortlet1 = createPermission(IPermission.PORTAL_SUBSCRIBE, IPermission.PORTLET_SUBSCRIBER_ACTIVITY, "PORTLET_ID.1");
+        subscribeAllPortlets = createPermission(IPermission.PORTAL_SUBSCRIBE, IPermission.PORTLET_SUBSCRIBER_ACTIVITY, IPermission.ALL_PORTLETS_TARGET);
+        subscribeCategory = createPermission(IPermission.PORTAL_SUBSCRIBE, IPermission.PORTLET_SUBSCRIBER_ACTIVITY, "local.5");
+        manageCategory = createPermission(IPermission.PORTAL_PUBLISH, IPermission.PORTLET_MANAGER_ACTIVITY, "local.5");
+        subscribeApprovedPortlet1 = createPermission(IPermission.PORTAL_SUBSCRIBE, IPermission.PORTLET_SUBSCRIBER_APPROVED_ACTIVITY, "PORTLET_ID.1");
+        
+        permissionIndex = new PermissionIndex(new IPermission[] { 
+                subscribePortlet1, subscribeAllPortlets, subscribeCategory, manageCategory, subscribeApprovedPortlet1 });
+    }
+    
+    @Test
+    public void testExactTarget() {
+        final List<IPermission> permissions = permissionIndex.getPermissions(IPermission.PORTAL_SUBSCRIBE, IPermission.PORTLET_SUBSCRIBER_ACTIVITY, "PORTLET_ID.1", Collections.<String>emptySet());
+        assertEquals(Arrays.asList(subscribePortlet1), permissions);
+    }
+    
+    @Test
+    public void testContainingGroupTarget() {
+        final Set<String> containingGroups = new HashSet<String>(Arrays.asList("local.5", "local.6"));
+        
+        final List<IPermission> portlet1Permissions = permissionIndex.getPermissions(IPermission.PORTAL_SUBSCRIBE, IPermission.PORTLET_SUBSCRIBER_ACTIVITY, "PORTLET_ID.1", containingGroups);
+        assertEquals(2, portlet1Permissions.size());
+        assertTrue(portlet1Permissions.contains(subscribePortlet1));
+        assertTrue(portlet1Permissions.contains(subscribeCategory));
+        
+        final List<IPermission> portlet2Permissions = permissionIndex.getPermissions(IPermission.PORTAL_SUBSCRIBE, IPermission.PORTLET_SUBSCRIBER_ACTIVITY, "PORTLET_ID.2", containingGroups);
+        assertEquals(Arrays.asList(subscribeCategory), portlet2Permissions);
+    }
+    
+    @Test
+    public void testManyContainingGroupsTarget() {
+        //More containing groups than permission targets, exercises the owner/activity scan
+        final Set<String> containingGroups = new HashSet<String>();
+        for (int i = 0; i < 20; i++) {
+            containingGroups.add("local." + i);
+        }
+        
+        final List<IPermission> permissions = permissionIndex.getPermissions(IPermission.PORTAL_SUBSCRIBE, IPermission.PORTLET_SUBSCRIBER_ACTIVITY, "PORTLET_ID.1", containingGroups);
+        assertEquals(Arrays.asList(subscribePortlet1, subscribeCategory), permissions);
+    }
+    
+    @Test
+    public void testAllOwnerActivityTargets() {
+        assertEquals(Arrays.asList(subscribePortlet1, subscribeAllPortlets, subscribeCategory), 
+                permissionIndex.getPermissions(IPermission.PORTAL_SUBSCRIBE, IPermission.PORTLET_SUBSCRIBER_ACTIVITY));
+        assertTrue(permissionIndex.getPermissions(IPermission.PORTAL_PUBLISH, IPermission.PORTLET_SUBSCRIBER_ACTIVITY).isEmpty());
+    }
+    
+    @Test
+    public void testOwnerActivityMismatch() {
+        final Set<String> containingGroups = Collections.singleton("local.5");
+        
+        assertEquals(Arrays.asList(manageCategory), 
+                permissionIndex.getPermissions(IPermission.PORTAL_PUBLISH, IPermission.PORTLET_MANAGER_ACTIVITY, "PORTLET_ID.1", containingGroups));
+        assertEquals(Arrays.asList(subscribeApprovedPortlet1), 
+                permissionIndex.getPermissions(IPermission.PORTAL_SUBSCRIBE, IPermission.PORTLET_SUBSCRIBER_APPROVED_ACTIVITY, "PORTLET_ID.1", containingGroups));
+        assertTrue(permissionIndex.getPermissions(IPermission.PORTAL_PUBLISH, IPermission.PORTLET_SUBSCRIBER_ACTIVITY, "PORTLET_ID.1", containingGroups).isEmpty());
+        assertTrue(permissionIndex.getPermissions(IPermission.PORTAL_SUBSCRIBE, IPermission.PORTLET_SUBSCRIBER_ACTIVITY, "PORTLET_ID.3", Collections.<String>emptySet()).isEmpty());
+    }
+    
+    private IPermission createPermission(String owner, String activity, String target) {
+        final IPermission permission = new PermissionImpl(owner);
+        permission.setPrincipal("2.admin");
+        permission.setActivity(activity);
+        permission.setTarget(target);
+        permission.setType(IPermission.PERMISSION_TYPE_GRANT);
+        return permission;
+    }
+}
@@ -19,6 +19,7 @@
 
 package org.jasig.portal.url;
 
+import java.net.URLEncoder;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -44,6 +45,14 @@ public class UrlStringBuilderTest {
         }
     }
 
+    @Test
+    public void testNeedsEncoding() throws Exception {
+        for (final String value : new String[] { "", "abcXYZ019", "a.b-c*d_e", "a b", "a+b", "a/b", "a%b", "a,?", "\u00e9t\u00e9", "~" }) {
+            final boolean changed = !URLEncoder.encode(value, "UTF-8").equals(value);
+            Assert.assertEquals(value, changed, UrlStringBuilder.needsEncoding(value));
+        }
+    }
+
     @Test
     public void testEmptyBuilder() {
         final UrlStringBuilder builder = new UrlStringBuilder("UTF-8");
@@ -0,0 +1,263 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.url;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @version $Revision$
+ */
+public class UrlStringWriterTest {
+    private static final int BENCHMARK_URLS = 20000;
+    
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Test
+    public void testMatchesUrlStringBuilder() {
+        final Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+        parameters.put("a b", new String[] { "1/2", null, "\u00e9t\u00e9" });
+        parameters.put("empty", new String[0]);
+        parameters.put("null", null);
+        
+        final UrlStringBuilder builder = new UrlStringBuilder("UTF-8");
+        builder.setPath("uPortal", "f", "n2", "normal", "render.uP");
+        builder.addParameter("pCt", "fname.s3");
+        builder.addParameter("pCm_pw 2", "view");
+        builder.addParameter("pCp_pw 2");
+        builder.addParametersArray("pP_pw+2_", parameters);
+        
+        final UrlStringWriter writer = new UrlStringWriter("UTF-8");
+        try {
+            writer.appendPathSegments("/uPortal/f/n2");
+            writer.appendPath("normal");
+            writer.appendPath("render", ".uP");
+            writer.appendEncodedValueParameter("pCt", "", "fname.s3");
+            writer.appendSuffixedParameter("pCm", "_pw+2", "view");
+            writer.appendSuffixedParameter("pCp", "_pw+2");
+            writer.appendParameters("pP_", "pw%2B2_", parameters);
+            
+            Assert.assertEquals(builder.toString(), writer.toString());
+        }
+        finally {
+            writer.release();
+        }
+    }
+    
+    @Test
+    public void testBufferReuse() {
+        final UrlStringWriter first = new UrlStringWriter("UTF-8");
+        first.appendPath("first").appendParameter("a", "b");
+        final CharSequence buffer = first.getBuffer();
+        
+        //A writer created while another is in use gets its own buffer
+        final UrlStringWriter nested = new UrlStringWriter("UTF-8");
+        Assert.assertNotSame(buffer, nested.getBuffer());
+        nested.release();
+        
+        first.release();
+        
+        final UrlStringWriter second = new UrlStringWriter("UTF-8");
+        Assert.assertSame(buffer, second.getBuffer());
+        Assert.assertEquals("", second.toString());
+        second.appendPath("second");
+        Assert.assertEquals("/second", second.toString());
+        second.release();
+    }
+    
+    @Test
+    public void testLargeBufferNotRetained() {
+        final StringBuilder longValue = new StringBuilder();
+        while (longValue.length() <= UrlStringWriter.MAX_RETAINED_CAPACITY) {
+            longValue.append("0123456789");
+        }
+        
+        final UrlStringWriter large = new UrlStringWriter("UTF-8");
+        large.appendParameter("a", longValue.toString());
+        final CharSequence buffer = large.getBuffer();
+        large.release();
+        
+        final UrlStringWriter next = new UrlStringWriter("UTF-8");
+        Assert.assertNotSame(buffer, next.getBuffer());
+        next.release();
+    }
+    
+    @Test
+    public void testPathAfterParameters() {
+        final UrlStringWriter writer = new UrlStringWriter("UTF-8");
+        writer.appendParameter("a");
+        try {
+            writer.appendPath("b");
+            Assert.fail("Adding to the path after a parameter should throw an exception");
+        }
+        catch (IllegalStateException e) {
+            //expected
+        }
+        finally {
+            writer.release();
+        }
+        
+        try {
+            writer.toString();
+            Assert.fail("A released writer should throw an exception");
+        }
+        catch (IllegalStateException e) {
+            //expected
+        }
+    }
+    
+    @Test
+    public void testUrlMemo() {
+        final RequestUrlCache urlCache = new RequestUrlCache("UTF-8", "/uPortal");
+        
+        final String first = urlCache.getUrlString(new StringBuilder("/uPortal/normal/render.uP"));
+        final String second = urlCache.getUrlString(new StringBuilder("/uPortal/normal/render.uP"));
+        final String other = urlCache.getUrlString(new StringBuilder("/uPortal/max/render.uP"));
+        
+        Assert.assertEquals("/uPortal/normal/render.uP", first);
+        Assert.assertSame(first, second);
+        Assert.assertEquals("/uPortal/max/render.uP", other);
+        Assert.assertEquals(1, urlCache.getUrlHits());
+        Assert.assertEquals("/uPortal/max/render.uP".hashCode(), RequestUrlCache.hash(new StringBuilder(other)));
+        
+        //Once full URLs are still returned, just not remembered
+        for (int i = 0; i < RequestUrlCache.MAX_MEMOIZED_URLS; i++) {
+            urlCache.getUrlString(new StringBuilder("/uPortal/normal/render.uP?i=").append(i));
+        }
+        final String extra = urlCache.getUrlString(new StringBuilder("/uPortal/extra/render.uP"));
+        Assert.assertEquals("/uPortal/extra/render.uP", extra);
+        Assert.assertNotSame(extra, urlCache.getUrlString(new StringBuilder("/uPortal/extra/render.uP")));
+        Assert.assertSame(first, urlCache.getUrlString(new StringBuilder("/uPortal/normal/render.uP")));
+    }
+    
+    /**
+     * Reports the bytes allocated per URL for a typical dashboard render URL built with {@link UrlStringBuilder}
+     * and with {@link UrlStringWriter}, fresh and repeated within a request.
+     */
+    @Test
+    public void testAllocationsPerUrl() {
+        final java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocationMXBean = (com.sun.management.ThreadMXBean)threadMXBean;
+        Assume.assumeTrue(allocationMXBean.isThreadAllocatedMemorySupported());
+        allocationMXBean.setThreadAllocatedMemoryEnabled(true);
+        
+        final Map<String, String[]> targetedParameters = new LinkedHashMap<String, String[]>();
+        targetedParameters.put("action", new String[] { "dashboard" });
+        final Map<String, String[]> additionalParameters = new LinkedHashMap<String, String[]>();
+        additionalParameters.put("a", new String[] { "b" });
+        additionalParameters.put("b", new String[] { "c" });
+        
+        final String expected = "/uPortal/f/n2/normal/render.uP?pCt=fname.s3&pCs=minimized&pP_action=dashboard&pCa=pw2&pCm_pw2=help&pP_pw2_a=b&pP_pw2_b=c";
+        Assert.assertEquals(expected, buildUrl(targetedParameters, additionalParameters, null));
+        Assert.assertEquals(expected, writeUrl(new RequestUrlCache("UTF-8", "/uPortal"), targetedParameters, additionalParameters, null));
+        
+        //Distinct URLs are made by adding a counter parameter, create the values up front
+        final String[] counters = new String[BENCHMARK_URLS];
+        for (int i = 0; i < BENCHMARK_URLS; i++) {
+            counters[i] = Integer.toString(i);
+        }
+        
+        //Warm up both paths before measuring
+        final RequestUrlCache warmupCache = new RequestUrlCache("UTF-8", "/uPortal");
+        for (int i = 0; i < BENCHMARK_URLS; i++) {
+            buildUrl(targetedParameters, additionalParameters, counters[i]);
+            writeUrl(warmupCache, targetedParameters, additionalParameters, counters[i]);
+        }
+        
+        final long threadId = Thread.currentThread().getId();
+        
+        long start = allocationMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < BENCHMARK_URLS; i++) {
+            buildUrl(targetedParameters, additionalParameters, counters[i]);
+        }
+        final long builderBytes = (allocationMXBean.getThreadAllocatedBytes(threadId) - start) / BENCHMARK_URLS;
+        
+        //Distinct URLs, every one ends up as a new String
+        final RequestUrlCache freshCache = new RequestUrlCache("UTF-8", "/uPortal");
+        start = allocationMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < BENCHMARK_URLS; i++) {
+            writeUrl(freshCache, targetedParameters, additionalParameters, counters[i]);
+        }
+        final long writerBytes = (allocationMXBean.getThreadAllocatedBytes(threadId) - start) / BENCHMARK_URLS;
+        
+        //The same URL over and over, as a portlet rendered many times on a page generates
+        final RequestUrlCache repeatCache = new RequestUrlCache("UTF-8", "/uPortal");
+        start = allocationMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < BENCHMARK_URLS; i++) {
+            writeUrl(repeatCache, targetedParameters, additionalParameters, null);
+        }
+        final long memoizedBytes = (allocationMXBean.getThreadAllocatedBytes(threadId) - start) / BENCHMARK_URLS;
+        
+        this.logger.info("Bytes allocated per URL: UrlStringBuilder " + builderBytes + ", UrlStringWriter " + writerBytes + ", UrlStringWriter memoized " + memoizedBytes);
+        
+        Assert.assertTrue("UrlStringWriter allocated " + writerBytes + " bytes per URL, UrlStringBuilder " + builderBytes, writerBytes < builderBytes);
+        Assert.assertTrue("Memoized URLs allocated " + memoizedBytes + " bytes per URL, fresh URLs " + writerBytes, memoizedBytes < writerBytes);
+    }
+    
+    private String buildUrl(Map<String, String[]> targetedParameters, Map<String, String[]> additionalParameters, String n) {
+        final UrlStringBuilder url = new UrlStringBuilder("UTF-8");
+        url.setPath("uPortal");
+        url.addPath("f");
+        url.addPath("n2");
+        url.addPath("normal");
+        url.addPath("render" + UrlSyntaxProviderImpl.REQUEST_TYPE_SUFFIX);
+        url.addParameter(UrlSyntaxProviderImpl.PARAM_TARGET_PORTLET, "fname.s3");
+        url.addParameter(UrlSyntaxProviderImpl.PARAM_WINDOW_STATE, "minimized");
+        url.addParametersArray(UrlSyntaxProviderImpl.PORTLET_PARAM_PREFIX, targetedParameters);
+        url.addParameter(UrlSyntaxProviderImpl.PARAM_ADDITIONAL_PORTLET, "pw2");
+        url.addParameter(UrlSyntaxProviderImpl.PARAM_PORTLET_MODE + "_pw2", "help");
+        url.addParametersArray(UrlSyntaxProviderImpl.PORTLET_PARAM_PREFIX + "pw2_", additionalParameters);
+        if (n != null) {
+            url.addParameter("n", n);
+        }
+        return url.toString();
+    }
+    
+    private String writeUrl(RequestUrlCache urlCache, Map<String, String[]> targetedParameters, Map<String, String[]> additionalParameters, String n) {
+        final UrlStringWriter url = new UrlStringWriter("UTF-8");
+        try {
+            url.appendPathSegments(urlCache.getContextPath());
+            url.appendPathSegments("/f/n2");
+            url.appendPath("normal");
+            url.appendPath("render", UrlSyntaxProviderImpl.REQUEST_TYPE_SUFFIX);
+            url.appendEncodedValueParameter(UrlSyntaxProviderImpl.PARAM_TARGET_PORTLET, "", "fname.s3");
+            url.appendParameter(UrlSyntaxProviderImpl.PARAM_WINDOW_STATE, "minimized");
+            url.appendParameters(UrlSyntaxProviderImpl.PORTLET_PARAM_PREFIX, "", targetedParameters);
+            url.appendEncodedValueParameter(UrlSyntaxProviderImpl.PARAM_ADDITIONAL_PORTLET, "", "pw2");
+            url.appendSuffixedParameter(UrlSyntaxProviderImpl.PARAM_PORTLET_MODE, "_pw2", "help");
+            url.appendParameters(UrlSyntaxProviderImpl.PORTLET_PARAM_PREFIX, "pw2_", additionalParameters);
+            if (n != null) {
+                url.appendParameter("n", n);
+            }
+            return urlCache.getUrlString(url.getBuffer());
+        }
+        finally {
+            url.release();
+        }
+    }
+}
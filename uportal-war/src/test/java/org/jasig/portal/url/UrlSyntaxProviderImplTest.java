@@ -22,15 +22,20 @@
  */
 package org.jasig.portal.url;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 import javax.portlet.PortletMode;
 import javax.portlet.ResourceURL;
@@ -87,6 +92,7 @@ public class UrlSyntaxProviderImplTest {
     @Mock private IPortletEntity portletEntity2;
     @Mock private IPortletWindow portletWindow1;
     @Mock private IPortletWindow portletWindow2;
+    @Mock private IPortletWindow portletWindow3;
 
     @Test
     public void getCleanedContextPath() throws Exception {
@@ -102,6 +108,17 @@ public class UrlSyntaxProviderImplTest {
         assertEquals("", path);
     }
     
+    @Test
+    public void testSplitPath() throws Exception {
+        final Pattern slashPattern = Pattern.compile("/");
+        
+        for (final String path : new String[] { "", "/", "//", "render.uP", "/render.uP", "/f/n2/normal/render.uP", 
+                "/p/portlet-admin.ctf3/max/action.uP/", "f//n2///", "/f/u12l1s5/p/news.u12l1n7/detached/resource.uP" }) {
+            
+            assertArrayEquals(path, slashPattern.split(path), UrlSyntaxProviderImpl.splitPath(path));
+        }
+    }
+
     @Test
     public void testNonTargetedGeneration() throws Exception {
         final MockHttpServletRequest request = new MockHttpServletRequest();
@@ -383,6 +400,87 @@ public class UrlSyntaxProviderImplTest {
         assertEquals("/uPortal/f/n2/normal/render.uP?pCt=fname.s3&pCs=minimized&pP_action=dashboard&pCa=pw2&pCd_pw2=pw1&pCm_pw2=help&pP_pw2_a=b&pP_pw2_b=c", url);
     }
     
+    @Test
+    public void testMultipleAdditionalPortletsGeneration() throws Exception {
+        final String layoutNodeId = "n2";
+        final String subscribeId1 = "s3";
+        final String fname = "fname";
+        
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContextPath("/uPortal");
+        
+        final MockPortletWindowId portletWindowId1 = new MockPortletWindowId("pw1");
+        final MockPortletWindowId portletWindowId2 = new MockPortletWindowId("pw2");
+        final MockPortletWindowId portletWindowId3 = new MockPortletWindowId("pw 3");
+        
+        when(portalRequestUtils.getOriginalPortalRequest(request)).thenReturn(request);
+        when(urlNodeSyntaxHelperRegistry.getCurrentUrlNodeSyntaxHelper(request)).thenReturn(urlNodeSyntaxHelper);
+        when(urlNodeSyntaxHelper.getFolderNamesForLayoutNode(request, subscribeId1)).thenReturn(Arrays.asList(layoutNodeId));
+        when(urlNodeSyntaxHelper.getFolderNameForPortlet(request, portletWindowId1)).thenReturn(fname + "." + subscribeId1);
+        
+        when(portletWindowRegistry.getPortletWindow(request, portletWindowId1)).thenReturn(portletWindow1);
+        when(portletWindow1.getPortletEntity()).thenReturn(portletEntity1);
+        when(portletWindow1.getWindowState()).thenReturn(WindowState.NORMAL);
+        when(portletEntity1.getLayoutNodeId()).thenReturn(subscribeId1);
+        
+        when(portletWindowRegistry.getPortletWindow(request, portletWindowId2)).thenReturn(portletWindow2);
+        when(portletWindow2.getDelegationParentId()).thenReturn(portletWindowId1);
+        
+        when(portletWindowRegistry.getPortletWindow(request, portletWindowId3)).thenReturn(portletWindow3);
+        
+        final PortalUrlBuilder portalUrlBuilder = new PortalUrlBuilder(urlSyntaxProvider, request, layoutNodeId, portletWindowId1, UrlType.RENDER);
+        portalUrlBuilder.getPortletUrlBuilder(portletWindowId1).setParameter("action", "dashboard");
+        portalUrlBuilder.getPortletUrlBuilder(portletWindowId2).setPortletMode(PortletMode.HELP);
+        final IPortletUrlBuilder portletUrlBuilder3 = portalUrlBuilder.getPortletUrlBuilder(portletWindowId3);
+        portletUrlBuilder3.setParameter("a b", "c&d");
+        portletUrlBuilder3.setCopyCurrentRenderParameters(true);
+        
+        final String url = portalUrlBuilder.getUrlString();
+        
+        assertEquals("/uPortal/f/n2/normal/render.uP?pCt=fname.s3&pCa=pw+3&pCa=pw2&pCppw+3_&pP_pw+3_a+b=c%26d&pP_action=dashboard&pCd_pw2=pw1&pCm_pw2=help", url);
+    }
+
+    @Test
+    public void testGeneratedUrlsShareRequestData() throws Exception {
+        final String layoutNodeId = "n2";
+        final String subscribeId1 = "s3";
+        final String fname = "fname";
+        
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContextPath("/uPortal");
+        
+        final MockPortletWindowId portletWindowId1 = new MockPortletWindowId("pw1");
+        final MockPortletWindowId portletWindowId2 = new MockPortletWindowId("pw2");
+        
+        when(portalRequestUtils.getOriginalPortalRequest(request)).thenReturn(request);
+        when(urlNodeSyntaxHelperRegistry.getCurrentUrlNodeSyntaxHelper(request)).thenReturn(urlNodeSyntaxHelper);
+        when(urlNodeSyntaxHelper.getFolderNamesForLayoutNode(request, subscribeId1)).thenReturn(Arrays.asList(layoutNodeId));
+        when(urlNodeSyntaxHelper.getFolderNameForPortlet(request, portletWindowId1)).thenReturn(fname + "." + subscribeId1);
+        
+        when(portletWindowRegistry.getPortletWindow(request, portletWindowId1)).thenReturn(portletWindow1);
+        when(portletWindow1.getPortletEntity()).thenReturn(portletEntity1);
+        when(portletWindow1.getWindowState()).thenReturn(WindowState.NORMAL);
+        when(portletEntity1.getLayoutNodeId()).thenReturn(subscribeId1);
+        
+        when(portletWindowRegistry.getPortletWindow(request, portletWindowId2)).thenReturn(portletWindow2);
+        
+        final String[] urls = new String[3];
+        for (int i = 0; i < urls.length; i++) {
+            final PortalUrlBuilder portalUrlBuilder = new PortalUrlBuilder(urlSyntaxProvider, request, layoutNodeId, portletWindowId1, i < 2 ? UrlType.RENDER : UrlType.ACTION);
+            portalUrlBuilder.getPortletUrlBuilder(portletWindowId2).setParameter("a", "b");
+            urls[i] = portalUrlBuilder.getUrlString();
+        }
+        
+        assertEquals("/uPortal/f/n2/normal/render.uP?pCt=fname.s3&pCa=pw2&pP_pw2_a=b", urls[0]);
+        assertSame(urls[0], urls[1]);
+        assertEquals("/uPortal/f/n2/p/fname.s3/normal/action.uP?pCa=pw2&pP_pw2_a=b", urls[2]);
+        
+        //Folder names and additional portlet windows are looked up once per request
+        verify(urlNodeSyntaxHelper, times(1)).getFolderNamesForLayoutNode(request, subscribeId1);
+        verify(urlNodeSyntaxHelper, times(1)).getFolderNameForPortlet(request, portletWindowId1);
+        verify(portletWindowRegistry, times(1)).getPortletWindow(request, portletWindowId2);
+    }
+    
     @Test
     public void testSingleFolderPortletDelegationFnameSubscribeIdMinimizedRenderUrlParsing() throws Exception {
         final MockHttpServletRequest request = new MockHttpServletRequest();
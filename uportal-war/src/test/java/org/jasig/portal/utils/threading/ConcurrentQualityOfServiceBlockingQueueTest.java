@@ -0,0 +1,314 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.utils.threading;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @version $Revision$
+ */
+public class ConcurrentQualityOfServiceBlockingQueueTest {
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+    
+    @Test
+    public void testRoundRobinByKey() throws Exception {
+        final KeyedQueue queue = new KeyedQueue();
+        
+        queue.add("a1");
+        queue.add("a2");
+        queue.add("a3");
+        queue.add("b1");
+        queue.add("c1");
+        queue.add("c2");
+        
+        assertEquals(6, queue.size());
+        assertEquals(3, queue.getKeySize("a"));
+        assertEquals(1, queue.getKeySize("b"));
+        assertTrue(queue.isKeyEmpty("d"));
+        
+        assertEquals("a1", queue.poll());
+        assertEquals("b1", queue.poll());
+        assertEquals("c1", queue.poll());
+        assertEquals("a2", queue.poll());
+        
+        //b is re-added after being emptied and goes to the back of the line
+        queue.add("b2");
+        
+        assertEquals("c2", queue.poll());
+        assertEquals("a3", queue.poll());
+        assertEquals("b2", queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+    
+    @Test
+    public void testCapacity() throws Exception {
+        final KeyedQueue queue = new KeyedQueue(2);
+        
+        assertTrue(queue.offer("a1"));
+        assertTrue(queue.offer("b1"));
+        assertFalse(queue.offer("c1"));
+        assertFalse(queue.offer("c1", 10, TimeUnit.MILLISECONDS));
+        assertEquals(0, queue.remainingCapacity());
+        
+        assertEquals("a1", queue.take());
+        assertEquals(1, queue.remainingCapacity());
+        assertTrue(queue.offer("c1"));
+    }
+    
+    @Test
+    public void testRemove() throws Exception {
+        final KeyedQueue queue = new KeyedQueue();
+        
+        queue.add("a1");
+        queue.add("a2");
+        queue.add("b1");
+        
+        assertTrue(queue.contains("a2"));
+        assertTrue(queue.remove("a1"));
+        assertFalse(queue.remove("a1"));
+        assertFalse(queue.contains("a1"));
+        assertEquals(2, queue.size());
+        
+        for (final Iterator<String> itr = queue.iterator(); itr.hasNext(); ) {
+            if ("b1".equals(itr.next())) {
+                itr.remove();
+            }
+        }
+        
+        assertEquals(1, queue.size());
+        assertEquals("a2", queue.poll());
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+    
+    @Test
+    public void testBlockingTake() throws Exception {
+        final KeyedQueue queue = new KeyedQueue();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+            
+            final Future<String> taken = executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return queue.take();
+                }
+            });
+            
+            Thread.sleep(50);
+            assertFalse(taken.isDone());
+            
+            queue.put("a1");
+            assertEquals("a1", taken.get(1, TimeUnit.SECONDS));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void testConcurrentProducersConsumers() throws Exception {
+        final KeyedQueue queue = new KeyedQueue(100);
+        final long consumed = runLoad(queue, 8, 8, 10000, 50, false);
+        assertEquals(8 * 10000, consumed);
+        assertTrue(queue.isEmpty());
+    }
+    
+    /**
+     * Throughput comparison with the lock based {@link QualityOfServiceBlockingQueue}, run manually 
+     */
+    @Ignore
+    @Test
+    public void benchmarkQueues() throws Exception {
+        final int cpus = Runtime.getRuntime().availableProcessors();
+        final int[] keyCounts = { 1, 16, 1000 };
+        
+        for (final int threads : new int[] { Math.max(1, cpus / 2), cpus, cpus * 2 }) {
+            for (final int keys : keyCounts) {
+                for (final boolean skewed : new boolean[] { false, true }) {
+                    for (int run = 0; run < 3; run++) {
+                        final long lockingTime = timeLoad(new LockingKeyedQueue(), threads, keys, skewed);
+                        final long concurrentTime = timeLoad(new KeyedQueue(), threads, keys, skewed);
+                        
+                        logger.info("threads={}, keys={}, skewed={}, locking={}ms, concurrent={}ms", 
+                                new Object[] { threads, keys, skewed, lockingTime, concurrentTime });
+                    }
+                }
+            }
+        }
+    }
+    
+    private long timeLoad(BlockingQueue<String> queue, int threads, int keys, boolean skewed) throws Exception {
+        final long start = System.nanoTime();
+        runLoad(queue, Math.max(1, threads), Math.max(1, threads), 100000, keys, skewed);
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+    
+    /**
+     * Runs producers and consumers against the queue, returns the number of elements consumed
+     */
+    private long runLoad(final BlockingQueue<String> queue, int producers, int consumers, final int elementsPerProducer, 
+            final int keys, final boolean skewed) throws Exception {
+        
+        final ExecutorService executor = Executors.newFixedThreadPool(producers + consumers);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicLong remaining = new AtomicLong((long)producers * elementsPerProducer);
+            final AtomicLong consumed = new AtomicLong();
+            
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int p = 0; p < producers; p++) {
+                final int producer = p;
+                futures.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        final Random random = new Random(producer);
+                        start.await();
+                        for (int i = 0; i < elementsPerProducer; i++) {
+                            final int key;
+                            if (skewed) {
+                                //Roughly 80% of elements land on 20% of the keys
+                                final double r = random.nextDouble();
+                                key = (int)(keys * r * r * r);
+                            }
+                            else {
+                                key = random.nextInt(keys);
+                            }
+                            queue.put(key + ":" + producer + ":" + i);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            
+            for (int c = 0; c < consumers; c++) {
+                futures.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        start.await();
+                        while (remaining.getAndDecrement() > 0) {
+                            queue.take();
+                            consumed.incrementAndGet();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            
+            start.countDown();
+            for (final Future<?> future : futures) {
+                future.get(5, TimeUnit.MINUTES);
+            }
+            
+            return consumed.get();
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    private static String getKey(String e) {
+        final int separator = e.indexOf(':');
+        if (separator > 0) {
+            return e.substring(0, separator);
+        }
+        return e.substring(0, 1);
+    }
+    
+    private static final class KeyedQueue extends ConcurrentQualityOfServiceBlockingQueue<String, String> {
+        public KeyedQueue() {
+            super();
+        }
+
+        public KeyedQueue(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        protected String getElementKey(String e) {
+            return getKey(e);
+        }
+    }
+    
+    /**
+     * Round-robin keyed queue using the lock based implementation
+     */
+    private static final class LockingKeyedQueue extends QualityOfServiceBlockingQueue<String, String> {
+        private Iterator<String> keyIterator;
+        
+        public LockingKeyedQueue() {
+            this.resetKeyIterator();
+        }
+
+        @Override
+        protected String getElementKey(String e) {
+            return getKey(e);
+        }
+
+        @Override
+        protected String getNextElementKey() {
+            boolean reset = false;
+            
+            String key;
+            do {
+                if (!this.keyIterator.hasNext()) {
+                    if (reset) {
+                        throw new IllegalStateException("No key with queued elements: " + this.toString());
+                    }
+                    
+                    reset = true;
+                    this.resetKeyIterator();
+                }
+                
+                key = this.keyIterator.next();
+            } while (this.isKeyEmpty(key));
+            
+            return key;
+        }
+        
+        private void resetKeyIterator() {
+            final Set<String> keySet = this.getKeySet();
+            this.keyIterator = keySet.iterator();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.utils.threading;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @version $Revision$
+ */
+public class ThreadPerTaskExecutorServiceTest {
+    @Test
+    public void testNewThreadPerTask() throws Exception {
+        final ThreadPerTaskExecutorService executorService = new ThreadPerTaskExecutorService(Executors.defaultThreadFactory(), 0);
+        
+        final Callable<Thread> currentThread = new Callable<Thread>() {
+            @Override
+            public Thread call() throws Exception {
+                return Thread.currentThread();
+            }
+        };
+        
+        final Thread t1 = executorService.submit(currentThread).get(1, TimeUnit.SECONDS);
+        final Thread t2 = executorService.submit(currentThread).get(1, TimeUnit.SECONDS);
+        assertFalse(t1 == t2);
+        assertFalse(Thread.currentThread() == t1);
+        
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals(2, executorService.getCompletedTaskCount());
+    }
+    
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        final ThreadPerTaskExecutorService executorService = new ThreadPerTaskExecutorService(Executors.defaultThreadFactory(), 1);
+        
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Future<?> blocked = executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        assertEquals(1, executorService.getActiveCount());
+        
+        try {
+            executorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            fail("Second task should be rejected while the first is running");
+        }
+        catch (RejectedExecutionException e) {
+            //expected
+        }
+        assertEquals(1, executorService.getRejectedTaskCount());
+        
+        release.countDown();
+        blocked.get(1, TimeUnit.SECONDS);
+        
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals(1, executorService.getLargestActiveCount());
+    }
+    
+    @Test
+    public void testFallbackWhenDisabled() throws Exception {
+        final ThreadPerTaskExecutorService fallbackExecutor = new ThreadPerTaskExecutorService(Executors.defaultThreadFactory(), 0);
+        
+        final VirtualThreadExecutorFactoryBean factoryBean = new VirtualThreadExecutorFactoryBean();
+        factoryBean.setEnabled(false);
+        factoryBean.setFallbackExecutor(fallbackExecutor);
+        factoryBean.afterPropertiesSet();
+        
+        assertTrue(fallbackExecutor == factoryBean.getObject());
+        
+        factoryBean.destroy();
+        assertFalse(fallbackExecutor.isShutdown());
+    }
+}